@@ -1,1131 +1,2401 @@
-package com.hapiware.agent;
-
-
-import java.io.File;
-import java.io.IOException;
-import java.lang.instrument.Instrumentation;
-import java.lang.reflect.InvocationTargetException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.xml.sax.SAXException;
-
-
-/**
- * {@code Agent} is a generic solution to greatly simplify the agent programming (see
- * {@code java.lang.instrument} package description for more information about agents
- * in general).
- * <p>
- * 
- * The main idea is to have a totally separated environment for running agents. This means that
- * the agent uses its own namespace (i.e. class loader) for its classes. With {@code Agent}
- * a programmer can avoid .jar file version conflicts. That's why the {@code Agent} configuration
- * file has its own {@code classpath} element(s). Another advantage is that the XML configuration
- * file is always similar for different agents. And yet one more advantage is that the programmer
- * does not need to care about the manifest attributes mentioned in {@code java.lang.instrument}
- * package description. They are already handled for the programmer. 
- * 
- * 
- * <h3>Using {@code Agent}</h3>
- * 
- * {@code Agent} is specified by using Java {@code -javaagent} switch like this:
- * <blockquote>
- *     {@code -javaagent:agent-jarpath=path-to-xml-config-file}
- * </blockquote>
- *
- * For example:
- * <blockquote>
- * 		{@code
- * 			-javaagent:/users/me/agent/target/agent-1.0.0.jar=/users/me/agent/agent-config.xml
- * 		}
- * </blockquote>
- * 
- * 
- * 
- * <h3>Configuration file</h3>
- * 
- * The configuration file is an XML file and has the {@code <agent>} as its root element.
- * {@code <agent>} has the following childs:
- * <ul>
- * 		<li>{@code <variable>}, this is an <b>optional</b> element for simplifying the configuration</li>
- * 		<li>{@code <delegate>}, this is a <b>mandatory</b> element to define the agent delegate</li>
- * 		<li>
- * 			{@code <classpath>}, this is a <b>mandatory</b> element and has at minimum of one (1)
- * 			{@code <entry>} child element.
- * 		</li>
- * 		<li>
- * 			{@code <filter>}, this is an <b>optional</b> element and can have zero (0)
- * 			{@code <include>} and/or {@code <exclude>} child elements. Filters are regular
- * 			expressions patterns to include or exclude classes to be instrumented.
- * 		</li>
- * 		<li>
- * 			{@code <configuration>}, which is an <b>optional</b> element is used to configure
- * 			agent delegate.
- * 			See <a href="#agent-configuration-element">{@code /agent/configuration} element</a>
- * 		</li>
- * </ul>
- * 
- * So, in general a configuration XML file looks like this:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<variable />
- *		<variable />
- *		...
- *		<delegate />
- *		<classpath>
- *			<entry />
- *			<entry />
- *			...
- *		</classpath>
- *		<filter>
- *			<include />
- *			<include />
- *			<exclude />
- *			<exclude />
- *			...	
- *		</filter>	
- *
- *		<configuration>
- *			<!--
- *				This can be text, a predefined structure or
- *				programmer's own structure
- *			-->
- *		</configuration>
- *	</agent>
- * </xmp>
- * 
- * 
- * 
- * <h4><a name="agent-variable-element">{@code /agent/variable} element</a></h4>
- * The {@code /agent/variable} element is <b>optional</b> and it is supposed to be used to simplify
- * the configuration file. Variables can be anywhere under {@code agent} element (i.e. they
- * need not to be in the beginning of the configuration file).
- * <p>
- * 
- * The {@code /agent/variable} element <u>must have (only) {@code name} attribute</u> which is used
- * as a reference in other parts of the configuration file. The {@code name} reference is replaced
- * by the value of the {@code /agent/variable} element. The variable is referenced with the following
- * pattern:
- * <blockquote>
- * 		${VARIABLE}
- * </blockquote>
- * 
- * where:
- * <ul>
- * 		<li>{@code VARIABLE} is the {@code name} attribute of the {@code /agent/variable} element</li>
- * </ul>
- * 
- * Here is a simple example where every {@code ${repo-path}} variable reference is replaced with
- * {@code /users/me/.m2/repository} string:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<variable name="repo-path">/users/me/.m2/repository</variable>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- * 			<entry>${repo-path}/asm/asm/3.1/asm-3.1.jar</entry>
- * 			<entry>${repo-path}/asm/asm-commons/3.1/asm-commons-3.1.jar</entry>
- * 			<entry>${repo-path}/asm/asm-util/3.1/asm-util-3.1.jar</entry>
- * 			<entry>${repo-path}/asm/asm-tree/3.1/asm-tree-3.1.jar</entry>
- *		</classpath>
- *		<configuration>...</configuration>
- *	</agent>
- * </xmp>
- * 
- * 
- * Variables can be used more creatively if there is a need for that. This example produces exactly
- * the same result than the example above but the use of variables are more complex:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<variable name="a">repo</variable>
- *		<variable name="b">path</variable>
- *		<variable name="c">ju</variable>
- *		<variable name="juuri">roo</variable>
- *		<variable name="${${c}uri}t">users</variable>
- *		<variable name="${a}-${b}">/${root}/me/.m2/repository</variable>
- *		<variable name="asm-package">asm</variable>
- *		<variable name="${asm-package}-version">3.1</variable>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- * 			<entry>${repo-path}/${asm-package}/asm/${asm-version}/asm-${asm-version}.jar</entry>
- * 			<entry>${repo-path}/${asm-package}/asm-commons/${asm-version}/asm-commons-${asm-version}.jar</entry>
- * 			<entry>${repo-path}/${asm-package}/asm-util/${asm-version}/asm-util-${asm-version}.jar</entry>
- * 			<entry>${repo-path}/${asm-package}/asm-tree/${asm-version}/asm-tree-${asm-version}.jar</entry>
- *		</classpath>
- *		<configuration>...</configuration>
- *	</agent>
- * </xmp>
- * 
- * 
- * 
- * <h4><a name="agent-delegate-element">{@code /agent/delegate} element</a></h4>
- * The {@code /agent/delegate} element is <b>mandatory</b> and its value is the name of the delegate class
- * as a fully qualified name (e.g. {@code com.hapiware.asm.TimeMachineAgentDelegate}).
- * <p>
- * 
- * The agent delegate class must have the following method (with the exact signature):
- * <blockquote>
- * 	<pre>
- * 		public static void premain(
- * 			java.util.regex.Pattern[] includePatterns,
- * 			java.util.regex.Pattern[] excludePatterns,
- * 			Object config,
- * 			Instrumentation instrumentation
- * 		)
- * 	</pre>
- * </blockquote>
- * 
- * where:
- * <ul>
- * 		<li>
- * 			{@code java.util.regex.Pattern[] includePatterns} has a list of regular expression
- * 			patterns to be used	to include classes for instrumentation.
- * 			See <a href="#agent-filter-element">{@code /agent/filter}</a>
- * 		</li>
- * 		<li>
- * 			{@code java.util.regex.Pattern[] excludePatterns} has a list of regular expression
- * 			patterns to be used	to set classes not to be instrumented.
- * 			See <a href="#agent-filter-element">{@code /agent/filter}</a>
- * 		</li>
- * 		<li>
- * 			{@code Object config} is the configuration object based on the
- * 			<a href="#agent-configuration-element">{@code /agent/configuration} element</a>.
- * 		</li>
- * 		<li>{@code Instrumentation instrumentation} has services to provide the instrumentation.</li>
- * </ul>
- * 
- * This {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method <b>can do all the same things</b> as defined for {@code static void premain(String, Instrumentation)}
- * method in the {@code java.lang.instrument} package description.  
- * 
- * 
- * 
- * <h4><a name="agent-classpath-element">{@code /agent/classpath} element</a></h4>
- * The {@code /agent/classpath} element is <b>mandatory</b> and is used to define the classpath
- * <b>for the agent <u>delegate</u> class</b>. This means that there is no need to put any of
- * the used libraries for the agent delegate class in to your environment classpath.
- * <p>
- * The {@code /agent/classpath} element must have at least one {@code <entry>} child element
- * but can have several. The only required classpath entry is the delegate agent (.jar file) itself.
- * However, usually there are other classpath entries for the libraries needed by the delegate
- * agent. Here is an example:
- * 
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<delegate>com.hapiware.agent.TimeMachineAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/timemachine-delegate-1.0.0.jar</entry>
- * 			<entry>/usr/local/asm-3.1/lib/all/all-asm-3.1.jar</entry>
- *		</classpath>
- *		<configuration>...</configuration>
- *	</agent>
- * </xmp>
- * 
- * 
- * 
- * <h4><a name="agent-filter-element">{@code /agent/filter} element</a></h4>
- * The {@code /agent/filter} is <b>optional</b> and is used to filter classes to be
- * instrumented.
- * <p>
- * The {@code /agent/filter} element can have several {@code include} and/or {@code exclude}
- * elements but can have also none of them. Here is an example:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- * 	<agent>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- * 		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- * 		</classpath>
- * 		<filter>
- * 			<include>^com/hapiware/.*f[oi]x/.+</include>
- * 			<include>^com/mysoft/.+</include>
- * 			<exclude>^com/hapiware/.+/CreateCalculationForm</exclude>
- * 		</filter>
- * 		<configuration>...</configuration>
- * 	</agent>
- * </xmp>
- * 
- * <h5>{@code <include>} element</h5>
- * {@code <include>} element can be used for matching the possible candidates for instrumentation.
- * If none is defined then one pattern containing <b>{@code ".+"}</b> is assumed as a default value.
- * {@code <include>} element is a normal Java regular expression.
- * <p>
- * <b>Notice</b> that the class names are presented in the internal form of fully qualified class
- * names as defined in The Java Virtual Machine Specification (e.g. "java/util/List"). So, when
- * you create {@code <include>} and {@code <exclude>} elements, remember that package names are
- * separated with slash (/) instead of period (.).
- *
- * <h5>{@code <exclude>} element</h5>
- * {@code <exclude>} can be used to ensure that the instrumentation is not done for some classes.
- * {@code <exclude>} element is a normal Java regular expression.
- * <p>
- * <b>Notice</b> that the class names are presented in the internal form of fully qualified class
- * names as defined in The Java Virtual Machine Specification (e.g. "java/util/List"). So, when
- * you create {@code <include>} and {@code <exclude>} elements, remember that package names are
- * separated with slash (/) instead of period (.).
- * 
- * 
- * <h4><a name="agent-configuration-element">{@code /agent/configuration/} element</a></h4>
- * The {@code /agent/configuration/} element is <b>optional</b> and has all the necessary
- * configuration information for the agent delegate class. The exact structure can depend on
- * the programmer but there are some predefined structures as well. The configuration object
- * is delivered to the agent delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument.
- * <p>
- * 
- * All the possible options for configuration object creation are:
- * 	<ol>
- *		<li>{@code null}</li>
- * 		<li>{@code String}</li>
- * 		<li>{@code List<String>}</li>
- * 		<li>{@code Map<String, String>}</li>
- * 		<li>User defined configuration object</li>
- *	</ol>
- * 
- * <h5>{@code null}</h5>
- * If the {@code /agent/configuration/} element is not defined at all then {@code null} is
- * delivered to the agent delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument. For example:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- *		</classpath>
- *	</agent>
- * </xmp>
- * which sends {@code null} to the
- * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument.
- * 
- * <h5>{@code String}</h5>
- * If the {@code /agent/configuration/} element has only pure text (i.e. {@code String}), the
- * text string is delivered to the delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument. For example:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- *		</classpath>
- *		<configuration>Show me!</configuration>
- *	</agent>
- * </xmp>
- * which sends "Show me!" to the
- * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument.
- * 
- * <h5>{@code List<String>}</h5>
- * If the {@code /agent/configuration/} element has {@code <item>} child elements <u>without an 
- * attribute</u> then the {@code List<String>} is created which is in turn delivered to the agent
- * delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument. For example:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- *		</classpath>
- *		<configuration>
- *			<item>One</item>
- *			<item>Two</item>
- *			<item>Three</item>
- *		</configuration>
- *	</agent>
- * </xmp>
- * which sends {@code List<String>} {"One", "Two", "Three"} to the
- * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument.
- * 
- * <h5>{@code Map<String, String>}</h5>
- * If the {@code /agent/configuration/} element has {@code <item>} child elements <u>with a
- * {@code key} attribute</u> then the {@code Map<String, String>} is created which is in turn
- * delivered to the agent delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument. For example:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- *	<agent>
- *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
- *		<classpath>
- * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
- *		</classpath>
- *		<configuration>
- *			<item key="1">One</item>
- *			<item key="2">Two</item>
- *			<item key="3">Three</item>
- *		</configuration>
- *	</agent>
- * </xmp>
- * which sends {@code Map<String, String>} {{"1", "One"}, {"2", "Two"}, {"3", "Three"}} to the
- * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument.
- * 
- * <h5>User defined configuration object</h5>
- * If the {@code /agent/configuration/} element has the {@code custom} child element defined,
- * then {@code public static Object unmarshall(org.w3c.dom.Element configElement)} method must
- * be defined to the agent delegate class in addition to {@code premain()} method. The
- * {@code unmarshall()} method is called with the {@code /agent/configuration/custom} element
- * as an argument. The system then delivers the returned {@code Object} directly to the agent
- * delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method as an {@link Object} argument. This approach makes it possible to create different configuration
- * structures for the agent delegate's
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method very flexibly.
- * <p>
- * {@code public static Object unmarshall(org.w3c.dom.Element configElement)} is assumed to return
- * a programmer's own configuration object. Here is an example:
- * <xmp>
- * 	<?xml version="1.0" encoding="UTF-8" ?>
- * 	<agent>
- * 		<delegate>com.hapiware.agent.FancyAgentDelegate</delegate>
- * 		<classpath>
- * 			<entry>/users/me/agent/target/fancy-delegate-1.0.0.jar</entry>
- * 			<entry>/usr/local/asm-3.1/lib/all/all-asm-3.1.jar</entry>
- * 		</classpath>
- * 		<filter>
- * 			<include>^com/hapiware/.*f[oi]x/.+</include>
- * 			<include>^com/mysoft/.+</include>
- * 			<exclude>^com/hapiware/.+/CreateCalculationForm</exclude>
- * 		</filter>
- * 		<configuration>
- * 			<custom>
- * 				<message>Hello World!</message>
- * 				<date>2010-3-13</date>
- * 			</custom>
- * 		</configuration>
- * 	</agent>
- * </xmp>
- * 
- * This assumes that {@code com.hapiware.asm.FancyAgentDelegate} class has
- * {@code public static Object unmarshall(org.w3c.dom.Element configElement)} method defined
- * to handle {@code <message>} and {@code <date>} elements from the {@code <configuration/custom>}
- * element. It is also assumed that the {@code Object} the {@code unmarshall()} method returns
- * can be properly handled (and type casted) in the
- * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
- * method.
- * 
- * 
- * @see java.lang.instrument
- * 
- * @author <a href="http://www.hapiware.com" target="_blank">hapi</a>
- *
- */
-public class Agent
-{
-	private final static String PREMAIN_SIGNATURE =
-		"static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)";
-	
-	
-	/**
-	 * This method is called before the main method call right after the JVM initialisation. 
-	 * <p>
-	 * <b>Notice</b> that this method follows the <i>fail fast</i> idiom and thus
-	 * throws a runtime exception if there is something wrong in the configuration file.
-	 * 
-	 * @param agentArgs
-	 * 		Same string which was given to {@code -javaagent} as <i>options</i> (see the class
-	 * 		description).
-	 * 
-	 * @param instrumentation
-	 * 		See {@code java.lang.instrument.Instrumentation}
-	 * 
-	 * @throws ConfigurationError
-	 * 		If there is something wrong with the configuration file.
-	 *
-	 * @see java.lang.instrument
-	 */
-	public static void premain(String agentArgs, Instrumentation instrumentation)
-	{
-		ConfigElements configElements = readConfigurationFile(agentArgs);
-		ClassLoader originalClassLoader = null;
-		try {
-			originalClassLoader = Thread.currentThread().getContextClassLoader();
-			ClassLoader cl =
-				new URLClassLoader(
-					configElements.getClasspaths(),
-					originalClassLoader
-				);
-			Thread.currentThread().setContextClassLoader(cl);
-			
-			
-			Class<?> delegateAgentClass =
-				(Class<?>)cl.loadClass(configElements.getDelegateAgentName());
-			Object delegateConfiguration = unmarshall(delegateAgentClass, configElements);
-			
-			// Invokes the premain method of the delegate agent.
-			delegateAgentClass.getMethod(
-				"premain",
-				new Class[] {Pattern[].class, Pattern[].class, Object.class, Instrumentation.class}
-			).invoke(
-				null,
-				configElements.getIncludePatterns(),
-				configElements.getExcludePatterns(),
-				delegateConfiguration,
-				instrumentation
-			);
-		}
-		catch(ClassNotFoundException e) {
-			throw
-				new ConfigurationError(
-					"A delegate agent \""
-						+ configElements.getDelegateAgentName() + "\" was not found.",
-					e
-				);
-		}
-		catch(NoSuchMethodException e) {
-			throw
-				new ConfigurationError(
-					PREMAIN_SIGNATURE + " method was not defined in \""
-						+ configElements.getDelegateAgentName() + "\".",
-					e
-				);
-		}
-		catch(IllegalArgumentException e) {
-			throw
-				new ConfigurationError(
-					"Argument mismatch with " + PREMAIN_SIGNATURE + " "
-						+ "in \"" + configElements.getDelegateAgentName() + "\".",
-					e
-				);
-		}
-		catch(InvocationTargetException e) {
-			throw
-				new ConfigurationError(
-					PREMAIN_SIGNATURE + " in \"" + configElements.getDelegateAgentName()
-						+ "\" threw an exception.",
-					e
-				);
-		}
-		catch(IllegalAccessException e) {
-			assert false : e;
-		}
-		finally {
-			if(originalClassLoader != null)
-				Thread.currentThread().setContextClassLoader(originalClassLoader);
-		}
-	}
-
-	
-	/**
-	 * Reads the configuration file and creates the include and exclude regular expression
-	 * pattern compilations for class matching.
-	 * 
-	 * @param configReader
-	 * 		A configuration reader.
-	 *  
-	 * @return
-	 * 		Configuration elements ({@link ConfigElements}) parsed from the configuration file.
-	 * 
-	 * @throws ConfigurationError
-	 * 		If configuration file cannot be read or parsed properly.
-	 */
-	static ConfigElements readConfigurationFile(String configFileName)
-	{
-		if(configFileName == null)
-			throw
-				new ConfigurationError(
-					"The agent configuration file is not defined."
-				);
-		
-		File configFile = new File(configFileName);
-		if(configFile.exists()) {
-			try {
-				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-				return readDOMDocument(builder.parse(configFile), configFile.getCanonicalPath());
-			}
-			catch(ParserConfigurationException e) {
-				throw
-					new ConfigurationError(
-						"XML document builder cannot be created.",
-						e
-					);
-			}
-			catch(SAXException e) {
-				throw
-					new ConfigurationError(
-						"Parsing the agent configuration file \""
-							+ configFile + "\" didn't succeed.\n"
-							+ "\t->Make sure that the configuration file has been saved using "
-							+ "the correct encoding (i.e the same what is claimed in "
-							+ "XML declaration).",
-						e
-					);
-			}
-			catch(IOException e) {
-				throw
-					new ConfigurationError(
-						"IO error with the agent configuration file \""
-							+ configFile + "\".",
-						e
-					);
-			}
-		}
-		else
-			throw
-				new ConfigurationError(
-					"The agent configuration file \"" + configFile + "\" does not exist."
-				);
-	}
-	
-	
-	/**
-	 * This method does the actual work for {@link #readConfigurationFile(String)} method.
-	 * This separation is mainly done for making unit testing easier. 
-	 */
-	static ConfigElements readDOMDocument(Document configDocument, String configFileName)
-	{
-		ConfigElements retVal = null;
-		try {
-			// Validate configuration document.
-			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-			SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-			Source schemaFile =	new StreamSource(classLoader.getResourceAsStream("agent.xsd"));
-			Schema schema = factory.newSchema(schemaFile);
-			Validator validator = schema.newValidator();
-			validator.validate(new DOMSource(configDocument));
-			
-			XPath xpath = XPathFactory.newInstance().newXPath();
-			
-			// All /agent/variables.
-			NodeList allVariableEntries = 
-				(NodeList)xpath.evaluate(
-					"/agent/variable",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			
-			// /agent/variable[@name]
-			NodeList variableEntriesWithName = 
-				(NodeList)xpath.evaluate(
-					"/agent/variable[@name]",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			if(allVariableEntries.getLength() != variableEntriesWithName.getLength())
-				throw
-					new ConfigurationError("\"name\" is the only valid attribute for /agent/variable element.");
-			
-			Map<String, String> variables = new HashMap<String, String>();
-			putVariablesWithNamesToMap(variableEntriesWithName, variables);
-			
-			// Replace all variables in attributes in the configuration file.
-			NodeList allAttributes =
-				(NodeList)xpath.evaluate(
-					"/agent//@*",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			Pattern variablePattern = Pattern.compile("(\\$\\{([^\\$\\{\\}]+?)\\})");
-			boolean matched;
-			do {
-				matched = false;
-				for(int i = 0; i < allAttributes.getLength(); i ++) {
-					Node attributeEntry = allAttributes.item(i);
-					String attributeValue = ((Attr)attributeEntry).getValue();
-					Matcher m = variablePattern.matcher(attributeValue);
-					while(m.find()) {
-						matched = true;
-						String substitute = variables.get(m.group(2));
-						if(substitute == null) {
-							String ex =
-								"Attribute \"" + ((Attr)attributeEntry).getOwnerElement().getNodeName() 
-								+ "[@" + attributeEntry.getNodeName() + "]\""
-								+ " has an unrecognised variable " + m.group(1) + ".";
-							throw new ConfigurationError(ex);
-						}
-						attributeValue = attributeValue.replace(m.group(1), substitute);
-						((Attr)attributeEntry).setValue(attributeValue);
-					}
-				}
-			
-				// /agent/variable[@name] must be searched again and put to the map
-				// in the case variables are used in /agent/variable elements as attributes.
-				variableEntriesWithName = 
-					(NodeList)xpath.evaluate(
-						"/agent/variable[@name]",
-						configDocument,
-						XPathConstants.NODESET
-					);
-				putVariablesWithNamesToMap(variableEntriesWithName, variables);
-			} while(matched);
-			
-			// Replace all variables in elements in the configuration file.
-			NodeList allElements =
-				(NodeList)xpath.evaluate(
-					"/agent//*/text()",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			do {
-				matched = false;
-				for(int i = 0; i < allElements.getLength(); i ++) {
-					Node elementEntry = allElements.item(i);
-					String elementValue = ((Text)elementEntry).getData();
-					Matcher m = variablePattern.matcher(elementValue);
-					while(m.find()) {
-						matched = true;
-						String substitute = variables.get(m.group(2));
-						if(substitute == null) {
-							String ex =
-								"Element \"" + elementEntry.getParentNode().getNodeName() + "\""
-								+ " has an unrecognised variable " + m.group(1) + ".";
-							throw new ConfigurationError(ex);
-						}
-						elementValue = elementValue.replace(m.group(1), substitute);
-						((Text)elementEntry).setData(elementValue);
-					}
-				}
-
-				// /agent/variable[@name] must be searched again and put to the map
-				// in the case variables are used in /agent/variable elements as values.
-				variableEntriesWithName = 
-					(NodeList)xpath.evaluate(
-						"/agent/variable[@name]",
-						configDocument,
-						XPathConstants.NODESET
-					);
-				putVariablesWithNamesToMap(variableEntriesWithName, variables);
-			} while(matched);
-
-			// /agent/delegate
-			String delegateAgent =
-				(String)xpath.evaluate("/agent/delegate", configDocument, XPathConstants.STRING);
-			
-			// /agent/classpath
-			NodeList classpathEntries =
-				(NodeList)xpath.evaluate(
-					"/agent/classpath/entry",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			List<String> classpaths = new ArrayList<String>();
-			for(int i = 0; i < classpathEntries.getLength(); i++) {
-				Node classpathEntry = classpathEntries.item(i).getFirstChild();
-				classpaths.add(((Text)classpathEntry).getData());
-			}
-			
-			// /agent/filter/include
-			NodeList includeEntries = 
-				(NodeList)xpath.evaluate(
-					"/agent/filter/include",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			List<Pattern> includePatterns = new ArrayList<Pattern>();
-			for(int i = 0; i < includeEntries.getLength(); i++) {
-				Node includeEntry = includeEntries.item(i).getFirstChild();
-				if(includeEntry != null)
-					includePatterns.add(Pattern.compile(((Text)includeEntry).getData()));
-			}
-			if(includePatterns.size() == 0)
-				includePatterns.add(Pattern.compile(".+"));
-			
-			// /agent/filter/exclude
-			NodeList excludeEntries = 
-				(NodeList)xpath.evaluate(
-					"/agent/filter/exclude",
-					configDocument,
-					XPathConstants.NODESET
-				);
-			List<Pattern> excludePatterns = new ArrayList<Pattern>();
-			for(int i = 0; i < excludeEntries.getLength(); i++) {
-				Node excludeEntry = excludeEntries.item(i).getFirstChild();
-				if(excludeEntry != null)
-					excludePatterns.add(Pattern.compile(((Text)excludeEntry).getData()));
-			}
-			
-			// /agent/configuration
-			Node configuration = 
-				(Node)xpath.evaluate(
-					"/agent/configuration",
-					configDocument,
-					XPathConstants.NODE
-				);
-			
-			retVal = 
-				new ConfigElements(
-					classpaths,
-					includePatterns,
-					excludePatterns,
-					delegateAgent,
-					(Element)configuration
-				);
-			
-		}
-		catch(SAXException e) {
-			throw
-				new ConfigurationError(
-					"Validting the agent configuration file \""
-						+ configFileName + "\" didn't succeed.\n"
-						+ "\t->" + e.getMessage(),
-					e
-				);
-		}
-		catch(IOException e) {
-			throw
-				new ConfigurationError(
-					"IO error with the agent configuration file \""
-						+ configFileName + "\".",
-					e
-				);
-		}
-		catch(XPathExpressionException e) {
-			throw
-				new ConfigurationError(
-					"A desired config node was not found from the agent configuration file \""
-						+ configFileName + "\".",
-					e
-				);
-		}
-		
-		return retVal;
-	}
-
-	
-	private static void putVariablesWithNamesToMap(NodeList variableEntries, Map<String, String> map)
-	{
-		map.clear();
-		for(int i = 0; i < variableEntries.getLength(); i++) {
-			Node variableEntry = variableEntries.item(i);
-			Node variableValue = variableEntry.getFirstChild();
-			NamedNodeMap nameAttributes = variableEntry.getAttributes();
-			Node nameAttribute = nameAttributes.getNamedItem("name");
-			map.put(nameAttribute.getNodeValue(), ((Text)variableValue).getData());
-		}
-	}
-	
-	
-	/**
-	 * Creates an object according to the given configuration elements (i.e. /agent/configuration
-	 * element).
-	 * 
-	 * @param classLoader
-	 * 		A {@code ClassLoader} for unmarshall operation. 
-	 * 
-	 * @param configElements
-	 * 		Configuration elements to be used as a basis for the configuration object creation.
-	 * 
-	 * @return
-	 * 		A configuration object. There are five (5) possible options for configuration object
-	 * 		creation:
-	 * 		<ol>
-	 * 			<li>{@code null}</li>
-	 * 			<li>{@code String}</li>
-	 * 			<li>{@code List<String>}</li>
-	 * 			<li>{@code Map<String, String>}</li>
-	 * 			<li>User defined configuration object</li>
-	 * 		</ol>
-	 * 
-	 *		For more information, see the class description.
-	 */
-	static Object unmarshall(Class<?> delegateAgentClass, ConfigElements configElements)
-	{
-		Element configElement = configElements.getConfigurationElement();
-		if(configElement != null) {
-			if(configElement.getElementsByTagName("item").getLength() > 0)
-				return createCollectionConfiguration(configElements);
-			else {
-				Node firstNode = configElement.getFirstChild();
-				Node targetNode = firstNode;
-				boolean customElementFound = false;
-				boolean textNodeFound = false;
-				while(targetNode != null) {
-					if(targetNode.getNodeName().equals("#text") && targetNode.getNodeValue().trim().length() > 0)
-						textNodeFound = true;
-					if(targetNode.getNodeName().equals("custom")) {
-						customElementFound = true;
-						break;
-					}
-					targetNode = targetNode.getNextSibling();
-				}
-				if(textNodeFound && customElementFound)
-					throw
-						new ConfigurationError(
-							"/agent/configuration/custom element cannot co-exist with a text element "
-							+ "(i.e. a pure string under /agent/configuration)."
-						);
-				if(!customElementFound)
-					targetNode = firstNode;
-				if(customElementFound) {
-					try {
-						// Invokes the unmarshaller.
-						return
-							delegateAgentClass.getMethod(
-								"unmarshall",
-								new Class[] {Element.class}
-							).invoke(null, targetNode);
-					}
-					catch(NoSuchMethodException e) {
-						throw
-							new ConfigurationError(
-								"static Object unmarshall(Element) method was not defined in \""
-									+ delegateAgentClass.getName() + "\".",
-								e
-							);
-					}
-					catch(IllegalArgumentException e) {
-						throw
-							new ConfigurationError(
-								"Argument mismatch with static Object unmarshall(Element) method "
-									+ "in \"" + delegateAgentClass.getName() + "\".",
-								e
-							);
-					}
-					catch(InvocationTargetException e) {
-						throw
-							new ConfigurationError(
-								"static Object unmarshall(Element) method "
-									+ "in \"" + delegateAgentClass.getName()
-									+ "\" threw an exception.",
-								e
-							);
-					}
-					catch(IllegalAccessException e) {
-						assert false: e;
-						return null;
-					}
-				}
-				else {
-					if(targetNode == null || targetNode.getNodeValue().trim().length() == 0)
-						throw
-							new ConfigurationError(
-								"/agent/configuration does not have a proper string (i.e. text element) "
-									+ "(or any other elements)"
-							);
-					
-					return targetNode.getNodeValue().trim();
-				}
-			}
-		}
-		else
-			return null;
-	}
-	
-	
-	/**
-	 * Creates either {@code List<String>} or {@code Map<String, String>} configuration object.
-	 * 
-	 * @param configElements
-	 * 		Configuration elements to be used as a basis for the configuration object creation.
-	 * 
-	 * @return
-	 * 		A configuration collection object which is either one of the following:
-	 * 		<ul>
-	 * 			<li>{@code List<String>}</li>
-	 * 			<li>{@code Map<String, String>}</li>
-	 * 		</ul>
-	 */
-	private static Object createCollectionConfiguration(ConfigElements configElements)
-	{
-		boolean dontUseMap = false;
-		boolean dontUseList = false;
-		Object retVal = null;
-
-		XPath xpath = XPathFactory.newInstance().newXPath();
-		try {
-			NodeList configurationItems = (NodeList)xpath.evaluate(
-				"./item",
-				configElements.getConfigurationElement(),
-				XPathConstants.NODESET
-			);
-			for(int i = 0; i < configurationItems.getLength(); i++) {
-				Node item = configurationItems.item(i);
-				if(item.getAttributes().getNamedItem("key") == null)
-					dontUseMap = true;
-				else
-					dontUseList = true;
-			}
-			
-			if(dontUseList && dontUseMap)
-				throw
-					new ConfigurationError(
-						"/agent/configuration/item tags have improper attributes."
-					);
-			
-			// Uses a list.
-			if(!dontUseList) {
-				List<String> list = new ArrayList<String>();
-				for(int i = 0; i < configurationItems.getLength(); i++) {
-					Node item = configurationItems.item(i).getFirstChild();
-					if(item != null)
-						list.add(((Text)item).getData());
-					else
-						list.add("");
-				}
-				retVal = list;
-			}
-			
-			// Uses a map.
-			if(!dontUseMap) {
-				Map<String, String> map = new HashMap<String, String>();
-				for(int i = 0; i < configurationItems.getLength(); i++) {
-					Node item = configurationItems.item(i);
-					Node keyNode = item.getAttributes().getNamedItem("key");
-					String key = keyNode == null ? "" : keyNode.getNodeValue();
-					if(item != null)
-						map.put(key, ((Text)item.getFirstChild()).getData());
-					else
-						map.put(key, "");
-				}
-				retVal = map;
-			}
-		}
-		catch(XPathExpressionException e) {
-			assert false : e;
-		}
-		
-		assert retVal != null;
-		return retVal;
-	}
-
-
-	/**
-	 * {@code ConfigElements} is data object for collecting all the necessary items from
-	 * the agent configuration file. 
-	 * <p>
-	 * {@code ConfigElements} is <b>immutable</b>.
-	 * 
-	 * @author hapi
-	 *
-	 */
-	static class ConfigElements
-	{
-		private final String delegateAgentName;
-		private final List<Pattern> includePatterns;
-		private final List<Pattern> excludePatterns;
-		private final List<URL> classpaths;
-		private final Element configurationElement;
-		
-		public ConfigElements(
-			List<String> classpaths,
-			List<Pattern> includePatterns,
-			List<Pattern> excludePatterns,
-			String delegateAgentName,
-			Element configElement
-		)
-			throws
-				MalformedURLException
-		{
-			List<URL> classpathsAsURLs = new ArrayList<URL>();
-			for(String classpath : classpaths) {
-				File file = new File(classpath);
-				if(!file.exists())
-					throw
-						new ConfigurationError(
-							"Class path entry \"" + file + "\" does not exist."
-						);
-				classpathsAsURLs.add(file.toURI().toURL());
-			}
-			this.classpaths = Collections.unmodifiableList(classpathsAsURLs);
-			
-			this.includePatterns = Collections.unmodifiableList(includePatterns);
-			this.excludePatterns = Collections.unmodifiableList(excludePatterns);
-
-			this.delegateAgentName = delegateAgentName;
-			this.configurationElement = configElement;
-		}
-
-		public Element getConfigurationElement()
-		{
-			return configurationElement;
-		}
-
-		public String getDelegateAgentName()
-		{
-			return delegateAgentName;
-		}
-
-		public URL[] getClasspaths()
-		{
-			return classpaths.toArray(new URL[0]);
-		}
-
-		public Pattern[] getIncludePatterns()
-		{
-			return includePatterns.toArray(new Pattern[0]);
-		}
-		
-		public Pattern[] getExcludePatterns()
-		{
-			return excludePatterns.toArray(new Pattern[0]);
-		}
-	}
-	
-	
-	/**
-	 * A runtime error to indicate that there is something wrong with the configuration of
-	 * the agent. 
-	 * 
-	 * @author hapi
-	 *
-	 */
-	static class ConfigurationError extends Error
-	{
-		private static final long serialVersionUID = 1L;
-		
-
-		public ConfigurationError()
-		{
-			super();
-		}
-
-		public ConfigurationError(String message, Throwable cause)
-		{
-			super(message, cause);
-		}
-
-		public ConfigurationError(String message)
-		{
-			super(message);
-		}
-
-		public ConfigurationError(Throwable cause)
-		{
-			super(cause);
-		}
-	}
-}
+package com.hapiware.agent;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.SAXException;
+
+
+/**
+ * {@code Agent} is a generic solution to greatly simplify the agent programming (see
+ * {@code java.lang.instrument} package description for more information about agents
+ * in general).
+ * <p>
+ * 
+ * The main idea is to have a totally separated environment for running agents. This means that
+ * the agent uses its own namespace (i.e. class loader) for its classes. With {@code Agent}
+ * a programmer can avoid .jar file version conflicts. That's why the {@code Agent} configuration
+ * file has its own {@code classpath} element(s). Another advantage is that the XML configuration
+ * file is always similar for different agents. And yet one more advantage is that the programmer
+ * does not need to care about the manifest attributes mentioned in {@code java.lang.instrument}
+ * package description. They are already handled for the programmer. 
+ * 
+ * 
+ * <h3>Using {@code Agent}</h3>
+ * 
+ * {@code Agent} is specified by using Java {@code -javaagent} switch like this:
+ * <blockquote>
+ *     {@code -javaagent:agent-jarpath=path-to-xml-config-file}
+ * </blockquote>
+ *
+ * For example:
+ * <blockquote>
+ * 		{@code
+ * 			-javaagent:/users/me/agent/target/agent-1.0.0.jar=/users/me/agent/agent-config.xml
+ * 		}
+ * </blockquote>
+ * 
+ * 
+ * 
+ * <h3>Configuration file</h3>
+ * 
+ * The configuration file is an XML file and has the {@code <agent>} as its root element.
+ * {@code <agent>} has the following childs:
+ * <ul>
+ * 		<li>{@code <variable>}, this is an <b>optional</b> element for simplifying the configuration</li>
+ * 		<li>
+ * 			{@code <include>}, this is an <b>optional</b> element (also under the other elements)
+ * 			for sharing configuration fragments between the configuration files.
+ * 			See <a href="#agent-include-element">{@code <include>} element</a>
+ * 		</li>
+ * 		<li>{@code <delegate>}, this is a <b>mandatory</b> element to define the agent delegate</li>
+ * 		<li>
+ * 			{@code <classpath>}, this is a <b>mandatory</b> element and has at minimum of one (1)
+ * 			{@code <entry>} child element.
+ * 		</li>
+ * 		<li>
+ * 			{@code <filter>}, this is an <b>optional</b> element and can have zero (0)
+ * 			{@code <include>} and/or {@code <exclude>} child elements. Filters are regular
+ * 			expressions patterns to include or exclude classes to be instrumented. In addition
+ * 			classes can be filtered by their super types and annotations with {@code <extends>},
+ * 			{@code <implements>}, {@code <annotated>} and {@code <subtype-of>} child elements
+ * 			and by their class loaders with {@code <exclude-loader>} child elements. Methods to be
+ * 			instrumented can be filtered with {@code <include-method>} and {@code <exclude-method>}
+ * 			child elements.
+ * 		</li>
+ * 		<li>
+ * 			{@code <class-bytes-store>}, this is an <b>optional</b> element to keep the original
+ * 			class file bytes of the instrumented classes.
+ * 			See <a href="#agent-class-bytes-store-element">{@code /agent/class-bytes-store} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <transformer>}, this is an <b>optional</b> element to configure how the agent
+ * 			calls the transformers registered by the agent delegate.
+ * 			See <a href="#agent-transformer-element">{@code /agent/transformer} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <events>}, this is an <b>optional</b> element to create a ring buffer for
+ * 			shipping events out of the instrumented code.
+ * 			See <a href="#agent-events-element">{@code /agent/events} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <event-log>}, this is an <b>optional</b> element to create a binary log for
+ * 			recording events to disk.
+ * 			See <a href="#agent-event-log-element">{@code /agent/event-log} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <metrics>}, this is an <b>optional</b> element to create a registry of
+ * 			counters, gauges and histograms for the instrumented code.
+ * 			See <a href="#agent-metrics-element">{@code /agent/metrics} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <class-list>}, this is an <b>optional</b> element to write the list of loaded
+ * 			classes for creating a class data sharing archive.
+ * 			See <a href="#agent-class-list-element">{@code /agent/class-list} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <pre-transform>}, this is an <b>optional</b> element to transform the class path
+ * 			classes in the background before they are loaded.
+ * 			See <a href="#agent-pre-transform-element">{@code /agent/pre-transform} element</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code <configuration>}, which is an <b>optional</b> element is used to configure
+ * 			agent delegate.
+ * 			See <a href="#agent-configuration-element">{@code /agent/configuration} element</a>
+ * 		</li>
+ * </ul>
+ * 
+ * So, in general a configuration XML file looks like this:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<variable />
+ *		<variable />
+ *		...
+ *		<delegate />
+ *		<classpath>
+ *			<entry />
+ *			<entry />
+ *			...
+ *		</classpath>
+ *		<filter>
+ *			<include />
+ *			<include />
+ *			<exclude />
+ *			<exclude />
+ *			...	
+ *		</filter>	
+ *		<class-bytes-store />
+ *		<transformer />
+ *		<events />
+ *		<event-log />
+ *		<metrics />
+ *		<class-list />
+ *		<pre-transform />
+ *
+ *		<configuration>
+ *			<!--
+ *				This can be text, a predefined structure or
+ *				programmer's own structure
+ *			-->
+ *		</configuration>
+ *	</agent>
+ * </xmp>
+ * 
+ * 
+ * 
+ * <h4><a name="agent-variable-element">{@code /agent/variable} element</a></h4>
+ * The {@code /agent/variable} element is <b>optional</b> and it is supposed to be used to simplify
+ * the configuration file. Variables can be anywhere under {@code agent} element (i.e. they
+ * need not to be in the beginning of the configuration file).
+ * <p>
+ * 
+ * The {@code /agent/variable} element <u>must have (only) {@code name} attribute</u> which is used
+ * as a reference in other parts of the configuration file. The {@code name} reference is replaced
+ * by the value of the {@code /agent/variable} element. The variable is referenced with the following
+ * pattern:
+ * <blockquote>
+ * 		${VARIABLE}
+ * </blockquote>
+ * 
+ * where:
+ * <ul>
+ * 		<li>{@code VARIABLE} is the {@code name} attribute of the {@code /agent/variable} element</li>
+ * </ul>
+ * 
+ * Here is a simple example where every {@code ${repo-path}} variable reference is replaced with
+ * {@code /users/me/.m2/repository} string:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<variable name="repo-path">/users/me/.m2/repository</variable>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ * 			<entry>${repo-path}/asm/asm/3.1/asm-3.1.jar</entry>
+ * 			<entry>${repo-path}/asm/asm-commons/3.1/asm-commons-3.1.jar</entry>
+ * 			<entry>${repo-path}/asm/asm-util/3.1/asm-util-3.1.jar</entry>
+ * 			<entry>${repo-path}/asm/asm-tree/3.1/asm-tree-3.1.jar</entry>
+ *		</classpath>
+ *		<configuration>...</configuration>
+ *	</agent>
+ * </xmp>
+ * 
+ * 
+ * Variables can be used more creatively if there is a need for that. This example produces exactly
+ * the same result than the example above but the use of variables are more complex:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<variable name="a">repo</variable>
+ *		<variable name="b">path</variable>
+ *		<variable name="c">ju</variable>
+ *		<variable name="juuri">roo</variable>
+ *		<variable name="${${c}uri}t">users</variable>
+ *		<variable name="${a}-${b}">/${root}/me/.m2/repository</variable>
+ *		<variable name="asm-package">asm</variable>
+ *		<variable name="${asm-package}-version">3.1</variable>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ * 			<entry>${repo-path}/${asm-package}/asm/${asm-version}/asm-${asm-version}.jar</entry>
+ * 			<entry>${repo-path}/${asm-package}/asm-commons/${asm-version}/asm-commons-${asm-version}.jar</entry>
+ * 			<entry>${repo-path}/${asm-package}/asm-util/${asm-version}/asm-util-${asm-version}.jar</entry>
+ * 			<entry>${repo-path}/${asm-package}/asm-tree/${asm-version}/asm-tree-${asm-version}.jar</entry>
+ *		</classpath>
+ *		<configuration>...</configuration>
+ *	</agent>
+ * </xmp>
+ * 
+ * Variables can also refer to the system properties and the environment variables of the JVM
+ * with {@code ${sys:NAME}} and {@code ${env:NAME}}, where {@code NAME} is the name of the system
+ * property or the environment variable. A default value for an undefined one is given after
+ * {@code :-} (e.g. {@code ${env:AGENT_HOME:-/opt/agent}}). They need not to be defined with
+ * {@code /agent/variable} elements. They are looked up only if they are referred to and their
+ * values are cached for the lifetime of the JVM. For example:
+ * <xmp>
+ *	<agent>
+ *		<variable name="repo-path">${sys:user.home}/.m2/repository</variable>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>${env:AGENT_HOME:-/opt/agent}/my-delegate-1.0.0.jar</entry>
+ * 			<entry>${repo-path}/asm/asm/3.1/asm-3.1.jar</entry>
+ *		</classpath>
+ *		<configuration>...</configuration>
+ *	</agent>
+ * </xmp>
+ * 
+ * System properties and environment variables can be used also in the {@code file} attribute of
+ * the <a href="#agent-include-element">{@code <include>} element</a> and in
+ * the {@code fragment-cache} attribute. See {@link VariableSources}.
+ * 
+ * 
+ * 
+ * <h4><a name="agent-include-element">{@code <include>} element</a></h4>
+ * The {@code <include>} element is <b>optional</b> and it can be anywhere under the {@code agent}
+ * element. It must have the {@code file} attribute, which is the name of a fragment file (relative
+ * names are relative to the directory of the including file). The fragment file has
+ * the {@code <fragment>} root element and the {@code <include>} element is replaced with
+ * the children of the {@code <fragment>} element before the configuration file is validated.
+ * Fragments can include other fragments but cyclic includes are configuration errors. For example,
+ * a classpath shared by several agents:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<fragment>
+ *		<entry>${repo-path}/asm/asm/3.1/asm-3.1.jar</entry>
+ *		<entry>${repo-path}/asm/asm-commons/3.1/asm-commons-3.1.jar</entry>
+ *	</fragment>
+ * </xmp>
+ * 
+ * is included with:
+ * <xmp>
+ *	<agent fragment-cache="/var/tmp/agent-fragments">
+ *		<include file="common/variables.xml" />
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ * 			<include file="common/asm-classpath.xml" />
+ *		</classpath>
+ *		<configuration>...</configuration>
+ *	</agent>
+ * </xmp>
+ * 
+ * where {@code common/variables.xml} is a fragment having the {@code <variable>} elements (e.g.
+ * {@code repo-path}). The variables of the fragments are resolved together with the variables of
+ * the including file. Defining the same variable with different values in different files is
+ * a configuration error.
+ * <p>
+ * 
+ * The parsed fragments are cached by the hash of the fragment file in memory (shared by all
+ * the agents in the JVM) and, if the optional {@code fragment-cache} attribute of
+ * the {@code <agent>} element is defined, also in a binary form in the given directory, so that
+ * restarts and other agents using the same directory skip parsing the fragments.
+ * See {@link ConfigurationFragments}.
+ * 
+ * 
+ * 
+ * <h4><a name="agent-delegate-element">{@code /agent/delegate} element</a></h4>
+ * The {@code /agent/delegate} element is <b>mandatory</b> and its value is the name of the delegate class
+ * as a fully qualified name (e.g. {@code com.hapiware.asm.TimeMachineAgentDelegate}).
+ * <p>
+ * 
+ * The agent delegate class must have the following method (with the exact signature):
+ * <blockquote>
+ * 	<pre>
+ * 		public static void premain(
+ * 			java.util.regex.Pattern[] includePatterns,
+ * 			java.util.regex.Pattern[] excludePatterns,
+ * 			Object config,
+ * 			Instrumentation instrumentation
+ * 		)
+ * 	</pre>
+ * </blockquote>
+ * 
+ * where:
+ * <ul>
+ * 		<li>
+ * 			{@code java.util.regex.Pattern[] includePatterns} has a list of regular expression
+ * 			patterns to be used	to include classes for instrumentation.
+ * 			See <a href="#agent-filter-element">{@code /agent/filter}</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code java.util.regex.Pattern[] excludePatterns} has a list of regular expression
+ * 			patterns to be used	to set classes not to be instrumented.
+ * 			See <a href="#agent-filter-element">{@code /agent/filter}</a>
+ * 		</li>
+ * 		<li>
+ * 			{@code Object config} is the configuration object based on the
+ * 			<a href="#agent-configuration-element">{@code /agent/configuration} element</a>.
+ * 		</li>
+ * 		<li>{@code Instrumentation instrumentation} has services to provide the instrumentation.</li>
+ * </ul>
+ *
+ * Instead of matching the patterns directly (i.e. allocating a new {@code Matcher} for every
+ * class) the agent delegate can use {@link ClassFilter#getInstance()} which matches class names
+ * without allocation (see also {@link ClassNameView}).
+ * <p>
+ * 
+ * This {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method <b>can do all the same things</b> as defined for {@code static void premain(String, Instrumentation)}
+ * method in the {@code java.lang.instrument} package description.  
+ * <p>
+ * 
+ * Alternatively the agent delegate class can have the following method to get also
+ * the compiled <a href="#agent-filter-element">method patterns</a>:
+ * <blockquote>
+ * 	<pre>
+ * 		public static void premain(
+ * 			java.util.regex.Pattern[] includePatterns,
+ * 			java.util.regex.Pattern[] excludePatterns,
+ * 			com.hapiware.agent.MethodFilter methodFilter,
+ * 			Object config,
+ * 			Instrumentation instrumentation
+ * 		)
+ * 	</pre>
+ * </blockquote>
+ * If both methods are defined, only this one is called.
+ * <p>
+ * 
+ * Either of the {@code premain()} methods can also return the transformers instead of
+ * registering them to {@code Instrumentation} itself. The return type can be
+ * {@code ClassFileTransformer}, {@code ClassFileTransformer[]} or a {@code Collection} of
+ * {@code ClassFileTransformer}s. The agent registers the returned transformers behind its own
+ * dispatcher (see {@link TransformerDispatcher}), which passes only the classes matching
+ * the <a href="#agent-filter-element">{@code /agent/filter}</a> element to them, chains them in
+ * the returned order, isolates their exceptions from each other and records their timing to
+ * <a href="#agent-metrics-element">{@code /agent/metrics}</a>. For example:
+ * <blockquote>
+ * 	<pre>
+ * 		public static ClassFileTransformer premain(
+ * 			java.util.regex.Pattern[] includePatterns,
+ * 			java.util.regex.Pattern[] excludePatterns,
+ * 			Object config,
+ * 			Instrumentation instrumentation
+ * 		)
+ * 		{
+ * 			return new MyTransformer(config);
+ * 		}
+ * 	</pre>
+ * </blockquote>
+ * A {@code void} {@code premain()} works as before.
+ * <p>
+ * 
+ * The {@code premain()} method of the agent delegate is called synchronously, so a delegate
+ * hanging in its {@code premain()} (e.g. waiting for a lock or a slow disk) blocks the startup of
+ * the whole JVM. To prevent that, the {@code /agent/delegate} element can have the following
+ * optional attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code premain-timeout}, the time budget for {@code premain()}. If defined,
+ * 			{@code premain()} is called in a separate thread and a watchdog waits for it at most
+ * 			the given time (see {@link DelegateWatchdog}). When the time budget is exceeded,
+ * 			the stack of the delegate's thread is dumped, the thread is interrupted and
+ * 			a {@code com.hapiware.agent.Delegate} flight recorder event with the phase
+ * 			{@code premain-timeout} is recorded.
+ * 		</li>
+ * 		<li>
+ * 			{@code on-timeout}, either {@code fail} (the default) or {@code disable}. If
+ * 			{@code fail}, the agent throws a configuration error with the stack dump, which stops
+ * 			the JVM. If {@code disable}, the stack dump is printed to {@code System.err} and
+ * 			the JVM starts without the delegate: the transformers the delegate has registered are
+ * 			removed and the ones it registers later are ignored.
+ * 		</li>
+ * </ul>
+ * For example:
+ * <xmp>
+ * 		<delegate premain-timeout="5s" on-timeout="disable">com.hapiware.asm.TimeMachineAgentDelegate</delegate>
+ * </xmp>
+ * 
+ * 
+ * 
+ * <h4><a name="agent-classpath-element">{@code /agent/classpath} element</a></h4>
+ * The {@code /agent/classpath} element is <b>mandatory</b> and is used to define the classpath
+ * <b>for the agent <u>delegate</u> class</b>. This means that there is no need to put any of
+ * the used libraries for the agent delegate class in to your environment classpath.
+ * <p>
+ * The {@code /agent/classpath} element must have at least one {@code <entry>} child element
+ * but can have several. The only required classpath entry is the delegate agent (.jar file) itself.
+ * However, usually there are other classpath entries for the libraries needed by the delegate
+ * agent. Here is an example:
+ * 
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<delegate>com.hapiware.agent.TimeMachineAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/timemachine-delegate-1.0.0.jar</entry>
+ * 			<entry>/usr/local/asm-3.1/lib/all/all-asm-3.1.jar</entry>
+ *		</classpath>
+ *		<configuration>...</configuration>
+ *	</agent>
+ * </xmp>
+ * 
+ * 
+ * 
+ * <h4><a name="agent-filter-element">{@code /agent/filter} element</a></h4>
+ * The {@code /agent/filter} is <b>optional</b> and is used to filter classes to be
+ * instrumented.
+ * <p>
+ * The {@code /agent/filter} element can have several {@code include} and/or {@code exclude}
+ * elements but can have also none of them. Here is an example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ * 	<agent>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ * 		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ * 		</classpath>
+ * 		<filter>
+ * 			<include>^com/hapiware/.*f[oi]x/.+</include>
+ * 			<include>^com/mysoft/.+</include>
+ * 			<exclude>^com/hapiware/.+/CreateCalculationForm</exclude>
+ * 		</filter>
+ * 		<configuration>...</configuration>
+ * 	</agent>
+ * </xmp>
+ * 
+ * <h5>{@code <include>} element</h5>
+ * {@code <include>} element can be used for matching the possible candidates for instrumentation.
+ * If none is defined then one pattern containing <b>{@code ".+"}</b> is assumed as a default value.
+ * {@code <include>} element is a normal Java regular expression unless it has
+ * {@code type="glob"} attribute (see <a href="#agent-filter-glob">Glob patterns</a>).
+ * <p>
+ * <b>Notice</b> that the class names are presented in the internal form of fully qualified class
+ * names as defined in The Java Virtual Machine Specification (e.g. "java/util/List"). So, when
+ * you create {@code <include>} and {@code <exclude>} elements, remember that package names are
+ * separated with slash (/) instead of period (.).
+ *
+ * <h5>{@code <exclude>} element</h5>
+ * {@code <exclude>} can be used to ensure that the instrumentation is not done for some classes.
+ * {@code <exclude>} element is a normal Java regular expression unless it has
+ * {@code type="glob"} attribute (see <a href="#agent-filter-glob">Glob patterns</a>).
+ * <p>
+ * <b>Notice</b> that the class names are presented in the internal form of fully qualified class
+ * names as defined in The Java Virtual Machine Specification (e.g. "java/util/List"). So, when
+ * you create {@code <include>} and {@code <exclude>} elements, remember that package names are
+ * separated with slash (/) instead of period (.).
+ *
+ * <h5><a name="agent-filter-glob">Glob patterns</a></h5>
+ * {@code <include>} and {@code <exclude>} elements can have {@code type} attribute which is
+ * either {@code regex} (the default) or {@code glob}. In glob patterns {@code *} matches any
+ * characters except slash (/), {@code **} matches any characters and {@code **}{@code /} matches
+ * any number of packages (see {@link ClassNameMatcher} for details). For example:
+ * <xmp>
+ * 		<filter>
+ * 			<include type="glob">com/mysoft/**</include>
+ * 			<include type="glob">org/thirdparty/*Controller</include>
+ * 			<exclude type="glob">com/mysoft/**Test</exclude>
+ * 		</filter>
+ * </xmp>
+ * Glob patterns are matched by the agent with plain string comparisons, which is considerably
+ * faster than matching the equivalent regular expressions. The agent delegate gets glob patterns
+ * converted to equivalent regular expressions in the {@code includePatterns} and
+ * {@code excludePatterns} arguments.
+ *
+ * <h5><a name="agent-filter-statistics">Filter statistics</a></h5>
+ * If the {@code /agent/filter} element has {@code statistics="true"} attribute, the agent
+ * counts the evaluations, the matches and the time spent for each {@code <include>} and
+ * {@code <exclude>} pattern and prints a report to {@code System.err} at shutdown. The report
+ * lists the patterns which have never matched, the most expensive patterns and the order of
+ * the patterns which minimises the average evaluation cost. The same report is available on
+ * demand with {@link FilterStatistics#getInstance()}. If the {@code /agent/filter} element has
+ * {@code reorder-patterns="true"} attribute, the agent collects the same statistics and
+ * reorders its own pattern evaluation to the optimal order periodically. For example:
+ * <xmp>
+ * 		<filter statistics="true" reorder-patterns="true">
+ * 			<include>^com/mysoft/.+</include>
+ * 			<include>^com/hapiware/.+</include>
+ * 		</filter>
+ * </xmp>
+ * Notice that the statistics cover the filtering done by the agent for the transformers
+ * registered by the agent delegate. The patterns delivered to the agent delegate's
+ * {@code premain()} method are always in the original order.
+ *
+ * <h5>{@code <extends>}, {@code <implements>} and {@code <annotated>} elements</h5>
+ * {@code <extends>}, {@code <implements>} and {@code <annotated>} elements are used to filter
+ * classes by the contents of their class files. The value of each element is a fully qualified
+ * class name (either in the internal form or separated with periods):
+ * <ul>
+ * 		<li>{@code <extends>} matches classes whose direct super class is the given class</li>
+ * 		<li>{@code <implements>} matches classes directly implementing the given interface</li>
+ * 		<li>{@code <annotated>} matches classes having the given class level annotation</li>
+ * </ul>
+ * If any of these elements is defined, a class whose name is included by the {@code <include>}
+ * and {@code <exclude>} elements must also match at least one of these elements. Otherwise
+ * the agent delegate's transformers are not called at all for the class. The class files are
+ * scanned by the agent with {@link ClassFileHeader}, which reads only the constant pool and
+ * the class attributes (i.e. the delegates need not parse the classes themselves).
+ * Here is an example:
+ * <xmp>
+ * 		<filter>
+ * 			<include>^com/mysoft/.+</include>
+ * 			<implements>javax/servlet/Servlet</implements>
+ * 			<annotated>javax.ws.rs.Path</annotated>
+ * 		</filter>
+ * </xmp>
+ * <b>Notice</b> that the filtering is done only for the transformers registered with
+ * the {@code Instrumentation} delivered to the agent delegate's {@code premain()} method.
+ * The {@code Pattern[]} arguments of the {@code premain()} method do not cover these elements.
+ *
+ * <h5>{@code <subtype-of>} element</h5>
+ * {@code <subtype-of>} element matches classes which extend or implement the given class
+ * either directly or transitively (the given class itself is not matched). The super types of
+ * the classes are kept in a {@link TypeHierarchy} cache maintained by the agent. The cache
+ * is filled with all the classes passing through the agent delegate's transformers and
+ * the classes not yet seen are read as resources from their class loaders (i.e. they are not
+ * loaded). Agent delegates can use the same cache with {@link TypeHierarchy#getInstance()}.
+ * <p>
+ * If the {@code /agent/filter} element has {@code scan-classpath="true"} attribute, the agent
+ * also scans all the classes in the application classpath (i.e. {@code java.class.path}) to
+ * the cache in a background thread. For example:
+ * <xmp>
+ * 		<filter scan-classpath="true">
+ * 			<subtype-of>javax/servlet/http/HttpServlet</subtype-of>
+ * 		</filter>
+ * </xmp>
+ *
+ * <h5>{@code <exclude-loader>} element</h5>
+ * {@code <exclude-loader>} element excludes all the classes defined by a class loader. Class
+ * loaders are checked before any other filter element and the decision is cached for each
+ * class loader, so that rejecting a class of an excluded class loader costs next to nothing.
+ * The value of the element is either one of the following keywords or a regular expression
+ * pattern matched against the class name of the class loader (e.g.
+ * {@code jdk\.internal\.reflect\.DelegatingClassLoader}):
+ * <ul>
+ * 		<li>{@code bootstrap}, the bootstrap class loader</li>
+ * 		<li>{@code platform}, the platform class loader (or the extension class loader)</li>
+ * 		<li>{@code system}, the system (i.e. application) class loader</li>
+ * 		<li>
+ * 			{@code agent}, the class loader created by the agent for the agent delegate (see
+ * 			<a href="#agent-classpath-element">{@code /agent/classpath}</a>)
+ * 		</li>
+ * </ul>
+ * As with {@code <extends>} and the other class file elements, the classes of the excluded
+ * class loaders are not passed to the transformers registered with the {@code Instrumentation}
+ * delivered to the agent delegate's {@code premain()} method.
+ *
+ * <h5>{@code <include-method>} and {@code <exclude-method>} elements</h5>
+ * {@code <include-method>} and {@code <exclude-method>} elements define the methods to be
+ * instrumented with patterns having the form {@code CLASS#METHOD} or
+ * {@code CLASS#METHODDESCRIPTOR}, where {@code CLASS} is a regular expression like
+ * {@code <include>} and {@code METHOD} and {@code DESCRIPTOR} can have {@code *} wildcards
+ * (see {@link MethodFilter} for details). For example:
+ * <xmp>
+ * 		<filter>
+ * 			<include>^com/mysoft/.+</include>
+ * 			<include-method>^com/mysoft/.+Service#get*</include-method>
+ * 			<include-method>^com/mysoft/.+Dao#find*(Ljava/lang/String;)*</include-method>
+ * 			<exclude-method>^com/mysoft/.+#toString()Ljava/lang/String;</exclude-method>
+ * 		</filter>
+ * </xmp>
+ * The patterns are compiled to a {@link MethodFilter} which is delivered to the agent delegate
+ * if it has the {@code premain()} method with the {@code MethodFilter} argument (see
+ * <a href="#agent-delegate-element">{@code /agent/delegate}</a>). The delegate is supposed to
+ * call {@link MethodFilter#forClass(String)} once per class and then
+ * {@link MethodFilter.ClassMethods#matches(String, String)} for every method. If there are
+ * {@code <include-method>} elements, the classes none of them applies to are not passed
+ * to the transformers registered with the {@code Instrumentation} delivered to the agent
+ * delegate's {@code premain()} method.
+ * 
+ * 
+ * <h4><a name="agent-class-bytes-store-element">{@code /agent/class-bytes-store} element</a></h4>
+ * The {@code /agent/class-bytes-store} element is <b>optional</b> and if it is defined
+ * the agent keeps the original class file bytes of all the classes matching
+ * the <a href="#agent-filter-element">{@code /agent/filter}</a> element in a compressed form
+ * outside of the Java heap. Agent delegates supporting re-instrumentation can then fetch
+ * the original bytes with {@link ClassBytesStore#getInstance()} instead of holding their own
+ * copies. The store is filled for the transformers the agent delegate registers with
+ * the {@code Instrumentation} delivered to its {@code premain()} method.
+ * <p>
+ * {@code /agent/class-bytes-store} has the following optional attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code max-size}, the maximum size of the store. The default is {@code 64m}. When
+ * 			the store is full the oldest classes are evicted.
+ * 		</li>
+ * 		<li>{@code segment-size}, the size of a single store segment. The default is {@code 1m}.</li>
+ * 		<li>
+ * 			{@code file}, if defined the store is memory-mapped to this file. Otherwise direct
+ * 			buffers are used.
+ * 		</li>
+ * </ul>
+ * Sizes are given in bytes and can have {@code k}, {@code m} or {@code g} suffix. Here is
+ * an example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ * 	<agent>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ * 		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ * 		</classpath>
+ * 		<filter>
+ * 			<include>^com/mysoft/.+</include>
+ * 		</filter>
+ * 		<class-bytes-store max-size="256m" file="/tmp/my-agent-classes.bin" />
+ * 		<configuration>...</configuration>
+ * 	</agent>
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-transformer-element">{@code /agent/transformer} element</a></h4>
+ * The {@code /agent/transformer} element is <b>optional</b> and configures the wrapper the agent
+ * puts around the transformers registered by the agent delegate. It has the following optional
+ * attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code reentrancy-guard}, if {@code true} the delegate's transformers are not called
+ * 			for the classes loaded while one of them is already transforming a class in
+ * 			the same thread (e.g. classes loaded by ASM's {@code getCommonSuperClass()} or by
+ * 			logging). This avoids wasted work and deadlocks caused by nested {@code transform()}
+ * 			callbacks but the classes loaded that way are not transformed. The number of
+ * 			short-circuited callbacks is available from {@link ReentrancyGuard#getInstance()}.
+ * 			The default is {@code false}.
+ * 		</li>
+ * 		<li>
+ * 			{@code activation}, either {@code immediate} (the default), {@code deferred} or
+ * 			{@code hotness}. If
+ * 			{@code deferred}, the transformers registered by the agent delegate are kept dormant
+ * 			(i.e. they are not registered to the JVM at all) until the instrumentation is
+ * 			activated either after {@code activation-delay} or by calling
+ * 			{@link DeferredActivation#activate()}. When activated, the loaded classes matching
+ * 			the <a href="#agent-filter-element">{@code /agent/filter}</a> element are retransformed
+ * 			in batches in a background thread. This keeps the startup time nearly the same as
+ * 			without the agent. Notice that the transformers are always registered as capable of
+ * 			retransformation and that Java 6 or later is needed for retransforming.
+ * 			<p>
+ * 			If {@code hotness}, the classes matching the {@code /agent/filter} element are first
+ * 			instrumented only with a minimal invocation-count probe and the delegate's
+ * 			transformers are not called for them. When a method of a class is invoked at least
+ * 			{@code hotness-threshold} times during {@code hotness-interval}, the class is
+ * 			retransformed without the probes and with the delegate's transformers. This
+ * 			keeps the overhead of the full instrumentation away from the rarely run code. See
+ * 			{@link HotnessMonitor} for details. Java 6 or later is required.
+ * 		</li>
+ * 		<li>
+ * 			{@code activation-delay}, the delay after the agent delegate's {@code premain()}
+ * 			after which the deferred instrumentation is activated. If not defined, the deferred
+ * 			instrumentation is activated only on demand.
+ * 		</li>
+ * 		<li>
+ * 			{@code retransform-batch-size}, the number of classes retransformed at once after
+ * 			the deferred activation or when classes become hot. The default is {@code 50}.
+ * 		</li>
+ * 		<li>
+ * 			{@code retransform-batch-interval}, the pause between the retransformed batches.
+ * 			The default is {@code 100ms}.
+ * 		</li>
+ * 		<li>
+ * 			{@code hotness-threshold}, the number of invocations of a single method during
+ * 			{@code hotness-interval} making its class hot. The default is {@code 1000}.
+ * 		</li>
+ * 		<li>
+ * 			{@code hotness-interval}, the interval of collecting the invocation counts.
+ * 			The default is {@code 1s}.
+ * 		</li>
+ * </ul>
+ * Durations are given in milliseconds and can have {@code ms}, {@code s}, {@code m} or
+ * {@code h} suffix. For example:
+ * <xmp>
+ * 		<transformer reentrancy-guard="true" activation="deferred" activation-delay="2m" />
+ * </xmp>
+ * or:
+ * <xmp>
+ * 		<transformer activation="hotness" hotness-threshold="10k" hotness-interval="5s" />
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-events-element">{@code /agent/events} element</a></h4>
+ * The {@code /agent/events} element is <b>optional</b> and if it is defined the agent creates
+ * an {@link EventRingBuffer} available from {@link EventRingBuffer#getInstance()}. The code
+ * instrumented by the agent delegate can publish events (e.g. method timings) to it without
+ * locking and allocating, and the agent delegate consumes them in batches in a background
+ * thread started with {@link EventRingBuffer#start(EventHandler)}. The ring buffer is created
+ * before the agent delegate's {@code premain()} is called. {@code /agent/events} has
+ * the following optional attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code capacity}, the number of events the ring buffer can hold. It is rounded up
+ * 			to the next power of two. The default is {@code 64k}.
+ * 		</li>
+ * 		<li>
+ * 			{@code overflow}, either {@code drop} (the default) or {@code block}. If {@code drop},
+ * 			the events published to a full ring buffer are dropped and counted. If {@code block},
+ * 			the publishing thread waits until there is room (i.e. back-pressure) as long as
+ * 			the consumer thread is running. Otherwise the events are dropped.
+ * 		</li>
+ * 		<li>
+ * 			{@code batch-size}, the maximum number of events handled by the consumer thread in
+ * 			a single batch. The default is {@code 256}.
+ * 		</li>
+ * </ul>
+ * For example:
+ * <xmp>
+ * 		<events capacity="1m" overflow="drop" />
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-event-log-element">{@code /agent/event-log} element</a></h4>
+ * The {@code /agent/event-log} element is <b>optional</b> and if it is defined the agent creates
+ * an {@link EventLog} available from {@link EventLog#getInstance()}. The event log is
+ * an append-only binary log of fixed size records written to rolling memory-mapped files.
+ * The instrumented code can append records to it directly from several threads or
+ * the event log can be used as the consumer of the <a href="#agent-events-element">event
+ * ring buffer</a>. The records can be decoded offline with {@link EventLogReader}.
+ * The log files are forced to the disk when the JVM exits. {@code /agent/event-log} has
+ * the following attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code directory}, the <b>mandatory</b> directory for the log files. The old log files
+ * 			in the directory are kept and the numbering of the new files continues after them.
+ * 		</li>
+ * 		<li>{@code file-size}, the size of a single log file. The default is {@code 64m}.</li>
+ * 		<li>
+ * 			{@code max-files}, the maximum number of log files kept, including the files of
+ * 			the previous runs. When a new file is started, the oldest one is deleted. If not
+ * 			defined, all the files are kept.
+ * 		</li>
+ * </ul>
+ * For example:
+ * <xmp>
+ * 		<event-log directory="/tmp/my-agent-events" file-size="16m" max-files="10" />
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-metrics-element">{@code /agent/metrics} element</a></h4>
+ * The {@code /agent/metrics} element is <b>optional</b> and if it is defined the agent creates
+ * a {@link Metrics} registry available from {@link Metrics#getInstance()}. The instrumented
+ * code can update striped {@link Counter}s, {@link Gauge}s and log-linear {@link Histogram}s
+ * without contending on shared cache lines. The metrics are aggregated when they are read and
+ * exported optionally via JMX and to a file. {@code /agent/metrics} has the following optional
+ * attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code stripes}, the number of stripes of the counters and the histograms. It is
+ * 			rounded up to the next power of two and it must not be greater than {@code 64}.
+ * 			The default is the number of available processors.
+ * 		</li>
+ * 		<li>
+ * 			{@code jmx}, {@code true} to register the metrics as
+ * 			the {@value com.hapiware.agent.Metrics#OBJECT_NAME} MBean. The default is
+ * 			{@code false}, because creating the platform MBean server in {@code premain()}
+ * 			initialises JMX and {@code java.util.logging} before the application, which breaks
+ * 			the applications installing their own log manager (e.g. JBoss LogManager).
+ * 		</li>
+ * 		<li>
+ * 			{@code file}, the file the metrics are exported to periodically and when the JVM
+ * 			exits. If not defined, the metrics are not exported to a file.
+ * 		</li>
+ * 		<li>{@code interval}, the interval of the file export. The default is {@code 10s}.</li>
+ * </ul>
+ * For example:
+ * <xmp>
+ * 		<metrics stripes="16" file="/tmp/my-agent-metrics.properties" interval="30s" />
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-class-list-element">{@code /agent/class-list} element</a></h4>
+ * The {@code /agent/class-list} element is <b>optional</b> and it turns a run into a training
+ * run for class data sharing (CDS). When the JVM exits, the agent writes the classes loaded
+ * from the agent .jar file, from the {@code /agent/classpath} entries and from the JDK to
+ * the file given with the <b>mandatory</b> {@code file} attribute, one class per line. Loading
+ * and verifying these classes (e.g. the agent, JAXP and the bytecode library of the agent
+ * delegate) can be a large part of the run time of a short-lived JVM. With a CDS archive
+ * the classes are mapped from the archive instead.
+ * <p>
+ * 
+ * After the training run the archive is created (Java 10 and later) with:
+ * <blockquote>
+ * 		{@code java -Xshare:dump -XX:SharedClassListFile=agent.classlist -XX:SharedArchiveFile=agent.jsa -cp agent.jar}
+ * </blockquote>
+ * The agent .jar file must be in the {@code -cp} class path both when creating and when using
+ * the archive because CDS archives only the classes of the class path given at startup.
+ * The classes of the {@code /agent/classpath} entries are loaded by the agent's own class loader,
+ * so they cannot be archived this way and they are only reported as warnings when the archive
+ * is created.
+ * <p>
+ * 
+ * The archive is then used with {@code -XX:SharedArchiveFile=agent.jsa} and the same class
+ * path. The element should be removed after the training run. For example:
+ * <xmp>
+ * 		<class-list file="/tmp/agent.classlist" />
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-pre-transform-element">{@code /agent/pre-transform} element</a></h4>
+ * The {@code /agent/pre-transform} element is <b>optional</b> and it moves the work of
+ * the transformers off the application's startup thread. Normally every class is transformed
+ * synchronously when it is defined, so the application waits for every transformation. With
+ * this element the agent scans the .jar files and the directories of {@code java.class.path}
+ * after the agent delegate's {@code premain()} and transforms the classes matching
+ * the <a href="#agent-filter-element">{@code /agent/filter}</a> element in the background with
+ * a pool of daemon threads. When a class is then loaded, its transformed class file is taken
+ * from the cache (see {@link PreTransformer}). The element requires that the agent delegate's
+ * {@code premain()} returns its transformers (see
+ * <a href="#agent-delegate-element">{@code /agent/delegate} element</a>). The transformers
+ * must not depend on the {@code ProtectionDomain}, which is {@code null} for the classes
+ * transformed in the background, and they must not load classes while transforming.
+ * <p>
+ * 
+ * {@code /agent/pre-transform} has optional attributes:
+ * <ul>
+ * 		<li>
+ * 			{@code threads}, the number of threads transforming the classes (the default is
+ * 			the number of processors)
+ * 		</li>
+ * 		<li>
+ * 			{@code retention}, how long the transformed classes not yet loaded are kept in memory
+ * 			after all the classes have been transformed (the default is {@code 60s}). After that
+ * 			the classes loaded later are transformed normally when they are loaded.
+ * 		</li>
+ * </ul>
+ * The transformed classes take memory until they are loaded or the retention time has passed,
+ * so the filter should cover only the classes the application really loads. For example:
+ * <xmp>
+ * 		<pre-transform threads="8" retention="2m" />
+ * </xmp>
+ * 
+ * 
+ * <h4><a name="agent-flight-recorder-events">JDK Flight Recorder events</a></h4>
+ * When JDK Flight Recorder (JFR) is running, the agent records the following events in
+ * the {@code Agent} category:
+ * <ul>
+ * 		<li>
+ * 			{@code com.hapiware.agent.ConfigurationPhase}, the phases of reading the configuration
+ * 			file: {@code parse}, {@code include}, {@code validation}, {@code variables} and
+ * 			{@code elements}
+ * 		</li>
+ * 		<li>
+ * 			{@code com.hapiware.agent.Delegate}, loading the agent delegate ({@code load}) and
+ * 			calling its {@code premain()} ({@code premain})
+ * 		</li>
+ * 		<li>
+ * 			{@code com.hapiware.agent.Transform}, the calls to the delegate's transformers lasting
+ * 			at least {@code 1 ms} with the class name, the class loader type, the original and
+ * 			the transformed size of the class file
+ * 		</li>
+ * 		<li>{@code com.hapiware.agent.RetransformBatch}, the retransformed batches of classes</li>
+ * </ul>
+ * The events can be enabled, disabled and their thresholds changed in the recording settings
+ * like any other JFR events (e.g. {@code com.hapiware.agent.Transform#threshold=0 ms}).
+ * The configuration and the delegate events happen before a recording started with
+ * {@code -XX:StartFlightRecording} is running, so they are kept in memory and committed when
+ * the recording starts. Their duration is in the {@code elapsedTime} field.
+ * On a JVM without JFR no events are recorded.
+ * 
+ * 
+ * <h4><a name="agent-configuration-element">{@code /agent/configuration/} element</a></h4>
+ * The {@code /agent/configuration/} element is <b>optional</b> and has all the necessary
+ * configuration information for the agent delegate class. The exact structure can depend on
+ * the programmer but there are some predefined structures as well. The configuration object
+ * is delivered to the agent delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument.
+ * <p>
+ * 
+ * All the possible options for configuration object creation are:
+ * 	<ol>
+ *		<li>{@code null}</li>
+ * 		<li>{@code String}</li>
+ * 		<li>{@code List<String>}</li>
+ * 		<li>{@code Map<String, String>}</li>
+ * 		<li>User defined configuration object</li>
+ *	</ol>
+ * 
+ * <h5>{@code null}</h5>
+ * If the {@code /agent/configuration/} element is not defined at all then {@code null} is
+ * delivered to the agent delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument. For example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ *		</classpath>
+ *	</agent>
+ * </xmp>
+ * which sends {@code null} to the
+ * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument.
+ * 
+ * <h5>{@code String}</h5>
+ * If the {@code /agent/configuration/} element has only pure text (i.e. {@code String}), the
+ * text string is delivered to the delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument. For example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ *		</classpath>
+ *		<configuration>Show me!</configuration>
+ *	</agent>
+ * </xmp>
+ * which sends "Show me!" to the
+ * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument.
+ * 
+ * <h5>{@code List<String>}</h5>
+ * If the {@code /agent/configuration/} element has {@code <item>} child elements <u>without an 
+ * attribute</u> then the {@code List<String>} is created which is in turn delivered to the agent
+ * delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument. For example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ *		</classpath>
+ *		<configuration>
+ *			<item>One</item>
+ *			<item>Two</item>
+ *			<item>Three</item>
+ *		</configuration>
+ *	</agent>
+ * </xmp>
+ * which sends {@code List<String>} {"One", "Two", "Three"} to the
+ * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument.
+ * 
+ * <h5>{@code Map<String, String>}</h5>
+ * If the {@code /agent/configuration/} element has {@code <item>} child elements <u>with a
+ * {@code key} attribute</u> then the {@code Map<String, String>} is created which is in turn
+ * delivered to the agent delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument. For example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ *	<agent>
+ *		<delegate>com.hapiware.test.MyAgentDelegate</delegate>
+ *		<classpath>
+ * 			<entry>/users/me/agent/target/my-delegate-1.0.0.jar</entry>
+ *		</classpath>
+ *		<configuration>
+ *			<item key="1">One</item>
+ *			<item key="2">Two</item>
+ *			<item key="3">Three</item>
+ *		</configuration>
+ *	</agent>
+ * </xmp>
+ * which sends {@code Map<String, String>} {{"1", "One"}, {"2", "Two"}, {"3", "Three"}} to the
+ * {@code MyAgentDelegate.premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument.
+ * <p>
+ * 
+ * The {@code List<String>} and the {@code Map<String, String>} are immutable and compact (see
+ * {@link ConfigurationList} and {@link ConfigurationMap}), and the DOM document of
+ * the configuration file is released after they have been created, so a large configuration
+ * does not keep taking heap for the lifetime of the JVM.
+ * <p>
+ * 
+ * Instead of parsing the strings itself (maybe repeatedly in the instrumented code), the agent
+ * delegate can use {@link ConfigurationView#of(Object)}, which parses the numbers, durations and
+ * booleans of the {@code List<String>} or the {@code Map<String, String>} once and has typed
+ * getters (e.g. {@code getInt()}, {@code getDuration()} and {@code getPattern()}) for them.
+ * 
+ * <h5>User defined configuration object</h5>
+ * If the {@code /agent/configuration/} element has the {@code custom} child element defined,
+ * then {@code public static Object unmarshall(org.w3c.dom.Element configElement)} method must
+ * be defined to the agent delegate class in addition to {@code premain()} method. The
+ * {@code unmarshall()} method is called with the {@code /agent/configuration/custom} element
+ * as an argument. The system then delivers the returned {@code Object} directly to the agent
+ * delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method as an {@link Object} argument. This approach makes it possible to create different configuration
+ * structures for the agent delegate's
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method very flexibly.
+ * <p>
+ * {@code public static Object unmarshall(org.w3c.dom.Element configElement)} is assumed to return
+ * a programmer's own configuration object. Here is an example:
+ * <xmp>
+ * 	<?xml version="1.0" encoding="UTF-8" ?>
+ * 	<agent>
+ * 		<delegate>com.hapiware.agent.FancyAgentDelegate</delegate>
+ * 		<classpath>
+ * 			<entry>/users/me/agent/target/fancy-delegate-1.0.0.jar</entry>
+ * 			<entry>/usr/local/asm-3.1/lib/all/all-asm-3.1.jar</entry>
+ * 		</classpath>
+ * 		<filter>
+ * 			<include>^com/hapiware/.*f[oi]x/.+</include>
+ * 			<include>^com/mysoft/.+</include>
+ * 			<exclude>^com/hapiware/.+/CreateCalculationForm</exclude>
+ * 		</filter>
+ * 		<configuration>
+ * 			<custom>
+ * 				<message>Hello World!</message>
+ * 				<date>2010-3-13</date>
+ * 			</custom>
+ * 		</configuration>
+ * 	</agent>
+ * </xmp>
+ * 
+ * This assumes that {@code com.hapiware.asm.FancyAgentDelegate} class has
+ * {@code public static Object unmarshall(org.w3c.dom.Element configElement)} method defined
+ * to handle {@code <message>} and {@code <date>} elements from the {@code <configuration/custom>}
+ * element. It is also assumed that the {@code Object} the {@code unmarshall()} method returns
+ * can be properly handled (and type casted) in the
+ * {@code static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)}
+ * method.
+ * <p>
+ * 
+ * Instead of writing {@code unmarshall()}, the agent delegate class can be annotated with
+ * {@link CustomConfiguration} declaring a configuration class with {@link ConfigurationProperty}
+ * fields. The agent then creates the configuration object by itself in a single pass over
+ * the {@code /agent/configuration/custom} element and reports the unknown, missing and invalid
+ * values as configuration errors. For example, the configuration above could be:
+ * <xmp>
+ * 	@CustomConfiguration(FancyConfiguration.class)
+ * 	public class FancyAgentDelegate
+ * 	...
+ * 
+ * 	public class FancyConfiguration
+ * 	{
+ * 		@ConfigurationProperty
+ * 		String message;
+ * 
+ * 		@ConfigurationProperty
+ * 		String date;
+ * 	}
+ * </xmp>
+ * {@code unmarshall()} is preferred if both are defined.
+ * 
+ * 
+ * @see java.lang.instrument
+ * 
+ * @author <a href="http://www.hapiware.com" target="_blank">hapi</a>
+ *
+ */
+public class Agent
+{
+	private final static String PREMAIN_SIGNATURE =
+		"static void premain(java.util.regex.Pattern[], java.util.regex.Pattern[], Object, Instrumentation)";
+	private final static Pattern SIZE_PATTERN = Pattern.compile("([0-9]{1,12})([kKmMgG]?)");
+	private final static Pattern DURATION_PATTERN = Pattern.compile("([0-9]{1,12})(ms|s|m|h)?");
+	
+	
+	/**
+	 * This method is called before the main method call right after the JVM initialisation. 
+	 * <p>
+	 * <b>Notice</b> that this method follows the <i>fail fast</i> idiom and thus
+	 * throws a runtime exception if there is something wrong in the configuration file.
+	 * 
+	 * @param agentArgs
+	 * 		Same string which was given to {@code -javaagent} as <i>options</i> (see the class
+	 * 		description).
+	 * 
+	 * @param instrumentation
+	 * 		See {@code java.lang.instrument.Instrumentation}
+	 * 
+	 * @throws ConfigurationError
+	 * 		If there is something wrong with the configuration file.
+	 *
+	 * @see java.lang.instrument
+	 */
+	public static void premain(String agentArgs, Instrumentation instrumentation)
+	{
+		ConfigElements configElements = readConfigurationFile(agentArgs);
+		ClassLoader originalClassLoader = null;
+		try {
+			originalClassLoader = Thread.currentThread().getContextClassLoader();
+			ClassLoader cl =
+				new URLClassLoader(
+					configElements.getClasspaths(),
+					originalClassLoader
+				);
+			Thread.currentThread().setContextClassLoader(cl);
+			
+			
+			Object event = FlightRecorderEvent.DELEGATE.begin();
+			Class<?> delegateAgentClass =
+				(Class<?>)cl.loadClass(configElements.getDelegateAgentName());
+			final DelegateBinding delegateBinding = DelegateBinding.bind(delegateAgentClass);
+			if(!delegateBinding.hasPremain())
+				throw
+					new ConfigurationError(
+						PREMAIN_SIGNATURE + " method was not defined in \""
+							+ configElements.getDelegateAgentName() + "\"."
+					);
+			final Object delegateConfiguration = createConfiguration(delegateBinding, configElements);
+			configElements.releaseConfigurationElement();
+			FlightRecorderEvent.DELEGATE.commit(event, "load", configElements.getDelegateAgentName());
+			
+			ClassBytesStore classBytesStore = createClassBytesStore(configElements);
+			ClassBytesStore.setInstance(classBytesStore);
+			ClassFilter classFilter = configElements.getFilter().getClassFilter(cl);
+			ClassFilter.setInstance(classFilter);
+			final TypeHierarchy typeHierarchy = classFilter.getTypeHierarchy();
+			TypeHierarchy.setInstance(typeHierarchy);
+			if(typeHierarchy != null && configElements.getFilter().isClasspathScanned()) {
+				Thread scanner =
+					new Thread("agent-classpath-scanner") {
+						public void run()
+						{
+							typeHierarchy.scanClasspath(System.getProperty("java.class.path"));
+						}
+					};
+				scanner.setDaemon(true);
+				scanner.start();
+			}
+			final FilterStatistics filterStatistics = classFilter.getStatistics();
+			FilterStatistics.setInstance(filterStatistics);
+			if(filterStatistics != null && configElements.getFilter().isStatisticsReported())
+				Runtime.getRuntime().addShutdownHook(
+					new Thread("agent-filter-statistics") {
+						public void run()
+						{
+							System.err.print(filterStatistics.getReport());
+						}
+					}
+				);
+			ReentrancyGuard reentrancyGuard =
+				configElements.getTransformer().isReentrancyGuarded() ? new ReentrancyGuard() : null;
+			ReentrancyGuard.setInstance(reentrancyGuard);
+			DeferredActivation deferredActivation = null;
+			if(configElements.getTransformer().isActivationDeferred())
+				deferredActivation =
+					new DeferredActivation(
+						instrumentation,
+						classFilter,
+						configElements.getTransformer().getActivationDelay(),
+						configElements.getTransformer().getRetransformBatchSize(),
+						configElements.getTransformer().getRetransformBatchInterval()
+					);
+			DeferredActivation.setInstance(deferredActivation);
+			HotnessMonitor hotnessMonitor = null;
+			if(configElements.getTransformer().isHotnessMonitored()) {
+				if(!new Retransformer(instrumentation, 1, 0).isSupported())
+					throw
+						new ConfigurationError(
+							"/agent/transformer[@activation] \"hotness\" requires that "
+								+ "the JVM supports retransforming classes (see Can-Retransform-Classes "
+								+ "in the manifest)."
+						);
+				hotnessMonitor =
+					new HotnessMonitor(
+						instrumentation,
+						classFilter,
+						configElements.getTransformer().getHotnessThreshold(),
+						configElements.getTransformer().getHotnessInterval(),
+						configElements.getTransformer().getRetransformBatchSize(),
+						configElements.getTransformer().getRetransformBatchInterval()
+					);
+			}
+			HotnessMonitor.setInstance(hotnessMonitor);
+			EventRingBuffer eventRingBuffer = null;
+			if(configElements.getEvents().getCapacity() > 0)
+				eventRingBuffer =
+					new EventRingBuffer(
+						configElements.getEvents().getCapacity(),
+						configElements.getEvents().getOverflow(),
+						configElements.getEvents().getBatchSize()
+					);
+			EventRingBuffer.setInstance(eventRingBuffer);
+			final EventLog eventLog = createEventLog(configElements);
+			EventLog.setInstance(eventLog);
+			if(eventLog != null)
+				Runtime.getRuntime().addShutdownHook(
+					new Thread("agent-event-log") {
+						public void run()
+						{
+							eventLog.close();
+						}
+					}
+				);
+			Metrics.setInstance(createMetrics(configElements));
+			if(configElements.getClassListFile() != null)
+				writeClassListAtExit(instrumentation, configElements);
+			DelegateWatchdog delegateWatchdog = null;
+			if(configElements.getDelegate().getPremainTimeout() > 0)
+				delegateWatchdog = new DelegateWatchdog(configElements.getDelegate().getPremainTimeout());
+			Instrumentation delegateInstrumentation = instrumentation;
+			if(
+				(delegateWatchdog != null && !configElements.getDelegate().isPremainTimeoutFatal())
+					|| classBytesStore != null
+					|| classFilter.hasAgentSideRules()
+					|| filterStatistics != null
+					|| reentrancyGuard != null
+					|| deferredActivation != null
+					|| hotnessMonitor != null
+			)
+				delegateInstrumentation =
+					InstrumentationProxy.newInstance(
+						instrumentation,
+						classFilter,
+						classBytesStore,
+						reentrancyGuard,
+						deferredActivation,
+						hotnessMonitor
+					);
+			
+			// The probes must be inserted before the delegate's transformers are called.
+			if(hotnessMonitor != null)
+				hotnessMonitor.install();
+			
+			// Invokes the premain method of the delegate agent. The method filter is delivered
+			// only if the delegate has the premain method with MethodFilter argument.
+			final Pattern[] includePatterns = configElements.getIncludePatterns();
+			final Pattern[] excludePatterns = configElements.getExcludePatterns();
+			final MethodFilter methodFilter = classFilter.getMethodFilter();
+			final Instrumentation premainInstrumentation = delegateInstrumentation;
+			event = FlightRecorderEvent.DELEGATE.begin();
+			Object premainResult = null;
+			if(delegateWatchdog == null)
+				premainResult =
+					delegateBinding.premain(
+						includePatterns,
+						excludePatterns,
+						methodFilter,
+						delegateConfiguration,
+						delegateInstrumentation
+					);
+			else if(
+				!delegateWatchdog.invoke(
+					new Callable<Object>() {
+						public Object call() throws Exception
+						{
+							return
+								delegateBinding.premain(
+									includePatterns,
+									excludePatterns,
+									methodFilter,
+									delegateConfiguration,
+									premainInstrumentation
+								);
+						}
+					}
+				)
+			) {
+				FlightRecorderEvent.DELEGATE.commit(
+					event,
+					"premain-timeout",
+					configElements.getDelegateAgentName()
+				);
+				String message =
+					PREMAIN_SIGNATURE + " in \"" + configElements.getDelegateAgentName()
+						+ "\" did not return in " + delegateWatchdog.getTimeout() + " ms.\n"
+						+ delegateWatchdog.getStackDump();
+				if(configElements.getDelegate().isPremainTimeoutFatal())
+					throw new ConfigurationError(message);
+				
+				InstrumentationProxy.disable(delegateInstrumentation);
+				if(hotnessMonitor != null)
+					instrumentation.removeTransformer(hotnessMonitor.getProbeTransformer());
+				System.err.println(message + "\nThe agent delegate has been disabled.");
+				return;
+			}
+			else
+				premainResult = delegateWatchdog.getResult();
+			registerTransformers(
+				premainResult,
+				instrumentation,
+				delegateInstrumentation,
+				classFilter,
+				configElements
+			);
+			FlightRecorderEvent.DELEGATE.commit(event, "premain", configElements.getDelegateAgentName());
+			if(deferredActivation != null)
+				deferredActivation.start();
+			if(hotnessMonitor != null)
+				hotnessMonitor.start();
+		}
+		catch(ClassNotFoundException e) {
+			throw
+				new ConfigurationError(
+					"A delegate agent \""
+						+ configElements.getDelegateAgentName() + "\" was not found.",
+					e
+				);
+		}
+		catch(IllegalArgumentException e) {
+			throw
+				new ConfigurationError(
+					"Argument mismatch with " + PREMAIN_SIGNATURE + " "
+						+ "in \"" + configElements.getDelegateAgentName() + "\".",
+					e
+				);
+		}
+		catch(InvocationTargetException e) {
+			throw
+				new ConfigurationError(
+					PREMAIN_SIGNATURE + " in \"" + configElements.getDelegateAgentName()
+						+ "\" threw an exception.",
+					e
+				);
+		}
+		catch(IllegalAccessException e) {
+			assert false : e;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw
+				new ConfigurationError(
+					"Interrupted while waiting for " + PREMAIN_SIGNATURE + " in \""
+						+ configElements.getDelegateAgentName() + "\".",
+					e
+				);
+		}
+		finally {
+			if(originalClassLoader != null)
+				Thread.currentThread().setContextClassLoader(originalClassLoader);
+		}
+	}
+
+	
+	/**
+	 * Registers the transformers returned by the agent delegate's {@code premain()} behind
+	 * a {@link TransformerDispatcher}. The dispatcher is registered through the same
+	 * {@code Instrumentation} proxy as the transformers the delegate registers itself, or wrapped
+	 * with {@link DelegateTransformer} if there is no proxy. If {@code /agent/pre-transform} is
+	 * defined, the dispatcher is put behind a {@link PreTransformer} which is started here.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If {@code premain()} returned something else than transformers or nothing although
+	 * 		{@code /agent/pre-transform} is defined.
+	 */
+	private static void registerTransformers(
+		Object premainResult,
+		Instrumentation instrumentation,
+		Instrumentation delegateInstrumentation,
+		ClassFilter classFilter,
+		ConfigElements configElements
+	)
+	{
+		ClassFileTransformer[] transformers;
+		try {
+			transformers = TransformerDispatcher.toTransformers(premainResult);
+		}
+		catch(IllegalArgumentException e) {
+			throw
+				new ConfigurationError(
+					"premain() in \"" + configElements.getDelegateAgentName() + "\" must return "
+						+ "a ClassFileTransformer, an array or a Collection of them or nothing.",
+					e
+				);
+		}
+		if(transformers.length == 0) {
+			if(configElements.getTransformer().isPreTransformed())
+				throw
+					new ConfigurationError(
+						"/agent/pre-transform requires that premain() in \""
+							+ configElements.getDelegateAgentName() + "\" returns its transformers."
+					);
+			return;
+		}
+		
+		ClassFileTransformer transformer =
+			new TransformerDispatcher(transformers, classFilter, Metrics.getInstance());
+		PreTransformer preTransformer = null;
+		if(configElements.getTransformer().isPreTransformed()) {
+			preTransformer =
+				new PreTransformer(
+					transformer,
+					classFilter,
+					ClassLoader.getSystemClassLoader(),
+					configElements.getTransformer().getPreTransformThreads(),
+					configElements.getTransformer().getPreTransformRetention()
+				);
+			transformer = preTransformer;
+		}
+		if(delegateInstrumentation != instrumentation)
+			delegateInstrumentation.addTransformer(transformer);
+		else
+			instrumentation.addTransformer(new DelegateTransformer(transformer, classFilter, null));
+		if(preTransformer != null)
+			preTransformer.start(System.getProperty("java.class.path"));
+	}
+	
+	
+	/**
+	 * Writes the class list for class data sharing when the JVM exits (see
+	 * {@link ClassDataSharing}).
+	 */
+	private static void writeClassListAtExit(
+		final Instrumentation instrumentation,
+		ConfigElements configElements
+	)
+	{
+		final File file = new File(configElements.getClassListFile());
+		final List<URL> locations = new ArrayList<URL>(Arrays.asList(configElements.getClasspaths()));
+		locations.add(ClassDataSharing.getAgentLocation());
+		Runtime.getRuntime().addShutdownHook(
+			new Thread("agent-class-list") {
+				public void run()
+				{
+					try {
+						ClassDataSharing.writeClassList(
+							file,
+							ClassDataSharing.getClassNames(
+								instrumentation.getAllLoadedClasses(),
+								locations
+							)
+						);
+					}
+					catch(IOException e) {
+						System.err.println(
+							"The class list \"" + file + "\" cannot be written: " + e.getMessage()
+						);
+					}
+				}
+			}
+		);
+	}
+	
+	
+	/**
+	 * Creates {@link Metrics} if {@code /agent/metrics} element is defined. The metrics are
+	 * registered to the platform MBean server and the periodic file export is started as
+	 * configured. The metrics are exported to the file once more when the JVM exits.
+	 * 
+	 * @return
+	 * 		A new metrics registry or {@code null} if the metrics are not configured.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If the MBean cannot be registered.
+	 */
+	private static Metrics createMetrics(ConfigElements configElements)
+	{
+		if(!configElements.getMetrics().isEnabled())
+			return null;
+		
+		final Metrics metrics = new Metrics(configElements.getMetrics().getStripes());
+		if(configElements.getMetrics().isJmx()) {
+			try {
+				metrics.registerMBean();
+			}
+			catch(JMException e) {
+				throw
+					new ConfigurationError(
+						"Metrics cannot be registered as \"" + Metrics.OBJECT_NAME + "\".",
+						e
+					);
+			}
+		}
+		if(configElements.getMetrics().getFile() != null) {
+			final File file = new File(configElements.getMetrics().getFile());
+			metrics.startExport(file, configElements.getMetrics().getInterval());
+			Runtime.getRuntime().addShutdownHook(
+				new Thread("agent-metrics") {
+					public void run()
+					{
+						metrics.stopExport();
+						metrics.exportQuietly(file);
+					}
+				}
+			);
+		}
+		return metrics;
+	}
+	
+	
+	/**
+	 * Creates {@link EventLog} if {@code /agent/event-log} element is defined.
+	 * 
+	 * @return
+	 * 		A new event log or {@code null} if the event log is not configured.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If the first log file cannot be created.
+	 */
+	private static EventLog createEventLog(ConfigElements configElements)
+	{
+		String directory = configElements.getEvents().getLogDirectory();
+		if(directory == null)
+			return null;
+		
+		try {
+			return
+				new EventLog(
+					new File(directory),
+					configElements.getEvents().getLogFileSize(),
+					configElements.getEvents().getLogMaxFiles()
+				);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"Event log directory \"" + directory + "\" cannot be used.",
+					e
+				);
+		}
+	}
+	
+	
+	/**
+	 * Creates {@link ClassBytesStore} if {@code /agent/class-bytes-store} element is defined.
+	 * 
+	 * @return
+	 * 		A new store or {@code null} if the store is not configured.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If the store file cannot be mapped.
+	 */
+	private static ClassBytesStore createClassBytesStore(ConfigElements configElements)
+	{
+		if(configElements.getTransformer().getClassBytesStoreMaxSize() == 0)
+			return null;
+		
+		String file = configElements.getTransformer().getClassBytesStoreFile();
+		try {
+			if(file == null)
+				return
+					new ClassBytesStore(
+						configElements.getTransformer().getClassBytesStoreMaxSize(),
+						configElements.getTransformer().getClassBytesStoreSegmentSize()
+					);
+			else
+				return
+					new ClassBytesStore(
+						configElements.getTransformer().getClassBytesStoreMaxSize(),
+						configElements.getTransformer().getClassBytesStoreSegmentSize(),
+						new File(file)
+					);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"Class bytes store file \"" + file + "\" cannot be mapped.",
+					e
+				);
+		}
+	}
+	
+	
+	/**
+	 * Reads the configuration file and creates the include and exclude regular expression
+	 * pattern compilations for class matching.
+	 * 
+	 * @param configReader
+	 * 		A configuration reader.
+	 *  
+	 * @return
+	 * 		Configuration elements ({@link ConfigElements}) parsed from the configuration file.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If configuration file cannot be read or parsed properly.
+	 */
+	static ConfigElements readConfigurationFile(String configFileName)
+	{
+		if(configFileName == null)
+			throw
+				new ConfigurationError(
+					"The agent configuration file is not defined."
+				);
+		
+		File configFile = new File(configFileName);
+		if(configFile.exists()) {
+			try {
+				Object event = FlightRecorderEvent.CONFIGURATION_PHASE.begin();
+				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				Document configDocument = builder.parse(configFile);
+				String configFilePath = configFile.getCanonicalPath();
+				FlightRecorderEvent.CONFIGURATION_PHASE.commit(event, "parse", configFilePath);
+				return readDOMDocument(configDocument, configFilePath);
+			}
+			catch(ParserConfigurationException e) {
+				throw
+					new ConfigurationError(
+						"XML document builder cannot be created.",
+						e
+					);
+			}
+			catch(SAXException e) {
+				throw
+					new ConfigurationError(
+						"Parsing the agent configuration file \""
+							+ configFile + "\" didn't succeed.\n"
+							+ "\t->Make sure that the configuration file has been saved using "
+							+ "the correct encoding (i.e the same what is claimed in "
+							+ "XML declaration).",
+						e
+					);
+			}
+			catch(IOException e) {
+				throw
+					new ConfigurationError(
+						"IO error with the agent configuration file \""
+							+ configFile + "\".",
+						e
+					);
+			}
+		}
+		else
+			throw
+				new ConfigurationError(
+					"The agent configuration file \"" + configFile + "\" does not exist."
+				);
+	}
+	
+	
+	/**
+	 * This method does the actual work for {@link #readConfigurationFile(String)} method.
+	 * This separation is mainly done for making unit testing easier. 
+	 */
+	static ConfigElements readDOMDocument(Document configDocument, String configFileName)
+	{
+		ConfigElements retVal = null;
+		try {
+			// Included fragments are expanded before the validation.
+			Object event = FlightRecorderEvent.CONFIGURATION_PHASE.begin();
+			Element agentElement = configDocument.getDocumentElement();
+			File configFile = new File(configFileName);
+			new ConfigurationFragments(
+				agentElement.hasAttribute("fragment-cache")
+					? new File(VariableSources.replace(agentElement.getAttribute("fragment-cache")))
+					: null
+			).expand(configDocument, configFile.isFile() ? configFile : null);
+			FlightRecorderEvent.CONFIGURATION_PHASE.commit(event, "include", configFileName);
+
+			// Validate configuration document.
+			event = FlightRecorderEvent.CONFIGURATION_PHASE.begin();
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+			Source schemaFile =	new StreamSource(classLoader.getResourceAsStream("agent.xsd"));
+			Schema schema = factory.newSchema(schemaFile);
+			Validator validator = schema.newValidator();
+			validator.validate(new DOMSource(configDocument));
+			FlightRecorderEvent.CONFIGURATION_PHASE.commit(event, "validation", configFileName);
+			event = FlightRecorderEvent.CONFIGURATION_PHASE.begin();
+			
+			XPath xpath = XPathFactory.newInstance().newXPath();
+			
+			// All /agent/variables.
+			NodeList allVariableEntries = 
+				(NodeList)xpath.evaluate(
+					"/agent/variable",
+					configDocument,
+					XPathConstants.NODESET
+				);
+			
+			// /agent/variable[@name]
+			NodeList variableEntriesWithName = 
+				(NodeList)xpath.evaluate(
+					"/agent/variable[@name]",
+					configDocument,
+					XPathConstants.NODESET
+				);
+			if(allVariableEntries.getLength() != variableEntriesWithName.getLength())
+				throw
+					new ConfigurationError("\"name\" is the only valid attribute for /agent/variable element.");
+			
+			Map<String, String> variables = new HashMap<String, String>();
+			putVariablesWithNamesToMap(variableEntriesWithName, variables);
+			
+			// Replace all variables in attributes in the configuration file.
+			NodeList allAttributes =
+				(NodeList)xpath.evaluate(
+					"/agent//@*",
+					configDocument,
+					XPathConstants.NODESET
+				);
+			Pattern variablePattern = Pattern.compile("(\\$\\{([^\\$\\{\\}]+?)\\})");
+			boolean matched;
+			do {
+				matched = false;
+				for(int i = 0; i < allAttributes.getLength(); i ++) {
+					Node attributeEntry = allAttributes.item(i);
+					String attributeValue = ((Attr)attributeEntry).getValue();
+					Matcher m = variablePattern.matcher(attributeValue);
+					while(m.find()) {
+						matched = true;
+						String substitute = variables.get(m.group(2));
+						if(substitute == null)
+							substitute = VariableSources.resolve(m.group(2));
+						if(substitute == null) {
+							String ex =
+								"Attribute \"" + ((Attr)attributeEntry).getOwnerElement().getNodeName() 
+								+ "[@" + attributeEntry.getNodeName() + "]\""
+								+ " has an unrecognised variable " + m.group(1) + ".";
+							throw new ConfigurationError(ex);
+						}
+						attributeValue = attributeValue.replace(m.group(1), substitute);
+						((Attr)attributeEntry).setValue(attributeValue);
+					}
+				}
+			
+				// /agent/variable[@name] must be searched again and put to the map
+				// in the case variables are used in /agent/variable elements as attributes.
+				variableEntriesWithName = 
+					(NodeList)xpath.evaluate(
+						"/agent/variable[@name]",
+						configDocument,
+						XPathConstants.NODESET
+					);
+				putVariablesWithNamesToMap(variableEntriesWithName, variables);
+			} while(matched);
+			
+			// Replace all variables in elements in the configuration file.
+			NodeList allElements =
+				(NodeList)xpath.evaluate(
+					"/agent//*/text()",
+					configDocument,
+					XPathConstants.NODESET
+				);
+			do {
+				matched = false;
+				for(int i = 0; i < allElements.getLength(); i ++) {
+					Node elementEntry = allElements.item(i);
+					String elementValue = ((Text)elementEntry).getData();
+					Matcher m = variablePattern.matcher(elementValue);
+					while(m.find()) {
+						matched = true;
+						String substitute = variables.get(m.group(2));
+						if(substitute == null)
+							substitute = VariableSources.resolve(m.group(2));
+						if(substitute == null) {
+							String ex =
+								"Element \"" + elementEntry.getParentNode().getNodeName() + "\""
+								+ " has an unrecognised variable " + m.group(1) + ".";
+							throw new ConfigurationError(ex);
+						}
+						elementValue = elementValue.replace(m.group(1), substitute);
+						((Text)elementEntry).setData(elementValue);
+					}
+				}
+
+				// /agent/variable[@name] must be searched again and put to the map
+				// in the case variables are used in /agent/variable elements as values.
+				variableEntriesWithName = 
+					(NodeList)xpath.evaluate(
+						"/agent/variable[@name]",
+						configDocument,
+						XPathConstants.NODESET
+					);
+				putVariablesWithNamesToMap(variableEntriesWithName, variables);
+			} while(matched);
+			checkVariableConflicts(variableEntriesWithName, configFileName);
+			FlightRecorderEvent.CONFIGURATION_PHASE.commit(event, "variables", configFileName);
+			event = FlightRecorderEvent.CONFIGURATION_PHASE.begin();
+
+			// /agent/classpath
+			NodeList classpathEntries =
+				(NodeList)xpath.evaluate(
+					"/agent/classpath/entry",
+					configDocument,
+					XPathConstants.NODESET
+				);
+			List<String> classpaths = new ArrayList<String>();
+			for(int i = 0; i < classpathEntries.getLength(); i++) {
+				Node classpathEntry = classpathEntries.item(i).getFirstChild();
+				classpaths.add(((Text)classpathEntry).getData());
+			}
+			
+			// /agent/class-list
+			Element classList =
+				(Element)xpath.evaluate("/agent/class-list", configDocument, XPathConstants.NODE);
+			String classListFile = classList == null ? null : classList.getAttribute("file");
+			
+			// /agent/configuration
+			Node configuration = 
+				(Node)xpath.evaluate(
+					"/agent/configuration",
+					configDocument,
+					XPathConstants.NODE
+				);
+			
+			retVal = 
+				new ConfigElements(
+					classpaths,
+					(Element)configuration,
+					classListFile,
+					DelegateConfig.read(xpath, configDocument),
+					FilterConfig.read(xpath, configDocument),
+					TransformerConfig.read(xpath, configDocument),
+					EventsConfig.read(xpath, configDocument),
+					MetricsConfig.read(xpath, configDocument)
+				);
+			FlightRecorderEvent.CONFIGURATION_PHASE.commit(event, "elements", configFileName);
+			
+		}
+		catch(SAXException e) {
+			throw
+				new ConfigurationError(
+					"Validting the agent configuration file \""
+						+ configFileName + "\" didn't succeed.\n"
+						+ "\t->" + e.getMessage(),
+					e
+				);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"IO error with the agent configuration file \""
+						+ configFileName + "\".",
+					e
+				);
+		}
+		catch(XPathExpressionException e) {
+			throw
+				new ConfigurationError(
+					"A desired config node was not found from the agent configuration file \""
+						+ configFileName + "\".",
+					e
+				);
+		}
+		
+		return retVal;
+	}
+
+	
+	/**
+	 * Parses a boolean attribute (i.e. {@code true} or {@code false}).
+	 * 
+	 * @return
+	 * 		The value or {@code defaultValue} if the attribute is not defined.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If the attribute is not a proper boolean.
+	 */
+	static boolean parseBoolean(Element element, String attributeName, boolean defaultValue)
+	{
+		if(!element.hasAttribute(attributeName))
+			return defaultValue;
+		
+		String value = element.getAttribute(attributeName).trim();
+		if(value.equals("true"))
+			return true;
+		if(value.equals("false"))
+			return false;
+		throw
+			new ConfigurationError(
+				"\"" + value + "\" is not a valid boolean for " 
+					+ element.getNodeName() + "[@" + attributeName + "]."
+			);
+	}
+	
+	
+	/**
+	 * Parses a size attribute (e.g. {@code 512k}, {@code 64m} or {@code 1g}).
+	 * 
+	 * @return
+	 * 		The size in bytes or {@code defaultValue} if the attribute is not defined.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If the attribute is not a proper size.
+	 */
+	static long parseSize(Element element, String attributeName, long defaultValue)
+	{
+		if(!element.hasAttribute(attributeName))
+			return defaultValue;
+		
+		String value = element.getAttribute(attributeName).trim();
+		Matcher m = SIZE_PATTERN.matcher(value);
+		if(!m.matches())
+			throw
+				new ConfigurationError(
+					"\"" + value + "\" is not a valid size for " 
+						+ element.getNodeName() + "[@" + attributeName + "]."
+				);
+		long size = Long.parseLong(m.group(1));
+		String unit = m.group(2).toLowerCase();
+		if(unit.equals("k"))
+			size *= 1024L;
+		else if(unit.equals("m"))
+			size *= 1024L * 1024L;
+		else if(unit.equals("g"))
+			size *= 1024L * 1024L * 1024L;
+		if(size <= 0)
+			throw
+				new ConfigurationError(
+					element.getNodeName() + "[@" + attributeName + "] must be greater than zero."
+				);
+		return size;
+	}
+	
+	
+	/**
+	 * Parses a duration attribute. The duration is a number optionally followed by {@code ms},
+	 * {@code s}, {@code m} or {@code h}. A plain number is in milliseconds.
+	 * 
+	 * @return
+	 * 		The duration in milliseconds or {@code defaultValue} if the attribute is not defined.
+	 * 
+	 * @throws ConfigurationError
+	 * 		If the attribute is not a proper duration.
+	 */
+	static long parseDuration(Element element, String attributeName, long defaultValue)
+	{
+		if(!element.hasAttribute(attributeName))
+			return defaultValue;
+		
+		String value = element.getAttribute(attributeName).trim();
+		long duration = parseDuration(value);
+		if(duration < 0)
+			throw
+				new ConfigurationError(
+					"\"" + value + "\" is not a valid duration for " 
+						+ element.getNodeName() + "[@" + attributeName + "]."
+				);
+		return duration;
+	}
+	
+	
+	/**
+	 * Parses a duration (see {@link #parseDuration(Element, String, long)}).
+	 * 
+	 * @return
+	 * 		The duration in milliseconds or -1 if the value is not a proper duration.
+	 */
+	static long parseDuration(String value)
+	{
+		Matcher m = DURATION_PATTERN.matcher(value);
+		if(!m.matches())
+			return -1;
+		long duration = Long.parseLong(m.group(1));
+		String unit = m.group(2) == null ? "ms" : m.group(2);
+		if(unit.equals("s"))
+			duration *= 1000L;
+		else if(unit.equals("m"))
+			duration *= 60L * 1000L;
+		else if(unit.equals("h"))
+			duration *= 60L * 60L * 1000L;
+		return duration;
+	}
+	
+	
+	/**
+	 * Checks that the included fragments (and the configuration file) do not define the same
+	 * variable with different values. Within a single file the last definition is used.
+	 */
+	private static void checkVariableConflicts(NodeList variableEntries, String configFileName)
+	{
+		Map<String, Node> definitions = new HashMap<String, Node>();
+		for(int i = 0; i < variableEntries.getLength(); i++) {
+			Node variableEntry = variableEntries.item(i);
+			String name = ((Element)variableEntry).getAttribute("name");
+			Node definition = definitions.put(name, variableEntry);
+			if(definition == null)
+				continue;
+			String source = ConfigurationFragments.getSource(variableEntry);
+			String otherSource = ConfigurationFragments.getSource(definition);
+			boolean sameSource = source == null ? otherSource == null : source.equals(otherSource);
+			if(!sameSource && !variableEntry.getTextContent().equals(definition.getTextContent()))
+				throw
+					new ConfigurationError(
+						"Variable \"" + name + "\" has conflicting definitions \""
+							+ definition.getTextContent() + "\" in \""
+							+ (otherSource == null ? configFileName : otherSource) + "\" and \""
+							+ variableEntry.getTextContent() + "\" in \""
+							+ (source == null ? configFileName : source) + "\"."
+					);
+		}
+	}
+	
+	
+	private static void putVariablesWithNamesToMap(NodeList variableEntries, Map<String, String> map)
+	{
+		map.clear();
+		for(int i = 0; i < variableEntries.getLength(); i++) {
+			Node variableEntry = variableEntries.item(i);
+			Node variableValue = variableEntry.getFirstChild();
+			NamedNodeMap nameAttributes = variableEntry.getAttributes();
+			Node nameAttribute = nameAttributes.getNamedItem("name");
+			map.put(nameAttribute.getNodeValue(), ((Text)variableValue).getData());
+		}
+	}
+	
+	
+	/**
+	 * Creates an object according to the given configuration elements (i.e. /agent/configuration
+	 * element).
+	 * 
+	 * @param delegateAgentClass
+	 * 		A delegate agent class having the {@code unmarshall()} method (if needed). 
+	 * 
+	 * @param configElements
+	 * 		Configuration elements to be used as a basis for the configuration object creation.
+	 * 
+	 * @return
+	 * 		A configuration object. There are five (5) possible options for configuration object
+	 * 		creation:
+	 * 		<ol>
+	 * 			<li>{@code null}</li>
+	 * 			<li>{@code String}</li>
+	 * 			<li>{@code List<String>}</li>
+	 * 			<li>{@code Map<String, String>}</li>
+	 * 			<li>User defined configuration object</li>
+	 * 		</ol>
+	 * 
+	 *		For more information, see the class description.
+	 */
+	static Object unmarshall(Class<?> delegateAgentClass, ConfigElements configElements)
+	{
+		return
+			createConfiguration(
+				delegateAgentClass == null ? null : DelegateBinding.bind(delegateAgentClass),
+				configElements
+			);
+	}
+	
+	
+	/**
+	 * Creates an object according to the given configuration elements using the already bound
+	 * entry points of the delegate agent (see {@link #unmarshall(Class, ConfigElements)}).
+	 */
+	static Object createConfiguration(DelegateBinding delegateBinding, ConfigElements configElements)
+	{
+		Element configElement = configElements.getConfigurationElement();
+		if(configElement != null) {
+			if(configElement.getElementsByTagName("item").getLength() > 0)
+				return createCollectionConfiguration(configElements);
+			else {
+				Node firstNode = configElement.getFirstChild();
+				Node targetNode = firstNode;
+				boolean customElementFound = false;
+				boolean textNodeFound = false;
+				while(targetNode != null) {
+					if(targetNode.getNodeName().equals("#text") && targetNode.getNodeValue().trim().length() > 0)
+						textNodeFound = true;
+					if(targetNode.getNodeName().equals("custom")) {
+						customElementFound = true;
+						break;
+					}
+					targetNode = targetNode.getNextSibling();
+				}
+				if(textNodeFound && customElementFound)
+					throw
+						new ConfigurationError(
+							"/agent/configuration/custom element cannot co-exist with a text element "
+							+ "(i.e. a pure string under /agent/configuration)."
+						);
+				if(!customElementFound)
+					targetNode = firstNode;
+				if(customElementFound) {
+					try {
+						// Invokes the unmarshaller.
+						if(!delegateBinding.hasUnmarshaller())
+							throw
+								new ConfigurationError(
+									"static Object unmarshall(Element) method or @CustomConfiguration "
+										+ "was not defined in \""
+										+ delegateBinding.getDelegateAgentClass().getName() + "\"."
+								);
+						return delegateBinding.unmarshall((Element)targetNode);
+					}
+					catch(IllegalArgumentException e) {
+						throw
+							new ConfigurationError(
+								"Argument mismatch with static Object unmarshall(Element) method "
+									+ "in \"" + delegateBinding.getDelegateAgentClass().getName() + "\".",
+								e
+							);
+					}
+					catch(InvocationTargetException e) {
+						throw
+							new ConfigurationError(
+								"static Object unmarshall(Element) method "
+									+ "in \"" + delegateBinding.getDelegateAgentClass().getName()
+									+ "\" threw an exception.",
+								e
+							);
+					}
+					catch(IllegalAccessException e) {
+						assert false: e;
+						return null;
+					}
+				}
+				else {
+					if(targetNode == null || targetNode.getNodeValue().trim().length() == 0)
+						throw
+							new ConfigurationError(
+								"/agent/configuration does not have a proper string (i.e. text element) "
+									+ "(or any other elements)"
+							);
+					
+					return targetNode.getNodeValue().trim();
+				}
+			}
+		}
+		else
+			return null;
+	}
+	
+	
+	/**
+	 * Creates either {@code List<String>} or {@code Map<String, String>} configuration object.
+	 * 
+	 * @param configElements
+	 * 		Configuration elements to be used as a basis for the configuration object creation.
+	 * 
+	 * @return
+	 * 		A configuration collection object which is either one of the following:
+	 * 		<ul>
+	 * 			<li>{@code List<String>}</li>
+	 * 			<li>{@code Map<String, String>}</li>
+	 * 		</ul>
+	 */
+	private static Object createCollectionConfiguration(ConfigElements configElements)
+	{
+		boolean dontUseMap = false;
+		boolean dontUseList = false;
+		Object retVal = null;
+
+		XPath xpath = XPathFactory.newInstance().newXPath();
+		try {
+			NodeList configurationItems = (NodeList)xpath.evaluate(
+				"./item",
+				configElements.getConfigurationElement(),
+				XPathConstants.NODESET
+			);
+			for(int i = 0; i < configurationItems.getLength(); i++) {
+				Node item = configurationItems.item(i);
+				if(item.getAttributes().getNamedItem("key") == null)
+					dontUseMap = true;
+				else
+					dontUseList = true;
+			}
+			
+			if(dontUseList && dontUseMap)
+				throw
+					new ConfigurationError(
+						"/agent/configuration/item tags have improper attributes."
+					);
+			
+			List<String> texts = new ArrayList<String>(configurationItems.getLength());
+			for(int i = 0; i < configurationItems.getLength(); i++) {
+				Node text = configurationItems.item(i).getFirstChild();
+				texts.add(text == null ? "" : ((Text)text).getData());
+			}
+			
+			// Uses a list.
+			if(!dontUseList)
+				retVal = new ConfigurationList(texts);
+			
+			// Uses a map.
+			if(!dontUseMap) {
+				List<String> keys = new ArrayList<String>(configurationItems.getLength());
+				for(int i = 0; i < configurationItems.getLength(); i++)
+					keys.add(
+						configurationItems.item(i).getAttributes().getNamedItem("key").getNodeValue()
+					);
+				retVal = new ConfigurationMap(keys, texts);
+			}
+		}
+		catch(XPathExpressionException e) {
+			assert false : e;
+		}
+		
+		assert retVal != null;
+		return retVal;
+	}
+
+
+	/**
+	 * {@code ConfigElements} is data object for collecting all the necessary items from
+	 * the agent configuration file. 
+	 * <p>
+	 * {@code ConfigElements} is <b>immutable</b> except that the {@code /agent/configuration}
+	 * element is released after startup (see {@link #releaseConfigurationElement()}).
+	 * 
+	 * @author hapi
+	 *
+	 */
+	static class ConfigElements
+	{
+		private final List<URL> classpaths;
+		private volatile Element configurationElement;
+		private final String classListFile;
+		private final DelegateConfig delegate;
+		private final FilterConfig filter;
+		private final TransformerConfig transformer;
+		private final EventsConfig events;
+		private final MetricsConfig metrics;
+		
+		public ConfigElements(
+			List<String> classpaths,
+			Element configElement,
+			String classListFile,
+			DelegateConfig delegate,
+			FilterConfig filter,
+			TransformerConfig transformer,
+			EventsConfig events,
+			MetricsConfig metrics
+		)
+			throws
+				MalformedURLException
+		{
+			List<URL> classpathsAsURLs = new ArrayList<URL>();
+			for(String classpath : classpaths) {
+				File file = new File(classpath);
+				if(!file.exists())
+					throw
+						new ConfigurationError(
+							"Class path entry \"" + file + "\" does not exist."
+						);
+				classpathsAsURLs.add(file.toURI().toURL());
+			}
+			this.classpaths = Collections.unmodifiableList(classpathsAsURLs);
+			
+			this.configurationElement = configElement;
+			this.classListFile = classListFile;
+			this.delegate = delegate;
+			this.filter = filter;
+			this.transformer = transformer;
+			this.events = events;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Returns the {@code /agent/configuration} element or {@code null} if it is not defined
+		 * or it has been released (see {@link #releaseConfigurationElement()}).
+		 */
+		public Element getConfigurationElement()
+		{
+			return configurationElement;
+		}
+		
+		/**
+		 * Releases the {@code /agent/configuration} element, which keeps the whole DOM document
+		 * of the configuration file reachable. This is called once the configuration object has
+		 * been created for the agent delegate.
+		 */
+		public void releaseConfigurationElement()
+		{
+			configurationElement = null;
+		}
+
+		public String getDelegateAgentName()
+		{
+			return delegate.getName();
+		}
+
+		public URL[] getClasspaths()
+		{
+			return classpaths.toArray(new URL[0]);
+		}
+
+		/**
+		 * @see FilterConfig#getIncludePatterns()
+		 */
+		public Pattern[] getIncludePatterns()
+		{
+			return filter.getIncludePatterns();
+		}
+		
+		/**
+		 * @see FilterConfig#getExcludePatterns()
+		 */
+		public Pattern[] getExcludePatterns()
+		{
+			return filter.getExcludePatterns();
+		}
+		
+		/**
+		 * Returns the compiled {@code /agent/filter} element without the agent class loader.
+		 * 
+		 * @see FilterConfig#getClassFilter(ClassLoader)
+		 */
+		public ClassFilter getClassFilter()
+		{
+			return filter.getClassFilter(null);
+		}
+		
+		/**
+		 * Returns the file for the class list of a training run or {@code null} if
+		 * {@code /agent/class-list} is not defined.
+		 */
+		public String getClassListFile()
+		{
+			return classListFile;
+		}
+		
+		/**
+		 * Returns {@code /agent/delegate}.
+		 */
+		public DelegateConfig getDelegate()
+		{
+			return delegate;
+		}
+		
+		/**
+		 * Returns {@code /agent/filter}.
+		 */
+		public FilterConfig getFilter()
+		{
+			return filter;
+		}
+		
+		/**
+		 * Returns {@code /agent/transformer}, {@code /agent/class-bytes-store} and
+		 * {@code /agent/pre-transform}.
+		 */
+		public TransformerConfig getTransformer()
+		{
+			return transformer;
+		}
+		
+		/**
+		 * Returns {@code /agent/events} and {@code /agent/event-log}.
+		 */
+		public EventsConfig getEvents()
+		{
+			return events;
+		}
+		
+		/**
+		 * Returns {@code /agent/metrics}.
+		 */
+		public MetricsConfig getMetrics()
+		{
+			return metrics;
+		}
+	}
+	
+	
+	/**
+	 * A runtime error to indicate that there is something wrong with the configuration of
+	 * the agent. 
+	 * 
+	 * @author hapi
+	 *
+	 */
+	static class ConfigurationError extends Error
+	{
+		private static final long serialVersionUID = 1L;
+		
+
+		public ConfigurationError()
+		{
+			super();
+		}
+
+		public ConfigurationError(String message, Throwable cause)
+		{
+			super(message, cause);
+		}
+
+		public ConfigurationError(String message)
+		{
+			super(message);
+		}
+
+		public ConfigurationError(Throwable cause)
+		{
+			super(cause);
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * {@code ClassBytesStore} keeps the original (i.e. untransformed) class file bytes of
+ * the instrumented classes outside of the Java heap. Agent delegates supporting
+ * re-instrumentation can fetch the original bytes from the store instead of holding their
+ * own copies.
+ * <p>
+ *
+ * The store is filled automatically by the agent for all the classes matching
+ * the {@code /agent/filter} element when the {@code /agent/class-bytes-store} element
+ * is defined in the configuration file (see {@link Agent}). The store is then available for
+ * the delegate with {@link #getInstance()}.
+ * <p>
+ *
+ * Class file bytes are compressed and written to fixed sized segments which are either
+ * direct buffers or memory-mapped regions of a file. Entries are addressed by the class name
+ * and the identity of the defining class loader. When the maximum size of the store has been
+ * reached, the oldest segment is evicted as a whole and reused (i.e. the eviction is
+ * <i>first in, first out</i> at the segment granularity).
+ * <p>
+ * {@code ClassBytesStore} is thread safe. Storing a class locks the store only for reserving
+ * space from a segment, so that the class loading threads do not wait for each other while
+ * compressing and copying the bytes. The lookups do not register class loaders, i.e. asking for
+ * a class of an unknown class loader does not change the store.
+ *
+ * @author hapi
+ *
+ */
+public class ClassBytesStore
+{
+	private static volatile ClassBytesStore instance;
+
+
+	private final int segmentSize;
+	private final Segment[] segments;
+	private final FileChannel channel;
+	private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	private final Map<ClassLoader, Integer> loaderIds = new WeakHashMap<ClassLoader, Integer>();
+	private int nextLoaderId = 1;
+	private final ThreadLocal<Deflater> deflaters =
+		new ThreadLocal<Deflater>() {
+			protected Deflater initialValue()
+			{
+				return new Deflater(Deflater.BEST_SPEED);
+			}
+		};
+	private int currentSegment = -1;
+	private long evictionCount;
+
+
+	/**
+	 * Creates a store backed by direct buffers.
+	 *
+	 * @param maxSize
+	 * 		The maximum number of (compressed) bytes kept in the store.
+	 *
+	 * @param segmentSize
+	 * 		The size of a single segment. A class larger than this (after compression) is
+	 * 		not stored at all.
+	 */
+	public ClassBytesStore(long maxSize, int segmentSize)
+	{
+		this.segmentSize = segmentSize;
+		this.segments = new Segment[numberOfSegments(maxSize, segmentSize)];
+		this.channel = null;
+	}
+
+
+	/**
+	 * Creates a store backed by a memory-mapped file. The file is deleted when the JVM exits.
+	 *
+	 * @param maxSize
+	 * 		The maximum number of (compressed) bytes kept in the store.
+	 *
+	 * @param segmentSize
+	 * 		The size of a single segment. A class larger than this (after compression) is
+	 * 		not stored at all.
+	 *
+	 * @param file
+	 * 		A file to be mapped.
+	 *
+	 * @throws IOException
+	 * 		If the file cannot be opened for mapping.
+	 */
+	public ClassBytesStore(long maxSize, int segmentSize, File file)
+		throws
+			IOException
+	{
+		this.segmentSize = segmentSize;
+		this.segments = new Segment[numberOfSegments(maxSize, segmentSize)];
+		file.deleteOnExit();
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+
+	private static int numberOfSegments(long maxSize, int segmentSize)
+	{
+		if(segmentSize <= 0 || maxSize < segmentSize)
+			throw
+				new IllegalArgumentException(
+					"Maximum size (" + maxSize + ") must be at least the segment size ("
+						+ segmentSize + ")."
+				);
+		long n = maxSize / segmentSize;
+		if(n > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many segments (" + n + ").");
+		return (int)n;
+	}
+
+
+	/**
+	 * Returns the store created by the agent or {@code null} if the store is not configured.
+	 */
+	public static ClassBytesStore getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(ClassBytesStore store)
+	{
+		instance = store;
+	}
+
+
+	/**
+	 * Stores the class file bytes if there is no entry for the class already. The first
+	 * stored bytes are thus always kept (i.e. retransformations do not overwrite the
+	 * original bytes).
+	 *
+	 * @param loader
+	 * 		The defining class loader or {@code null} for the bootstrap class loader.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 *
+	 * @param classBytes
+	 * 		Class file bytes.
+	 *
+	 * @return
+	 * 		{@code true} if the bytes were stored.
+	 */
+	public boolean put(ClassLoader loader, String className, byte[] classBytes)
+	{
+		if(className == null || classBytes == null)
+			return false;
+
+		Key key = new Key(registerLoader(loader), className);
+		if(entries.containsKey(key))
+			return false;
+
+		// If the compression does not help (or the result does not fit into a segment)
+		// the bytes are stored as is.
+		byte[] data = classBytes;
+		int length = classBytes.length;
+		boolean compressed = false;
+		Deflater deflater = deflaters.get();
+		try {
+			deflater.setInput(classBytes);
+			deflater.finish();
+			byte[] buffer = new byte[classBytes.length];
+			int compressedLength = deflater.deflate(buffer);
+			if(deflater.finished() && compressedLength < classBytes.length) {
+				data = buffer;
+				length = compressedLength;
+				compressed = true;
+			}
+		}
+		finally {
+			deflater.reset();
+		}
+		if(length > segmentSize)
+			return false;
+
+		// Only the space is reserved with the lock held. The entry is readable after the bytes
+		// have been copied and the segment is not reused before that.
+		Segment segment;
+		Entry entry;
+		synchronized(this) {
+			if(entries.containsKey(key))
+				return false;
+
+			segment = currentSegment < 0 ? null : segments[currentSegment];
+			if(segment == null || segment.position + length > segmentSize)
+				segment = nextSegment();
+			entry = new Entry(currentSegment, segment.position, length, classBytes.length, compressed);
+			entries.put(key, entry);
+			segment.position += length;
+			segment.keys.add(key);
+			segment.beginWrite();
+		}
+		try {
+			ByteBuffer target = segment.buffer.duplicate();
+			target.position(entry.offset);
+			target.put(data, 0, length);
+			entry.stored = true;
+		}
+		finally {
+			segment.endWrite();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the original class file bytes.
+	 *
+	 * @param loader
+	 * 		The defining class loader or {@code null} for the bootstrap class loader.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 *
+	 * @return
+	 * 		A copy of the stored class file bytes or {@code null} if the class is not in
+	 * 		the store (i.e. it was never stored or it has been evicted).
+	 */
+	public byte[] get(ClassLoader loader, String className)
+	{
+		int loaderId = findLoader(loader);
+		if(loaderId < 0)
+			return null;
+		Key key = new Key(loaderId, className);
+		Entry entry;
+		byte[] data;
+		synchronized(this) {
+			// Segments are reused only with the lock held.
+			entry = entries.get(key);
+			if(entry == null || !entry.stored)
+				return null;
+			data = new byte[entry.length];
+			ByteBuffer source = segments[entry.segment].buffer.duplicate();
+			source.position(entry.offset);
+			source.get(data);
+		}
+		if(!entry.compressed)
+			return data;
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] classBytes = new byte[entry.originalLength];
+			inflater.inflate(classBytes);
+			return classBytes;
+		}
+		catch(DataFormatException e) {
+			throw new IllegalStateException("Stored class bytes for " + className + " are corrupted.", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+
+	/**
+	 * Checks if the class file bytes for the class are in the store.
+	 */
+	public boolean contains(ClassLoader loader, String className)
+	{
+		int loaderId = findLoader(loader);
+		if(loaderId < 0)
+			return false;
+		Entry entry = entries.get(new Key(loaderId, className));
+		return entry != null && entry.stored;
+	}
+
+
+	/**
+	 * Returns the number of classes in the store.
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+
+	/**
+	 * Returns the number of class loaders whose classes have been stored.
+	 */
+	int getLoaderCount()
+	{
+		synchronized(loaderIds) {
+			return loaderIds.size();
+		}
+	}
+
+
+	/**
+	 * Returns the number of classes evicted from the store.
+	 */
+	public synchronized long getEvictionCount()
+	{
+		return evictionCount;
+	}
+
+
+	private Segment nextSegment()
+	{
+		currentSegment = (currentSegment + 1) % segments.length;
+		Segment segment = segments[currentSegment];
+		if(segment == null) {
+			segment = new Segment(allocate(currentSegment));
+			segments[currentSegment] = segment;
+		}
+		else {
+			segment.awaitWrites();
+			for(Key key : segment.keys)
+				entries.remove(key);
+			evictionCount += segment.keys.size();
+			segment.keys.clear();
+			segment.position = 0;
+		}
+		return segment;
+	}
+
+
+	private ByteBuffer allocate(int index)
+	{
+		if(channel == null)
+			return ByteBuffer.allocateDirect(segmentSize);
+
+		try {
+			return channel.map(FileChannel.MapMode.READ_WRITE, (long)index * segmentSize, segmentSize);
+		}
+		catch(IOException e) {
+			throw new IllegalStateException("Mapping a class bytes store segment failed.", e);
+		}
+	}
+
+
+	/**
+	 * Returns the ID of the class loader and creates a new one if needed.
+	 */
+	private int registerLoader(ClassLoader loader)
+	{
+		if(loader == null)
+			return 0;
+
+		synchronized(loaderIds) {
+			Integer id = loaderIds.get(loader);
+			if(id == null) {
+				id = nextLoaderId++;
+				loaderIds.put(loader, id);
+			}
+			return id;
+		}
+	}
+
+
+	/**
+	 * Returns the ID of the class loader or -1 if no class of the class loader has been stored.
+	 */
+	private int findLoader(ClassLoader loader)
+	{
+		if(loader == null)
+			return 0;
+
+		synchronized(loaderIds) {
+			Integer id = loaderIds.get(loader);
+			return id == null ? -1 : id;
+		}
+	}
+
+
+	private static class Segment
+	{
+		private final ByteBuffer buffer;
+		private final List<Key> keys = new ArrayList<Key>();
+		private int position;
+		private int writes;
+
+		public Segment(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		public synchronized void beginWrite()
+		{
+			writes++;
+		}
+
+		public synchronized void endWrite()
+		{
+			if(--writes == 0)
+				notifyAll();
+		}
+
+		/**
+		 * Waits for the bytes being copied to the segment before the segment is reused.
+		 */
+		public synchronized void awaitWrites()
+		{
+			boolean interrupted = false;
+			while(writes > 0) {
+				try {
+					wait();
+				}
+				catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private static class Entry
+	{
+		private final int segment;
+		private final int offset;
+		private final int length;
+		private final int originalLength;
+		private final boolean compressed;
+		private volatile boolean stored;
+
+		public Entry(int segment, int offset, int length, int originalLength, boolean compressed)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.originalLength = originalLength;
+			this.compressed = compressed;
+		}
+	}
+
+
+	private static class Key
+	{
+		private final int loaderId;
+		private final String className;
+
+		public Key(int loaderId, String className)
+		{
+			this.loaderId = loaderId;
+			this.className = className;
+		}
+
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+				return true;
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return loaderId == other.loaderId && className.equals(other.className);
+		}
+
+		public int hashCode()
+		{
+			return 31 * loaderId + className.hashCode();
+		}
+	}
+}
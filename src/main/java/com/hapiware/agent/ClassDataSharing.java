@@ -0,0 +1,136 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * {@code ClassDataSharing} writes the class list of a training run for creating a class data
+ * sharing (CDS) archive. It is used when the {@code /agent/class-list} element is defined.
+ * <p>
+ *
+ * The class list has the classes loaded from the agent .jar file, from the {@code /agent/classpath}
+ * entries and from the JDK (e.g. the JAXP classes used for reading the configuration file).
+ * Every class is on its own line in the internal form (e.g. {@code com/hapiware/agent/Agent}),
+ * which is the format of {@code -XX:SharedClassListFile}. Arrays, proxies and hidden classes
+ * (e.g. lambdas) are left out because they cannot be listed.
+ *
+ * @author hapi
+ *
+ */
+final class ClassDataSharing
+{
+	private ClassDataSharing()
+	{
+		// Static methods only.
+	}
+
+
+	/**
+	 * Returns the location of the agent .jar file (or the directory of the agent classes).
+	 */
+	static URL getAgentLocation()
+	{
+		CodeSource codeSource = Agent.class.getProtectionDomain().getCodeSource();
+		return codeSource == null ? null : codeSource.getLocation();
+	}
+
+
+	/**
+	 * Returns the names of the classes to be archived.
+	 *
+	 * @param classes
+	 * 		The loaded classes (see {@code Instrumentation.getAllLoadedClasses()}).
+	 *
+	 * @param locations
+	 * 		The locations of the classes to be listed in addition to the JDK classes.
+	 *
+	 * @return
+	 * 		The names of the classes in the internal form, sorted and without duplicates.
+	 */
+	static List<String> getClassNames(Class<?>[] classes, Collection<URL> locations)
+	{
+		Set<String> locationForms = new HashSet<String>();
+		for(URL location : locations)
+			if(location != null)
+				locationForms.add(location.toExternalForm());
+
+		Set<String> names = new HashSet<String>();
+		for(Class<?> c : classes) {
+			String name = c.getName();
+			if(
+				c.isArray()
+					|| c.isPrimitive()
+					|| name.indexOf('/') >= 0
+					|| name.indexOf("$$Lambda") >= 0
+					|| Proxy.isProxyClass(c)
+			)
+				continue;
+			if(c.getClassLoader() != null) {
+				ProtectionDomain domain = c.getProtectionDomain();
+				CodeSource codeSource = domain == null ? null : domain.getCodeSource();
+				if(
+					codeSource == null
+						|| codeSource.getLocation() == null
+						|| !locationForms.contains(codeSource.getLocation().toExternalForm())
+				) {
+					if(!isPlatformClass(c))
+						continue;
+				}
+			}
+			names.add(name.replace('.', '/'));
+		}
+		List<String> sorted = new ArrayList<String>(names);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+
+	/**
+	 * Returns {@code true} if the class is loaded by the platform (extension) class loader, i.e.
+	 * a class loader which is an ancestor of the system class loader.
+	 */
+	private static boolean isPlatformClass(Class<?> c)
+	{
+		ClassLoader loader = c.getClassLoader();
+		for(
+			ClassLoader ancestor = ClassLoader.getSystemClassLoader().getParent();
+			ancestor != null;
+			ancestor = ancestor.getParent()
+		)
+			if(ancestor == loader)
+				return true;
+		return false;
+	}
+
+
+	/**
+	 * Writes the class names to the file, one name per line.
+	 */
+	static void writeClassList(File file, List<String> classNames)
+		throws
+			IOException
+	{
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			for(String name : classNames)
+				out.write(name + "\n");
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package com.hapiware.agent;
+
+
+/**
+ * {@code ClassFileHeader} is a lightweight class file scanner which extracts the super class,
+ * the implemented interfaces and the class level annotations from raw class file bytes
+ * (e.g. the {@code classfileBuffer} argument of
+ * {@link java.lang.instrument.ClassFileTransformer#transform(ClassLoader, String, Class, java.security.ProtectionDomain, byte[])}).
+ * <p>
+ *
+ * The scanner only records the offsets of the constant pool entries and skips fields and
+ * methods by their lengths, so that a full parse of the class file is not needed. The name
+ * checks ({@link #hasSuperClass(String)}, {@link #hasInterface(String)} and
+ * {@link #hasAnnotation(String)}) compare the names directly against the modified UTF-8
+ * bytes of the class file and do not allocate. A single {@code ClassFileHeader} object can
+ * be reused for several classes with {@link #scan(byte[])}.
+ * <p>
+ * {@code ClassFileHeader} is <b>not</b> thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class ClassFileHeader
+{
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_PACKAGE = 20;
+
+
+	private byte[] bytes;
+	private int[] constantPoolOffsets = new int[256];
+	private int accessFlags;
+	private int thisClassIndex;
+	private int superClassIndex;
+	private int interfacesOffset;
+	private int interfaceCount;
+	private int[] annotationTypeIndexes = new int[8];
+	private int annotationCount;
+	private boolean annotationsScanned;
+	private int headerEnd;
+	private int constantPoolCount;
+	private int constantPoolEnd;
+
+
+	/**
+	 * Scans the class file bytes. The results of the previous scan are discarded.
+	 *
+	 * @param classBytes
+	 * 		Class file bytes. The array is referenced (i.e. not copied) until the next scan.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the bytes are not a valid class file.
+	 */
+	public void scan(byte[] classBytes)
+	{
+		bytes = classBytes;
+		annotationCount = 0;
+		annotationsScanned = false;
+		try {
+			if(readInt(0) != MAGIC)
+				throw new IllegalArgumentException("Not a class file (bad magic number).");
+
+			int count = readUnsignedShort(8);
+			if(constantPoolOffsets.length < count)
+				constantPoolOffsets = new int[Math.max(count, constantPoolOffsets.length * 2)];
+			int offset = 10;
+			for(int i = 1; i < count; i++) {
+				constantPoolOffsets[i] = offset + 1;
+				int tag = bytes[offset] & 0xFF;
+				switch(tag) {
+					case CONSTANT_UTF8:
+						offset += 3 + readUnsignedShort(offset + 1);
+						break;
+					case CONSTANT_CLASS:
+					case CONSTANT_STRING:
+					case CONSTANT_METHOD_TYPE:
+					case CONSTANT_MODULE:
+					case CONSTANT_PACKAGE:
+						offset += 3;
+						break;
+					case CONSTANT_METHOD_HANDLE:
+						offset += 4;
+						break;
+					case CONSTANT_INTEGER:
+					case CONSTANT_FLOAT:
+					case CONSTANT_FIELDREF:
+					case CONSTANT_METHODREF:
+					case CONSTANT_INTERFACE_METHODREF:
+					case CONSTANT_NAME_AND_TYPE:
+					case CONSTANT_DYNAMIC:
+					case CONSTANT_INVOKE_DYNAMIC:
+						offset += 5;
+						break;
+					case CONSTANT_LONG:
+					case CONSTANT_DOUBLE:
+						offset += 9;
+						i++;
+						break;
+					default:
+						throw
+							new IllegalArgumentException(
+								"Unknown constant pool tag " + tag + " at offset " + offset + "."
+							);
+				}
+			}
+
+			constantPoolCount = count;
+			constantPoolEnd = offset;
+			accessFlags = readUnsignedShort(offset);
+			thisClassIndex = readUnsignedShort(offset + 2);
+			superClassIndex = readUnsignedShort(offset + 4);
+			interfaceCount = readUnsignedShort(offset + 6);
+			interfacesOffset = offset + 8;
+			headerEnd = interfacesOffset + 2 * interfaceCount;
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated class file.", e);
+		}
+	}
+
+
+	/**
+	 * Scans the class level annotations. This is done separately from {@link #scan(byte[])}
+	 * because fields and methods must be skipped to reach the class attributes.
+	 */
+	private void scanAnnotations()
+	{
+		if(annotationsScanned)
+			return;
+
+		try {
+			int offset = skipMembers(skipMembers(headerEnd));
+			int attributeCount = readUnsignedShort(offset);
+			offset += 2;
+			for(int i = 0; i < attributeCount; i++) {
+				int nameIndex = readUnsignedShort(offset);
+				int length = readInt(offset + 2);
+				offset += 6;
+				if(
+					utf8Equals(nameIndex, "RuntimeVisibleAnnotations")
+						|| utf8Equals(nameIndex, "RuntimeInvisibleAnnotations")
+				) {
+					int count = readUnsignedShort(offset);
+					int annotationOffset = offset + 2;
+					for(int j = 0; j < count; j++) {
+						if(annotationCount == annotationTypeIndexes.length) {
+							int[] indexes = new int[annotationCount * 2];
+							System.arraycopy(annotationTypeIndexes, 0, indexes, 0, annotationCount);
+							annotationTypeIndexes = indexes;
+						}
+						annotationTypeIndexes[annotationCount++] = readUnsignedShort(annotationOffset);
+						annotationOffset = skipAnnotation(annotationOffset);
+					}
+				}
+				offset += length;
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated class file.", e);
+		}
+		annotationsScanned = true;
+	}
+
+
+	private int skipMembers(int offset)
+	{
+		int count = readUnsignedShort(offset);
+		offset += 2;
+		for(int i = 0; i < count; i++) {
+			int attributeCount = readUnsignedShort(offset + 6);
+			offset += 8;
+			for(int j = 0; j < attributeCount; j++)
+				offset += 6 + readInt(offset + 2);
+		}
+		return offset;
+	}
+
+
+	private int skipAnnotation(int offset)
+	{
+		int pairCount = readUnsignedShort(offset + 2);
+		offset += 4;
+		for(int i = 0; i < pairCount; i++)
+			offset = skipElementValue(offset + 2);
+		return offset;
+	}
+
+
+	private int skipElementValue(int offset)
+	{
+		int tag = bytes[offset] & 0xFF;
+		switch(tag) {
+			case 'e':
+				return offset + 5;
+			case '@':
+				return skipAnnotation(offset + 1);
+			case '[':
+				int count = readUnsignedShort(offset + 1);
+				offset += 3;
+				for(int i = 0; i < count; i++)
+					offset = skipElementValue(offset);
+				return offset;
+			default:
+				// B, C, D, F, I, J, S, Z, s and c have a single constant pool index.
+				return offset + 3;
+		}
+	}
+
+
+	/**
+	 * Returns the access flags of the class (see {@code java.lang.reflect.Modifier}).
+	 */
+	public int getAccessFlags()
+	{
+		return accessFlags;
+	}
+
+
+	/**
+	 * Returns the name of the class in the internal form (e.g. "java/util/ArrayList").
+	 */
+	public String getClassName()
+	{
+		return className(thisClassIndex);
+	}
+
+
+	/**
+	 * Decodes the name of the class in the internal form to {@code view} without allocation.
+	 *
+	 * @return
+	 * 		{@code view}
+	 */
+	public ClassNameView getClassName(ClassNameView view)
+	{
+		int offset = constantPoolOffsets[classNameIndex(thisClassIndex)];
+		return view.setModifiedUtf8(bytes, offset + 2, readUnsignedShort(offset));
+	}
+
+
+	/**
+	 * Returns the name of the super class in the internal form or {@code null} for
+	 * {@code java/lang/Object}.
+	 */
+	public String getSuperClassName()
+	{
+		return superClassIndex == 0 ? null : className(superClassIndex);
+	}
+
+
+	/**
+	 * Returns the names of the directly implemented interfaces in the internal form.
+	 */
+	public String[] getInterfaceNames()
+	{
+		String[] names = new String[interfaceCount];
+		for(int i = 0; i < interfaceCount; i++)
+			names[i] = className(readUnsignedShort(interfacesOffset + 2 * i));
+		return names;
+	}
+
+
+	/**
+	 * Returns the descriptors of the class level annotations (e.g. "Ljava/lang/Deprecated;").
+	 * Both runtime visible and runtime invisible annotations are returned.
+	 */
+	public String[] getAnnotationDescriptors()
+	{
+		scanAnnotations();
+		String[] descriptors = new String[annotationCount];
+		for(int i = 0; i < annotationCount; i++)
+			descriptors[i] = utf8(annotationTypeIndexes[i]);
+		return descriptors;
+	}
+
+
+	/**
+	 * Checks if the super class is {@code internalName}.
+	 */
+	public boolean hasSuperClass(String internalName)
+	{
+		return superClassIndex != 0 && utf8Equals(classNameIndex(superClassIndex), internalName);
+	}
+
+
+	/**
+	 * Checks if {@code internalName} is one of the directly implemented interfaces.
+	 */
+	public boolean hasInterface(String internalName)
+	{
+		for(int i = 0; i < interfaceCount; i++) {
+			int index = readUnsignedShort(interfacesOffset + 2 * i);
+			if(utf8Equals(classNameIndex(index), internalName))
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Checks if the class has an annotation with the given descriptor
+	 * (e.g. "Ljava/lang/Deprecated;").
+	 */
+	public boolean hasAnnotation(String descriptor)
+	{
+		scanAnnotations();
+		for(int i = 0; i < annotationCount; i++)
+			if(utf8Equals(annotationTypeIndexes[i], descriptor))
+				return true;
+		return false;
+	}
+
+
+	/**
+	 * Returns the {@code constant_pool_count} of the class file (i.e. the number of constant pool
+	 * entries plus one).
+	 */
+	int getConstantPoolCount()
+	{
+		return constantPoolCount;
+	}
+
+
+	/**
+	 * Returns the offset of the first byte after the constant pool.
+	 */
+	int getConstantPoolEnd()
+	{
+		return constantPoolEnd;
+	}
+
+
+	/**
+	 * Returns the offset of the {@code fields_count} item (i.e. the first byte after
+	 * the interfaces).
+	 */
+	int getHeaderEnd()
+	{
+		return headerEnd;
+	}
+
+
+	private int classNameIndex(int classIndex)
+	{
+		return readUnsignedShort(constantPoolOffsets[classIndex]);
+	}
+
+
+	private String className(int classIndex)
+	{
+		return utf8(classNameIndex(classIndex));
+	}
+
+
+	String utf8(int utf8Index)
+	{
+		int offset = constantPoolOffsets[utf8Index];
+		int length = readUnsignedShort(offset);
+		StringBuilder sb = new StringBuilder(length);
+		int i = offset + 2;
+		int end = i + length;
+		while(i < end) {
+			int c = bytes[i++] & 0xFF;
+			if(c < 0x80)
+				sb.append((char)c);
+			else if(c < 0xE0)
+				sb.append((char)(((c & 0x1F) << 6) | (bytes[i++] & 0x3F)));
+			else {
+				sb.append(
+					(char)(((c & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F))
+				);
+				i += 2;
+			}
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Compares the modified UTF-8 constant with {@code s} without decoding it to a string.
+	 */
+	boolean utf8Equals(int utf8Index, String s)
+	{
+		int offset = constantPoolOffsets[utf8Index];
+		int length = readUnsignedShort(offset);
+		int i = offset + 2;
+		int end = i + length;
+		int n = s.length();
+		int j = 0;
+		while(i < end) {
+			if(j == n)
+				return false;
+			int c = bytes[i++] & 0xFF;
+			if(c >= 0x80) {
+				if(c < 0xE0)
+					c = ((c & 0x1F) << 6) | (bytes[i++] & 0x3F);
+				else {
+					c = ((c & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F);
+					i += 2;
+				}
+			}
+			if(c != s.charAt(j++))
+				return false;
+		}
+		return j == n;
+	}
+
+
+	private int readUnsignedShort(int offset)
+	{
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+	}
+
+
+	private int readInt(int offset)
+	{
+		return
+			((bytes[offset] & 0xFF) << 24)
+				| ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8)
+				| (bytes[offset + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,412 @@
+package com.hapiware.agent;
+
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code ClassFilter} is the compiled form of the {@code /agent/filter} element. It is used by
+ * the agent to decide which classes are passed to the agent delegate's transformers.
+ * <p>
+ *
+ * The filtering is done in four phases:
+ * <ol>
+ * 		<li>
+ * 			The class loader is matched against the {@code <exclude-loader>} elements
+ * 			(see {@link #isLoaderExcluded(ClassLoader)}). The decision is cached for each class
+ * 			loader.
+ * 		</li>
+ * 		<li>
+ * 			The class name is matched against the {@code <include>} and {@code <exclude>}
+ * 			patterns (see {@link #isIncluded(String)}). Glob patterns are matched without
+ * 			regular expressions (see {@link ClassNameMatcher}).
+ * 		</li>
+ * 		<li>
+ * 			If the class name matches, the class is checked to have at least one
+ * 			{@code <include-method>} pattern applying to it (see {@link MethodFilter}).
+ * 		</li>
+ * 		<li>
+ * 			If the class still matches, the class file bytes are scanned with
+ * 			{@link ClassFileHeader} and matched against the {@code <extends>}, {@code <implements>},
+ * 			{@code <annotated>} and {@code <subtype-of>} elements
+ * 			(see {@link #acceptClassFile(ClassLoader, byte[])}). This phase is skipped if none of
+ * 			those elements are defined.
+ * 		</li>
+ * </ol>
+ *
+ * Class names are matched without allocation, so agent delegates can use the filter for
+ * their own decisions instead of the {@code Pattern} arrays (see {@link #getInstance()} and
+ * {@link ClassNameView}).
+ * <p>
+ * {@code ClassFilter} is <b>immutable</b> and thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class ClassFilter
+{
+	private static final String[] EMPTY = new String[0];
+	private static volatile ClassFilter instance;
+
+
+	private final ClassNameMatcher[] includeMatchers;
+	private final ClassNameMatcher[] excludeMatchers;
+	private final String[] superClasses;
+	private final String[] interfaces;
+	private final String[] annotations;
+	private final String[] subtypes;
+	private final TypeHierarchy typeHierarchy;
+	private final ClassLoaderFilter classLoaderFilter;
+	private final MethodFilter methodFilter;
+	private final FilterStatistics statistics;
+	private final ThreadLocal<ClassFileHeader> headers =
+		new ThreadLocal<ClassFileHeader>() {
+			protected ClassFileHeader initialValue()
+			{
+				return new ClassFileHeader();
+			}
+		};
+
+
+	/**
+	 * Returns the filter used by the agent (i.e. the compiled {@code /agent/filter} element)
+	 * or {@code null} if the agent has not been started.
+	 */
+	public static ClassFilter getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(ClassFilter classFilter)
+	{
+		instance = classFilter;
+	}
+
+
+	/**
+	 * Creates a filter for class names only.
+	 */
+	public ClassFilter(Pattern[] includePatterns, Pattern[] excludePatterns)
+	{
+		this(includePatterns, excludePatterns, EMPTY, EMPTY, EMPTY, EMPTY);
+	}
+
+
+	/**
+	 * Creates a filter for class names and class file headers without subtype rules.
+	 */
+	public ClassFilter(
+		Pattern[] includePatterns,
+		Pattern[] excludePatterns,
+		String[] superClasses,
+		String[] interfaces,
+		String[] annotations
+	)
+	{
+		this(includePatterns, excludePatterns, superClasses, interfaces, annotations, EMPTY);
+	}
+
+
+	/**
+	 * Creates a filter for class names and class file headers. If there are subtype rules,
+	 * a new {@link TypeHierarchy} is created for the filter.
+	 *
+	 * @param superClasses
+	 * 		Super class names in the internal form.
+	 *
+	 * @param interfaces
+	 * 		Interface names in the internal form.
+	 *
+	 * @param annotations
+	 * 		Annotation descriptors (e.g. "Ljava/lang/Deprecated;").
+	 *
+	 * @param subtypes
+	 * 		Class names in the internal form whose transitive subtypes are accepted.
+	 */
+	public ClassFilter(
+		Pattern[] includePatterns,
+		Pattern[] excludePatterns,
+		String[] superClasses,
+		String[] interfaces,
+		String[] annotations,
+		String[] subtypes
+	)
+	{
+		this(
+			toMatchers(includePatterns),
+			toMatchers(excludePatterns),
+			superClasses,
+			interfaces,
+			annotations,
+			subtypes,
+			null,
+			new MethodFilter(EMPTY, EMPTY),
+			null
+		);
+	}
+
+
+	ClassFilter(
+		ClassNameMatcher[] includeMatchers,
+		ClassNameMatcher[] excludeMatchers,
+		String[] superClasses,
+		String[] interfaces,
+		String[] annotations,
+		String[] subtypes,
+		ClassLoaderFilter classLoaderFilter,
+		MethodFilter methodFilter,
+		FilterStatistics statistics
+	)
+	{
+		this.includeMatchers = includeMatchers.clone();
+		this.excludeMatchers = excludeMatchers.clone();
+		this.superClasses = superClasses.clone();
+		this.interfaces = interfaces.clone();
+		this.annotations = annotations.clone();
+		this.subtypes = subtypes.clone();
+		this.typeHierarchy = subtypes.length > 0 ? new TypeHierarchy() : null;
+		this.classLoaderFilter = classLoaderFilter;
+		this.methodFilter = methodFilter;
+		this.statistics = statistics;
+	}
+
+
+	private static ClassNameMatcher[] toMatchers(Pattern[] patterns)
+	{
+		ClassNameMatcher[] matchers = new ClassNameMatcher[patterns.length];
+		for(int i = 0; i < patterns.length; i++)
+			matchers[i] = ClassNameMatcher.forPattern(patterns[i]);
+		return matchers;
+	}
+
+
+	private static Pattern[] toPatterns(ClassNameMatcher[] matchers)
+	{
+		Pattern[] patterns = new Pattern[matchers.length];
+		for(int i = 0; i < matchers.length; i++)
+			patterns[i] = matchers[i].getPattern();
+		return patterns;
+	}
+
+
+	/**
+	 * Returns {@code true} if the filter has rules which can be applied only by the agent's
+	 * transformer wrapper (i.e. they are not covered by the include and exclude patterns
+	 * delivered to the agent delegate).
+	 */
+	public boolean hasAgentSideRules()
+	{
+		return hasClassFileRules() || hasLoaderRules() || methodFilter.hasIncludeRules();
+	}
+
+
+	/**
+	 * Returns the compiled {@code <include-method>} and {@code <exclude-method>} elements.
+	 */
+	public MethodFilter getMethodFilter()
+	{
+		return methodFilter;
+	}
+
+
+	/**
+	 * Checks if at least one {@code <include-method>} pattern applies to the class. If there are
+	 * no {@code <include-method>} elements, {@code true} is returned.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 */
+	public boolean hasIncludedMethods(String className)
+	{
+		return !methodFilter.hasIncludeRules() || methodFilter.forClass(className) != null;
+	}
+
+
+	/**
+	 * Returns the statistics of the include and exclude patterns or {@code null} if they are
+	 * not collected.
+	 */
+	public FilterStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+
+	/**
+	 * Returns {@code true} if the filter has {@code <exclude-loader>} elements.
+	 */
+	public boolean hasLoaderRules()
+	{
+		return classLoaderFilter != null;
+	}
+
+
+	/**
+	 * Checks if all the classes of the class loader are excluded by the {@code <exclude-loader>}
+	 * elements.
+	 *
+	 * @param loader
+	 * 		A class loader or {@code null} for the bootstrap class loader.
+	 */
+	public boolean isLoaderExcluded(ClassLoader loader)
+	{
+		return classLoaderFilter != null && classLoaderFilter.isExcluded(loader);
+	}
+
+
+	/**
+	 * Checks if the class name matches at least one of the include patterns and none of
+	 * the exclude patterns.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 */
+	public boolean isIncluded(String className)
+	{
+		return isIncluded((CharSequence)className);
+	}
+
+
+	/**
+	 * Checks if the class name matches at least one of the include patterns and none of
+	 * the exclude patterns without allocation. The class name can be for example
+	 * a {@link ClassNameView} decoded directly from the class file bytes.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 */
+	public boolean isIncluded(CharSequence className)
+	{
+		if(statistics != null)
+			return statistics.isIncluded(className);
+		return matches(className);
+	}
+
+
+	/**
+	 * Does the same check as {@link #isIncluded(CharSequence)} but does not update
+	 * the {@link FilterStatistics}. Only {@link DelegateTransformer} counts the classes, so
+	 * everything else selecting classes with the filter (e.g. the pre-transformation,
+	 * the deferred activation and the hotness probes) uses this.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 */
+	public boolean matches(CharSequence className)
+	{
+		for(ClassNameMatcher m : excludeMatchers)
+			if(m.matches(className))
+				return false;
+		for(ClassNameMatcher m : includeMatchers)
+			if(m.matches(className))
+				return true;
+		return false;
+	}
+
+
+	/**
+	 * Returns {@code true} if the filter has {@code <extends>}, {@code <implements>},
+	 * {@code <annotated>} or {@code <subtype-of>} elements.
+	 */
+	public boolean hasClassFileRules()
+	{
+		return
+			superClasses.length > 0
+				|| interfaces.length > 0
+				|| annotations.length > 0
+				|| subtypes.length > 0;
+	}
+
+
+	/**
+	 * Returns the type hierarchy used for {@code <subtype-of>} elements or {@code null} if
+	 * there are no such elements.
+	 */
+	public TypeHierarchy getTypeHierarchy()
+	{
+		return typeHierarchy;
+	}
+
+
+	/**
+	 * Adds the class to the type hierarchy of the filter. This is used for classes which are
+	 * not included by their names but can still be super types of the included classes.
+	 * If there are no {@code <subtype-of>} elements, nothing is done.
+	 */
+	public void recordType(byte[] classfileBuffer)
+	{
+		if(typeHierarchy != null)
+			typeHierarchy.add(classfileBuffer);
+	}
+
+
+	/**
+	 * Same as {@link #acceptClassFile(ClassLoader, byte[])} with the system class loader.
+	 */
+	public boolean acceptClassFile(byte[] classfileBuffer)
+	{
+		return acceptClassFile(ClassLoader.getSystemClassLoader(), classfileBuffer);
+	}
+
+
+	/**
+	 * Checks if the class directly extends one of the {@code <extends>} classes, directly
+	 * implements one of the {@code <implements>} interfaces, has one of the {@code <annotated>}
+	 * annotations or is a transitive subtype of one of the {@code <subtype-of>} classes. If there
+	 * are no such rules, {@code true} is returned.
+	 * <p>
+	 * Class files which cannot be scanned are accepted (i.e. the agent delegate decides what
+	 * to do with them). The class is added to the type hierarchy (if there is one) whether it
+	 * is accepted or not, so that its subtypes can be resolved without reading its class file
+	 * again.
+	 *
+	 * @param loader
+	 * 		The defining class loader used to resolve unknown super types.
+	 *
+	 * @param classfileBuffer
+	 * 		Class file bytes.
+	 */
+	public boolean acceptClassFile(ClassLoader loader, byte[] classfileBuffer)
+	{
+		if(!hasClassFileRules())
+			return true;
+
+		ClassFileHeader header = headers.get();
+		try {
+			header.scan(classfileBuffer);
+			if(typeHierarchy != null)
+				typeHierarchy.add(header);
+			for(String name : superClasses)
+				if(header.hasSuperClass(name))
+					return true;
+			for(String name : interfaces)
+				if(header.hasInterface(name))
+					return true;
+			for(String descriptor : annotations)
+				if(header.hasAnnotation(descriptor))
+					return true;
+			if(typeHierarchy != null) {
+				String className = header.getClassName();
+				for(String name : subtypes)
+					if(typeHierarchy.isSubtypeOf(loader, className, name))
+						return true;
+			}
+			return false;
+		}
+		catch(IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+
+	public Pattern[] getIncludePatterns()
+	{
+		return toPatterns(includeMatchers);
+	}
+
+
+	public Pattern[] getExcludePatterns()
+	{
+		return toPatterns(excludeMatchers);
+	}
+}
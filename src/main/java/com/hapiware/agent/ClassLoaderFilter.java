@@ -0,0 +1,129 @@
+package com.hapiware.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code ClassLoaderFilter} decides whether all the classes of a class loader are excluded
+ * from the instrumentation. It is the compiled form of the {@code /agent/filter/exclude-loader}
+ * elements, which are either one of the following keywords or a regular expression pattern
+ * matched against the class name of the class loader:
+ * <ul>
+ * 		<li>{@code bootstrap}, the bootstrap class loader (i.e. {@code null})</li>
+ * 		<li>{@code platform}, the platform (or extension) class loader</li>
+ * 		<li>{@code system}, the system (i.e. application) class loader</li>
+ * 		<li>{@code agent}, the class loader created by the agent for the agent delegate</li>
+ * </ul>
+ *
+ * The decisions are cached by the identity of the class loader in a small lock-free table of
+ * weak references, so that the class loaders can still be garbage collected and a repeated
+ * decision for the same class loader does not allocate.
+ * <p>
+ * {@code ClassLoaderFilter} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+class ClassLoaderFilter
+{
+	private static final int CACHE_SIZE = 256;
+
+
+	private final boolean bootstrapExcluded;
+	private final ClassLoader[] excludedLoaders;
+	private final Pattern[] loaderClassPatterns;
+	private final AtomicReferenceArray<Decision> decisions =
+		new AtomicReferenceArray<Decision>(CACHE_SIZE);
+
+
+	/**
+	 * Creates a new filter.
+	 *
+	 * @param rules
+	 * 		Keywords or loader class name patterns.
+	 *
+	 * @param agentClassLoader
+	 * 		The class loader created for the agent delegate or {@code null} if not known.
+	 *
+	 * @throws java.util.regex.PatternSyntaxException
+	 * 		If a rule is neither a keyword nor a valid regular expression.
+	 */
+	public ClassLoaderFilter(String[] rules, ClassLoader agentClassLoader)
+	{
+		boolean bootstrap = false;
+		List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+		for(String rule : rules) {
+			if(rule.equals("bootstrap"))
+				bootstrap = true;
+			else if(rule.equals("platform")) {
+				if(systemClassLoader.getParent() != null)
+					loaders.add(systemClassLoader.getParent());
+			}
+			else if(rule.equals("system"))
+				loaders.add(systemClassLoader);
+			else if(rule.equals("agent")) {
+				if(agentClassLoader != null)
+					loaders.add(agentClassLoader);
+			}
+			else
+				patterns.add(Pattern.compile(rule));
+		}
+		this.bootstrapExcluded = bootstrap;
+		this.excludedLoaders = loaders.toArray(new ClassLoader[0]);
+		this.loaderClassPatterns = patterns.toArray(new Pattern[0]);
+	}
+
+
+	/**
+	 * Checks if the classes of the class loader are excluded.
+	 *
+	 * @param loader
+	 * 		A class loader or {@code null} for the bootstrap class loader.
+	 */
+	public boolean isExcluded(ClassLoader loader)
+	{
+		if(loader == null)
+			return bootstrapExcluded;
+
+		int index = System.identityHashCode(loader) & (CACHE_SIZE - 1);
+		Decision decision = decisions.get(index);
+		if(decision != null && decision.loader.get() == loader)
+			return decision.excluded;
+
+		boolean excluded = decide(loader);
+		decisions.set(index, new Decision(loader, excluded));
+		return excluded;
+	}
+
+
+	private boolean decide(ClassLoader loader)
+	{
+		for(ClassLoader excludedLoader : excludedLoaders)
+			if(excludedLoader == loader)
+				return true;
+		String loaderClassName = loader.getClass().getName();
+		for(Pattern p : loaderClassPatterns)
+			if(p.matcher(loaderClassName).matches())
+				return true;
+		return false;
+	}
+
+
+	private static class Decision
+	{
+		private final WeakReference<ClassLoader> loader;
+		private final boolean excluded;
+
+		public Decision(ClassLoader loader, boolean excluded)
+		{
+			this.loader = new WeakReference<ClassLoader>(loader);
+			this.excluded = excluded;
+		}
+	}
+}
@@ -0,0 +1,444 @@
+package com.hapiware.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code ClassNameMatcher} is the compiled form of a single {@code /agent/filter/include} or
+ * {@code /agent/filter/exclude} element. The element is either a regular expression (the default)
+ * or a glob pattern ({@code type="glob"}). Glob patterns are matched against the class name in
+ * the internal form (e.g. "java/util/List") with the following wildcards:
+ * <ul>
+ * 		<li>{@code *} matches any number of characters except {@code /}</li>
+ * 		<li>{@code **} matches any number of characters including {@code /}</li>
+ * 		<li>
+ * 			{@code **}{@code /} at the beginning or right after {@code /} matches any number of
+ * 			whole package names, none included (e.g. {@code **}{@code /*Controller} matches also
+ * 			{@code MyController} in the default package)
+ * 		</li>
+ * 		<li>{@code ?} matches a single character except {@code /}</li>
+ * 		<li>{@code [abc]}, {@code [a-z]} and {@code [!abc]} match a single character as in regular expressions</li>
+ * 		<li>{@code {a,b}} matches any of the comma separated alternatives</li>
+ * </ul>
+ *
+ * Glob patterns are compiled into literal comparisons whenever possible, so that the common
+ * forms like {@code com/acme/**}, {@code **Test} and {@code **}{@code /*Controller} are
+ * matched with plain string operations and the others with a segment aware wildcard matcher.
+ * Only the patterns with character classes or alternatives fall back to regular expressions.
+ * <p>
+ * Class names can be any {@code CharSequence} (see {@link ClassNameView}) and matching does not
+ * allocate. Regular expressions are matched with a {@code Matcher} reused by the calling
+ * thread.
+ * <p>
+ * Every matcher has an equivalent regular expression (see {@link #getPattern()}) which is
+ * delivered to the agent delegate.
+ * <p>
+ * {@code ClassNameMatcher} is <b>immutable</b> and thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class ClassNameMatcher
+{
+	private static final int REGEX = 0;
+	private static final int EXACT = 1;
+	private static final int PREFIX = 2;
+	private static final int SUFFIX = 3;
+	private static final int PREFIX_SUFFIX = 4;
+	private static final int SIMPLE_NAME_SUFFIX = 5;
+	private static final int WILDCARD = 6;
+
+	private static final int LITERAL = 0;
+	private static final int STAR = 1;
+	private static final int DOUBLE_STAR = 2;
+	private static final int PACKAGES = 3;
+	private static final int QUESTION_MARK = 4;
+
+
+	private final String source;
+	private final boolean glob;
+	private final int type;
+	private final String prefix;
+	private final String suffix;
+	private final int[] tokenTypes;
+	private final String[] tokenLiterals;
+	private final Pattern pattern;
+	private final ThreadLocal<Matcher> matchers =
+		new ThreadLocal<Matcher>() {
+			protected Matcher initialValue()
+			{
+				return pattern.matcher("");
+			}
+		};
+
+
+	private ClassNameMatcher(
+		String source,
+		boolean glob,
+		int type,
+		String prefix,
+		String suffix,
+		int[] tokenTypes,
+		String[] tokenLiterals,
+		Pattern pattern
+	)
+	{
+		this.source = source;
+		this.glob = glob;
+		this.type = type;
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.tokenTypes = tokenTypes;
+		this.tokenLiterals = tokenLiterals;
+		this.pattern = pattern;
+	}
+
+
+	/**
+	 * Creates a matcher for a regular expression.
+	 */
+	public static ClassNameMatcher forPattern(Pattern pattern)
+	{
+		return new ClassNameMatcher(pattern.pattern(), false, REGEX, null, null, null, null, pattern);
+	}
+
+
+	/**
+	 * Creates a matcher for a glob pattern.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the glob pattern has an unclosed {@code [} or <code>{</code>.
+	 */
+	public static ClassNameMatcher forGlob(String glob)
+	{
+		Pattern pattern = Pattern.compile(toRegex(glob));
+		if(glob.indexOf('[') >= 0 || glob.indexOf('{') >= 0)
+			return new ClassNameMatcher(glob, true, REGEX, null, null, null, null, pattern);
+
+		List<Integer> types = new ArrayList<Integer>();
+		List<String> literals = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+		for(int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if(c != '*' && c != '?') {
+				literal.append(c);
+				continue;
+			}
+			if(literal.length() > 0) {
+				types.add(LITERAL);
+				literals.add(literal.toString());
+				literal.setLength(0);
+			}
+			if(c == '?')
+				types.add(QUESTION_MARK);
+			else if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				i++;
+				if(
+					(i + 1 < glob.length() && glob.charAt(i + 1) == '/')
+						&& (i == 1 || glob.charAt(i - 2) == '/')
+				) {
+					i++;
+					types.add(PACKAGES);
+				}
+				else
+					types.add(DOUBLE_STAR);
+			}
+			else
+				types.add(STAR);
+			literals.add(null);
+		}
+		if(literal.length() > 0) {
+			types.add(LITERAL);
+			literals.add(literal.toString());
+		}
+
+		int[] tokenTypes = new int[types.size()];
+		for(int i = 0; i < tokenTypes.length; i++)
+			tokenTypes[i] = types.get(i);
+		String[] tokenLiterals = literals.toArray(new String[0]);
+		String first = tokenLiterals.length > 0 ? tokenLiterals[0] : null;
+		String last = tokenLiterals.length > 0 ? tokenLiterals[tokenLiterals.length - 1] : null;
+
+		// Specialised forms.
+		if(is(tokenTypes) || is(tokenTypes, LITERAL))
+			return new ClassNameMatcher(glob, true, EXACT, glob, null, null, null, pattern);
+		if(is(tokenTypes, LITERAL, DOUBLE_STAR))
+			return new ClassNameMatcher(glob, true, PREFIX, first, null, null, null, pattern);
+		if(is(tokenTypes, DOUBLE_STAR))
+			return new ClassNameMatcher(glob, true, PREFIX, "", null, null, null, pattern);
+		if(is(tokenTypes, DOUBLE_STAR, LITERAL))
+			return new ClassNameMatcher(glob, true, SUFFIX, null, last, null, null, pattern);
+		if(is(tokenTypes, LITERAL, DOUBLE_STAR, LITERAL))
+			return new ClassNameMatcher(glob, true, PREFIX_SUFFIX, first, last, null, null, pattern);
+		if(is(tokenTypes, PACKAGES, STAR, LITERAL) && last.indexOf('/') < 0)
+			return new ClassNameMatcher(glob, true, SIMPLE_NAME_SUFFIX, null, last, null, null, pattern);
+
+		return new ClassNameMatcher(glob, true, WILDCARD, null, null, tokenTypes, tokenLiterals, pattern);
+	}
+
+
+	private static boolean is(int[] tokenTypes, int... expected)
+	{
+		if(tokenTypes.length != expected.length)
+			return false;
+		for(int i = 0; i < expected.length; i++)
+			if(tokenTypes[i] != expected[i])
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * Converts a glob pattern to an equivalent regular expression.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the glob pattern has an unclosed {@code [} or <code>{</code>.
+	 */
+	static String toRegex(String glob)
+	{
+		StringBuilder regex = new StringBuilder();
+		int alternatives = 0;
+		for(int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch(c) {
+				case '*':
+					if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+						i++;
+						if(
+							(i + 1 < glob.length() && glob.charAt(i + 1) == '/')
+								&& (i == 1 || glob.charAt(i - 2) == '/')
+						) {
+							i++;
+							regex.append("(?:.*/)?");
+						}
+						else
+							regex.append(".*");
+					}
+					else
+						regex.append("[^/]*");
+					break;
+
+				case '?':
+					regex.append("[^/]");
+					break;
+
+				case '[':
+					int end = glob.indexOf(']', i + 2);
+					if(end < 0)
+						throw
+							new IllegalArgumentException(
+								"Glob pattern \"" + glob + "\" has an unclosed [."
+							);
+					regex.append('[');
+					int start = i + 1;
+					if(glob.charAt(start) == '!') {
+						regex.append('^');
+						start++;
+					}
+					for(int j = start; j < end; j++) {
+						char d = glob.charAt(j);
+						if(d == '\\' || d == '[' || d == '&' || d == '^')
+							regex.append('\\');
+						regex.append(d);
+					}
+					regex.append(']');
+					i = end;
+					break;
+
+				case '{':
+					alternatives++;
+					regex.append("(?:");
+					break;
+
+				case '}':
+					if(alternatives == 0) {
+						regex.append("\\}");
+						break;
+					}
+					alternatives--;
+					regex.append(')');
+					break;
+
+				case ',':
+					regex.append(alternatives > 0 ? "|" : ",");
+					break;
+
+				default:
+					if("\\.^$|+()".indexOf(c) >= 0)
+						regex.append('\\');
+					regex.append(c);
+			}
+		}
+		if(alternatives > 0)
+			throw new IllegalArgumentException("Glob pattern \"" + glob + "\" has an unclosed {.");
+		return regex.toString();
+	}
+
+
+	/**
+	 * Checks if the whole class name matches.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 */
+	public boolean matches(String className)
+	{
+		return matches((CharSequence)className);
+	}
+
+
+	/**
+	 * Checks if the whole class name matches without allocation.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 */
+	public boolean matches(CharSequence className)
+	{
+		switch(type) {
+			case EXACT:
+				return className.length() == prefix.length() && startsWith(className, prefix, 0);
+			case PREFIX:
+				return startsWith(className, prefix, 0);
+			case SUFFIX:
+				return endsWith(className, suffix);
+			case PREFIX_SUFFIX:
+				return
+					className.length() >= prefix.length() + suffix.length()
+						&& startsWith(className, prefix, 0)
+						&& endsWith(className, suffix);
+			case SIMPLE_NAME_SUFFIX:
+				return
+					endsWith(className, suffix)
+						&& lastIndexOf(className, '/') < className.length() - suffix.length();
+			case WILDCARD:
+				return matches(className, 0, 0);
+			default:
+				return matchers.get().reset(className).matches();
+		}
+	}
+
+
+	private static boolean startsWith(CharSequence s, String prefix, int offset)
+	{
+		int n = prefix.length();
+		if(offset + n > s.length())
+			return false;
+		for(int i = 0; i < n; i++)
+			if(s.charAt(offset + i) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+
+	private static boolean endsWith(CharSequence s, String suffix)
+	{
+		return s.length() >= suffix.length() && startsWith(s, suffix, s.length() - suffix.length());
+	}
+
+
+	private static int indexOf(CharSequence s, char c, int from)
+	{
+		for(int i = Math.max(from, 0); i < s.length(); i++)
+			if(s.charAt(i) == c)
+				return i;
+		return -1;
+	}
+
+
+	private static int lastIndexOf(CharSequence s, char c)
+	{
+		for(int i = s.length() - 1; i >= 0; i--)
+			if(s.charAt(i) == c)
+				return i;
+		return -1;
+	}
+
+
+	private boolean matches(CharSequence className, int position, int token)
+	{
+		for(; token < tokenTypes.length; token++) {
+			switch(tokenTypes[token]) {
+				case LITERAL:
+					String literal = tokenLiterals[token];
+					if(!startsWith(className, literal, position))
+						return false;
+					position += literal.length();
+					break;
+
+				case QUESTION_MARK:
+					if(position == className.length() || className.charAt(position) == '/')
+						return false;
+					position++;
+					break;
+
+				case STAR:
+					if(token + 1 == tokenTypes.length)
+						return indexOf(className, '/', position) < 0;
+					for(int i = position; ; i++) {
+						if(matches(className, i, token + 1))
+							return true;
+						if(i == className.length() || className.charAt(i) == '/')
+							return false;
+					}
+
+				case DOUBLE_STAR:
+					if(token + 1 == tokenTypes.length)
+						return true;
+					for(int i = position; i <= className.length(); i++)
+						if(matches(className, i, token + 1))
+							return true;
+					return false;
+
+				default:
+					// PACKAGES, i.e. nothing or anything ending with '/'.
+					if(matches(className, position, token + 1))
+						return true;
+					for(int i = indexOf(className, '/', position); i >= 0; i = indexOf(className, '/', i + 1))
+						if(matches(className, i + 1, token + 1))
+							return true;
+					return false;
+			}
+		}
+		return position == className.length();
+	}
+
+
+	/**
+	 * Returns {@code true} if the matcher was created from a glob pattern.
+	 */
+	public boolean isGlob()
+	{
+		return glob;
+	}
+
+
+	/**
+	 * Returns {@code true} if the matcher uses a regular expression for matching.
+	 */
+	public boolean isRegex()
+	{
+		return type == REGEX;
+	}
+
+
+	/**
+	 * Returns the regular expression equivalent to this matcher.
+	 */
+	public Pattern getPattern()
+	{
+		return pattern;
+	}
+
+
+	/**
+	 * Returns the original glob pattern or regular expression.
+	 */
+	public String toString()
+	{
+		return source;
+	}
+}
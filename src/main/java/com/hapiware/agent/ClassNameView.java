@@ -0,0 +1,183 @@
+package com.hapiware.agent;
+
+
+/**
+ * {@code ClassNameView} is a reusable, mutable {@code CharSequence} holding a class name. It is
+ * used to match class names with {@link ClassFilter} and {@link ClassNameMatcher} without
+ * allocating a new string for every class, for example:
+ * <ul>
+ * 		<li>
+ * 			to convert the internal form (e.g. "java/util/List") to the dotted form
+ * 			(e.g. "java.util.List") or vice versa (see {@link #set(CharSequence, char, char)})
+ * 		</li>
+ * 		<li>
+ * 			to decode the class name directly from the modified UTF-8 bytes of a class file
+ * 			(see {@link ClassFileHeader#getClassName(ClassNameView)})
+ * 		</li>
+ * </ul>
+ *
+ * The characters are copied to an internal buffer which grows only when a longer name is set.
+ * {@link #forCurrentThread()} returns a view owned by the calling thread, which makes it
+ * possible to do the whole filtering decision without allocation.
+ * <p>
+ * {@code ClassNameView} is <b>not</b> thread safe and {@link #subSequence(int, int)} and
+ * {@link #toString()} allocate new strings.
+ *
+ * @author hapi
+ *
+ */
+public final class ClassNameView
+	implements
+		CharSequence
+{
+	private static final ThreadLocal<ClassNameView> views =
+		new ThreadLocal<ClassNameView>() {
+			protected ClassNameView initialValue()
+			{
+				return new ClassNameView();
+			}
+		};
+
+
+	private char[] chars = new char[128];
+	private int length;
+
+
+	/**
+	 * Returns the view owned by the calling thread. The same view is returned for every call
+	 * from the same thread, so the caller must not keep it over calls to other code which might
+	 * use it as well.
+	 */
+	public static ClassNameView forCurrentThread()
+	{
+		return views.get();
+	}
+
+
+	/**
+	 * Sets the characters of the view.
+	 *
+	 * @return
+	 * 		This view.
+	 */
+	public ClassNameView set(CharSequence name)
+	{
+		int n = name.length();
+		ensureCapacity(n);
+		if(name instanceof String)
+			((String)name).getChars(0, n, chars, 0);
+		else
+			for(int i = 0; i < n; i++)
+				chars[i] = name.charAt(i);
+		length = n;
+		return this;
+	}
+
+
+	/**
+	 * Sets the characters of the view replacing every {@code oldChar} with {@code newChar}.
+	 * For example {@code set(className, '/', '.')} converts the internal form to the dotted form.
+	 *
+	 * @return
+	 * 		This view.
+	 */
+	public ClassNameView set(CharSequence name, char oldChar, char newChar)
+	{
+		set(name);
+		for(int i = 0; i < length; i++)
+			if(chars[i] == oldChar)
+				chars[i] = newChar;
+		return this;
+	}
+
+
+	/**
+	 * Sets the characters of the view by decoding modified UTF-8 bytes (i.e. the format of
+	 * the strings in the constant pool of a class file).
+	 *
+	 * @param bytes
+	 * 		A byte array containing the encoded string.
+	 *
+	 * @param offset
+	 * 		The offset of the first byte.
+	 *
+	 * @param byteLength
+	 * 		The number of bytes.
+	 *
+	 * @return
+	 * 		This view.
+	 */
+	public ClassNameView setModifiedUtf8(byte[] bytes, int offset, int byteLength)
+	{
+		ensureCapacity(byteLength);
+		int n = 0;
+		int i = offset;
+		int end = offset + byteLength;
+		while(i < end) {
+			int c = bytes[i++] & 0xFF;
+			if(c < 0x80)
+				chars[n++] = (char)c;
+			else if(c < 0xE0)
+				chars[n++] = (char)(((c & 0x1F) << 6) | (bytes[i++] & 0x3F));
+			else {
+				chars[n++] =
+					(char)(((c & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F));
+				i += 2;
+			}
+		}
+		length = n;
+		return this;
+	}
+
+
+	private void ensureCapacity(int capacity)
+	{
+		if(capacity > chars.length)
+			chars = new char[Math.max(capacity, 2 * chars.length)];
+	}
+
+
+	public int length()
+	{
+		return length;
+	}
+
+
+	public char charAt(int index)
+	{
+		if(index >= length)
+			throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+		return chars[index];
+	}
+
+
+	public CharSequence subSequence(int start, int end)
+	{
+		if(start < 0 || end > length || start > end)
+			throw
+				new IndexOutOfBoundsException(
+					"Start: " + start + ", end: " + end + ", length: " + length
+				);
+		return new String(chars, start, end - start);
+	}
+
+
+	/**
+	 * Checks if the view has the same characters as {@code s}.
+	 */
+	public boolean contentEquals(CharSequence s)
+	{
+		if(s.length() != length)
+			return false;
+		for(int i = 0; i < length; i++)
+			if(chars[i] != s.charAt(i))
+				return false;
+		return true;
+	}
+
+
+	public String toString()
+	{
+		return new String(chars, 0, length);
+	}
+}
@@ -0,0 +1,167 @@
+package com.hapiware.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+
+/**
+ * {@code ClasspathScanner} walks the class files of class path entries (.jar files and
+ * directories). It is shared by {@link TypeHierarchy} and {@link PreTransformer}.
+ *
+ * @author hapi
+ *
+ */
+final class ClasspathScanner
+{
+	/**
+	 * Receives the class files found by the scan.
+	 */
+	interface Visitor
+	{
+		/**
+		 * Returns {@code true} if the class file of the class is to be read and visited.
+		 *
+		 * @param className
+		 * 		The class name in the internal form (e.g. "java/util/ArrayList").
+		 */
+		public boolean accepts(String className);
+
+		/**
+		 * Handles a class file.
+		 *
+		 * @return
+		 * 		{@code true} if the class is counted in the result of the scan.
+		 */
+		public boolean visit(String className, byte[] classfileBuffer);
+	}
+
+
+	private ClasspathScanner()
+	{
+		// Static methods only.
+	}
+
+
+	/**
+	 * Visits all the class files of the class path entries separated with
+	 * {@link File#pathSeparator}. Entries which do not exist or cannot be read are skipped.
+	 * The classes under {@code META-INF/} are not visited.
+	 *
+	 * @return
+	 * 		The number of the visited classes counted by the visitor.
+	 */
+	static int scan(String classpath, Visitor visitor)
+	{
+		int counted = 0;
+		for(String entry : classpath.split(File.pathSeparator)) {
+			File file = new File(entry);
+			if(entry.length() == 0 || !file.exists())
+				continue;
+			try {
+				counted += scan(file, visitor);
+			}
+			catch(IOException e) {
+				// Unreadable entries are just skipped.
+			}
+		}
+		return counted;
+	}
+
+
+	/**
+	 * Visits all the class files of a .jar file or a directory.
+	 *
+	 * @return
+	 * 		The number of the visited classes counted by the visitor.
+	 */
+	static int scan(File classpathEntry, Visitor visitor)
+		throws
+			IOException
+	{
+		if(classpathEntry.isDirectory())
+			return scanDirectory(classpathEntry, "", visitor);
+
+		int counted = 0;
+		JarFile jar = new JarFile(classpathEntry);
+		try {
+			for(Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+				JarEntry entry = entries.nextElement();
+				String className = toClassName(entry.getName());
+				if(
+					className != null
+						&& visitor.accepts(className)
+						&& visitor.visit(className, readFully(jar.getInputStream(entry)))
+				)
+					counted++;
+			}
+		}
+		finally {
+			jar.close();
+		}
+		return counted;
+	}
+
+
+	private static int scanDirectory(File directory, String prefix, Visitor visitor)
+		throws
+			IOException
+	{
+		int counted = 0;
+		File[] files = directory.listFiles();
+		if(files != null)
+			for(File file : files) {
+				String name = prefix + file.getName();
+				if(file.isDirectory()) {
+					counted += scanDirectory(file, name + "/", visitor);
+					continue;
+				}
+				String className = toClassName(name);
+				if(
+					className != null
+						&& visitor.accepts(className)
+						&& visitor.visit(className, readFully(new FileInputStream(file)))
+				)
+					counted++;
+			}
+		return counted;
+	}
+
+
+	/**
+	 * Returns the class name of a class file name relative to the class path entry or
+	 * {@code null} if the file is not a class file.
+	 */
+	private static String toClassName(String fileName)
+	{
+		if(!fileName.endsWith(".class") || fileName.startsWith("META-INF/"))
+			return null;
+		return fileName.substring(0, fileName.length() - 6);
+	}
+
+
+	/**
+	 * Reads the stream to the end and closes it.
+	 */
+	static byte[] readFully(InputStream in)
+		throws
+			IOException
+	{
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package com.hapiware.agent;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code ConfigurationBinder} creates the configuration object of a class declared with
+ * {@link CustomConfiguration} from the {@code /agent/configuration/custom} element. The fields
+ * annotated with {@link ConfigurationProperty} are resolved once when the binder is created, so
+ * {@link #bind(Element)} only walks the attributes and the child elements once and sets
+ * the fields directly (i.e. there are no XPath evaluations or searches over the element).
+ * <p>
+ *
+ * A binder is created for every configuration class found from the fields (also for
+ * recursive classes) and the binders are immutable and thread safe.
+ *
+ * @author hapi
+ *
+ */
+final class ConfigurationBinder
+{
+	private final static int STRING = 0;
+	private final static int INT = 1;
+	private final static int LONG = 2;
+	private final static int DOUBLE = 3;
+	private final static int BOOLEAN = 4;
+	private final static int PATTERN = 5;
+	private final static int ENUM = 6;
+	private final static int OBJECT = 7;
+
+	private final Class<?> type;
+	private Constructor<?> constructor;
+	private Property[] properties;
+	private Map<String, Property> propertiesByName;
+
+
+	private ConfigurationBinder(Class<?> type)
+	{
+		this.type = type;
+	}
+
+
+	/**
+	 * Creates a binder for the configuration class.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the class cannot be created or it has a property of an unsupported type.
+	 */
+	static ConfigurationBinder create(Class<?> type)
+	{
+		return create(type, new HashMap<Class<?>, ConfigurationBinder>());
+	}
+
+
+	private static ConfigurationBinder create(Class<?> type, Map<Class<?>, ConfigurationBinder> binders)
+	{
+		ConfigurationBinder binder = binders.get(type);
+		if(binder != null)
+			return binder;
+
+		binder = new ConfigurationBinder(type);
+		binders.put(type, binder);
+		if(type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+			throw
+				new ConfigurationError(
+					"Configuration class \"" + type.getName() + "\" cannot be abstract."
+				);
+		try {
+			binder.constructor = type.getDeclaredConstructor();
+			binder.constructor.setAccessible(true);
+		}
+		catch(NoSuchMethodException e) {
+			throw
+				new ConfigurationError(
+					"Configuration class \"" + type.getName()
+						+ "\" does not have a constructor without arguments.",
+					e
+				);
+		}
+
+		List<Property> properties = new ArrayList<Property>();
+		Map<String, Property> propertiesByName = new HashMap<String, Property>();
+		for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for(Field field : c.getDeclaredFields()) {
+				ConfigurationProperty annotation = field.getAnnotation(ConfigurationProperty.class);
+				if(annotation == null)
+					continue;
+				if(Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers()))
+					throw
+						new ConfigurationError(
+							"Configuration property \"" + c.getName() + "." + field.getName()
+								+ "\" cannot be static or final."
+						);
+				String name = annotation.value().length() > 0 ? annotation.value() : field.getName();
+				Property property =
+					new Property(properties.size(), field, name, annotation.required(), binders);
+				if(propertiesByName.put(name, property) != null)
+					throw
+						new ConfigurationError(
+							"Configuration property \"" + name + "\" is defined more than once in \""
+								+ type.getName() + "\"."
+						);
+				properties.add(property);
+			}
+		}
+		binder.properties = properties.toArray(new Property[properties.size()]);
+		binder.propertiesByName = propertiesByName;
+		return binder;
+	}
+
+
+	public Class<?> getType()
+	{
+		return type;
+	}
+
+
+	/**
+	 * Creates the configuration object from the element.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the element does not match the configuration class.
+	 */
+	public Object bind(Element element)
+	{
+		Object target;
+		try {
+			target = constructor.newInstance();
+		}
+		catch(Exception e) {
+			throw
+				new ConfigurationError(
+					"Configuration class \"" + type.getName() + "\" cannot be created.",
+					e
+				);
+		}
+
+		boolean[] defined = new boolean[properties.length];
+		List<?>[] lists = null;
+		NamedNodeMap attributes = element.getAttributes();
+		for(int i = 0; i < attributes.getLength(); i++) {
+			Attr attribute = (Attr)attributes.item(i);
+			Property property = find(element, attribute.getName());
+			if(property.list || property.kind == OBJECT)
+				throw error(element, "\"" + attribute.getName() + "\" must be an element.");
+			if(defined[property.index])
+				throw error(element, "\"" + attribute.getName() + "\" is defined more than once.");
+			defined[property.index] = true;
+			property.set(target, property.convert(element, attribute.getValue()));
+		}
+		for(Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if(node.getNodeType() != Node.ELEMENT_NODE)
+				continue;
+			Element child = (Element)node;
+			Property property = find(element, child.getTagName());
+			Object value =
+				property.kind == OBJECT
+					? property.binder.bind(child)
+					: property.convert(child, child.getTextContent());
+			if(property.list) {
+				if(lists == null)
+					lists = new List<?>[properties.length];
+				@SuppressWarnings("unchecked")
+				List<Object> list = (List<Object>)lists[property.index];
+				if(list == null) {
+					list = new ArrayList<Object>();
+					lists[property.index] = list;
+				}
+				list.add(value);
+			}
+			else {
+				if(defined[property.index])
+					throw error(child, "\"" + child.getTagName() + "\" is defined more than once.");
+				property.set(target, value);
+			}
+			defined[property.index] = true;
+		}
+
+		for(Property property : properties) {
+			if(property.required && !defined[property.index])
+				throw error(element, "\"" + property.name + "\" is required.");
+			if(property.list)
+				property.set(
+					target,
+					lists != null && lists[property.index] != null
+						? lists[property.index]
+						: new ArrayList<Object>()
+				);
+		}
+		return target;
+	}
+
+
+	private Property find(Element element, String name)
+	{
+		Property property = propertiesByName.get(name);
+		if(property == null)
+			throw
+				error(
+					element,
+					"\"" + name + "\" is not a property of \"" + type.getName() + "\"."
+				);
+		return property;
+	}
+
+
+	private static ConfigurationError error(Element element, String message)
+	{
+		StringBuilder path = new StringBuilder();
+		for(Node node = element; node instanceof Element; node = node.getParentNode())
+			path.insert(0, "/" + node.getNodeName());
+		return new ConfigurationError(path + ": " + message);
+	}
+
+
+	/**
+	 * The resolved {@link ConfigurationProperty} field.
+	 */
+	private static final class Property
+	{
+		final int index;
+		final Field field;
+		final String name;
+		final boolean required;
+		final boolean list;
+		final int kind;
+		final Class<?> valueType;
+		final ConfigurationBinder binder;
+
+
+		Property(
+			int index,
+			Field field,
+			String name,
+			boolean required,
+			Map<Class<?>, ConfigurationBinder> binders
+		)
+		{
+			this.index = index;
+			this.field = field;
+			this.name = name;
+			this.required = required;
+			field.setAccessible(true);
+
+			Class<?> valueType = field.getType();
+			list = valueType == List.class;
+			if(list) {
+				Type genericType = field.getGenericType();
+				Type itemType =
+					genericType instanceof ParameterizedType
+						? ((ParameterizedType)genericType).getActualTypeArguments()[0]
+						: null;
+				if(!(itemType instanceof Class<?>))
+					throw
+						new ConfigurationError(
+							"The item type of \"" + field.getDeclaringClass().getName() + "."
+								+ field.getName() + "\" must be a class."
+						);
+				valueType = (Class<?>)itemType;
+			}
+			this.valueType = valueType;
+
+			if(valueType == String.class)
+				kind = STRING;
+			else if(valueType == int.class || valueType == Integer.class)
+				kind = INT;
+			else if(valueType == long.class || valueType == Long.class)
+				kind = LONG;
+			else if(valueType == double.class || valueType == Double.class)
+				kind = DOUBLE;
+			else if(valueType == boolean.class || valueType == Boolean.class)
+				kind = BOOLEAN;
+			else if(valueType == Pattern.class)
+				kind = PATTERN;
+			else if(valueType.isEnum())
+				kind = ENUM;
+			else if(
+				valueType.isPrimitive()
+					|| valueType.isArray()
+					|| valueType.getName().startsWith("java.")
+			)
+				throw
+					new ConfigurationError(
+						"The type of \"" + field.getDeclaringClass().getName() + "."
+							+ field.getName() + "\" is not supported."
+					);
+			else
+				kind = OBJECT;
+			binder = kind == OBJECT ? ConfigurationBinder.create(valueType, binders) : null;
+		}
+
+
+		Object convert(Element element, String value)
+		{
+			String trimmed = value.trim();
+			try {
+				switch(kind) {
+					case STRING:
+						return trimmed;
+
+					case INT:
+						return Integer.valueOf(trimmed);
+
+					case LONG:
+						return Long.valueOf(trimmed);
+
+					case DOUBLE:
+						return Double.valueOf(trimmed);
+
+					case BOOLEAN:
+						if(trimmed.equals("true"))
+							return Boolean.TRUE;
+						if(trimmed.equals("false"))
+							return Boolean.FALSE;
+						break;
+
+					case PATTERN:
+						return Pattern.compile(trimmed);
+
+					case ENUM:
+						for(Object constant : valueType.getEnumConstants())
+							if(((Enum<?>)constant).name().equals(trimmed))
+								return constant;
+						break;
+				}
+			}
+			catch(NumberFormatException e) {
+				// Falls through to the error.
+			}
+			catch(PatternSyntaxException e) {
+				// Falls through to the error.
+			}
+			throw
+				error(
+					element,
+					"\"" + trimmed + "\" is not a valid value for \"" + name + "\" ("
+						+ valueType.getSimpleName() + ")."
+				);
+		}
+
+
+		void set(Object target, Object value)
+		{
+			try {
+				field.set(target, value);
+			}
+			catch(IllegalAccessException e) {
+				throw new ConfigurationError("\"" + name + "\" cannot be set.", e);
+			}
+		}
+	}
+}
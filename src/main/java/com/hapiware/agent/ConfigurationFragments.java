@@ -0,0 +1,504 @@
+package com.hapiware.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code ConfigurationFragments} replaces the {@code <include file="...">} elements of
+ * the configuration document with the child elements of the included fragment files before
+ * the document is validated. A fragment file has the {@code <fragment>} root element and
+ * it can include other fragments. Relative file names are resolved against the directory of
+ * the including file. The file names can refer to the system properties and the environment
+ * variables (see {@link VariableSources}) but not to the {@code /agent/variable} elements because
+ * the includes are expanded first.
+ * <p>
+ *
+ * The parsed fragments are cached in a compact binary form keyed by the SHA-1 hash of
+ * the fragment file. The memory cache is shared by all the agents of the JVM and, if a cache
+ * directory is given, the binary forms are also written to {@code <hash>.fragment} files, so
+ * that restarted JVMs and other agents sharing the directory skip parsing the XML. A changed
+ * fragment file gets a new hash and is parsed again. Comments and processing instructions are
+ * not kept.
+ * <p>
+ *
+ * Every element copied from a fragment has the canonical path of the fragment file as
+ * {@link #SOURCE} user data for reporting conflicts (see {@link #getSource(Node)}).
+ *
+ * @author hapi
+ *
+ */
+final class ConfigurationFragments
+{
+	/**
+	 * The user data key for the source file of an included element.
+	 */
+	final static String SOURCE = "com.hapiware.agent.source";
+
+	private final static int MAGIC = 0x48414652;
+	private final static byte VERSION = 1;
+	private final static byte END = 0;
+	private final static byte ELEMENT = 1;
+	private final static byte TEXT = 2;
+
+	private final static ConcurrentMap<String, byte[]> memoryCache =
+		new ConcurrentHashMap<String, byte[]>();
+
+	private final File cacheDirectory;
+	private int memoryHits;
+	private int diskHits;
+	private int parses;
+
+
+	/**
+	 * @param cacheDirectory
+	 * 		A directory for the persistent cache or {@code null} if only the memory cache is used.
+	 */
+	ConfigurationFragments(File cacheDirectory)
+	{
+		this.cacheDirectory = cacheDirectory;
+	}
+
+
+	/**
+	 * Replaces all the includes of the document with the included fragments.
+	 *
+	 * @param document
+	 * 		The configuration document.
+	 *
+	 * @param configFile
+	 * 		The configuration file (used for the relative file names and cycle detection) or
+	 * 		{@code null} if the document was not read from a file.
+	 *
+	 * @throws ConfigurationError
+	 * 		If a fragment cannot be read or the includes are cyclic.
+	 */
+	void expand(Document document, File configFile)
+	{
+		List<String> includeChain = new ArrayList<String>();
+		File baseDirectory = null;
+		if(configFile != null) {
+			includeChain.add(canonicalPath(configFile));
+			baseDirectory = configFile.getAbsoluteFile().getParentFile();
+		}
+		expand(document, document.getDocumentElement(), baseDirectory, includeChain);
+	}
+
+
+	private void expand(Document document, Element root, File baseDirectory, List<String> includeChain)
+	{
+		List<Element> includes = new ArrayList<Element>();
+		if(isInclude(root))
+			includes.add(root);
+		NodeList elements = root.getElementsByTagName("include");
+		for(int i = 0; i < elements.getLength(); i++)
+			if(isInclude((Element)elements.item(i)))
+				includes.add((Element)elements.item(i));
+
+		for(Element include : includes) {
+			File file = new File(VariableSources.replace(include.getAttribute("file")));
+			if(!file.isAbsolute() && baseDirectory != null)
+				file = new File(baseDirectory, file.getPath());
+			String path = canonicalPath(file);
+			if(includeChain.contains(path)) {
+				StringBuilder chain = new StringBuilder();
+				for(String link : includeChain.subList(includeChain.indexOf(path), includeChain.size()))
+					chain.append("\"" + link + "\" -> ");
+				throw new ConfigurationError("Cyclic include: " + chain + "\"" + path + "\".");
+			}
+
+			Node parent = include.getParentNode();
+			if(parent == null || parent.getNodeType() != Node.ELEMENT_NODE)
+				throw new ConfigurationError("<include> cannot be the root element.");
+			includeChain.add(path);
+			for(Node node : load(document, file, path)) {
+				parent.insertBefore(node, include);
+				if(node.getNodeType() == Node.ELEMENT_NODE)
+					expand(document, (Element)node, file.getParentFile(), includeChain);
+			}
+			includeChain.remove(includeChain.size() - 1);
+			parent.removeChild(include);
+		}
+	}
+
+
+	/**
+	 * {@code <include>} is also an element of {@code /agent/filter}, so only the elements
+	 * having the {@code file} attribute are fragment includes.
+	 */
+	private static boolean isInclude(Element element)
+	{
+		return element.getTagName().equals("include") && element.hasAttribute("file");
+	}
+
+
+	private static String canonicalPath(File file)
+	{
+		try {
+			return file.getCanonicalPath();
+		}
+		catch(IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+
+	/**
+	 * Returns the source file of an included element or {@code null} if the element is from
+	 * the configuration file itself.
+	 */
+	static String getSource(Node node)
+	{
+		return (String)node.getUserData(SOURCE);
+	}
+
+
+	/**
+	 * Creates the nodes of the fragment file to the document from the memory cache, from
+	 * the cache directory or by parsing the file (in this order). A cache file is fully
+	 * decoded before it is trusted (i.e. put into the memory cache), so a corrupted or
+	 * truncated cache file is only parsed again.
+	 */
+	private List<Node> load(Document document, File file, String path)
+	{
+		if(!file.isFile())
+			throw
+				new ConfigurationError(
+					"The included configuration fragment \"" + path + "\" does not exist."
+				);
+		byte[] content;
+		try {
+			content = read(file);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"IO error with the included configuration fragment \"" + path + "\".",
+					e
+				);
+		}
+		String hash = hash(content);
+
+		byte[] fragment = memoryCache.get(hash);
+		if(fragment != null) {
+			memoryHits++;
+			return decode(document, fragment, path);
+		}
+
+		File cacheFile = cacheDirectory == null ? null : new File(cacheDirectory, hash + ".fragment");
+		if(cacheFile != null && cacheFile.isFile()) {
+			try {
+				fragment = read(cacheFile);
+				List<Node> nodes = decodeCached(document, fragment, path);
+				diskHits++;
+				memoryCache.putIfAbsent(hash, fragment);
+				return nodes;
+			}
+			catch(IOException e) {
+				// The fragment is parsed again.
+			}
+			catch(RuntimeException e) {
+				// E.g. an invalid element name. The fragment is parsed again.
+			}
+		}
+
+		fragment = parse(content, file, path);
+		parses++;
+		memoryCache.putIfAbsent(hash, fragment);
+		if(cacheFile != null)
+			write(cacheFile, fragment);
+		return decode(document, fragment, path);
+	}
+
+
+	private static byte[] read(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+			byte[] buffer = new byte[8192];
+			int n;
+			while((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Writes the cache file through a temporary file, so that other JVMs never read
+	 * a partially written fragment. Failures are ignored because the cache is only
+	 * an optimisation.
+	 */
+	private static void write(File cacheFile, byte[] fragment)
+	{
+		File directory = cacheFile.getParentFile();
+		if(!directory.isDirectory() && !directory.mkdirs())
+			return;
+		try {
+			File temporaryFile = File.createTempFile("fragment", ".tmp", directory);
+			OutputStream out = new FileOutputStream(temporaryFile);
+			try {
+				out.write(fragment);
+			}
+			finally {
+				out.close();
+			}
+			if(!temporaryFile.renameTo(cacheFile))
+				temporaryFile.delete();
+		}
+		catch(IOException e) {
+			// Not cached.
+		}
+	}
+
+
+	private static String hash(byte[] content)
+	{
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder hash = new StringBuilder(digest.length * 2);
+			for(byte b : digest) {
+				hash.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hash.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hash.toString();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new ConfigurationError("SHA-1 is not available.", e);
+		}
+	}
+
+
+	private static byte[] parse(byte[] content, File file, String path)
+	{
+		Document fragmentDocument;
+		try {
+			InputSource source = new InputSource(new ByteArrayInputStream(content));
+			source.setSystemId(file.toURI().toString());
+			fragmentDocument =
+				DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(source);
+		}
+		catch(ParserConfigurationException e) {
+			throw new ConfigurationError("XML document builder cannot be created.", e);
+		}
+		catch(SAXException e) {
+			throw
+				new ConfigurationError(
+					"Parsing the included configuration fragment \"" + path + "\" didn't succeed.",
+					e
+				);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"IO error with the included configuration fragment \"" + path + "\".",
+					e
+				);
+		}
+		Element root = fragmentDocument.getDocumentElement();
+		if(!root.getTagName().equals("fragment"))
+			throw
+				new ConfigurationError(
+					"The root element of the included configuration fragment \"" + path
+						+ "\" must be <fragment>."
+				);
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			encodeChildren(root, out);
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch(IOException e) {
+			assert false: e;
+			return null;
+		}
+	}
+
+
+	private static void encodeChildren(Node parent, DataOutputStream out) throws IOException
+	{
+		for(Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			switch(node.getNodeType()) {
+				case Node.ELEMENT_NODE:
+					out.writeByte(ELEMENT);
+					writeString(out, node.getNodeName());
+					NamedNodeMap attributes = node.getAttributes();
+					out.writeInt(attributes.getLength());
+					for(int i = 0; i < attributes.getLength(); i++) {
+						writeString(out, attributes.item(i).getNodeName());
+						writeString(out, attributes.item(i).getNodeValue());
+					}
+					encodeChildren(node, out);
+					break;
+
+				case Node.TEXT_NODE:
+				case Node.CDATA_SECTION_NODE:
+					out.writeByte(TEXT);
+					writeString(out, node.getNodeValue());
+					break;
+			}
+		}
+		out.writeByte(END);
+	}
+
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+
+	/**
+	 * Creates the nodes of a fragment known to be valid (i.e. parsed or decoded before).
+	 */
+	private static List<Node> decode(Document document, byte[] fragment, String path)
+	{
+		try {
+			return decodeCached(document, fragment, path);
+		}
+		catch(IOException e) {
+			throw
+				new ConfigurationError(
+					"The cached configuration fragment of \"" + path + "\" is corrupted.",
+					e
+				);
+		}
+	}
+
+
+	/**
+	 * Creates the nodes of a fragment read from the cache directory.
+	 *
+	 * @throws IOException
+	 * 		If the header is wrong or the content is truncated or otherwise corrupted.
+	 */
+	private static List<Node> decodeCached(Document document, byte[] fragment, String path)
+		throws
+			IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(fragment));
+		if(in.readInt() != MAGIC || in.readByte() != VERSION)
+			throw new IOException("Not a configuration fragment.");
+		List<Node> nodes = new ArrayList<Node>();
+		decodeChildren(document, null, nodes, in, path);
+		if(in.available() > 0)
+			throw new IOException("Extra bytes after the configuration fragment.");
+		return nodes;
+	}
+
+
+	private static void decodeChildren(
+		Document document,
+		Element parent,
+		List<Node> nodes,
+		DataInputStream in,
+		String path
+	)
+		throws
+			IOException
+	{
+		for(byte type = in.readByte(); type != END; type = in.readByte()) {
+			Node node;
+			if(type == ELEMENT) {
+				Element element = document.createElement(readString(in));
+				int attributes = in.readInt();
+				// An attribute has at least two string lengths.
+				if(attributes < 0 || attributes > in.available() / 8)
+					throw new IOException("Invalid attribute count " + attributes + ".");
+				for(; attributes > 0; attributes--)
+					element.setAttribute(readString(in), readString(in));
+				element.setUserData(SOURCE, path, null);
+				decodeChildren(document, element, null, in, path);
+				node = element;
+			}
+			else if(type == TEXT)
+				node = document.createTextNode(readString(in));
+			else
+				throw new IOException("Unknown node type " + type + ".");
+
+			if(parent != null)
+				parent.appendChild(node);
+			else
+				nodes.add(node);
+		}
+	}
+
+
+	/**
+	 * Reads a string checking its length against the remaining bytes, so that a corrupted
+	 * length cannot allocate a huge array.
+	 */
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if(length < 0 || length > in.available())
+			throw new IOException("Invalid string length " + length + ".");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+
+	int getMemoryHits()
+	{
+		return memoryHits;
+	}
+
+
+	int getDiskHits()
+	{
+		return diskHits;
+	}
+
+
+	int getParses()
+	{
+		return parses;
+	}
+
+
+	/**
+	 * Clears the memory cache shared by the agents of the JVM (for testing).
+	 */
+	static void clearMemoryCache()
+	{
+		memoryCache.clear();
+	}
+}
@@ -0,0 +1,45 @@
+package com.hapiware.agent;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+/**
+ * {@code ConfigurationList} is the immutable {@code List<String>} created from
+ * the {@code /agent/configuration/item} elements without the {@code key} attribute. The items
+ * are stored in a single array, so the list takes only the array and the strings themselves.
+ *
+ * @author hapi
+ *
+ */
+final class ConfigurationList
+	extends
+		AbstractList<String>
+	implements
+		RandomAccess
+{
+	private final String[] items;
+
+
+	/**
+	 * @param items
+	 * 		The items in the order of the configuration file. The list is copied.
+	 */
+	public ConfigurationList(List<String> items)
+	{
+		this.items = items.toArray(new String[items.size()]);
+	}
+
+
+	public String get(int index)
+	{
+		return items[index];
+	}
+
+
+	public int size()
+	{
+		return items.length;
+	}
+}
@@ -0,0 +1,226 @@
+package com.hapiware.agent;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * {@code ConfigurationMap} is the immutable {@code Map<String, String>} created from
+ * the {@code /agent/configuration/item} elements with the {@code key} attribute.
+ * <p>
+ *
+ * The keys and the values are stored in two arrays in the order of the configuration file and
+ * looked up through an open-addressing hash table of indexes (linear probing, at most half
+ * full). Compared to a {@code HashMap} there are no entry objects, so the map takes less than
+ * half of the memory (excluding the strings). If a key is defined more than once, the last value
+ * is used (as with {@code Map.put()}).
+ *
+ * @author hapi
+ *
+ */
+final class ConfigurationMap
+	extends
+		AbstractMap<String, String>
+{
+	private final String[] keys;
+	private final String[] values;
+	private final int[] table;
+	private Set<Map.Entry<String, String>> entrySet;
+
+
+	/**
+	 * @param keys
+	 * 		The keys in the order of the configuration file.
+	 *
+	 * @param values
+	 * 		The values in the same order as the keys.
+	 */
+	public ConfigurationMap(List<String> keys, List<String> values)
+	{
+		if(keys.size() != values.size())
+			throw new IllegalArgumentException("Every key must have a value.");
+
+		// The table stores index + 1, so that zero (0) means an empty slot.
+		int capacity = 2;
+		while(capacity < keys.size() * 2)
+			capacity <<= 1;
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		String[] uniqueKeys = new String[keys.size()];
+		String[] uniqueValues = new String[keys.size()];
+		int size = 0;
+		for(int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			int slot = hash(key) & mask;
+			while(table[slot] != 0 && !uniqueKeys[table[slot] - 1].equals(key))
+				slot = (slot + 1) & mask;
+			if(table[slot] == 0) {
+				uniqueKeys[size] = key;
+				table[slot] = ++size;
+			}
+			uniqueValues[table[slot] - 1] = values.get(i);
+		}
+
+		if(size < uniqueKeys.length) {
+			String[] k = new String[size];
+			String[] v = new String[size];
+			System.arraycopy(uniqueKeys, 0, k, 0, size);
+			System.arraycopy(uniqueValues, 0, v, 0, size);
+			uniqueKeys = k;
+			uniqueValues = v;
+		}
+		this.keys = uniqueKeys;
+		this.values = uniqueValues;
+		this.table = table;
+	}
+
+
+	private static int hash(Object key)
+	{
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+
+	/**
+	 * Returns the index of the key (in the order of the configuration file without
+	 * the duplicates) or -1 if the key is not found.
+	 */
+	int indexOf(Object key)
+	{
+		if(key == null)
+			return -1;
+		int mask = table.length - 1;
+		for(int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask)
+			if(keys[table[slot] - 1].equals(key))
+				return table[slot] - 1;
+		return -1;
+	}
+
+
+	public String get(Object key)
+	{
+		int index = indexOf(key);
+		return index < 0 ? null : values[index];
+	}
+
+
+	public boolean containsKey(Object key)
+	{
+		return indexOf(key) >= 0;
+	}
+
+
+	public int size()
+	{
+		return keys.length;
+	}
+
+
+	String valueAt(int index)
+	{
+		return values[index];
+	}
+
+
+	public Set<Map.Entry<String, String>> entrySet()
+	{
+		if(entrySet == null)
+			entrySet =
+				new AbstractSet<Map.Entry<String, String>>() {
+					public Iterator<Map.Entry<String, String>> iterator()
+					{
+						return
+							new Iterator<Map.Entry<String, String>>() {
+								private int index;
+
+								public boolean hasNext()
+								{
+									return index < keys.length;
+								}
+
+								public Map.Entry<String, String> next()
+								{
+									if(index >= keys.length)
+										throw new NoSuchElementException();
+									return new Entry(keys[index], values[index++]);
+								}
+
+								public void remove()
+								{
+									throw new UnsupportedOperationException();
+								}
+							};
+					}
+
+					public int size()
+					{
+						return keys.length;
+					}
+				};
+		return entrySet;
+	}
+
+
+	/**
+	 * An immutable map entry (created only when iterating).
+	 */
+	private static final class Entry
+		implements
+			Map.Entry<String, String>
+	{
+		private final String key;
+		private final String value;
+
+
+		Entry(String key, String value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+
+
+		public String getKey()
+		{
+			return key;
+		}
+
+
+		public String getValue()
+		{
+			return value;
+		}
+
+
+		public String setValue(String value)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Map.Entry<?, ?>))
+				return false;
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>)obj;
+			return key.equals(entry.getKey()) && value.equals(entry.getValue());
+		}
+
+
+		public int hashCode()
+		{
+			return key.hashCode() ^ value.hashCode();
+		}
+
+
+		public String toString()
+		{
+			return key + "=" + value;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.hapiware.agent;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * {@code ConfigurationProperty} marks a field of the configuration class declared with
+ * {@link CustomConfiguration}. The value of the field is read either from the attribute or from
+ * the child element having the name of the property. The supported field types are:
+ * <ul>
+ * 		<li>{@code String}</li>
+ * 		<li>{@code int}, {@code long}, {@code double} and {@code boolean} (and their wrappers)</li>
+ * 		<li>{@code java.util.regex.Pattern}</li>
+ * 		<li>enums (the name of the constant)</li>
+ * 		<li>
+ * 			other classes with a constructor without arguments and {@code ConfigurationProperty}
+ * 			fields (i.e. nested elements)
+ * 		</li>
+ * 		<li>
+ * 			{@code List<T>} of the types above, where every child element with the name of
+ * 			the property is an item of the list
+ * 		</li>
+ * </ul>
+ * For example, the following class:
+ * <xmp>
+ * 	public class FancyConfiguration
+ * 	{
+ * 		@ConfigurationProperty(required = true)
+ * 		String message;
+ *
+ * 		@ConfigurationProperty("rule")
+ * 		List<Rule> rules;
+ *
+ * 		public static class Rule
+ * 		{
+ * 			@ConfigurationProperty
+ * 			String name;
+ *
+ * 			@ConfigurationProperty
+ * 			int threshold = 10;
+ * 		}
+ * 	}
+ * </xmp>
+ * is filled from:
+ * <xmp>
+ * 	<custom>
+ * 		<message>Hello World!</message>
+ * 		<rule name="first"><threshold>5</threshold></rule>
+ * 		<rule name="second"/>
+ * 	</custom>
+ * </xmp>
+ * A field which is not defined in the configuration keeps its initial value (an empty list for
+ * {@code List}s). Attributes and child elements not having a property are configuration errors.
+ *
+ * @author hapi
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface ConfigurationProperty
+{
+	/**
+	 * The name of the attribute or the child element. The default is the name of the field.
+	 */
+	String value() default "";
+
+	/**
+	 * {@code true} if the configuration must define the property.
+	 */
+	boolean required() default false;
+}
@@ -0,0 +1,245 @@
+package com.hapiware.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code ConfigurationView} is a typed view of the {@code List<String>} or
+ * the {@code Map<String, String>} configuration object delivered to the agent delegate (see
+ * the {@code /agent/configuration} element in {@link Agent}). For example:
+ * <xmp>
+ * 	ConfigurationView view = ConfigurationView.of(config);
+ * 	int depth = view.getInt("max-depth", 10);
+ * 	long timeout = view.getDuration("timeout");
+ * 	Pattern methods = view.getPattern("methods");
+ * </xmp>
+ * Every value is parsed once when the view is created and the numbers, durations and booleans
+ * are stored as primitives, so the getters neither parse nor box anything and they can be
+ * called also from the instrumented code. Patterns are compiled at the first call and then
+ * reused. The keys of a {@code List<String>} are the indexes of the items ({@code "0"},
+ * {@code "1"}, ...).
+ * <p>
+ *
+ * The formats are:
+ * <ul>
+ * 		<li>numbers, decimal {@code long}s (e.g. {@code -12})</li>
+ * 		<li>
+ * 			durations, a number optionally followed by {@code ms}, {@code s}, {@code m} or
+ * 			{@code h} (e.g. {@code 10s}); a plain number is in milliseconds
+ * 		</li>
+ * 		<li>booleans, {@code true} or {@code false}</li>
+ * 		<li>patterns, regular expressions (see {@link Pattern})</li>
+ * </ul>
+ * The getters without a default value throw {@code IllegalArgumentException} if the key is not
+ * defined or the value has a wrong format. {@code ConfigurationView} is immutable and thread safe.
+ *
+ * @author hapi
+ *
+ */
+public final class ConfigurationView
+{
+	private final static byte NUMBER = 1;
+	private final static byte DURATION = 2;
+	private final static byte TRUE = 4;
+	private final static byte FALSE = 8;
+
+	private final ConfigurationMap map;
+	private final byte[] kinds;
+	private final long[] numbers;
+	private final long[] durations;
+	private final AtomicReferenceArray<Pattern> patterns;
+
+
+	private ConfigurationView(ConfigurationMap map)
+	{
+		this.map = map;
+		int size = map.size();
+		kinds = new byte[size];
+		numbers = new long[size];
+		durations = new long[size];
+		patterns = new AtomicReferenceArray<Pattern>(size);
+		for(int i = 0; i < size; i++) {
+			String value = map.valueAt(i).trim();
+			try {
+				numbers[i] = Long.parseLong(value);
+				kinds[i] |= NUMBER;
+			}
+			catch(NumberFormatException e) {
+				// Not a number.
+			}
+			durations[i] = Agent.parseDuration(value);
+			if(durations[i] >= 0)
+				kinds[i] |= DURATION;
+			if(value.equals("true"))
+				kinds[i] |= TRUE;
+			else if(value.equals("false"))
+				kinds[i] |= FALSE;
+		}
+	}
+
+
+	/**
+	 * Creates a typed view of the configuration object.
+	 *
+	 * @param configuration
+	 * 		The configuration object delivered to the agent delegate's {@code premain()}, i.e.
+	 * 		a {@code Map} or a {@code List} (any {@code Map} or {@code List} is accepted; their
+	 * 		keys and values are converted with {@code String.valueOf()}).
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the configuration object is not a {@code Map} or a {@code List}.
+	 */
+	public static ConfigurationView of(Object configuration)
+	{
+		if(configuration instanceof ConfigurationMap)
+			return new ConfigurationView((ConfigurationMap)configuration);
+
+		List<String> keys = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		if(configuration instanceof Map<?, ?>) {
+			for(Map.Entry<?, ?> entry : ((Map<?, ?>)configuration).entrySet()) {
+				keys.add(String.valueOf(entry.getKey()));
+				values.add(String.valueOf(entry.getValue()));
+			}
+		}
+		else if(configuration instanceof List<?>) {
+			for(Object item : (List<?>)configuration) {
+				keys.add(Integer.toString(keys.size()));
+				values.add(String.valueOf(item));
+			}
+		}
+		else
+			throw
+				new IllegalArgumentException(
+					"Only Map and List configurations have a typed view."
+				);
+		return new ConfigurationView(new ConfigurationMap(keys, values));
+	}
+
+
+	public int size()
+	{
+		return kinds.length;
+	}
+
+
+	public boolean contains(String key)
+	{
+		return map.indexOf(key) >= 0;
+	}
+
+
+	private int indexOf(String key)
+	{
+		int index = map.indexOf(key);
+		if(index < 0)
+			throw new IllegalArgumentException("\"" + key + "\" is not defined.");
+		return index;
+	}
+
+
+	private int indexOf(String key, byte kind, String kindName)
+	{
+		int index = indexOf(key);
+		if((kinds[index] & kind) == 0)
+			throw
+				new IllegalArgumentException(
+					"\"" + map.valueAt(index) + "\" of \"" + key + "\" is not a valid "
+						+ kindName + "."
+				);
+		return index;
+	}
+
+
+	public String getString(String key)
+	{
+		return map.valueAt(indexOf(key));
+	}
+
+
+	public String getString(String key, String defaultValue)
+	{
+		int index = map.indexOf(key);
+		return index < 0 ? defaultValue : map.valueAt(index);
+	}
+
+
+	public long getLong(String key)
+	{
+		return numbers[indexOf(key, NUMBER, "number")];
+	}
+
+
+	public long getLong(String key, long defaultValue)
+	{
+		return map.indexOf(key) < 0 ? defaultValue : getLong(key);
+	}
+
+
+	public int getInt(String key)
+	{
+		long value = getLong(key);
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("\"" + value + "\" of \"" + key + "\" is not an int.");
+		return (int)value;
+	}
+
+
+	public int getInt(String key, int defaultValue)
+	{
+		return map.indexOf(key) < 0 ? defaultValue : getInt(key);
+	}
+
+
+	public boolean getBoolean(String key)
+	{
+		return (kinds[indexOf(key, (byte)(TRUE | FALSE), "boolean")] & TRUE) != 0;
+	}
+
+
+	public boolean getBoolean(String key, boolean defaultValue)
+	{
+		return map.indexOf(key) < 0 ? defaultValue : getBoolean(key);
+	}
+
+
+	/**
+	 * Returns the duration in milliseconds.
+	 */
+	public long getDuration(String key)
+	{
+		return durations[indexOf(key, DURATION, "duration")];
+	}
+
+
+	/**
+	 * Returns the duration in milliseconds or the default value if the key is not defined.
+	 */
+	public long getDuration(String key, long defaultValue)
+	{
+		return map.indexOf(key) < 0 ? defaultValue : getDuration(key);
+	}
+
+
+	/**
+	 * Returns the compiled pattern.
+	 *
+	 * @throws java.util.regex.PatternSyntaxException
+	 * 		If the value is not a valid regular expression.
+	 */
+	public Pattern getPattern(String key)
+	{
+		int index = indexOf(key);
+		Pattern pattern = patterns.get(index);
+		if(pattern == null) {
+			// A race only compiles the same pattern twice.
+			pattern = Pattern.compile(map.valueAt(index));
+			patterns.set(index, pattern);
+		}
+		return pattern;
+	}
+}
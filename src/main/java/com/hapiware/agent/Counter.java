@@ -0,0 +1,75 @@
+package com.hapiware.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * {@code Counter} is a monotonic (or up-down) counter of {@link Metrics}. Instead of a single
+ * shared {@code AtomicLong} the counter has a cell per stripe and every cell is on its own
+ * cache line, so threads updating the counter concurrently do not contend on the same cache
+ * line. A thread is mapped to a stripe by its id. The cells are summed on read.
+ * <p>
+ *
+ * {@code Counter} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public final class Counter
+{
+	/**
+	 * The number of {@code long}s between two cells (i.e. one cell per 64 bytes).
+	 */
+	static final int PADDING = 8;
+
+
+	private final String name;
+	private final int mask;
+	private final AtomicLongArray cells;
+
+
+	Counter(String name, int stripes)
+	{
+		this.name = name;
+		this.mask = stripes - 1;
+		this.cells = new AtomicLongArray((stripes + 1) * PADDING);
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public void increment()
+	{
+		add(1);
+	}
+
+
+	public void decrement()
+	{
+		add(-1);
+	}
+
+
+	public void add(long delta)
+	{
+		// The first cell is left empty to pad the cells from the array header.
+		cells.getAndAdd((Metrics.stripe(mask) + 1) * PADDING, delta);
+	}
+
+
+	/**
+	 * Returns the sum of the cells. The updates made concurrently with the read may or may not
+	 * be included.
+	 */
+	public long get()
+	{
+		long sum = 0;
+		for(int i = PADDING; i < cells.length(); i += PADDING)
+			sum += cells.get(i);
+		return sum;
+	}
+}
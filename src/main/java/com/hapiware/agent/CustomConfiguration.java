@@ -0,0 +1,45 @@
+package com.hapiware.agent;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * {@code CustomConfiguration} declares the configuration class of the agent delegate. If
+ * the delegate class is annotated and it does not have {@code static Object unmarshall(Element)}
+ * method, the agent creates the configuration object from the {@code /agent/configuration/custom}
+ * element by itself (see {@link ConfigurationProperty}). For example:
+ * <xmp>
+ * 	@CustomConfiguration(FancyConfiguration.class)
+ * 	public class FancyAgentDelegate
+ * 	{
+ * 		public static void premain(
+ * 			Pattern[] includePatterns,
+ * 			Pattern[] excludePatterns,
+ * 			Object config,
+ * 			Instrumentation instrumentation
+ * 		)
+ * 		{
+ * 			FancyConfiguration configuration = (FancyConfiguration)config;
+ * 			...
+ * 		}
+ * 	}
+ * </xmp>
+ *
+ * @author hapi
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CustomConfiguration
+{
+	/**
+	 * The configuration class. It must have a constructor without arguments and its
+	 * configuration fields must be annotated with {@link ConfigurationProperty}.
+	 */
+	Class<?> value();
+}
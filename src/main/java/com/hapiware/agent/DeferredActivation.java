@@ -0,0 +1,257 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * {@code DeferredActivation} keeps the transformers registered by the agent delegate dormant
+ * until the instrumentation is activated. It is used when {@code /agent/transformer[@activation]}
+ * is {@code deferred}.
+ * <p>
+ *
+ * While dormant, the transformers are not registered to the JVM at all, so loading classes
+ * costs the same as without the agent. The instrumentation is activated either after
+ * the configured delay or when {@link #activate()} is called, whichever comes first. When
+ * activated, the transformers are registered to the JVM and the already loaded classes matching
+ * the {@code /agent/filter} element are retransformed in batches with a pause between
+ * the batches. Everything is done in a background daemon thread.
+ * <p>
+ *
+ * Retransforming requires Java 6 or later. In Java 5 the transformers are only registered
+ * (i.e. the classes loaded before the activation are not instrumented).
+ * <p>
+ *
+ * {@code DeferredActivation} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class DeferredActivation
+{
+	private static volatile DeferredActivation instance;
+
+
+	private final Instrumentation instrumentation;
+	private final ClassFilter classFilter;
+	private final long delay;
+	private final Retransformer retransformer;
+	private final List<ClassFileTransformer> dormantTransformers = new ArrayList<ClassFileTransformer>();
+	private final CountDownLatch trigger = new CountDownLatch(1);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final AtomicInteger retransformedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+	private boolean active;
+
+
+	/**
+	 * Returns the deferred activation of the agent or {@code null} if
+	 * {@code /agent/transformer[@activation]} is not {@code deferred}.
+	 */
+	public static DeferredActivation getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(DeferredActivation activation)
+	{
+		instance = activation;
+	}
+
+
+	/**
+	 * Creates a new dormant activation.
+	 *
+	 * @param instrumentation
+	 * 		The original {@code Instrumentation}.
+	 *
+	 * @param classFilter
+	 * 		The filter for selecting the loaded classes to be retransformed.
+	 *
+	 * @param delay
+	 * 		The delay in milliseconds after which the instrumentation is activated or zero (0)
+	 * 		if it is activated only by calling {@link #activate()}.
+	 *
+	 * @param batchSize
+	 * 		The number of classes retransformed at once.
+	 *
+	 * @param batchInterval
+	 * 		The pause between the batches in milliseconds.
+	 */
+	public DeferredActivation(
+		Instrumentation instrumentation,
+		ClassFilter classFilter,
+		long delay,
+		int batchSize,
+		long batchInterval
+	)
+	{
+		this.instrumentation = instrumentation;
+		this.classFilter = classFilter;
+		this.delay = delay;
+		this.retransformer = new Retransformer(instrumentation, batchSize, batchInterval);
+	}
+
+
+	/**
+	 * Keeps the transformer dormant until the activation.
+	 *
+	 * @return
+	 * 		{@code true} if the transformer was put to sleep or {@code false} if the instrumentation
+	 * 		is already active (i.e. the transformer must be registered normally).
+	 */
+	synchronized boolean defer(ClassFileTransformer transformer)
+	{
+		if(active)
+			return false;
+		dormantTransformers.add(transformer);
+		return true;
+	}
+
+
+	/**
+	 * Removes a dormant transformer.
+	 *
+	 * @return
+	 * 		{@code true} if the transformer was dormant.
+	 */
+	synchronized boolean remove(ClassFileTransformer transformer)
+	{
+		for(int i = 0; i < dormantTransformers.size(); i++)
+			if(dormantTransformers.get(i) == transformer) {
+				dormantTransformers.remove(i);
+				return true;
+			}
+		return false;
+	}
+
+
+	/**
+	 * Starts the background thread waiting for the activation.
+	 */
+	void start()
+	{
+		Thread thread =
+			new Thread("agent-deferred-activation") {
+				public void run()
+				{
+					try {
+						if(delay > 0)
+							trigger.await(delay, TimeUnit.MILLISECONDS);
+						else
+							trigger.await();
+						retransform(registerTransformers());
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Activates the instrumentation. The transformers are registered and the loaded classes are
+	 * retransformed in the background. Calling this method again does nothing.
+	 */
+	public void activate()
+	{
+		trigger.countDown();
+	}
+
+
+	/**
+	 * Returns {@code true} if the transformers have been registered to the JVM.
+	 */
+	public synchronized boolean isActive()
+	{
+		return active;
+	}
+
+
+	/**
+	 * Waits until the activation (including the retransformation) has been finished.
+	 *
+	 * @return
+	 * 		{@code true} if the activation was finished and {@code false} if the waiting time
+	 * 		elapsed.
+	 */
+	public boolean awaitActivation(long timeout, TimeUnit unit)
+		throws
+			InterruptedException
+	{
+		return done.await(timeout, unit);
+	}
+
+
+	/**
+	 * Returns the number of loaded classes retransformed after the activation.
+	 */
+	public int getRetransformedCount()
+	{
+		return retransformedCount.get();
+	}
+
+
+	/**
+	 * Returns the number of loaded classes whose retransformation failed.
+	 */
+	public int getFailedCount()
+	{
+		return failedCount.get();
+	}
+
+
+	/**
+	 * Registers the dormant transformers to the JVM.
+	 *
+	 * @return
+	 * 		{@code true} if the loaded classes can be retransformed.
+	 */
+	private synchronized boolean registerTransformers()
+	{
+		active = true;
+		for(ClassFileTransformer transformer : dormantTransformers)
+			retransformer.addTransformer(transformer);
+		dormantTransformers.clear();
+		return retransformer.isSupported();
+	}
+
+
+	private void retransform(boolean retransformable)
+		throws
+			InterruptedException
+	{
+		if(!retransformable)
+			return;
+
+		List<Class<?>> candidates = new ArrayList<Class<?>>();
+		ClassNameView view = new ClassNameView();
+		for(Class<?> c : instrumentation.getAllLoadedClasses()) {
+			if(c.isArray() || c.isPrimitive())
+				continue;
+			if(classFilter.isLoaderExcluded(c.getClassLoader()))
+				continue;
+			if(!classFilter.matches(view.set(c.getName(), '.', '/')))
+				continue;
+			if(!retransformer.isModifiable(c))
+				continue;
+			candidates.add(c);
+		}
+
+		int retransformed = retransformer.retransform(candidates);
+		retransformedCount.addAndGet(retransformed);
+		failedCount.addAndGet(candidates.size() - retransformed);
+	}
+}
@@ -0,0 +1,216 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+
+
+/**
+ * {@code DelegateBinding} resolves the entry points of the agent delegate once. The methods are
+ * looked up when the binding is created and then called reflectively through the typed methods
+ * of this class, so the callers neither look up the methods again nor build the argument types
+ * for every call. Only the lookup is saved; every call is still a {@link Method#invoke} with
+ * its usual cost (the entry points are called only a few times per JVM anyway).
+ * <p>
+ *
+ * The supported entry points are:
+ * <ul>
+ * 	<li>
+ * 		{@code static void premain(Pattern[], Pattern[], MethodFilter, Object, Instrumentation)}
+ * 		or {@code static void premain(Pattern[], Pattern[], Object, Instrumentation)}
+ * 		(the former is preferred)
+ * 	</li>
+ * 	<li>
+ * 		{@code static Object unmarshall(Element)} or, if the delegate class is annotated with
+ * 		{@link CustomConfiguration}, a {@link ConfigurationBinder} for the configuration class
+ * 		(the former is preferred)
+ * 	</li>
+ * </ul>
+ * The resolved methods are made accessible, which skips the access checks of every call and also
+ * allows the delegate class to be non-public.
+ *
+ * @author hapi
+ *
+ */
+final class DelegateBinding
+{
+	private final static Class<?>[] PREMAIN_WITH_METHOD_FILTER =
+		new Class[] {
+			Pattern[].class,
+			Pattern[].class,
+			MethodFilter.class,
+			Object.class,
+			Instrumentation.class
+		};
+	private final static Class<?>[] PREMAIN =
+		new Class[] {Pattern[].class, Pattern[].class, Object.class, Instrumentation.class};
+	private final static Class<?>[] UNMARSHALL = new Class[] {Element.class};
+
+	private final Class<?> delegateAgentClass;
+	private final Method premain;
+	private final boolean methodFilterAccepted;
+	private final Method unmarshall;
+	private final ConfigurationBinder configurationBinder;
+
+
+	private DelegateBinding(
+		Class<?> delegateAgentClass,
+		Method premain,
+		boolean methodFilterAccepted,
+		Method unmarshall,
+		ConfigurationBinder configurationBinder
+	)
+	{
+		this.delegateAgentClass = delegateAgentClass;
+		this.premain = premain;
+		this.methodFilterAccepted = methodFilterAccepted;
+		this.unmarshall = unmarshall;
+		this.configurationBinder = configurationBinder;
+	}
+
+
+	/**
+	 * Resolves the entry points of the delegate class. Missing entry points are not an error
+	 * here but only when they are called (see {@link #hasPremain()} and
+	 * {@link #hasUnmarshaller()}).
+	 *
+	 * @throws com.hapiware.agent.Agent.ConfigurationError
+	 * 		If the configuration class declared with {@link CustomConfiguration} is not valid.
+	 */
+	static DelegateBinding bind(Class<?> delegateAgentClass)
+	{
+		Method premain = find(delegateAgentClass, "premain", PREMAIN_WITH_METHOD_FILTER);
+		boolean methodFilterAccepted = premain != null;
+		if(premain == null)
+			premain = find(delegateAgentClass, "premain", PREMAIN);
+		Method unmarshall = find(delegateAgentClass, "unmarshall", UNMARSHALL);
+		CustomConfiguration customConfiguration =
+			delegateAgentClass.getAnnotation(CustomConfiguration.class);
+		return
+			new DelegateBinding(
+				delegateAgentClass,
+				premain,
+				methodFilterAccepted,
+				unmarshall,
+				unmarshall == null && customConfiguration != null
+					? ConfigurationBinder.create(customConfiguration.value())
+					: null
+			);
+	}
+
+
+	private static Method find(Class<?> delegateAgentClass, String name, Class<?>[] parameterTypes)
+	{
+		Method method;
+		try {
+			method = delegateAgentClass.getMethod(name, parameterTypes);
+		}
+		catch(NoSuchMethodException e) {
+			return null;
+		}
+		if(!Modifier.isStatic(method.getModifiers()))
+			return null;
+		try {
+			method.setAccessible(true);
+		}
+		catch(SecurityException e) {
+			// The access is checked on every call instead.
+		}
+		return method;
+	}
+
+
+	public Class<?> getDelegateAgentClass()
+	{
+		return delegateAgentClass;
+	}
+
+
+	public boolean hasPremain()
+	{
+		return premain != null;
+	}
+
+
+	/**
+	 * Returns {@code true} if the delegate's {@code premain()} has the {@link MethodFilter}
+	 * argument.
+	 */
+	public boolean isMethodFilterAccepted()
+	{
+		return methodFilterAccepted;
+	}
+
+
+	/**
+	 * Returns {@code true} if the delegate has {@code unmarshall()} or it is annotated with
+	 * {@link CustomConfiguration}.
+	 */
+	public boolean hasUnmarshaller()
+	{
+		return unmarshall != null || configurationBinder != null;
+	}
+
+
+	/**
+	 * Calls the delegate's {@code premain()}. The method filter is delivered only if
+	 * the delegate's {@code premain()} has the {@link MethodFilter} argument.
+	 *
+	 * @return
+	 * 		The value returned by {@code premain()} (i.e. the transformers to be registered by
+	 * 		the agent, see {@link TransformerDispatcher}) or {@code null} if it is {@code void}.
+	 *
+	 * @throws NullPointerException
+	 * 		If the delegate does not have {@code premain()} (see {@link #hasPremain()}).
+	 */
+	public Object premain(
+		Pattern[] includePatterns,
+		Pattern[] excludePatterns,
+		MethodFilter methodFilter,
+		Object configuration,
+		Instrumentation instrumentation
+	)
+		throws
+			InvocationTargetException,
+			IllegalAccessException
+	{
+		if(methodFilterAccepted)
+			return
+				premain.invoke(
+					null,
+					includePatterns,
+					excludePatterns,
+					methodFilter,
+					configuration,
+					instrumentation
+				);
+		else
+			return
+				premain.invoke(null, includePatterns, excludePatterns, configuration, instrumentation);
+	}
+
+
+	/**
+	 * Calls the delegate's {@code unmarshall()} or binds the element to the configuration class
+	 * declared with {@link CustomConfiguration}.
+	 *
+	 * @throws com.hapiware.agent.Agent.ConfigurationError
+	 * 		If the element does not match the configuration class.
+	 *
+	 * @throws NullPointerException
+	 * 		If the delegate does not have {@code unmarshall()} (see {@link #hasUnmarshaller()}).
+	 */
+	public Object unmarshall(Element configElement)
+		throws
+			InvocationTargetException,
+			IllegalAccessException
+	{
+		if(unmarshall == null && configurationBinder != null)
+			return configurationBinder.bind(configElement);
+		return unmarshall.invoke(null, configElement);
+	}
+}
@@ -0,0 +1,96 @@
+package com.hapiware.agent;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code DelegateConfig} is the {@code /agent/delegate} element of the agent configuration file
+ * (see {@link Agent}). {@code DelegateConfig} is <b>immutable</b>.
+ *
+ * @author hapi
+ *
+ */
+final class DelegateConfig
+{
+	private String name;
+	private long premainTimeout;
+	private boolean premainTimeoutFatal = true;
+
+
+	private DelegateConfig()
+	{
+		// Created only by read().
+	}
+
+
+	/**
+	 * Reads {@code /agent/delegate}.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the element has invalid attributes.
+	 */
+	static DelegateConfig read(XPath xpath, Document configDocument)
+		throws
+			XPathExpressionException
+	{
+		DelegateConfig config = new DelegateConfig();
+		config.name =
+			(String)xpath.evaluate("/agent/delegate", configDocument, XPathConstants.STRING);
+		Element delegate =
+			(Element)xpath.evaluate("/agent/delegate", configDocument, XPathConstants.NODE);
+		if(delegate != null) {
+			config.premainTimeout = Agent.parseDuration(delegate, "premain-timeout", 0);
+			if(delegate.hasAttribute("premain-timeout") && config.premainTimeout <= 0)
+				throw
+					new ConfigurationError(
+						"/agent/delegate[@premain-timeout] must be greater than zero."
+					);
+			String onTimeout = delegate.getAttribute("on-timeout").trim();
+			if(onTimeout.equals("disable"))
+				config.premainTimeoutFatal = false;
+			else if(onTimeout.length() > 0 && !onTimeout.equals("fail"))
+				throw
+					new ConfigurationError(
+						"/agent/delegate[@on-timeout] must be either \"fail\" or \"disable\" "
+							+ "but was \"" + onTimeout + "\"."
+					);
+		}
+		return config;
+	}
+
+
+	/**
+	 * Returns the name of the agent delegate class.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+
+	/**
+	 * Returns the time budget of the delegate's {@code premain()} in milliseconds or zero (0)
+	 * if there is no time budget.
+	 */
+	public long getPremainTimeout()
+	{
+		return premainTimeout;
+	}
+
+
+	/**
+	 * Returns {@code true} if exceeding the time budget of the delegate's {@code premain()}
+	 * stops the JVM and {@code false} if the delegate is disabled instead.
+	 */
+	public boolean isPremainTimeoutFatal()
+	{
+		return premainTimeoutFatal;
+	}
+}
@@ -0,0 +1,170 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+
+
+/**
+ * {@code DelegateTransformer} wraps a {@link ClassFileTransformer} registered by the agent
+ * delegate so that the agent can do its own bookkeeping before the delegate's transformer
+ * is called. The classes of the class loaders excluded with the {@code <exclude-loader>} elements
+ * are not passed to the delegate's transformer at all. The following is done for the classes
+ * whose names match the {@code /agent/filter} element:
+ * <ul>
+ * 		<li>
+ * 			the class file is checked against the {@code <extends>}, {@code <implements>},
+ * 			{@code <annotated>} and {@code <subtype-of>} filter elements and the delegate's
+ * 			transformer is not called at all if the class does not match (see {@link ClassFilter});
+ * 			the same applies if none of the {@code <include-method>} patterns applies to the class
+ * 		</li>
+ * 		<li>the original class file bytes are put to the {@link ClassBytesStore}</li>
+ * </ul>
+ * The super types of the other classes are recorded to the {@link TypeHierarchy} of the filter
+ * (if there is one).
+ * <p>
+ * If there is a {@link ReentrancyGuard}, nested callbacks (i.e. classes loaded by
+ * the delegate's transformers while transforming) are not processed at all. If there is
+ * a {@link HotnessMonitor}, the delegate's transformer is called for the classes carrying
+ * the invocation-count probes only after they have become hot.
+ * <p>
+ * The calls to the delegate's transformer lasting longer than a threshold are recorded as
+ * {@link FlightRecorderEvent#TRANSFORM} events when JDK Flight Recorder is running.
+ *
+ * @author hapi
+ *
+ */
+class DelegateTransformer
+	implements
+		ClassFileTransformer
+{
+	private final ClassFileTransformer transformer;
+	private final ClassFilter classFilter;
+	private final ClassBytesStore classBytesStore;
+	private final ReentrancyGuard reentrancyGuard;
+	private final HotnessMonitor hotnessMonitor;
+
+
+	public DelegateTransformer(
+		ClassFileTransformer transformer,
+		ClassFilter classFilter,
+		ClassBytesStore classBytesStore
+	)
+	{
+		this(transformer, classFilter, classBytesStore, null, null);
+	}
+
+
+	public DelegateTransformer(
+		ClassFileTransformer transformer,
+		ClassFilter classFilter,
+		ClassBytesStore classBytesStore,
+		ReentrancyGuard reentrancyGuard,
+		HotnessMonitor hotnessMonitor
+	)
+	{
+		this.transformer = transformer;
+		this.classFilter = classFilter;
+		this.classBytesStore = classBytesStore;
+		this.reentrancyGuard = reentrancyGuard;
+		this.hotnessMonitor = hotnessMonitor;
+	}
+
+
+	public byte[] transform(
+		ClassLoader loader,
+		String className,
+		Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain,
+		byte[] classfileBuffer
+	)
+		throws
+			IllegalClassFormatException
+	{
+		if(reentrancyGuard == null)
+			return
+				filterAndTransform(
+					loader,
+					className,
+					classBeingRedefined,
+					protectionDomain,
+					classfileBuffer
+				);
+
+		ReentrancyGuard.Depth depth = reentrancyGuard.enter();
+		if(depth == null)
+			return null;
+		try {
+			return
+				filterAndTransform(
+					loader,
+					className,
+					classBeingRedefined,
+					protectionDomain,
+					classfileBuffer
+				);
+		}
+		finally {
+			reentrancyGuard.exit(depth);
+		}
+	}
+
+
+	private byte[] filterAndTransform(
+		ClassLoader loader,
+		String className,
+		Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain,
+		byte[] classfileBuffer
+	)
+		throws
+			IllegalClassFormatException
+	{
+		if(classFilter.isLoaderExcluded(loader))
+			return null;
+		
+		if(className != null) {
+			if(classFilter.isIncluded(className)) {
+				if(
+					!classFilter.hasIncludedMethods(className)
+						|| !classFilter.acceptClassFile(loader, classfileBuffer)
+				)
+					return null;
+				if(hotnessMonitor != null && hotnessMonitor.isProbed(loader, className))
+					// The class file carries the probes, so it is not stored either.
+					return null;
+				if(classBytesStore != null)
+					classBytesStore.put(loader, className, classfileBuffer);
+			}
+			else
+				classFilter.recordType(classfileBuffer);
+		}
+
+		Object event = FlightRecorderEvent.TRANSFORM.begin();
+		byte[] transformed =
+			transformer.transform(
+				loader,
+				className,
+				classBeingRedefined,
+				protectionDomain,
+				classfileBuffer
+			);
+		if(event != null)
+			FlightRecorderEvent.TRANSFORM.commit(
+				event,
+				className,
+				loader == null ? "bootstrap" : loader.getClass().getName(),
+				classfileBuffer.length,
+				transformed == null ? classfileBuffer.length : transformed.length,
+				transformed != null && transformed != classfileBuffer
+			);
+		return transformed;
+	}
+
+
+	ClassFileTransformer getTransformer()
+	{
+		return transformer;
+	}
+
+}
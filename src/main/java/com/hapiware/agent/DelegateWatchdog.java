@@ -0,0 +1,133 @@
+package com.hapiware.agent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Callable;
+
+
+/**
+ * {@code DelegateWatchdog} enforces a time budget for the agent delegate's {@code premain()}.
+ * It is used when {@code /agent/delegate[@premain-timeout]} is defined.
+ * <p>
+ *
+ * The delegate's {@code premain()} is called in a separate daemon thread and the calling thread
+ * waits for it at most the given time. If the time is exceeded, the stack of the delegate's
+ * thread is captured (to show where it hangs), the delegate's thread is interrupted and
+ * the caller decides whether to fail or to continue without the delegate. The delegate's thread
+ * is not stopped, so a delegate ignoring the interrupt keeps running in the background.
+ *
+ * @author hapi
+ *
+ */
+class DelegateWatchdog
+{
+	private final long timeout;
+	private volatile String stackDump;
+	private volatile Object result;
+
+
+	/**
+	 * @param timeout
+	 * 		The time budget of {@code premain()} in milliseconds.
+	 */
+	public DelegateWatchdog(long timeout)
+	{
+		this.timeout = timeout;
+	}
+
+
+	/**
+	 * Calls the delegate's {@code premain()} and waits for it to return.
+	 *
+	 * @param premain
+	 * 		Calls the delegate's {@code premain()} (see {@link DelegateBinding}).
+	 *
+	 * @return
+	 * 		{@code true} if {@code premain()} returned in time or {@code false} if the time
+	 * 		budget was exceeded (see {@link #getStackDump()}).
+	 *
+	 * @throws InvocationTargetException
+	 * 		If {@code premain()} threw an exception in time.
+	 *
+	 * @throws IllegalAccessException
+	 * 		If {@code premain()} is not accessible.
+	 *
+	 * @throws InterruptedException
+	 * 		If the calling thread was interrupted while waiting.
+	 */
+	public boolean invoke(final Callable<?> premain)
+		throws
+			InvocationTargetException,
+			IllegalAccessException,
+			InterruptedException
+	{
+		final Throwable[] failure = new Throwable[1];
+		Thread thread =
+			new Thread("agent-delegate-premain") {
+				public void run()
+				{
+					try {
+						result = premain.call();
+					}
+					catch(Throwable t) {
+						failure[0] = t;
+					}
+				}
+			};
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(timeout);
+		if(thread.isAlive()) {
+			stackDump = dump(thread);
+			thread.interrupt();
+			return false;
+		}
+
+		Throwable t = failure[0];
+		if(t == null)
+			return true;
+		if(t instanceof InvocationTargetException)
+			throw (InvocationTargetException)t;
+		if(t instanceof IllegalAccessException)
+			throw (IllegalAccessException)t;
+		if(t instanceof RuntimeException)
+			throw (RuntimeException)t;
+		if(t instanceof Error)
+			throw (Error)t;
+		throw new InvocationTargetException(t);
+	}
+
+
+	private static String dump(Thread thread)
+	{
+		StringBuilder dump = new StringBuilder();
+		dump.append("\"").append(thread.getName()).append("\" ").append(thread.getState());
+		for(StackTraceElement element : thread.getStackTrace())
+			dump.append("\n\tat ").append(element);
+		return dump.toString();
+	}
+
+
+	public long getTimeout()
+	{
+		return timeout;
+	}
+
+
+	/**
+	 * Returns the value returned by {@code premain()} if it returned in time.
+	 */
+	public Object getResult()
+	{
+		return result;
+	}
+
+
+	/**
+	 * Returns the stack of the delegate's thread at the time the time budget was exceeded or
+	 * {@code null} if it has not been exceeded.
+	 */
+	public String getStackDump()
+	{
+		return stackDump;
+	}
+}
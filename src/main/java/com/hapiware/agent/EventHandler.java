@@ -0,0 +1,28 @@
+package com.hapiware.agent;
+
+
+/**
+ * {@code EventHandler} consumes the events published to an {@link EventRingBuffer}. The handler
+ * is called only from the consumer thread of the ring buffer (or from the thread calling
+ * {@link EventRingBuffer#drain(EventHandler, int)}), so it need not be thread safe.
+ *
+ * @author hapi
+ *
+ */
+public interface EventHandler
+{
+	/**
+	 * Handles a single event. The arguments are the ones given to
+	 * {@link EventRingBuffer#publish(int, long, long, Object)}.
+	 */
+	public void onEvent(int type, long value1, long value2, Object payload);
+
+
+	/**
+	 * Called after every drained batch of events (e.g. for flushing buffered output).
+	 *
+	 * @param count
+	 * 		The number of events in the batch.
+	 */
+	public void onBatchEnd(int count);
+}
@@ -0,0 +1,373 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code EventLog} is an append-only binary log of fixed size event records backed by rolling
+ * memory-mapped files. It is created when the {@code /agent/event-log} element is defined and
+ * it is available for the agent delegate with {@link #getInstance()}.
+ * <p>
+ *
+ * Every record has the same schema (see {@link #RECORD_SIZE}):
+ * <ul>
+ * 		<li>{@code int} status, zero (0) for an unwritten record and one (1) for a written record</li>
+ * 		<li>{@code int} event type</li>
+ * 		<li>{@code long} timestamp in milliseconds since the epoch</li>
+ * 		<li>{@code long} first value</li>
+ * 		<li>{@code long} second value</li>
+ * </ul>
+ * The files are named {@code events-00000.log}, {@code events-00001.log} and so on and they
+ * all have the same size. Every file starts with a header of {@value #FILE_HEADER_SIZE}
+ * bytes: the magic number {@code 0x4856454C}, the format version, the record size and
+ * the index of the file. A new event log continues the numbering after the files left in
+ * the directory by the previous runs, so their records are read before the new ones.
+ * <p>
+ *
+ * Concurrent writers reserve records with a single atomic increment of a record counter, which
+ * also tells the file and the position of the record. The status is written last, so
+ * the records reserved but not (yet) written are skipped by {@link EventLogReader}. Only
+ * the writer crossing a file boundary takes a lock to map the next file. If the maximum number
+ * of files is reached, the oldest files are deleted. No files are deleted otherwise.
+ * <p>
+ *
+ * {@code EventLog} also implements {@link EventHandler}, so it can be used as the consumer of
+ * an {@link EventRingBuffer} (the payloads are ignored).
+ * <p>
+ *
+ * {@code EventLog} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class EventLog
+	implements
+		EventHandler
+{
+	/**
+	 * The size of a single record in bytes.
+	 */
+	public static final int RECORD_SIZE = 32;
+
+	/**
+	 * The size of the file header in bytes.
+	 */
+	public static final int FILE_HEADER_SIZE = 32;
+
+	static final int MAGIC = 0x4856454C;
+	static final short VERSION = 1;
+	static final int STATUS_WRITTEN = 1;
+	private static final Pattern FILE_NAME_PATTERN = Pattern.compile("events-([0-9]{5,19})\\.log");
+	private static final int MAPPINGS = 4;
+	private static volatile EventLog instance;
+
+
+	private final File directory;
+	private final long fileSize;
+	private final long recordsPerFile;
+	private final int maxFiles;
+	private final long firstFileIndex;
+	private final AtomicLong nextRecord = new AtomicLong();
+	private final Mapping[] mappings = new Mapping[MAPPINGS];
+	private volatile Mapping current;
+	private volatile boolean closed;
+
+
+	/**
+	 * Returns the event log of the agent or {@code null} if the {@code /agent/event-log}
+	 * element is not defined.
+	 */
+	public static EventLog getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(EventLog log)
+	{
+		instance = log;
+	}
+
+
+	/**
+	 * Creates a new event log. The first log file gets the next index after the existing log
+	 * files in the directory. The existing files are kept unless the maximum number of files
+	 * is exceeded.
+	 *
+	 * @param directory
+	 * 		The directory for the log files. The directory is created if it does not exist.
+	 *
+	 * @param fileSize
+	 * 		The size of a single log file in bytes.
+	 *
+	 * @param maxFiles
+	 * 		The maximum number of log files kept or zero (0) if all the files are kept.
+	 *
+	 * @throws IOException
+	 * 		If the first log file cannot be created.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the file size is too small for a single record or greater than 2 GB.
+	 */
+	public EventLog(File directory, long fileSize, int maxFiles)
+		throws
+			IOException
+	{
+		if(fileSize < FILE_HEADER_SIZE + RECORD_SIZE || fileSize > Integer.MAX_VALUE)
+			throw
+				new IllegalArgumentException(
+					"File size must be between " + (FILE_HEADER_SIZE + RECORD_SIZE) + " and "
+						+ Integer.MAX_VALUE + " bytes."
+				);
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Directory \"" + directory + "\" cannot be created.");
+
+		File[] files = listFiles(directory);
+		this.directory = directory;
+		this.recordsPerFile = (fileSize - FILE_HEADER_SIZE) / RECORD_SIZE;
+		this.fileSize = FILE_HEADER_SIZE + recordsPerFile * RECORD_SIZE;
+		this.maxFiles = maxFiles;
+		this.firstFileIndex = files.length == 0 ? 0 : fileIndex(files[files.length - 1]) + 1;
+		if(maxFiles > 0)
+			for(File file : files)
+				if(fileIndex(file) <= firstFileIndex - maxFiles)
+					file.delete();
+		this.current = map(firstFileIndex);
+	}
+
+
+	/**
+	 * Returns the log files in the directory in the order of their indexes.
+	 */
+	static File[] listFiles(File directory)
+	{
+		File[] files =
+			directory.listFiles(
+				new FileFilter() {
+					public boolean accept(File file)
+					{
+						return file.isFile() && FILE_NAME_PATTERN.matcher(file.getName()).matches();
+					}
+				}
+			);
+		if(files == null)
+			return new File[0];
+		Arrays.sort(
+			files,
+			new Comparator<File>() {
+				public int compare(File f1, File f2)
+				{
+					long i1 = fileIndex(f1);
+					long i2 = fileIndex(f2);
+					return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+				}
+			}
+		);
+		return files;
+	}
+
+
+	private static long fileIndex(File file)
+	{
+		Matcher m = FILE_NAME_PATTERN.matcher(file.getName());
+		m.matches();
+		return Long.parseLong(m.group(1));
+	}
+
+
+	/**
+	 * Returns the name of the log file with the given index.
+	 */
+	static String fileName(long fileIndex)
+	{
+		String index = String.valueOf(fileIndex);
+		return "events-" + "00000".substring(Math.min(5, index.length())) + index + ".log";
+	}
+
+
+	/**
+	 * Appends a record with the current time as its timestamp.
+	 *
+	 * @return
+	 * 		{@code false} if the log has been closed or the file for the record could not be
+	 * 		created.
+	 */
+	public boolean append(int type, long value1, long value2)
+	{
+		return append(type, System.currentTimeMillis(), value1, value2);
+	}
+
+
+	/**
+	 * Appends a record.
+	 *
+	 * @return
+	 * 		{@code false} if the log has been closed or the file for the record could not be
+	 * 		created.
+	 */
+	public boolean append(int type, long timestamp, long value1, long value2)
+	{
+		if(closed)
+			return false;
+		long record = nextRecord.getAndIncrement();
+		long fileIndex = firstFileIndex + record / recordsPerFile;
+		Mapping mapping = current;
+		if(mapping.fileIndex != fileIndex) {
+			mapping = mapping(fileIndex);
+			if(mapping == null)
+				return false;
+		}
+
+		int position = FILE_HEADER_SIZE + (int)(record % recordsPerFile) * RECORD_SIZE;
+		MappedByteBuffer buffer = mapping.buffer;
+		buffer.putInt(position + 4, type);
+		buffer.putLong(position + 8, timestamp);
+		buffer.putLong(position + 16, value1);
+		buffer.putLong(position + 24, value2);
+		buffer.putInt(position, STATUS_WRITTEN);
+		return true;
+	}
+
+
+	/**
+	 * Returns the mapping of the file, mapping the file first if necessary.
+	 *
+	 * @return
+	 * 		The mapping or {@code null} if the log is closed or the file cannot be mapped.
+	 */
+	private synchronized Mapping mapping(long fileIndex)
+	{
+		if(closed)
+			return null;
+		Mapping mapping = mappings[(int)(fileIndex % MAPPINGS)];
+		if(mapping != null && mapping.fileIndex == fileIndex)
+			return mapping;
+
+		try {
+			mapping = map(fileIndex);
+		}
+		catch(IOException e) {
+			return null;
+		}
+		if(fileIndex > current.fileIndex)
+			current = mapping;
+		return mapping;
+	}
+
+
+	private Mapping map(long fileIndex)
+		throws
+			IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(new File(directory, fileName(fileIndex)), "rw");
+		try {
+			file.setLength(fileSize);
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+			buffer.putInt(0, MAGIC);
+			buffer.putShort(4, VERSION);
+			buffer.putShort(6, (short)RECORD_SIZE);
+			buffer.putLong(8, fileIndex);
+			Mapping mapping = new Mapping(fileIndex, buffer);
+			Mapping evicted = mappings[(int)(fileIndex % MAPPINGS)];
+			if(evicted != null)
+				evicted.buffer.force();
+			mappings[(int)(fileIndex % MAPPINGS)] = mapping;
+			if(maxFiles > 0 && fileIndex >= maxFiles)
+				new File(directory, fileName(fileIndex - maxFiles)).delete();
+			return mapping;
+		}
+		finally {
+			// The mapping stays valid after the file has been closed.
+			file.close();
+		}
+	}
+
+
+	/**
+	 * Writes the mapped records to the files.
+	 */
+	public synchronized void force()
+	{
+		for(Mapping mapping : mappings)
+			if(mapping != null)
+				mapping.buffer.force();
+	}
+
+
+	/**
+	 * Writes the mapped records to the files and stops appending. The records being appended
+	 * concurrently may or may not be written.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		force();
+	}
+
+
+	/**
+	 * Returns the number of records reserved so far by this event log (i.e. appended or being
+	 * appended).
+	 */
+	public long getRecordCount()
+	{
+		return nextRecord.get();
+	}
+
+
+	public long getRecordsPerFile()
+	{
+		return recordsPerFile;
+	}
+
+
+	/**
+	 * Returns the index of the first log file of this event log.
+	 */
+	public long getFirstFileIndex()
+	{
+		return firstFileIndex;
+	}
+
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+
+	public void onEvent(int type, long value1, long value2, Object payload)
+	{
+		append(type, value1, value2);
+	}
+
+
+	public void onBatchEnd(int count)
+	{
+		// The records are written to the files by the operating system.
+	}
+
+
+	private static class Mapping
+	{
+		private final long fileIndex;
+		private final MappedByteBuffer buffer;
+
+		public Mapping(long fileIndex, MappedByteBuffer buffer)
+		{
+			this.fileIndex = fileIndex;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * {@code EventLogReader} decodes the log files written by {@link EventLog}. The records are
+ * read in the order they were reserved, file by file, and the unwritten records are skipped.
+ * The reader is a cursor, i.e. {@link #next()} moves to the next record whose fields are then
+ * available with the getters.
+ * <p>
+ *
+ * The reader can also be run from the command line to print the records as tab separated
+ * text (file index, timestamp, type, value 1, value 2):
+ * <blockquote>
+ * 		{@code java -cp agent.jar com.hapiware.agent.EventLogReader log-directory}
+ * </blockquote>
+ * <p>
+ * {@code EventLogReader} is <b>not</b> thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class EventLogReader
+{
+	private final File[] files;
+	private int fileIndex = -1;
+	private ByteBuffer buffer;
+	private long currentFileIndex;
+	private int type;
+	private long timestamp;
+	private long value1;
+	private long value2;
+
+
+	/**
+	 * Creates a reader for the log files of the directory.
+	 */
+	public EventLogReader(File directory)
+	{
+		this.files = EventLog.listFiles(directory);
+	}
+
+
+	/**
+	 * Moves to the next written record.
+	 *
+	 * @return
+	 * 		{@code true} if there was a next record or {@code false} if all the records have been
+	 * 		read.
+	 *
+	 * @throws IOException
+	 * 		If a file cannot be read or it is not a log file.
+	 */
+	public boolean next()
+		throws
+			IOException
+	{
+		while(true) {
+			if(buffer == null || buffer.remaining() < EventLog.RECORD_SIZE) {
+				if(++fileIndex >= files.length)
+					return false;
+				buffer = read(files[fileIndex]);
+				continue;
+			}
+			int position = buffer.position();
+			buffer.position(position + EventLog.RECORD_SIZE);
+			if(buffer.getInt(position) != EventLog.STATUS_WRITTEN)
+				continue;
+			type = buffer.getInt(position + 4);
+			timestamp = buffer.getLong(position + 8);
+			value1 = buffer.getLong(position + 16);
+			value2 = buffer.getLong(position + 24);
+			return true;
+		}
+	}
+
+
+	private ByteBuffer read(File file)
+		throws
+			IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(
+				b.remaining() < EventLog.FILE_HEADER_SIZE
+					|| b.getInt(0) != EventLog.MAGIC
+					|| b.getShort(4) != EventLog.VERSION
+					|| b.getShort(6) != EventLog.RECORD_SIZE
+			)
+				throw new IOException("\"" + file + "\" is not an event log file.");
+			currentFileIndex = b.getLong(8);
+			b.position(EventLog.FILE_HEADER_SIZE);
+			return b;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Returns the index of the file of the current record.
+	 */
+	public long getFileIndex()
+	{
+		return currentFileIndex;
+	}
+
+
+	public int getType()
+	{
+		return type;
+	}
+
+
+	/**
+	 * Returns the timestamp of the current record in milliseconds since the epoch.
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+
+	public long getValue1()
+	{
+		return value1;
+	}
+
+
+	public long getValue2()
+	{
+		return value2;
+	}
+
+
+	/**
+	 * Prints all the records of the directory.
+	 */
+	public static void print(File directory, PrintStream out)
+		throws
+			IOException
+	{
+		EventLogReader reader = new EventLogReader(directory);
+		while(reader.next())
+			out.println(
+				reader.getFileIndex() + "\t" + reader.getTimestamp() + "\t" + reader.getType()
+					+ "\t" + reader.getValue1() + "\t" + reader.getValue2()
+			);
+	}
+
+
+	public static void main(String[] args)
+		throws
+			IOException
+	{
+		if(args.length != 1) {
+			System.err.println("Usage: java " + EventLogReader.class.getName() + " log-directory");
+			System.exit(1);
+		}
+		print(new File(args[0]), System.out);
+	}
+}
@@ -0,0 +1,361 @@
+package com.hapiware.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * {@code EventRingBuffer} ships events (e.g. method timings or allocations) out of
+ * the instrumented code. It is a bounded multi-producer single-consumer ring buffer with
+ * preallocated slots, so publishing an event does not allocate and does not take locks. It is
+ * created when the {@code /agent/events} element is defined.
+ * <p>
+ *
+ * An event has an {@code int} type, two {@code long} values (e.g. a method id and a duration)
+ * and an optional payload object. The instrumented code publishes events with
+ * {@link #publish(int, long, long, Object)}. The events are consumed in batches either by
+ * a background daemon thread started with {@link #start(EventHandler)} or by calling
+ * {@link #drain(EventHandler, int)} from a single thread.
+ * <p>
+ *
+ * Every slot has a sequence number telling whether the slot is free for the producer of
+ * a given position or published for the consumer. A producer claims a position by
+ * a compare-and-set on the tail counter, writes the slot and then publishes it by updating
+ * the slot's sequence number. The consumer reads the published slots in order and frees them
+ * by updating their sequence numbers. When the ring buffer is full, the event is either dropped
+ * (and counted) or the producer waits until the consumer has freed a slot, depending on
+ * the {@link Overflow} policy.
+ * <p>
+ *
+ * This class is loaded by the system class loader like the rest of the agent, so it is visible
+ * to the instrumented classes loaded by the system class loader and its descendants.
+ * <p>
+ *
+ * {@code EventRingBuffer} is thread safe, but there must be only one consumer at a time.
+ *
+ * @author hapi
+ *
+ */
+public class EventRingBuffer
+{
+	/**
+	 * The policy for publishing to a full ring buffer.
+	 */
+	public static enum Overflow
+	{
+		/**
+		 * The event is dropped and counted (see {@link EventRingBuffer#getDroppedCount()}).
+		 */
+		DROP,
+
+		/**
+		 * The producer waits until the consumer thread has freed a slot (i.e. back-pressure).
+		 * The event is dropped and counted if the consumer thread is not running (i.e. it has
+		 * not been started, it has been stopped or it has died).
+		 */
+		BLOCK
+	}
+
+
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final long IDLE_NANOS = 100000L;
+	private static final int TAIL = 7;
+	private static volatile EventRingBuffer instance;
+
+
+	private final int mask;
+	private final Overflow overflow;
+	private final int batchSize;
+	private final AtomicLongArray sequences;
+	private final int[] types;
+	private final long[] values;
+	private final Object[] payloads;
+
+	// The tail is kept in the middle of its own array to keep it on a separate cache line.
+	private final AtomicLongArray tail = new AtomicLongArray(2 * TAIL + 1);
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile long head;
+	private volatile Thread consumer;
+	private volatile boolean stopped;
+
+
+	/**
+	 * Returns the ring buffer of the agent or {@code null} if the {@code /agent/events} element
+	 * is not defined.
+	 */
+	public static EventRingBuffer getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(EventRingBuffer ringBuffer)
+	{
+		instance = ringBuffer;
+	}
+
+
+	/**
+	 * Creates a new ring buffer.
+	 *
+	 * @param capacity
+	 * 		The number of slots. The capacity is rounded up to the next power of two.
+	 *
+	 * @param overflow
+	 * 		The policy for publishing to a full ring buffer.
+	 *
+	 * @param batchSize
+	 * 		The maximum number of events handled by the consumer thread in a single batch.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If {@code capacity} or {@code batchSize} is not positive or {@code capacity} is
+	 * 		greater than 2<sup>30</sup>.
+	 */
+	public EventRingBuffer(int capacity, Overflow overflow, int batchSize)
+	{
+		if(capacity <= 0 || capacity > MAX_CAPACITY)
+			throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY + ".");
+		if(batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be greater than zero.");
+
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+			size <<= 1;
+		this.mask = size - 1;
+		this.overflow = overflow;
+		this.batchSize = batchSize;
+		this.sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.types = new int[size];
+		this.values = new long[2 * size];
+		this.payloads = new Object[size];
+	}
+
+
+	public int getCapacity()
+	{
+		return mask + 1;
+	}
+
+
+	public Overflow getOverflow()
+	{
+		return overflow;
+	}
+
+
+	/**
+	 * Publishes an event without a payload.
+	 *
+	 * @see #publish(int, long, long, Object)
+	 */
+	public boolean publish(int type, long value1, long value2)
+	{
+		return publish(type, value1, value2, null);
+	}
+
+
+	/**
+	 * Publishes an event.
+	 *
+	 * @return
+	 * 		{@code true} if the event was published or {@code false} if it was dropped because
+	 * 		the ring buffer was full (or the producer was interrupted while waiting or
+	 * 		the consumer thread was not running).
+	 */
+	public boolean publish(int type, long value1, long value2, Object payload)
+	{
+		long position = tail.get(TAIL);
+		int idleCount = 0;
+		while(true) {
+			int index = (int)position & mask;
+			long difference = sequences.get(index) - position;
+			if(difference == 0) {
+				if(tail.compareAndSet(TAIL, position, position + 1)) {
+					types[index] = type;
+					values[2 * index] = value1;
+					values[2 * index + 1] = value2;
+					payloads[index] = payload;
+					sequences.set(index, position + 1);
+					return true;
+				}
+				position = tail.get(TAIL);
+			}
+			else if(difference < 0) {
+				// The slot has not been freed by the consumer, i.e. the ring buffer is full.
+				if(
+					overflow == Overflow.DROP
+						|| !isConsuming()
+						|| Thread.currentThread().isInterrupted()
+				) {
+					droppedCount.incrementAndGet();
+					return false;
+				}
+				idle(idleCount++);
+				position = tail.get(TAIL);
+			}
+			else
+				position = tail.get(TAIL);
+		}
+	}
+
+
+	/**
+	 * Returns {@code true} if the consumer thread has been started and it is still handling
+	 * the events.
+	 */
+	private boolean isConsuming()
+	{
+		Thread thread = consumer;
+		return !stopped && thread != null && thread.isAlive();
+	}
+
+
+	private static void idle(int idleCount)
+	{
+		if(idleCount < 100)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(IDLE_NANOS);
+	}
+
+
+	/**
+	 * Handles the published events in order. This method must not be called concurrently
+	 * and not at all after {@link #start(EventHandler)}.
+	 *
+	 * @param maxCount
+	 * 		The maximum number of events to handle.
+	 *
+	 * @return
+	 * 		The number of events handled.
+	 */
+	public int drain(EventHandler handler, int maxCount)
+	{
+		long position = head;
+		int count = 0;
+		try {
+			while(count < maxCount) {
+				int index = (int)position & mask;
+				if(sequences.get(index) != position + 1)
+					break;
+				Object payload = payloads[index];
+				payloads[index] = null;
+				try {
+					handler.onEvent(types[index], values[2 * index], values[2 * index + 1], payload);
+				}
+				finally {
+					sequences.set(index, position + mask + 1);
+					position++;
+					count++;
+				}
+			}
+		}
+		finally {
+			head = position;
+			if(count > 0)
+				handler.onBatchEnd(count);
+		}
+		return count;
+	}
+
+
+	/**
+	 * Starts a background daemon thread handling the published events in batches.
+	 *
+	 * @throws IllegalStateException
+	 * 		If the consumer thread has already been started.
+	 */
+	public synchronized void start(final EventHandler handler)
+	{
+		if(consumer != null)
+			throw new IllegalStateException("The consumer thread has already been started.");
+
+		Thread thread =
+			new Thread("agent-event-consumer") {
+				public void run()
+				{
+					int idleCount = 0;
+					while(!stopped) {
+						if(drainBatch(handler, batchSize) == 0)
+							idle(idleCount++);
+						else
+							idleCount = 0;
+					}
+					while(drainBatch(handler, Integer.MAX_VALUE) > 0)
+						continue;
+				}
+			};
+		thread.setDaemon(true);
+		thread.start();
+		consumer = thread;
+	}
+
+
+	/**
+	 * Drains a batch in the consumer thread. An event whose handler fails is skipped, so
+	 * a faulty handler does not stop the consumer thread and block the producers.
+	 *
+	 * @return
+	 * 		The number of events handled or skipped.
+	 */
+	private int drainBatch(EventHandler handler, int maxCount)
+	{
+		try {
+			return drain(handler, maxCount);
+		}
+		catch(VirtualMachineError e) {
+			throw e;
+		}
+		catch(Throwable t) {
+			return 1;
+		}
+	}
+
+
+	/**
+	 * Stops the consumer thread after it has handled the events published so far.
+	 *
+	 * @throws InterruptedException
+	 * 		If interrupted while waiting for the consumer thread to stop.
+	 */
+	public void stop()
+		throws
+			InterruptedException
+	{
+		stopped = true;
+		Thread thread = consumer;
+		if(thread != null)
+			thread.join();
+	}
+
+
+	/**
+	 * Returns the number of events published so far.
+	 */
+	public long getPublishedCount()
+	{
+		return tail.get(TAIL);
+	}
+
+
+	/**
+	 * Returns the number of events dropped because the ring buffer was full.
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+
+	/**
+	 * Returns the number of events published but not yet handled. The value is approximate if
+	 * events are published or handled concurrently.
+	 */
+	public int size()
+	{
+		return (int)Math.max(0, tail.get(TAIL) - head);
+	}
+}
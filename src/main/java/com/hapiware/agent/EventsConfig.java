@@ -0,0 +1,151 @@
+package com.hapiware.agent;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code EventsConfig} is the {@code /agent/events} and {@code /agent/event-log} elements of
+ * the agent configuration file (see {@link Agent}). {@code EventsConfig} is <b>immutable</b>.
+ *
+ * @author hapi
+ *
+ */
+final class EventsConfig
+{
+	private final static int DEFAULT_CAPACITY = 64 * 1024;
+	private final static int DEFAULT_BATCH_SIZE = 256;
+	private final static int MAX_CAPACITY = 1 << 30;
+	private final static long DEFAULT_LOG_FILE_SIZE = 64L * 1024L * 1024L;
+
+
+	private int capacity;
+	private EventRingBuffer.Overflow overflow = EventRingBuffer.Overflow.DROP;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private String logDirectory;
+	private long logFileSize;
+	private int logMaxFiles;
+
+
+	private EventsConfig()
+	{
+		// Created only by read().
+	}
+
+
+	/**
+	 * Reads {@code /agent/events} and {@code /agent/event-log}. The elements are optional.
+	 *
+	 * @throws ConfigurationError
+	 * 		If an element has invalid attributes.
+	 */
+	static EventsConfig read(XPath xpath, Document configDocument)
+		throws
+			XPathExpressionException
+	{
+		EventsConfig config = new EventsConfig();
+
+		// /agent/events
+		Element events =
+			(Element)xpath.evaluate("/agent/events", configDocument, XPathConstants.NODE);
+		if(events != null) {
+			long capacity = Agent.parseSize(events, "capacity", DEFAULT_CAPACITY);
+			if(capacity > MAX_CAPACITY)
+				throw
+					new ConfigurationError(
+						"/agent/events[@capacity] must not be greater than 1g."
+					);
+			config.capacity = (int)capacity;
+			String overflow = events.getAttribute("overflow").trim();
+			if(overflow.equals("block"))
+				config.overflow = EventRingBuffer.Overflow.BLOCK;
+			else if(overflow.length() > 0 && !overflow.equals("drop"))
+				throw
+					new ConfigurationError(
+						"/agent/events[@overflow] must be either \"drop\" or \"block\" but was \""
+							+ overflow + "\"."
+					);
+			long batchSize = Agent.parseSize(events, "batch-size", DEFAULT_BATCH_SIZE);
+			if(batchSize > Integer.MAX_VALUE)
+				throw new ConfigurationError("/agent/events[@batch-size] is too big.");
+			config.batchSize = (int)batchSize;
+		}
+
+		// /agent/event-log
+		Element eventLog =
+			(Element)xpath.evaluate("/agent/event-log", configDocument, XPathConstants.NODE);
+		if(eventLog != null) {
+			config.logDirectory = eventLog.getAttribute("directory");
+			config.logFileSize = Agent.parseSize(eventLog, "file-size", DEFAULT_LOG_FILE_SIZE);
+			if(config.logFileSize > Integer.MAX_VALUE)
+				throw
+					new ConfigurationError(
+						"/agent/event-log[@file-size] must be less than 2g."
+					);
+			if(config.logFileSize < EventLog.FILE_HEADER_SIZE + EventLog.RECORD_SIZE)
+				throw
+					new ConfigurationError(
+						"/agent/event-log[@file-size] must be at least "
+							+ (EventLog.FILE_HEADER_SIZE + EventLog.RECORD_SIZE) + " bytes."
+					);
+			long maxFiles = Agent.parseSize(eventLog, "max-files", 0);
+			if(maxFiles > Integer.MAX_VALUE)
+				throw new ConfigurationError("/agent/event-log[@max-files] is too big.");
+			config.logMaxFiles = (int)maxFiles;
+		}
+		return config;
+	}
+
+
+	/**
+	 * Returns the capacity of the event ring buffer or zero (0) if {@code /agent/events}
+	 * is not defined.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+
+	public EventRingBuffer.Overflow getOverflow()
+	{
+		return overflow;
+	}
+
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+
+	/**
+	 * Returns the directory of the event log or {@code null} if {@code /agent/event-log}
+	 * is not defined.
+	 */
+	public String getLogDirectory()
+	{
+		return logDirectory;
+	}
+
+
+	public long getLogFileSize()
+	{
+		return logFileSize;
+	}
+
+
+	/**
+	 * Returns the maximum number of event log files or zero (0) if all the files are kept.
+	 */
+	public int getLogMaxFiles()
+	{
+		return logMaxFiles;
+	}
+}
@@ -0,0 +1,297 @@
+package com.hapiware.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code FilterConfig} is the {@code /agent/filter} element of the agent configuration file
+ * (see {@link Agent}). {@code FilterConfig} is <b>immutable</b>.
+ *
+ * @author hapi
+ *
+ */
+final class FilterConfig
+{
+	private List<ClassNameMatcher> includeMatchers;
+	private List<ClassNameMatcher> excludeMatchers;
+	private List<String> superClasses;
+	private List<String> interfaces;
+	private List<String> annotations;
+	private List<String> subtypes;
+	private boolean classpathScanned;
+	private boolean statistics;
+	private boolean reorderPatterns;
+	private List<String> excludedLoaders;
+	private List<String> includeMethods;
+	private List<String> excludeMethods;
+
+
+	private FilterConfig()
+	{
+		// Created only by read().
+	}
+
+
+	/**
+	 * Reads {@code /agent/filter}. If there are no {@code <include>} elements, all the classes
+	 * are included.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the element has invalid patterns or attributes.
+	 */
+	static FilterConfig read(XPath xpath, Document configDocument)
+		throws
+			XPathExpressionException
+	{
+		FilterConfig config = new FilterConfig();
+
+		// /agent/filter/include
+		List<ClassNameMatcher> includeMatchers =
+			readClassNameMatchers(xpath, configDocument, "/agent/filter/include");
+		if(includeMatchers.size() == 0)
+			includeMatchers.add(ClassNameMatcher.forPattern(Pattern.compile(".+")));
+		config.includeMatchers = Collections.unmodifiableList(includeMatchers);
+
+		// /agent/filter/exclude
+		config.excludeMatchers =
+			Collections.unmodifiableList(
+				readClassNameMatchers(xpath, configDocument, "/agent/filter/exclude")
+			);
+
+		// /agent/filter/extends, /agent/filter/implements and /agent/filter/annotated
+		config.superClasses = readClassNames(xpath, configDocument, "/agent/filter/extends", false);
+		config.interfaces = readClassNames(xpath, configDocument, "/agent/filter/implements", false);
+		config.annotations = readClassNames(xpath, configDocument, "/agent/filter/annotated", true);
+		config.subtypes = readClassNames(xpath, configDocument, "/agent/filter/subtype-of", false);
+		Element filter =
+			(Element)xpath.evaluate("/agent/filter", configDocument, XPathConstants.NODE);
+		config.classpathScanned =
+			filter != null && Agent.parseBoolean(filter, "scan-classpath", false);
+
+		// /agent/filter[@statistics] and /agent/filter[@reorder-patterns]
+		config.statistics = filter != null && Agent.parseBoolean(filter, "statistics", false);
+		config.reorderPatterns =
+			filter != null && Agent.parseBoolean(filter, "reorder-patterns", false);
+
+		// /agent/filter/exclude-loader
+		config.excludedLoaders = readTexts(xpath, configDocument, "/agent/filter/exclude-loader");
+		try {
+			new ClassLoaderFilter(config.excludedLoaders.toArray(new String[0]), null);
+		}
+		catch(PatternSyntaxException e) {
+			throw
+				new ConfigurationError(
+					"/agent/filter/exclude-loader has an invalid pattern.",
+					e
+				);
+		}
+
+		// /agent/filter/include-method and /agent/filter/exclude-method
+		config.includeMethods = readTexts(xpath, configDocument, "/agent/filter/include-method");
+		config.excludeMethods = readTexts(xpath, configDocument, "/agent/filter/exclude-method");
+		try {
+			new MethodFilter(
+				config.includeMethods.toArray(new String[0]),
+				config.excludeMethods.toArray(new String[0])
+			);
+		}
+		catch(IllegalArgumentException e) {
+			// PatternSyntaxException is an IllegalArgumentException, too.
+			throw
+				new ConfigurationError(
+					"/agent/filter has an invalid method pattern.\n\t->" + e.getMessage(),
+					e
+				);
+		}
+		return config;
+	}
+
+
+	/**
+	 * Reads {@code <include>} or {@code <exclude>} elements. The optional {@code type} attribute
+	 * is either {@code regex} (the default) or {@code glob}.
+	 */
+	private static List<ClassNameMatcher> readClassNameMatchers(
+		XPath xpath,
+		Document configDocument,
+		String expression
+	)
+		throws
+			XPathExpressionException
+	{
+		NodeList entries = (NodeList)xpath.evaluate(expression, configDocument, XPathConstants.NODESET);
+		List<ClassNameMatcher> matchers = new ArrayList<ClassNameMatcher>();
+		for(int i = 0; i < entries.getLength(); i++) {
+			Element entry = (Element)entries.item(i);
+			Node text = entry.getFirstChild();
+			if(text == null)
+				continue;
+			String value = ((Text)text).getData();
+			String type = entry.getAttribute("type").trim();
+			if(type.length() == 0 || type.equals("regex"))
+				matchers.add(ClassNameMatcher.forPattern(Pattern.compile(value)));
+			else if(type.equals("glob")) {
+				try {
+					matchers.add(ClassNameMatcher.forGlob(value));
+				}
+				catch(IllegalArgumentException e) {
+					throw
+						new ConfigurationError(
+							expression + " has an invalid glob pattern.\n\t->" + e.getMessage(),
+							e
+						);
+				}
+			}
+			else
+				throw
+					new ConfigurationError(
+						expression + "[@type] must be either \"regex\" or \"glob\" but was \""
+							+ type + "\"."
+					);
+		}
+		return matchers;
+	}
+
+
+	/**
+	 * Reads the trimmed text contents of the elements selected by {@code expression}.
+	 */
+	private static List<String> readTexts(XPath xpath, Document configDocument, String expression)
+		throws
+			XPathExpressionException
+	{
+		NodeList entries = (NodeList)xpath.evaluate(expression, configDocument, XPathConstants.NODESET);
+		List<String> texts = new ArrayList<String>();
+		for(int i = 0; i < entries.getLength(); i++)
+			texts.add(entries.item(i).getTextContent().trim());
+		return Collections.unmodifiableList(texts);
+	}
+
+
+	/**
+	 * Reads class names from the elements selected by {@code expression} and converts them
+	 * to the internal form (e.g. "java.util.List" to "java/util/List").
+	 *
+	 * @param asDescriptors
+	 * 		{@code true} if the names are returned as type descriptors (e.g. "Ljava/util/List;").
+	 */
+	private static List<String> readClassNames(
+		XPath xpath,
+		Document configDocument,
+		String expression,
+		boolean asDescriptors
+	)
+		throws
+			XPathExpressionException
+	{
+		List<String> names = new ArrayList<String>();
+		for(String text : readTexts(xpath, configDocument, expression)) {
+			String name = text.replace('.', '/');
+			if(asDescriptors && !(name.startsWith("L") && name.endsWith(";")))
+				name = "L" + name + ";";
+			names.add(name);
+		}
+		return Collections.unmodifiableList(names);
+	}
+
+
+	/**
+	 * Returns the {@code <include>} elements as regular expressions. Glob patterns are
+	 * converted to equivalent regular expressions.
+	 */
+	public Pattern[] getIncludePatterns()
+	{
+		return toPatterns(includeMatchers);
+	}
+
+
+	/**
+	 * Returns the {@code <exclude>} elements as regular expressions. Glob patterns are
+	 * converted to equivalent regular expressions.
+	 */
+	public Pattern[] getExcludePatterns()
+	{
+		return toPatterns(excludeMatchers);
+	}
+
+
+	private static Pattern[] toPatterns(List<ClassNameMatcher> matchers)
+	{
+		Pattern[] patterns = new Pattern[matchers.size()];
+		for(int i = 0; i < patterns.length; i++)
+			patterns[i] = matchers.get(i).getPattern();
+		return patterns;
+	}
+
+
+	/**
+	 * Returns the compiled {@code /agent/filter} element.
+	 *
+	 * @param agentClassLoader
+	 * 		The class loader created for the agent delegate (i.e. the one excluded with
+	 * 		{@code <exclude-loader>agent</exclude-loader>}) or {@code null}.
+	 */
+	public ClassFilter getClassFilter(ClassLoader agentClassLoader)
+	{
+		ClassNameMatcher[] includes = includeMatchers.toArray(new ClassNameMatcher[0]);
+		ClassNameMatcher[] excludes = excludeMatchers.toArray(new ClassNameMatcher[0]);
+		return
+			new ClassFilter(
+				includes,
+				excludes,
+				superClasses.toArray(new String[0]),
+				interfaces.toArray(new String[0]),
+				annotations.toArray(new String[0]),
+				subtypes.toArray(new String[0]),
+				excludedLoaders.isEmpty()
+					? null
+					: new ClassLoaderFilter(
+						excludedLoaders.toArray(new String[0]),
+						agentClassLoader
+					),
+				new MethodFilter(
+					includeMethods.toArray(new String[0]),
+					excludeMethods.toArray(new String[0])
+				),
+				statistics || reorderPatterns
+					? new FilterStatistics(includes, excludes, reorderPatterns)
+					: null
+			);
+	}
+
+
+	/**
+	 * Returns {@code true} if the filter statistics are reported at shutdown
+	 * (i.e. {@code /agent/filter[@statistics]} is {@code true}).
+	 */
+	public boolean isStatisticsReported()
+	{
+		return statistics;
+	}
+
+
+	/**
+	 * Returns {@code true} if the application classpath is scanned to the type hierarchy
+	 * (i.e. {@code /agent/filter[@scan-classpath]} is {@code true}).
+	 */
+	public boolean isClasspathScanned()
+	{
+		return classpathScanned;
+	}
+}
@@ -0,0 +1,421 @@
+package com.hapiware.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * {@code FilterStatistics} evaluates the {@code <include>} and {@code <exclude>} patterns of
+ * the {@code /agent/filter} element and collects the number of evaluations, the number of
+ * matches and the time spent for each pattern. It is used by {@link ClassFilter} when
+ * {@code /agent/filter[@statistics]} or {@code /agent/filter[@reorder-patterns]} is
+ * {@code true}.
+ * <p>
+ *
+ * The counters are striped by thread, so that class loading threads do not contend for
+ * the same cache lines. The counters are summed only when the statistics are read.
+ * <p>
+ *
+ * The order of the patterns does not change the result of the filter, because the first
+ * matching exclude (or include) pattern decides and there is no difference which one it is.
+ * The average evaluation cost is minimised by evaluating the patterns in the descending order
+ * of their match probability divided by their average evaluation time
+ * (see {@link #getOptimalOrder(boolean)}). If reordering is enabled, the patterns are reordered
+ * to that order every {@value #REORDER_INTERVAL} class name decisions of a thread stripe.
+ * <p>
+ *
+ * {@code FilterStatistics} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class FilterStatistics
+{
+	static final int REORDER_INTERVAL = 1024;
+	private static final int STRIPES = 16;
+	private static final int FIELDS = 4;
+	private static final int EVALUATIONS = 0;
+	private static final int MATCHES = 1;
+	private static final int NANOS = 2;
+	private static final int MOST_EXPENSIVE = 10;
+	private static volatile FilterStatistics instance;
+
+
+	private final ClassNameMatcher[] includeMatchers;
+	private final ClassNameMatcher[] excludeMatchers;
+	private final boolean reorder;
+	private final int stripeLength;
+	private final AtomicLongArray counters;
+	private final AtomicBoolean reordering = new AtomicBoolean();
+	private volatile int[] includeOrder;
+	private volatile int[] excludeOrder;
+
+
+	/**
+	 * Returns the statistics collected by the agent or {@code null} if neither
+	 * {@code /agent/filter[@statistics]} nor {@code /agent/filter[@reorder-patterns]} is
+	 * {@code true}.
+	 */
+	public static FilterStatistics getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(FilterStatistics statistics)
+	{
+		instance = statistics;
+	}
+
+
+	/**
+	 * Creates new statistics for the patterns.
+	 *
+	 * @param reorder
+	 * 		{@code true} if the patterns are reordered automatically.
+	 */
+	public FilterStatistics(
+		ClassNameMatcher[] includeMatchers,
+		ClassNameMatcher[] excludeMatchers,
+		boolean reorder
+	)
+	{
+		this.includeMatchers = includeMatchers.clone();
+		this.excludeMatchers = excludeMatchers.clone();
+		this.reorder = reorder;
+
+		// Every stripe has its own decision counter followed by the pattern counters. The stripe
+		// length is rounded up to a multiple of 8 longs (i.e. 64 bytes) to keep stripes on
+		// separate cache lines.
+		int length = FIELDS * (1 + includeMatchers.length + excludeMatchers.length);
+		this.stripeLength = (length + 7) & ~7;
+		this.counters = new AtomicLongArray(STRIPES * stripeLength);
+		this.includeOrder = identity(includeMatchers.length);
+		this.excludeOrder = identity(excludeMatchers.length);
+	}
+
+
+	private static int[] identity(int length)
+	{
+		int[] order = new int[length];
+		for(int i = 0; i < length; i++)
+			order[i] = i;
+		return order;
+	}
+
+
+	/**
+	 * Checks if the class name matches at least one of the include patterns and none of
+	 * the exclude patterns and updates the counters.
+	 *
+	 * @see ClassFilter#isIncluded(String)
+	 */
+	public boolean isIncluded(CharSequence className)
+	{
+		int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+		int base = stripe * stripeLength;
+		boolean included = evaluate(className, base);
+		long decisions = counters.incrementAndGet(base);
+		if(reorder && decisions % REORDER_INTERVAL == 0)
+			reorder();
+		return included;
+	}
+
+
+	private boolean evaluate(CharSequence className, int base)
+	{
+		for(int i : excludeOrder)
+			if(evaluate(excludeMatchers[i], className, base + offset(false, i)))
+				return false;
+		for(int i : includeOrder)
+			if(evaluate(includeMatchers[i], className, base + offset(true, i)))
+				return true;
+		return false;
+	}
+
+
+	private boolean evaluate(ClassNameMatcher matcher, CharSequence className, int index)
+	{
+		long start = System.nanoTime();
+		boolean matches = matcher.matches(className);
+		counters.addAndGet(index + NANOS, System.nanoTime() - start);
+		counters.incrementAndGet(index + EVALUATIONS);
+		if(matches)
+			counters.incrementAndGet(index + MATCHES);
+		return matches;
+	}
+
+
+	private int offset(boolean include, int pattern)
+	{
+		return FIELDS * (1 + (include ? pattern : includeMatchers.length + pattern));
+	}
+
+
+	private long sum(int offset)
+	{
+		long sum = 0;
+		for(int stripe = 0; stripe < STRIPES; stripe++)
+			sum += counters.get(stripe * stripeLength + offset);
+		return sum;
+	}
+
+
+	/**
+	 * Reorders the patterns to the optimal order. If another thread is already reordering,
+	 * nothing is done.
+	 */
+	public void reorder()
+	{
+		if(!reordering.compareAndSet(false, true))
+			return;
+		try {
+			includeOrder = indexes(getOptimalOrder(true));
+			excludeOrder = indexes(getOptimalOrder(false));
+		}
+		finally {
+			reordering.set(false);
+		}
+	}
+
+
+	private static int[] indexes(List<PatternStatistics> statistics)
+	{
+		int[] order = new int[statistics.size()];
+		for(int i = 0; i < order.length; i++)
+			order[i] = statistics.get(i).index;
+		return order;
+	}
+
+
+	/**
+	 * Returns the number of class name decisions.
+	 */
+	public long getDecisionCount()
+	{
+		return sum(0);
+	}
+
+
+	/**
+	 * Returns the statistics of the include (or exclude) patterns in the original order.
+	 */
+	public List<PatternStatistics> getPatternStatistics(boolean include)
+	{
+		ClassNameMatcher[] matchers = include ? includeMatchers : excludeMatchers;
+		List<PatternStatistics> statistics = new ArrayList<PatternStatistics>(matchers.length);
+		for(int i = 0; i < matchers.length; i++) {
+			int offset = offset(include, i);
+			statistics.add(
+				new PatternStatistics(
+					include,
+					i,
+					matchers[i].toString(),
+					sum(offset + EVALUATIONS),
+					sum(offset + MATCHES),
+					sum(offset + NANOS)
+				)
+			);
+		}
+		return statistics;
+	}
+
+
+	/**
+	 * Returns the include (or exclude) patterns in the order which minimises the average
+	 * evaluation cost with the statistics collected so far. The patterns never evaluated keep
+	 * their relative order at the end.
+	 */
+	public List<PatternStatistics> getOptimalOrder(boolean include)
+	{
+		List<PatternStatistics> statistics = getPatternStatistics(include);
+		Collections.sort(
+			statistics,
+			new Comparator<PatternStatistics>() {
+				public int compare(PatternStatistics s1, PatternStatistics s2)
+				{
+					return Double.compare(s2.getBenefit(), s1.getBenefit());
+				}
+			}
+		);
+		return statistics;
+	}
+
+
+	/**
+	 * Returns the patterns which have never matched (exclude patterns first).
+	 */
+	public List<PatternStatistics> getNeverMatchingPatterns()
+	{
+		List<PatternStatistics> neverMatching = new ArrayList<PatternStatistics>();
+		for(boolean include : new boolean[] {false, true})
+			for(PatternStatistics s : getPatternStatistics(include))
+				if(s.getMatches() == 0)
+					neverMatching.add(s);
+		return neverMatching;
+	}
+
+
+	/**
+	 * Returns all the patterns in the descending order of the total evaluation time.
+	 */
+	public List<PatternStatistics> getMostExpensivePatterns()
+	{
+		List<PatternStatistics> statistics = getPatternStatistics(false);
+		statistics.addAll(getPatternStatistics(true));
+		Collections.sort(
+			statistics,
+			new Comparator<PatternStatistics>() {
+				public int compare(PatternStatistics s1, PatternStatistics s2)
+				{
+					return s2.getNanos() < s1.getNanos() ? -1 : (s2.getNanos() == s1.getNanos() ? 0 : 1);
+				}
+			}
+		);
+		return statistics;
+	}
+
+
+	/**
+	 * Returns a human readable report of the never matching patterns, the most expensive
+	 * patterns and the optimal pattern order.
+	 */
+	public String getReport()
+	{
+		String newLine = System.getProperty("line.separator");
+		StringBuilder report = new StringBuilder();
+		report.append("Agent filter statistics (");
+		report.append(getDecisionCount());
+		report.append(" class name decisions");
+		if(reorder)
+			report.append(", patterns reordered automatically");
+		report.append("):").append(newLine);
+
+		report.append("Never matching patterns:").append(newLine);
+		List<PatternStatistics> neverMatching = getNeverMatchingPatterns();
+		if(neverMatching.isEmpty())
+			report.append("\t(none)").append(newLine);
+		for(PatternStatistics s : neverMatching)
+			report.append('\t').append(s).append(newLine);
+
+		report.append("Most expensive patterns:").append(newLine);
+		List<PatternStatistics> mostExpensive = getMostExpensivePatterns();
+		for(PatternStatistics s : mostExpensive.subList(0, Math.min(MOST_EXPENSIVE, mostExpensive.size())))
+			report.append('\t').append(s).append(newLine);
+
+		for(boolean include : new boolean[] {false, true}) {
+			report.append("Optimal ").append(include ? "include" : "exclude").append(" order:");
+			report.append(newLine);
+			for(PatternStatistics s : getOptimalOrder(include))
+				report.append('\t').append(s.getPattern()).append(newLine);
+		}
+		return report.toString();
+	}
+
+
+	/**
+	 * Returns the current evaluation order of the include (or exclude) patterns as indexes to
+	 * the original order.
+	 */
+	int[] getEvaluationOrder(boolean include)
+	{
+		return (include ? includeOrder : excludeOrder).clone();
+	}
+
+
+	/**
+	 * A snapshot of the statistics of a single pattern.
+	 */
+	public static class PatternStatistics
+	{
+		private final boolean include;
+		private final int index;
+		private final String pattern;
+		private final long evaluations;
+		private final long matches;
+		private final long nanos;
+
+		private PatternStatistics(
+			boolean include,
+			int index,
+			String pattern,
+			long evaluations,
+			long matches,
+			long nanos
+		)
+		{
+			this.include = include;
+			this.index = index;
+			this.pattern = pattern;
+			this.evaluations = evaluations;
+			this.matches = matches;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * Returns {@code true} for an {@code <include>} pattern and {@code false} for
+		 * an {@code <exclude>} pattern.
+		 */
+		public boolean isInclude()
+		{
+			return include;
+		}
+
+		/**
+		 * Returns the index of the pattern in the configuration file (among the other include
+		 * or exclude patterns).
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public String getPattern()
+		{
+			return pattern;
+		}
+
+		public long getEvaluations()
+		{
+			return evaluations;
+		}
+
+		public long getMatches()
+		{
+			return matches;
+		}
+
+		/**
+		 * Returns the total evaluation time in nanoseconds.
+		 */
+		public long getNanos()
+		{
+			return nanos;
+		}
+
+		/**
+		 * Returns the match probability divided by the average evaluation time. Patterns are
+		 * evaluated in the descending order of this value.
+		 */
+		double getBenefit()
+		{
+			if(evaluations == 0)
+				return 0.0;
+			return ((double)matches / evaluations) / Math.max(1.0, (double)nanos / evaluations);
+		}
+
+		public String toString()
+		{
+			return
+				(include ? "include " : "exclude ") + pattern
+					+ " (evaluations " + evaluations
+					+ ", matches " + matches
+					+ ", total " + nanos / 1000 + " us"
+					+ ", " + (evaluations == 0 ? 0 : nanos / evaluations) + " ns/evaluation)";
+		}
+	}
+}
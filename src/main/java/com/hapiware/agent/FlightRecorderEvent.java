@@ -0,0 +1,562 @@
+package com.hapiware.agent;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * {@code FlightRecorderEvent} is a custom JDK Flight Recorder (JFR) event type emitted by
+ * the agent. JFR is available only in Java 11 and later (and in some Java 8 builds), so
+ * the event types are defined at run time with {@code jdk.jfr.EventFactory} and all the JFR
+ * methods are called by reflection. On a JVM without JFR the events are silently disabled.
+ * <p>
+ *
+ * The event types are defined lazily when the flight recorder has been initialized (i.e.
+ * a recording has been started), so the agent does not load the JFR classes at startup unless
+ * they are used. When the flight recorder is not running or the event type is disabled in
+ * the recording settings, {@link #begin()} costs two reflective calls and returns
+ * {@code null}. Stack traces are not recorded.
+ * <p>
+ *
+ * The agent reads its configuration and starts the delegate in {@code premain()}, which is
+ * before a recording started with {@code -XX:StartFlightRecording} is running. That is why
+ * the startup event types ({@link #CONFIGURATION_PHASE} and {@link #DELEGATE}) are deferred:
+ * their timings are kept in memory (at most 64 of them) and committed
+ * when the first recording starts running, which is found out with
+ * a {@code jdk.jfr.FlightRecorderListener}. JFR times a deferred event from its commit, so
+ * the startup event types have an {@code elapsedTime} field telling the real duration.
+ * <p>
+ *
+ * An event is emitted like this:
+ * <pre>
+ * 	Object event = FlightRecorderEvent.TRANSFORM.begin();
+ * 	...
+ * 	if(event != null)
+ * 		FlightRecorderEvent.TRANSFORM.commit(event, className, loaderName, ...);
+ * </pre>
+ * The values are given in the order of the fields of the event type. The duration of
+ * the event is from {@link #begin()} to {@link #commit(Object, Object...)}.
+ * <p>
+ *
+ * {@code FlightRecorderEvent} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+final class FlightRecorderEvent
+{
+	private static final String CATEGORY = "Agent";
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+	private static final int MAX_DEFERRED = 64;
+
+
+	/**
+	 * A phase of reading the agent configuration file ({@code parse}, {@code validation},
+	 * {@code variables} or {@code elements}).
+	 */
+	static final FlightRecorderEvent CONFIGURATION_PHASE =
+		new FlightRecorderEvent(
+			"com.hapiware.agent.ConfigurationPhase",
+			"Agent Configuration Phase",
+			null,
+			true,
+			new Object[] {
+				String.class, "phase", "Phase",
+				String.class, "file", "Configuration File"
+			}
+		);
+
+	/**
+	 * Loading the agent delegate ({@code load}) or calling its {@code premain()}
+	 * ({@code premain}).
+	 */
+	static final FlightRecorderEvent DELEGATE =
+		new FlightRecorderEvent(
+			"com.hapiware.agent.Delegate",
+			"Agent Delegate",
+			null,
+			true,
+			new Object[] {
+				String.class, "phase", "Phase",
+				String.class, "delegate", "Delegate Class"
+			}
+		);
+
+	/**
+	 * A call to a transformer of the agent delegate lasting at least a millisecond
+	 * (by default).
+	 */
+	static final FlightRecorderEvent TRANSFORM =
+		new FlightRecorderEvent(
+			"com.hapiware.agent.Transform",
+			"Agent Transform",
+			"1 ms",
+			false,
+			new Object[] {
+				String.class, "className", "Class Name",
+				String.class, "classLoader", "Class Loader",
+				int.class, "originalSize", "Original Size",
+				int.class, "transformedSize", "Transformed Size",
+				boolean.class, "changed", "Changed"
+			}
+		);
+
+	/**
+	 * A batch of retransformed classes.
+	 */
+	static final FlightRecorderEvent RETRANSFORM_BATCH =
+		new FlightRecorderEvent(
+			"com.hapiware.agent.RetransformBatch",
+			"Agent Retransform Batch",
+			null,
+			false,
+			new Object[] {
+				int.class, "classCount", "Class Count",
+				int.class, "retransformedCount", "Retransformed Count"
+			}
+		);
+
+
+	private static final Method isInitialized = findIsInitialized();
+
+	private static final Object deferredLock = new Object();
+	private static final List<Deferred> deferred = new ArrayList<Deferred>();
+	private static boolean listenerAdded;
+	private static volatile boolean recordingStarted;
+
+
+	private final String name;
+	private final String label;
+	private final String threshold;
+	private final boolean startup;
+	private final Object[] fields;
+	private volatile boolean defined;
+	private volatile Definition definition;
+
+
+	/**
+	 * @param threshold
+	 * 		The default threshold of the event (e.g. {@code "1 ms"}) or {@code null} if all
+	 * 		the events are recorded.
+	 *
+	 * @param startup
+	 * 		{@code true} if the events are deferred until a recording is running.
+	 *
+	 * @param fields
+	 * 		Triples of the type, the name and the label of every field.
+	 */
+	private FlightRecorderEvent(
+		String name,
+		String label,
+		String threshold,
+		boolean startup,
+		Object[] fields
+	)
+	{
+		this.name = name;
+		this.label = label;
+		this.threshold = threshold;
+		this.startup = startup;
+		this.fields = fields;
+	}
+
+
+	private static Method findIsInitialized()
+	{
+		try {
+			return Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized");
+		}
+		catch(Exception e) {
+			return null;
+		}
+		catch(LinkageError e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Returns {@code true} if JFR is available in this JVM.
+	 */
+	static boolean isAvailable()
+	{
+		return isInitialized != null;
+	}
+
+
+	String getName()
+	{
+		return name;
+	}
+
+
+	/**
+	 * Starts timing an event.
+	 *
+	 * @return
+	 * 		The event or {@code null} if the event type is not enabled.
+	 */
+	Object begin()
+	{
+		if(startup && isInitialized != null) {
+			if(!recordingStarted)
+				return new Deferred(this, System.nanoTime());
+			Definition d = definition();
+			if(d == null || !isTypeEnabled(d))
+				return null;
+			return new Deferred(this, System.nanoTime());
+		}
+		Definition d = definition();
+		if(d == null)
+			return null;
+		try {
+			if(!(Boolean)d.isEnabled.invoke(d.eventType, NO_ARGUMENTS))
+				return null;
+			Object event = d.newEvent.invoke(d.factory, NO_ARGUMENTS);
+			d.begin.invoke(event, NO_ARGUMENTS);
+			return event;
+		}
+		catch(Exception e) {
+			definition = null;
+			return null;
+		}
+	}
+
+
+	/**
+	 * Ends timing the event and commits it with the given field values. The event is not
+	 * recorded if it is shorter than the threshold of the event type.
+	 *
+	 * @param event
+	 * 		The event returned by {@link #begin()}. If {@code null}, nothing is done.
+	 */
+	void commit(Object event, Object... values)
+	{
+		if(event instanceof Deferred) {
+			Deferred deferredEvent = (Deferred)event;
+			deferredEvent.elapsedTime = System.nanoTime() - deferredEvent.startTime;
+			deferredEvent.values = values;
+			if(!defer(deferredEvent))
+				deferredEvent.commit();
+			return;
+		}
+		Definition d = definition;
+		if(event == null || d == null)
+			return;
+		try {
+			d.end.invoke(event, NO_ARGUMENTS);
+			for(int i = 0; i < values.length; i++)
+				d.set.invoke(event, i, values[i]);
+			d.commit.invoke(event, NO_ARGUMENTS);
+		}
+		catch(Exception e) {
+			definition = null;
+		}
+	}
+
+
+	private static boolean isTypeEnabled(Definition d)
+	{
+		try {
+			return (Boolean)d.isEnabled.invoke(d.eventType, NO_ARGUMENTS);
+		}
+		catch(Exception e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Keeps the event in memory if no recording has been running yet.
+	 *
+	 * @return
+	 * 		{@code true} if the event was deferred (or dropped because there are too many of
+	 * 		them) and {@code false} if it can be committed right away.
+	 */
+	private static boolean defer(Deferred event)
+	{
+		boolean addListener;
+		synchronized(deferredLock) {
+			if(recordingStarted)
+				return false;
+			if(deferred.size() < MAX_DEFERRED)
+				deferred.add(event);
+			addListener = !listenerAdded;
+			listenerAdded = true;
+		}
+		if(addListener)
+			addListener();
+		return true;
+	}
+
+
+	/**
+	 * Commits the deferred events once a recording is running. After that the startup events
+	 * are committed right away.
+	 */
+	private static void commitDeferred()
+	{
+		List<Deferred> events;
+		synchronized(deferredLock) {
+			if(recordingStarted)
+				return;
+			events = new ArrayList<Deferred>(deferred);
+			deferred.clear();
+			recordingStarted = true;
+		}
+		for(Deferred event : events)
+			event.commit();
+	}
+
+
+	/**
+	 * Adds a {@code jdk.jfr.FlightRecorderListener} which calls {@link #commitDeferred()} when
+	 * a recording starts running (or is already running when the listener is added).
+	 */
+	private static void addListener()
+	{
+		try {
+			final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+			final Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+			final Method getState = Class.forName("jdk.jfr.Recording").getMethod("getState");
+			final Method getRecordings = recorderClass.getMethod("getRecordings");
+			Object listener =
+				Proxy.newProxyInstance(
+					FlightRecorderEvent.class.getClassLoader(),
+					new Class[] {listenerClass},
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args)
+							throws
+								Throwable
+						{
+							String methodName = method.getName();
+							if(methodName.equals("recorderInitialized")) {
+								for(Object recording : (List<?>)getRecordings.invoke(args[0]))
+									if(isRunning(recording))
+										commitDeferred();
+							}
+							else if(methodName.equals("recordingStateChanged")) {
+								if(isRunning(args[0]))
+									commitDeferred();
+							}
+							else if(methodName.equals("equals"))
+								return proxy == args[0];
+							else if(methodName.equals("hashCode"))
+								return System.identityHashCode(proxy);
+							else if(methodName.equals("toString"))
+								return FlightRecorderEvent.class.getName() + " listener";
+							return null;
+						}
+
+						private boolean isRunning(Object recording) throws Exception
+						{
+							return getState.invoke(recording).toString().equals("RUNNING");
+						}
+					}
+				);
+			recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+		}
+		catch(Exception e) {
+			// The startup events are never committed.
+		}
+		catch(LinkageError e) {
+			// The startup events are never committed.
+		}
+	}
+
+
+	/**
+	 * Returns the definition of the event type or {@code null} if JFR is not available or
+	 * the flight recorder has not been initialized yet. The event type is defined (and
+	 * registered to JFR) once.
+	 */
+	private Definition definition()
+	{
+		if(defined)
+			return definition;
+		if(isInitialized == null)
+			return null;
+		try {
+			if(!(Boolean)isInitialized.invoke(null, NO_ARGUMENTS))
+				return null;
+		}
+		catch(Exception e) {
+			return null;
+		}
+		synchronized(this) {
+			if(!defined) {
+				definition = define();
+				defined = true;
+			}
+		}
+		return definition;
+	}
+
+
+	private Definition define()
+	{
+		try {
+			Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			Constructor<?> annotationElement =
+				annotationElementClass.getConstructor(Class.class, Object.class);
+			Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Constructor<?> valueDescriptor =
+				valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Name"), name));
+			annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Label"), label));
+			annotations.add(
+				annotationElement.newInstance(
+					annotation("jdk.jfr.Category"),
+					new String[] {CATEGORY}
+				)
+			);
+			annotations.add(
+				annotationElement.newInstance(annotation("jdk.jfr.StackTrace"), Boolean.FALSE)
+			);
+			if(threshold != null)
+				annotations.add(
+					annotationElement.newInstance(annotation("jdk.jfr.Threshold"), threshold)
+				);
+
+			List<Object> valueDescriptors = new ArrayList<Object>();
+			for(int i = 0; i < fields.length; i += 3) {
+				Object fieldLabel =
+					annotationElement.newInstance(annotation("jdk.jfr.Label"), fields[i + 2]);
+				valueDescriptors.add(
+					valueDescriptor.newInstance(fields[i], fields[i + 1], Arrays.asList(fieldLabel))
+				);
+			}
+			if(startup) {
+				Object fieldLabel =
+					annotationElement.newInstance(annotation("jdk.jfr.Label"), "Elapsed Time");
+				Object timespan =
+					annotationElement.newInstance(annotation("jdk.jfr.Timespan"), "NANOSECONDS");
+				valueDescriptors.add(
+					valueDescriptor.newInstance(
+						long.class,
+						"elapsedTime",
+						Arrays.asList(fieldLabel, timespan)
+					)
+				);
+			}
+
+			Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+			Object factory =
+				eventFactoryClass.getMethod("create", List.class, List.class).invoke(
+					null,
+					annotations,
+					valueDescriptors
+				);
+			Object eventType = eventFactoryClass.getMethod("getEventType").invoke(factory);
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			return
+				new Definition(
+					factory,
+					eventType,
+					Class.forName("jdk.jfr.EventType").getMethod("isEnabled"),
+					eventFactoryClass.getMethod("newEvent"),
+					eventClass.getMethod("begin"),
+					eventClass.getMethod("end"),
+					eventClass.getMethod("set", int.class, Object.class),
+					eventClass.getMethod("commit")
+				);
+		}
+		catch(Exception e) {
+			return null;
+		}
+		catch(LinkageError e) {
+			return null;
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotation(String className)
+		throws
+			ClassNotFoundException
+	{
+		return (Class<? extends Annotation>)Class.forName(className);
+	}
+
+
+	/**
+	 * A timed startup event waiting to be committed.
+	 */
+	private static class Deferred
+	{
+		private final FlightRecorderEvent type;
+		private final long startTime;
+		private long elapsedTime;
+		private Object[] values;
+
+		public Deferred(FlightRecorderEvent type, long startTime)
+		{
+			this.type = type;
+			this.startTime = startTime;
+		}
+
+		public void commit()
+		{
+			Definition d = type.definition();
+			if(d == null || !isTypeEnabled(d))
+				return;
+			try {
+				Object event = d.newEvent.invoke(d.factory, NO_ARGUMENTS);
+				d.begin.invoke(event, NO_ARGUMENTS);
+				d.end.invoke(event, NO_ARGUMENTS);
+				for(int i = 0; i < values.length; i++)
+					d.set.invoke(event, i, values[i]);
+				d.set.invoke(event, values.length, elapsedTime);
+				d.commit.invoke(event, NO_ARGUMENTS);
+			}
+			catch(Exception e) {
+				type.definition = null;
+			}
+		}
+	}
+
+
+	/**
+	 * The event factory and the reflected JFR methods of a defined event type.
+	 */
+	private static class Definition
+	{
+		private final Object factory;
+		private final Object eventType;
+		private final Method isEnabled;
+		private final Method newEvent;
+		private final Method begin;
+		private final Method end;
+		private final Method set;
+		private final Method commit;
+
+		public Definition(
+			Object factory,
+			Object eventType,
+			Method isEnabled,
+			Method newEvent,
+			Method begin,
+			Method end,
+			Method set,
+			Method commit
+		)
+		{
+			this.factory = factory;
+			this.eventType = eventType;
+			this.isEnabled = isEnabled;
+			this.newEvent = newEvent;
+			this.begin = begin;
+			this.end = end;
+			this.set = set;
+			this.commit = commit;
+		}
+	}
+}
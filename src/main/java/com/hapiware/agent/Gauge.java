@@ -0,0 +1,50 @@
+package com.hapiware.agent;
+
+
+/**
+ * {@code Gauge} is a metric of {@link Metrics} holding the last value set (e.g. a queue length
+ * or a pool size). A gauge is meant to be set now and then rather than on every invocation,
+ * so it is a single volatile value. Use {@link Counter} for values updated frequently from
+ * several threads.
+ * <p>
+ *
+ * {@code Gauge} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public final class Gauge
+{
+	private final String name;
+
+	// Keeps the value on its own cache line.
+	@SuppressWarnings("unused")
+	private long p1, p2, p3, p4, p5, p6, p7;
+	private volatile long value;
+	@SuppressWarnings("unused")
+	private long q1, q2, q3, q4, q5, q6, q7;
+
+
+	Gauge(String name)
+	{
+		this.name = name;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public void set(long value)
+	{
+		this.value = value;
+	}
+
+
+	public long get()
+	{
+		return value;
+	}
+}
@@ -0,0 +1,210 @@
+package com.hapiware.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * {@code Histogram} is a metric of {@link Metrics} recording the distribution of non-negative
+ * values (e.g. method timings in nanoseconds). The buckets are log-linear: values below 16 have
+ * their own buckets and every power of two above that is split into 16 linear sub-buckets,
+ * so the relative error of a bucket is at most 1/16 (6.25%) over the whole {@code long} range.
+ * Recording a value is a single atomic increment without allocation.
+ * <p>
+ *
+ * Like {@link Counter} the histogram has a row of buckets per stripe, so threads recording
+ * concurrently do not contend on the same cache lines. The rows are summed on read with
+ * {@link #getSnapshot()}. A row takes about 8 KB of memory.
+ * <p>
+ *
+ * {@code Histogram} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public final class Histogram
+{
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The number of buckets. The greatest {@code long} has the exponent 62.
+	 */
+	static final int BUCKETS = (62 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+	/**
+	 * The length of a stripe row: the sum of the values and the buckets padded to full
+	 * cache lines.
+	 */
+	private static final int ROW =
+		(1 + BUCKETS + Counter.PADDING - 1) / Counter.PADDING * Counter.PADDING;
+
+
+	private final String name;
+	private final int mask;
+	private final AtomicLongArray cells;
+
+
+	Histogram(String name, int stripes)
+	{
+		this.name = name;
+		this.mask = stripes - 1;
+		this.cells = new AtomicLongArray(Counter.PADDING + stripes * ROW + Counter.PADDING);
+	}
+
+
+	/**
+	 * Returns the index of the bucket for the value.
+	 */
+	static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return
+			(exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+				+ (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+
+	/**
+	 * Returns the smallest value of the bucket.
+	 */
+	static long lowerBound(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+	}
+
+
+	/**
+	 * Returns the greatest value of the bucket.
+	 */
+	static long upperBound(int bucket)
+	{
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	/**
+	 * Records a value. Negative values are recorded as zero (0).
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+		int row = Counter.PADDING + Metrics.stripe(mask) * ROW;
+		cells.getAndIncrement(row + 1 + bucket(value));
+		cells.getAndAdd(row, value);
+	}
+
+
+	/**
+	 * Sums the stripes. The values recorded concurrently with the read may or may not be
+	 * included.
+	 */
+	public Snapshot getSnapshot()
+	{
+		long[] buckets = new long[BUCKETS];
+		long sum = 0;
+		for(int row = Counter.PADDING; row < cells.length() - Counter.PADDING; row += ROW) {
+			sum += cells.get(row);
+			for(int i = 0; i < BUCKETS; i++)
+				buckets[i] += cells.get(row + 1 + i);
+		}
+		return new Snapshot(buckets, sum);
+	}
+
+
+	/**
+	 * An immutable view of the histogram at the time of reading.
+	 *
+	 * @author hapi
+	 *
+	 */
+	public static final class Snapshot
+	{
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+
+
+		Snapshot(long[] buckets, long sum)
+		{
+			long count = 0;
+			for(long b : buckets)
+				count += b;
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+		}
+
+
+		public long getCount()
+		{
+			return count;
+		}
+
+
+		/**
+		 * Returns the sum of the recorded values. The sum wraps around on overflow.
+		 */
+		public long getSum()
+		{
+			return sum;
+		}
+
+
+		/**
+		 * Returns the mean of the recorded values or zero (0) if there are none.
+		 */
+		public long getMean()
+		{
+			return count == 0 ? 0 : sum / count;
+		}
+
+
+		/**
+		 * Returns the upper bound of the bucket holding the value at the given percentile.
+		 *
+		 * @param percentile
+		 * 		The percentile between {@code 0.0} and {@code 100.0}.
+		 *
+		 * @return
+		 * 		The value or zero (0) if there are no recorded values.
+		 */
+		public long getValueAtPercentile(double percentile)
+		{
+			if(count == 0)
+				return 0;
+			long rank = Math.max(1, (long)Math.ceil(count * Math.min(100.0, percentile) / 100.0));
+			long seen = 0;
+			for(int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if(seen >= rank)
+					return upperBound(i);
+			}
+			return upperBound(buckets.length - 1);
+		}
+
+
+		/**
+		 * Returns the upper bound of the highest non-empty bucket or zero (0) if there are no
+		 * recorded values.
+		 */
+		public long getMax()
+		{
+			for(int i = buckets.length - 1; i >= 0; i--)
+				if(buckets[i] > 0)
+					return upperBound(i);
+			return 0;
+		}
+	}
+}
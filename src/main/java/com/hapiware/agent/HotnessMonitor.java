@@ -0,0 +1,477 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * {@code HotnessMonitor} instruments only the hot classes with the transformers of the agent
+ * delegate. It is used when {@code /agent/transformer[@activation]} is {@code hotness}.
+ * <p>
+ *
+ * The classes matching the {@code /agent/filter} element are first instrumented only with
+ * a minimal invocation-count probe (see {@link ProbeInserter} and {@link HotnessProbe}) and
+ * the delegate's transformers are not called for them (see {@link #isProbed(ClassLoader, String)}).
+ * A background daemon thread collects the invocation counts periodically. A class becomes hot when at least one of its methods has
+ * been invoked {@code threshold} times during a collection interval. The hot classes are then
+ * retransformed: the probes are removed and the delegate's transformers instrument the classes
+ * fully. The classes not matching the {@code /agent/filter} element are passed to
+ * the delegate's transformers as usual.
+ * <p>
+ *
+ * This keeps the overhead of the full instrumentation away from the code which is run only
+ * rarely (e.g. startup and configuration code). The probes are inserted only to the classes
+ * loaded after the probe transformer has been installed by class loaders which can see
+ * the agent classes (i.e. not by the bootstrap class loader). The classes which are not probed
+ * for some reason (e.g. a class loader cannot see {@link HotnessProbe} or a class does not have
+ * any methods to probe) are passed to the delegate's transformers as usual. The classes are
+ * identified by their class loaders and names, so a class becoming hot in one class loader does
+ * not make a class with the same name hot in another.
+ * <p>
+ *
+ * Retransforming requires Java 6 or later.
+ * <p>
+ *
+ * {@code HotnessMonitor} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class HotnessMonitor
+{
+	private final static String PROBE_CLASS_FILE = getClassFile(HotnessProbe.class);
+
+
+	private static volatile HotnessMonitor instance;
+
+
+	private final ClassFilter classFilter;
+	private final int threshold;
+	private final long interval;
+	private final Retransformer retransformer;
+	private final ClassFileTransformer probeTransformer = new ProbeTransformer();
+	private final ConcurrentMap<String, String> hotClasses = new ConcurrentHashMap<String, String>();
+	private final Map<ClassLoader, Map<String, ProbedClass>> probedClasses =
+		new WeakHashMap<ClassLoader, Map<String, ProbedClass>>();
+	private final Map<ClassLoader, Boolean> probeVisibility = new WeakHashMap<ClassLoader, Boolean>();
+	private final AtomicInteger probedCount = new AtomicInteger();
+	private final AtomicInteger retransformedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+
+
+	/**
+	 * Returns the hotness monitor of the agent or {@code null} if
+	 * {@code /agent/transformer[@activation]} is not {@code hotness}.
+	 */
+	public static HotnessMonitor getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(HotnessMonitor monitor)
+	{
+		instance = monitor;
+	}
+
+
+	/**
+	 * Creates a new monitor.
+	 *
+	 * @param instrumentation
+	 * 		The original {@code Instrumentation}.
+	 *
+	 * @param classFilter
+	 * 		The filter for selecting the probed classes.
+	 *
+	 * @param threshold
+	 * 		The number of invocations of a single method during {@code interval} making its class
+	 * 		hot.
+	 *
+	 * @param interval
+	 * 		The collection interval in milliseconds.
+	 *
+	 * @param batchSize
+	 * 		The number of hot classes retransformed at once.
+	 *
+	 * @param batchInterval
+	 * 		The pause between the batches in milliseconds.
+	 */
+	public HotnessMonitor(
+		Instrumentation instrumentation,
+		ClassFilter classFilter,
+		int threshold,
+		long interval,
+		int batchSize,
+		long batchInterval
+	)
+	{
+		this.classFilter = classFilter;
+		this.threshold = threshold;
+		this.interval = interval;
+		this.retransformer = new Retransformer(instrumentation, batchSize, batchInterval);
+	}
+
+
+	/**
+	 * Registers the probe transformer. This must be done before the delegate's transformers are
+	 * registered, so that the probes are inserted before the delegate's transformers are called.
+	 */
+	void install()
+	{
+		retransformer.addTransformer(probeTransformer);
+	}
+
+
+	/**
+	 * Starts the background thread collecting the invocation counts.
+	 */
+	void start()
+	{
+		Thread thread =
+			new Thread("agent-hotness-monitor") {
+				public void run()
+				{
+					try {
+						while(true) {
+							Thread.sleep(interval);
+							collect();
+						}
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Returns the transformer inserting the invocation-count probes.
+	 */
+	ClassFileTransformer getProbeTransformer()
+	{
+		return probeTransformer;
+	}
+
+
+	/**
+	 * Returns {@code true} if the class has become hot (in any class loader) and it is
+	 * instrumented by the delegate's transformers.
+	 *
+	 * @param className
+	 * 		The name of the class in the internal form (e.g. "java/util/ArrayList").
+	 */
+	public boolean isHot(String className)
+	{
+		return hotClasses.containsKey(className);
+	}
+
+
+	/**
+	 * Returns {@code true} if the class carries the invocation-count probes, i.e. it has been
+	 * probed but it has not become hot yet. The delegate's transformers are not called for
+	 * the probed classes.
+	 *
+	 * @param className
+	 * 		The name of the class in the internal form (e.g. "java/util/ArrayList").
+	 */
+	boolean isProbed(ClassLoader loader, String className)
+	{
+		ProbedClass probed = getProbedClass(loader, className);
+		return probed != null && probed.hotMethod == null;
+	}
+
+
+	private ProbedClass getProbedClass(ClassLoader loader, String className)
+	{
+		if(loader == null)
+			return null;
+		synchronized(probedClasses) {
+			Map<String, ProbedClass> classes = probedClasses.get(loader);
+			return classes == null ? null : classes.get(className);
+		}
+	}
+
+
+	private void removeProbedClass(ClassLoader loader, String className)
+	{
+		synchronized(probedClasses) {
+			Map<String, ProbedClass> classes = probedClasses.get(loader);
+			if(classes != null)
+				classes.remove(className);
+		}
+	}
+
+
+	/**
+	 * Returns the names of the hot classes (in any class loader) in the internal form in
+	 * alphabetical order.
+	 */
+	public Set<String> getHotClassNames()
+	{
+		return Collections.unmodifiableSet(new TreeSet<String>(hotClasses.keySet()));
+	}
+
+
+	/**
+	 * Returns the name and descriptor of the method which made the class hot (in the class loader
+	 * where it became hot first) or {@code null} if the class is not hot.
+	 */
+	public String getHotMethod(String className)
+	{
+		return hotClasses.get(className);
+	}
+
+
+	/**
+	 * Returns the number of classes instrumented with the invocation-count probe.
+	 */
+	public int getProbedCount()
+	{
+		return probedCount.get();
+	}
+
+
+	/**
+	 * Returns the number of hot classes retransformed.
+	 */
+	public int getRetransformedCount()
+	{
+		return retransformedCount.get();
+	}
+
+
+	/**
+	 * Returns the number of hot classes whose retransformation failed.
+	 */
+	public int getFailedCount()
+	{
+		return failedCount.get();
+	}
+
+
+	/**
+	 * Collects the invocation counts, resets the counters and retransforms the classes which
+	 * have become hot. This is done periodically by the background thread.
+	 *
+	 * @return
+	 * 		The names of the classes which became hot.
+	 *
+	 * @throws InterruptedException
+	 * 		If interrupted while pausing between the retransformed batches.
+	 */
+	public List<String> collect()
+		throws
+			InterruptedException
+	{
+		List<ProbedClass> candidates = new ArrayList<ProbedClass>();
+		synchronized(probedClasses) {
+			for(Map<String, ProbedClass> classes : probedClasses.values())
+				for(ProbedClass probed : classes.values())
+					if(probed.hotMethod == null)
+						candidates.add(probed);
+		}
+
+		List<ProbedClass> hot = new ArrayList<ProbedClass>();
+		for(ProbedClass probed : candidates) {
+			String hotMethod = null;
+			for(int i = 0; i < probed.methods.size(); i++)
+				if(HotnessProbe.getAndReset(probed.firstId + i) >= threshold && hotMethod == null)
+					hotMethod = probed.methods.get(i);
+			if(hotMethod != null) {
+				// Marked hot before retransforming, so that the transformers see it.
+				probed.hotMethod = hotMethod;
+				hotClasses.putIfAbsent(probed.className, hotMethod);
+				hot.add(probed);
+			}
+		}
+
+		List<String> names = new ArrayList<String>(hot.size());
+		List<Class<?>> classes = new ArrayList<Class<?>>(hot.size());
+		for(ProbedClass probed : hot) {
+			names.add(probed.className);
+			Class<?> c = probed.getLoadedClass();
+			if(c != null)
+				classes.add(c);
+			else
+				failedCount.incrementAndGet();
+		}
+		int retransformed = retransformer.retransform(classes);
+		retransformedCount.addAndGet(retransformed);
+		failedCount.addAndGet(classes.size() - retransformed);
+		return names;
+	}
+
+
+	private static String getClassFile(Class<?> c)
+	{
+		URL url = c.getResource("/" + c.getName().replace('.', '/') + ".class");
+		return url == null ? null : url.toExternalForm();
+	}
+
+
+	/**
+	 * Checks if the probe class is visible to the classes of the class loader. The class loader
+	 * must find the same {@code HotnessProbe} class file as the agent. Nothing is loaded here
+	 * because this is called within {@code transform()} where loading a class may deadlock on
+	 * the class loader locks.
+	 */
+	private boolean isProbeVisible(ClassLoader loader)
+	{
+		Boolean visible;
+		synchronized(probeVisibility) {
+			visible = probeVisibility.get(loader);
+		}
+		if(visible == null) {
+			URL probeClassFile = loader.getResource(ProbeInserter.PROBE_CLASS_NAME + ".class");
+			visible =
+				probeClassFile != null
+					&& PROBE_CLASS_FILE != null
+					&& probeClassFile.toExternalForm().equals(PROBE_CLASS_FILE);
+			synchronized(probeVisibility) {
+				probeVisibility.put(loader, visible);
+			}
+		}
+		return visible;
+	}
+
+
+	/**
+	 * Inserts the invocation-count probes to the classes which are included by the filter but
+	 * are not hot. If a probed class is retransformed before it has become hot, the probes are
+	 * inserted again with the same ids.
+	 */
+	private class ProbeTransformer
+		implements
+			ClassFileTransformer
+	{
+		public byte[] transform(
+			ClassLoader loader,
+			String className,
+			Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain,
+			byte[] classfileBuffer
+		)
+			throws
+				IllegalClassFormatException
+		{
+			if(loader == null || className == null)
+				return null;
+			if(className.equals(ProbeInserter.PROBE_CLASS_NAME))
+				return null;
+			ProbedClass probed = getProbedClass(loader, className);
+			if(probed != null)
+				return probed.hotMethod == null ? reinsertProbes(loader, probed, classfileBuffer) : null;
+			if(classBeingRedefined != null)
+				// Loaded before the probe transformer was installed.
+				return null;
+			if(classFilter.isLoaderExcluded(loader) || !classFilter.matches(className))
+				return null;
+			if(
+				!classFilter.hasIncludedMethods(className)
+					|| !classFilter.acceptClassFile(loader, classfileBuffer)
+					|| !isProbeVisible(loader)
+			)
+				return null;
+
+			try {
+				ProbeInserter inserter = new ProbeInserter(classfileBuffer);
+				List<String> methods = inserter.getProbedMethods();
+				if(methods.isEmpty())
+					return null;
+				int firstId = HotnessProbe.allocate(methods.size());
+				byte[] probedClassfile = inserter.insertProbes(firstId);
+				synchronized(probedClasses) {
+					Map<String, ProbedClass> classes = probedClasses.get(loader);
+					if(classes == null) {
+						classes = new HashMap<String, ProbedClass>();
+						probedClasses.put(loader, classes);
+					}
+					classes.put(className, new ProbedClass(loader, className, firstId, methods));
+				}
+				probedCount.incrementAndGet();
+				return probedClassfile;
+			}
+			catch(IllegalArgumentException e) {
+				// The class is left as it is.
+				return null;
+			}
+		}
+
+
+		private byte[] reinsertProbes(ClassLoader loader, ProbedClass probed, byte[] classfileBuffer)
+		{
+			try {
+				ProbeInserter inserter = new ProbeInserter(classfileBuffer);
+				if(inserter.getProbedMethods().equals(probed.methods))
+					return inserter.insertProbes(probed.firstId);
+			}
+			catch(IllegalArgumentException e) {
+				// Handled below.
+			}
+			
+			// The class cannot carry the same probes any more, so it is passed to the delegate's
+			// transformers as it is.
+			removeProbedClass(loader, probed.className);
+			return null;
+		}
+	}
+
+
+	/**
+	 * A class instrumented with the invocation-count probe.
+	 */
+	private static class ProbedClass
+	{
+		private final WeakReference<ClassLoader> loader;
+		private final String className;
+		private final int firstId;
+		private final List<String> methods;
+		private volatile String hotMethod;
+
+		public ProbedClass(ClassLoader loader, String className, int firstId, List<String> methods)
+		{
+			this.loader = new WeakReference<ClassLoader>(loader);
+			this.className = className;
+			this.firstId = firstId;
+			this.methods = methods;
+		}
+
+		/**
+		 * Returns the loaded class or {@code null} if it cannot be found any more.
+		 */
+		public Class<?> getLoadedClass()
+		{
+			ClassLoader l = loader.get();
+			if(l == null)
+				return null;
+			try {
+				return Class.forName(className.replace('/', '.'), false, l);
+			}
+			catch(ClassNotFoundException e) {
+				return null;
+			}
+			catch(LinkageError e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.hapiware.agent;
+
+
+/**
+ * {@code HotnessProbe} holds the invocation counters of the methods instrumented with
+ * the invocation-count probe of {@link HotnessMonitor}. The probe is a call to
+ * {@link #hit(int)} in the beginning of the method with the method's probe id as
+ * an argument.
+ * <p>
+ *
+ * The counters are plain {@code int}s which are incremented without synchronisation. This
+ * makes the probe cheap and lock-free but the counts are approximate (i.e. concurrent
+ * increments may be lost) which is good enough for finding the hot methods.
+ * <p>
+ *
+ * This class is loaded by the system class loader and therefore only the classes whose class
+ * loader can see the system class loader can be probed.
+ *
+ * @author hapi
+ *
+ */
+public final class HotnessProbe
+{
+	private static volatile int[] counts = new int[1024];
+	private static int nextId;
+
+
+	private HotnessProbe()
+	{
+		// Prevents instantiation.
+	}
+
+
+	/**
+	 * Increments the invocation counter of a probed method. This method is called by
+	 * the probed methods and should not be called directly.
+	 *
+	 * @param id
+	 * 		The probe id of the invoked method.
+	 */
+	public static void hit(int id)
+	{
+		int[] c = counts;
+		if(id < c.length)
+			c[id]++;
+	}
+
+
+	/**
+	 * Allocates consecutive probe ids.
+	 *
+	 * @param count
+	 * 		The number of ids.
+	 *
+	 * @return
+	 * 		The first allocated id.
+	 */
+	static synchronized int allocate(int count)
+	{
+		int firstId = nextId;
+		nextId += count;
+		if(nextId > counts.length) {
+			// The increments done to the old array while copying are lost.
+			int[] c = new int[Math.max(nextId, 2 * counts.length)];
+			System.arraycopy(counts, 0, c, 0, counts.length);
+			counts = c;
+		}
+		return firstId;
+	}
+
+
+	/**
+	 * Returns the invocation count of a probed method and resets the counter to zero.
+	 */
+	static int getAndReset(int id)
+	{
+		int[] c = counts;
+		int count = c[id];
+		c[id] = 0;
+		return count;
+	}
+}
@@ -0,0 +1,215 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * {@code InstrumentationProxy} creates an {@link Instrumentation} proxy which is delivered to
+ * the agent delegate instead of the original {@code Instrumentation}. All the calls are passed
+ * to the original {@code Instrumentation} but the transformers registered with
+ * {@code addTransformer()} are wrapped with {@link DelegateTransformer}s first. If there is
+ * a {@link DeferredActivation} which is not yet active, the wrapped transformers are handed
+ * to it instead of the original {@code Instrumentation}. If there is a {@link HotnessMonitor},
+ * the wrapped transformers are always registered as capable of retransformation, so that
+ * the classes becoming hot can be retransformed.
+ * <p>
+ * If the agent delegate is disabled (see {@link #disable(Instrumentation)}), its transformers
+ * are removed and the transformers it registers later are ignored.
+ * <p>
+ * A dynamic proxy is used (instead of implementing {@code Instrumentation} directly) because
+ * the {@code Instrumentation} interface has been extended in every major Java release.
+ *
+ * @author hapi
+ *
+ */
+class InstrumentationProxy
+	implements
+		InvocationHandler
+{
+	private final Instrumentation instrumentation;
+	private final ClassFilter classFilter;
+	private final ClassBytesStore classBytesStore;
+	private final ReentrancyGuard reentrancyGuard;
+	private final DeferredActivation deferredActivation;
+	private final HotnessMonitor hotnessMonitor;
+	private final Map<ClassFileTransformer, DelegateTransformer> wrappers =
+		new IdentityHashMap<ClassFileTransformer, DelegateTransformer>();
+	private boolean disabled;
+
+
+	private InstrumentationProxy(
+		Instrumentation instrumentation,
+		ClassFilter classFilter,
+		ClassBytesStore classBytesStore,
+		ReentrancyGuard reentrancyGuard,
+		DeferredActivation deferredActivation,
+		HotnessMonitor hotnessMonitor
+	)
+	{
+		this.instrumentation = instrumentation;
+		this.classFilter = classFilter;
+		this.classBytesStore = classBytesStore;
+		this.reentrancyGuard = reentrancyGuard;
+		this.deferredActivation = deferredActivation;
+		this.hotnessMonitor = hotnessMonitor;
+	}
+
+
+	/**
+	 * Creates a new {@code Instrumentation} proxy.
+	 *
+	 * @param instrumentation
+	 * 		The original {@code Instrumentation} given to {@link Agent#premain(String, Instrumentation)}.
+	 *
+	 * @param classFilter
+	 * 		The compiled {@code /agent/filter} element.
+	 *
+	 * @param classBytesStore
+	 * 		A store for original class file bytes or {@code null}.
+	 *
+	 * @param reentrancyGuard
+	 * 		A guard for nested {@code transform()} callbacks or {@code null}.
+	 *
+	 * @param deferredActivation
+	 * 		A deferred activation keeping the transformers dormant or {@code null}.
+	 *
+	 * @param hotnessMonitor
+	 * 		A hotness monitor deciding which classes are transformed or {@code null}.
+	 *
+	 * @return
+	 * 		A proxy to be delivered to the agent delegate.
+	 */
+	static Instrumentation newInstance(
+		Instrumentation instrumentation,
+		ClassFilter classFilter,
+		ClassBytesStore classBytesStore,
+		ReentrancyGuard reentrancyGuard,
+		DeferredActivation deferredActivation,
+		HotnessMonitor hotnessMonitor
+	)
+	{
+		return
+			(Instrumentation)Proxy.newProxyInstance(
+				Instrumentation.class.getClassLoader(),
+				new Class[] {Instrumentation.class},
+				new InstrumentationProxy(
+					instrumentation,
+					classFilter,
+					classBytesStore,
+					reentrancyGuard,
+					deferredActivation,
+					hotnessMonitor
+				)
+			);
+	}
+
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+		throws
+			Throwable
+	{
+		String name = method.getName();
+		if(name.equals("addTransformer") && args != null && args[0] != null) {
+			// Registering under the lock keeps disable() from missing a transformer being added.
+			synchronized(wrappers) {
+				if(disabled)
+					return null;
+				args = args.clone();
+				args[0] = wrap((ClassFileTransformer)args[0]);
+				if(
+					deferredActivation != null
+						&& deferredActivation.defer((ClassFileTransformer)args[0])
+				)
+					return null;
+				if(hotnessMonitor != null) {
+					method =
+						Instrumentation.class.getMethod(
+							"addTransformer",
+							new Class[] {ClassFileTransformer.class, boolean.class}
+						);
+					args = new Object[] {args[0], Boolean.TRUE};
+				}
+				return invoke(method, args);
+			}
+		}
+		else if(name.equals("removeTransformer") && args != null && args[0] != null) {
+			DelegateTransformer wrapper;
+			synchronized(wrappers) {
+				wrapper = wrappers.remove(args[0]);
+			}
+			if(wrapper != null) {
+				if(deferredActivation != null && deferredActivation.remove(wrapper))
+					return Boolean.TRUE;
+				args = args.clone();
+				args[0] = wrapper;
+			}
+		}
+
+		return invoke(method, args);
+	}
+
+
+	private Object invoke(Method method, Object[] args)
+		throws
+			Throwable
+	{
+		try {
+			return method.invoke(instrumentation, args);
+		}
+		catch(InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+
+	/**
+	 * Disables the agent delegate using the {@code Instrumentation} proxy. The delegate's
+	 * transformers are removed from the original {@code Instrumentation} (or from the deferred
+	 * activation) and the transformers registered after this are ignored.
+	 *
+	 * @param proxy
+	 * 		A proxy created with {@link #newInstance(Instrumentation, ClassFilter, ClassBytesStore,
+	 * 		ReentrancyGuard, DeferredActivation, HotnessMonitor)}.
+	 */
+	static void disable(Instrumentation proxy)
+	{
+		InstrumentationProxy handler = (InstrumentationProxy)Proxy.getInvocationHandler(proxy);
+		synchronized(handler.wrappers) {
+			handler.disabled = true;
+			for(DelegateTransformer wrapper : handler.wrappers.values())
+				if(
+					handler.deferredActivation == null
+						|| !handler.deferredActivation.remove(wrapper)
+				)
+					handler.instrumentation.removeTransformer(wrapper);
+			handler.wrappers.clear();
+		}
+	}
+
+
+	private ClassFileTransformer wrap(ClassFileTransformer transformer)
+	{
+		synchronized(wrappers) {
+			DelegateTransformer wrapper = wrappers.get(transformer);
+			if(wrapper == null) {
+				wrapper =
+					new DelegateTransformer(
+						transformer,
+						classFilter,
+						classBytesStore,
+						reentrancyGuard,
+						hotnessMonitor
+					);
+				wrappers.put(transformer, wrapper);
+			}
+			return wrapper;
+		}
+	}
+}
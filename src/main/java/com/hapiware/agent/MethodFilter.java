@@ -0,0 +1,290 @@
+package com.hapiware.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@code MethodFilter} is the compiled form of the {@code /agent/filter/include-method} and
+ * {@code /agent/filter/exclude-method} elements. The method patterns have the following form:
+ * <blockquote>
+ * 		{@code CLASS#METHOD} or {@code CLASS#METHODDESCRIPTOR}
+ * </blockquote>
+ *
+ * where:
+ * <ul>
+ * 		<li>
+ * 			{@code CLASS} is a regular expression for the class name in the internal form (i.e.
+ * 			the same as for {@code <include>} elements)
+ * 		</li>
+ * 		<li>
+ * 			{@code METHOD} is the method name where {@code *} matches any number of characters
+ * 			(e.g. {@code get*}, {@code *}, {@code <init>})
+ * 		</li>
+ * 		<li>
+ * 			{@code DESCRIPTOR} is an optional method descriptor where {@code *} matches any
+ * 			number of characters (e.g. {@code (Ljava/lang/String;)V} or {@code (*)V}). If it is
+ * 			omitted, all the descriptors match.
+ * 		</li>
+ * </ul>
+ *
+ * The matching is done in two steps. First {@link #forClass(String)} checks the class part of
+ * the patterns (once per class) and returns a {@link ClassMethods} matcher having only
+ * the patterns applicable to the class. Then {@link ClassMethods#matches(String, String)} is
+ * called for every method. Method names and descriptors are matched without regular expressions
+ * when they are exact names, prefixes, suffixes or {@code *}.
+ * <p>
+ * {@code MethodFilter} is <b>immutable</b> and thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class MethodFilter
+{
+	private static final Rule[] NO_RULES = new Rule[0];
+
+
+	private final Rule[] includeRules;
+	private final Rule[] excludeRules;
+	private final ClassMethods allMethods;
+
+
+	/**
+	 * Creates a new filter.
+	 *
+	 * @param includePatterns
+	 * 		Method patterns to include.
+	 *
+	 * @param excludePatterns
+	 * 		Method patterns to exclude.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If a pattern does not have {@code #} or it has an invalid class part.
+	 */
+	public MethodFilter(String[] includePatterns, String[] excludePatterns)
+	{
+		this.includeRules = compile(includePatterns);
+		this.excludeRules = compile(excludePatterns);
+		this.allMethods = excludeRules.length == 0 ? new ClassMethods(null, NO_RULES) : null;
+	}
+
+
+	private static Rule[] compile(String[] patterns)
+	{
+		Rule[] rules = new Rule[patterns.length];
+		for(int i = 0; i < patterns.length; i++)
+			rules[i] = new Rule(patterns[i]);
+		return rules;
+	}
+
+
+	/**
+	 * Returns {@code true} if there are {@code <include-method>} elements. If there are none,
+	 * all the methods (except the ones excluded) of all the classes are included.
+	 */
+	public boolean hasIncludeRules()
+	{
+		return includeRules.length > 0;
+	}
+
+
+	/**
+	 * Returns {@code true} if there are no method patterns at all.
+	 */
+	public boolean isEmpty()
+	{
+		return includeRules.length == 0 && excludeRules.length == 0;
+	}
+
+
+	/**
+	 * Returns the method matcher for the class.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/List").
+	 *
+	 * @return
+	 * 		A method matcher or {@code null} if there are include patterns but none of them
+	 * 		applies to the class (i.e. no methods of the class can be included).
+	 */
+	public ClassMethods forClass(String className)
+	{
+		if(includeRules.length == 0 && excludeRules.length == 0)
+			return allMethods;
+
+		List<Rule> includes = null;
+		for(Rule rule : includeRules)
+			if(rule.classPattern.matcher(className).matches()) {
+				if(includes == null)
+					includes = new ArrayList<Rule>();
+				includes.add(rule);
+			}
+		if(includeRules.length > 0 && includes == null)
+			return null;
+
+		List<Rule> excludes = null;
+		for(Rule rule : excludeRules)
+			if(rule.classPattern.matcher(className).matches()) {
+				if(excludes == null)
+					excludes = new ArrayList<Rule>();
+				excludes.add(rule);
+			}
+		if(includes == null && excludes == null)
+			return new ClassMethods(null, NO_RULES);
+
+		return
+			new ClassMethods(
+				includes == null ? null : includes.toArray(NO_RULES),
+				excludes == null ? NO_RULES : excludes.toArray(NO_RULES)
+			);
+	}
+
+
+	/**
+	 * {@code ClassMethods} matches the methods of a single class.
+	 * <p>
+	 * {@code ClassMethods} is <b>immutable</b> and thread safe.
+	 */
+	public static class ClassMethods
+	{
+		private final Rule[] includes;
+		private final Rule[] excludes;
+
+		private ClassMethods(Rule[] includes, Rule[] excludes)
+		{
+			this.includes = includes;
+			this.excludes = excludes;
+		}
+
+		/**
+		 * Checks if the method is included.
+		 *
+		 * @param methodName
+		 * 		The method name (e.g. "toString" or "&lt;init&gt;").
+		 *
+		 * @param descriptor
+		 * 		The method descriptor (e.g. "(I)Ljava/lang/String;").
+		 */
+		public boolean matches(String methodName, String descriptor)
+		{
+			for(Rule rule : excludes)
+				if(rule.matches(methodName, descriptor))
+					return false;
+			if(includes == null)
+				return true;
+			for(Rule rule : includes)
+				if(rule.matches(methodName, descriptor))
+					return true;
+			return false;
+		}
+	}
+
+
+	private static class Rule
+	{
+		private final Pattern classPattern;
+		private final NameMatcher methodName;
+		private final NameMatcher descriptor;
+
+		public Rule(String pattern)
+		{
+			int hash = pattern.indexOf('#');
+			if(hash <= 0)
+				throw
+					new IllegalArgumentException(
+						"Method pattern \"" + pattern + "\" must have the form CLASS#METHOD or "
+							+ "CLASS#METHODDESCRIPTOR."
+					);
+			classPattern = Pattern.compile(pattern.substring(0, hash));
+			String method = pattern.substring(hash + 1);
+			int parenthesis = method.indexOf('(');
+			if(parenthesis < 0) {
+				methodName = new NameMatcher(method);
+				descriptor = null;
+			}
+			else {
+				methodName = new NameMatcher(method.substring(0, parenthesis));
+				descriptor = new NameMatcher(method.substring(parenthesis));
+			}
+		}
+
+		public boolean matches(String name, String desc)
+		{
+			return methodName.matches(name) && (descriptor == null || descriptor.matches(desc));
+		}
+	}
+
+
+	/**
+	 * Matches names with {@code *} wildcards. The common cases (exact, prefix, suffix and any)
+	 * are matched with plain string operations.
+	 */
+	private static class NameMatcher
+	{
+		private static final int ANY = 0;
+		private static final int EXACT = 1;
+		private static final int PREFIX = 2;
+		private static final int SUFFIX = 3;
+		private static final int REGEX = 4;
+
+		private final int type;
+		private final String literal;
+		private final Pattern pattern;
+
+		public NameMatcher(String wildcard)
+		{
+			int first = wildcard.indexOf('*');
+			int last = wildcard.lastIndexOf('*');
+			Pattern regex = null;
+			if(first < 0) {
+				type = EXACT;
+				literal = wildcard;
+			}
+			else if(wildcard.equals("*")) {
+				type = ANY;
+				literal = null;
+			}
+			else if(first == last && last == wildcard.length() - 1) {
+				type = PREFIX;
+				literal = wildcard.substring(0, first);
+			}
+			else if(first == last && first == 0) {
+				type = SUFFIX;
+				literal = wildcard.substring(1);
+			}
+			else {
+				type = REGEX;
+				literal = null;
+				StringBuilder sb = new StringBuilder();
+				int start = 0;
+				for(int i = wildcard.indexOf('*'); i >= 0; i = wildcard.indexOf('*', start)) {
+					if(i > start)
+						sb.append(Pattern.quote(wildcard.substring(start, i)));
+					sb.append(".*");
+					start = i + 1;
+				}
+				if(start < wildcard.length())
+					sb.append(Pattern.quote(wildcard.substring(start)));
+				regex = Pattern.compile(sb.toString());
+			}
+			pattern = regex;
+		}
+
+		public boolean matches(String name)
+		{
+			switch(type) {
+				case ANY:
+					return true;
+				case EXACT:
+					return literal.equals(name);
+				case PREFIX:
+					return name.startsWith(literal);
+				case SUFFIX:
+					return name.endsWith(literal);
+				default:
+					return pattern.matcher(name).matches();
+			}
+		}
+	}
+}
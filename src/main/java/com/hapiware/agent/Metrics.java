@@ -0,0 +1,462 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * {@code Metrics} is a registry of low-overhead metrics for the code instrumented by the agent
+ * delegate: {@link Counter}s, {@link Gauge}s and {@link Histogram}s. It is created when
+ * the {@code /agent/metrics} element is defined and it is available with
+ * {@link #getInstance()}.
+ * <p>
+ *
+ * The counters and the histograms are striped, i.e. every metric has a cache line padded cell
+ * (or a row of buckets) per stripe and a thread updates only the cells of its own stripe.
+ * This keeps the threads from contending on the same cache lines on hosts with many cores.
+ * The stripes are summed only when the metrics are read. The instrumented code should look up
+ * a metric once (e.g. into a static field) and update it on every invocation.
+ * <p>
+ *
+ * The metrics are exported:
+ * <ul>
+ * 		<li>
+ * 			via JMX as attributes of the {@value #OBJECT_NAME} MBean in the platform MBean server
+ * 			if enabled. The attributes are aggregated when they are read.
+ * 		</li>
+ * 		<li>
+ * 			periodically to a local file in {@code java.util.Properties} format. The file is
+ * 			replaced atomically (where the file system allows it) so readers never see
+ * 			a partially written file.
+ * 		</li>
+ * </ul>
+ * A counter and a gauge are exported with their names. A histogram is exported as
+ * {@code name.count}, {@code name.mean}, {@code name.p50}, {@code name.p90}, {@code name.p99},
+ * {@code name.p999} and {@code name.max}.
+ * <p>
+ *
+ * The metric classes are in the agent .jar file which is in the system class path, so they
+ * can be reached from the instrumented classes of all the class loaders delegating to
+ * the system class loader. The classes of the bootstrap class loader and of the class loaders
+ * isolating themselves from the system class loader cannot see them.
+ * <p>
+ *
+ * {@code Metrics} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class Metrics
+{
+	/**
+	 * The name of the MBean exporting the metrics.
+	 */
+	public static final String OBJECT_NAME = "com.hapiware.agent:type=Metrics";
+
+	private static final int MAX_STRIPES = 64;
+	private static volatile Metrics instance;
+
+
+	private final int stripes;
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+	private final AtomicInteger exportFailureCount = new AtomicInteger();
+	private volatile Thread exporter;
+
+
+	/**
+	 * Returns the metrics registry of the agent or {@code null} if the {@code /agent/metrics}
+	 * element is not defined.
+	 */
+	public static Metrics getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(Metrics metrics)
+	{
+		instance = metrics;
+	}
+
+
+	/**
+	 * Returns the default number of stripes, which is the number of available processors
+	 * rounded up to the next power of two but at most {@value #MAX_STRIPES}.
+	 */
+	public static int getDefaultStripes()
+	{
+		return Math.min(MAX_STRIPES, roundUp(Runtime.getRuntime().availableProcessors()));
+	}
+
+
+	private static int roundUp(int value)
+	{
+		int powerOfTwo = 1;
+		while(powerOfTwo < value)
+			powerOfTwo <<= 1;
+		return powerOfTwo;
+	}
+
+
+	/**
+	 * Returns the stripe of the current thread.
+	 *
+	 * @param mask
+	 * 		The number of stripes minus one.
+	 */
+	static int stripe(int mask)
+	{
+		return (int)Thread.currentThread().getId() & mask;
+	}
+
+
+	/**
+	 * Creates a new registry.
+	 *
+	 * @param stripes
+	 * 		The number of stripes of the counters and the histograms. It is rounded up to the next
+	 * 		power of two.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the number of stripes is not between 1 and {@value #MAX_STRIPES}.
+	 */
+	public Metrics(int stripes)
+	{
+		if(stripes < 1 || stripes > MAX_STRIPES)
+			throw
+				new IllegalArgumentException(
+					"The number of stripes must be between 1 and " + MAX_STRIPES + "."
+				);
+		this.stripes = roundUp(stripes);
+	}
+
+
+	/**
+	 * Returns the counter with the given name. The counter is created if it does not exist.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the name is used by another type of metric.
+	 */
+	public Counter counter(String name)
+	{
+		Object metric = lookup(name);
+		if(metric == null)
+			metric = register(name, new Counter(name, stripes));
+		return cast(name, metric, Counter.class);
+	}
+
+
+	/**
+	 * Returns the gauge with the given name. The gauge is created if it does not exist.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the name is used by another type of metric.
+	 */
+	public Gauge gauge(String name)
+	{
+		Object metric = lookup(name);
+		if(metric == null)
+			metric = register(name, new Gauge(name));
+		return cast(name, metric, Gauge.class);
+	}
+
+
+	/**
+	 * Returns the histogram with the given name. The histogram is created if it does not exist.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the name is used by another type of metric.
+	 */
+	public Histogram histogram(String name)
+	{
+		Object metric = lookup(name);
+		if(metric == null)
+			metric = register(name, new Histogram(name, stripes));
+		return cast(name, metric, Histogram.class);
+	}
+
+
+	private Object lookup(String name)
+	{
+		if(name == null || name.length() == 0)
+			throw new IllegalArgumentException("A metric must have a name.");
+		return metrics.get(name);
+	}
+
+
+	private Object register(String name, Object metric)
+	{
+		Object existing = metrics.putIfAbsent(name, metric);
+		return existing == null ? metric : existing;
+	}
+
+
+	private static <T> T cast(String name, Object metric, Class<T> type)
+	{
+		if(!type.isInstance(metric))
+			throw
+				new IllegalArgumentException(
+					"\"" + name + "\" is already a " + metric.getClass().getSimpleName() + "."
+				);
+		return type.cast(metric);
+	}
+
+
+	public int getStripes()
+	{
+		return stripes;
+	}
+
+
+	/**
+	 * Returns the number of failed exports to the file.
+	 */
+	public int getExportFailureCount()
+	{
+		return exportFailureCount.get();
+	}
+
+
+	/**
+	 * Aggregates the current values of all the metrics.
+	 *
+	 * @return
+	 * 		The exported names and the values sorted by the names.
+	 */
+	public SortedMap<String, Long> getValues()
+	{
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for(Map.Entry<String, Object> entry : metrics.entrySet()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if(metric instanceof Counter)
+				values.put(name, ((Counter)metric).get());
+			else if(metric instanceof Gauge)
+				values.put(name, ((Gauge)metric).get());
+			else {
+				Histogram.Snapshot snapshot = ((Histogram)metric).getSnapshot();
+				values.put(name + ".count", snapshot.getCount());
+				values.put(name + ".mean", snapshot.getMean());
+				values.put(name + ".p50", snapshot.getValueAtPercentile(50.0));
+				values.put(name + ".p90", snapshot.getValueAtPercentile(90.0));
+				values.put(name + ".p99", snapshot.getValueAtPercentile(99.0));
+				values.put(name + ".p999", snapshot.getValueAtPercentile(99.9));
+				values.put(name + ".max", snapshot.getMax());
+			}
+		}
+		return values;
+	}
+
+
+	/**
+	 * Writes the current values to the file in {@code java.util.Properties} format. The values
+	 * are first written to a temporary file which then replaces the file.
+	 */
+	public void export(File file)
+		throws
+			IOException
+	{
+		File temporary = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(temporary), "ISO-8859-1");
+		try {
+			out.write("# " + new Date() + "\n");
+			for(Map.Entry<String, Long> entry : getValues().entrySet())
+				out.write(escape(entry.getKey()) + "=" + entry.getValue() + "\n");
+		}
+		finally {
+			out.close();
+		}
+		if(!temporary.renameTo(file)) {
+			// Some platforms do not replace an existing file.
+			file.delete();
+			if(!temporary.renameTo(file))
+				throw new IOException("\"" + temporary + "\" cannot be renamed to \"" + file + "\".");
+		}
+	}
+
+
+	private static String escape(String name)
+	{
+		StringBuilder escaped = new StringBuilder(name.length());
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c == ' ' || c == '=' || c == ':' || c == '#' || c == '!' || c == '\\')
+				escaped.append('\\');
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+
+	/**
+	 * Registers the metrics to the platform MBean server as {@value #OBJECT_NAME}.
+	 *
+	 * @throws JMException
+	 * 		If the MBean cannot be registered (e.g. the name is already in use).
+	 */
+	void registerMBean()
+		throws
+			JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+	}
+
+
+	/**
+	 * Starts a background daemon thread exporting the metrics to the file periodically.
+	 * The failed exports are counted and retried on the next round.
+	 *
+	 * @param interval
+	 * 		The export interval in milliseconds.
+	 */
+	void startExport(final File file, final long interval)
+	{
+		Thread thread =
+			new Thread("agent-metrics-exporter") {
+				public void run()
+				{
+					try {
+						while(true) {
+							Thread.sleep(interval);
+							exportQuietly(file);
+						}
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+		thread.setDaemon(true);
+		thread.start();
+		exporter = thread;
+	}
+
+
+	/**
+	 * Stops the periodic export.
+	 */
+	void stopExport()
+	{
+		Thread thread = exporter;
+		if(thread != null) {
+			thread.interrupt();
+			exporter = null;
+		}
+	}
+
+
+	/**
+	 * Exports the metrics to the file and counts the failure instead of throwing it.
+	 *
+	 * @return
+	 * 		{@code true} if the metrics were exported.
+	 */
+	boolean exportQuietly(File file)
+	{
+		try {
+			export(file);
+			return true;
+		}
+		catch(IOException e) {
+			exportFailureCount.incrementAndGet();
+			return false;
+		}
+	}
+
+
+	/**
+	 * Exposes the aggregated values as read-only {@code Long} attributes. The attributes are
+	 * listed again on every {@link #getMBeanInfo()} because the metrics can be created at any
+	 * time.
+	 */
+	private class MetricsMBean
+		implements
+			DynamicMBean
+	{
+		public Object getAttribute(String attribute)
+			throws
+				AttributeNotFoundException
+		{
+			Long value = getValues().get(attribute);
+			if(value == null)
+				throw new AttributeNotFoundException("\"" + attribute + "\" is not a metric.");
+			return value;
+		}
+
+
+		public AttributeList getAttributes(String[] attributes)
+		{
+			SortedMap<String, Long> values = getValues();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes)
+				if(values.containsKey(attribute))
+					list.add(new Attribute(attribute, values.get(attribute)));
+			return list;
+		}
+
+
+		public MBeanInfo getMBeanInfo()
+		{
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String name : getValues().keySet())
+				attributes.add(
+					new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false)
+				);
+			return
+				new MBeanInfo(
+					Metrics.class.getName(),
+					"Metrics of the instrumented code.",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+					null,
+					new MBeanOperationInfo[0],
+					new MBeanNotificationInfo[0]
+				);
+		}
+
+
+		public Object invoke(String actionName, Object[] params, String[] signature)
+		{
+			throw new UnsupportedOperationException("Metrics have no operations.");
+		}
+
+
+		public void setAttribute(Attribute attribute)
+			throws
+				AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException("Metrics are read-only.");
+		}
+
+
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+	}
+}
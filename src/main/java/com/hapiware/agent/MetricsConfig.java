@@ -0,0 +1,108 @@
+package com.hapiware.agent;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code MetricsConfig} is the {@code /agent/metrics} element of the agent configuration file
+ * (see {@link Agent}). {@code MetricsConfig} is <b>immutable</b>.
+ *
+ * @author hapi
+ *
+ */
+final class MetricsConfig
+{
+	private final static long DEFAULT_INTERVAL = 10000L;
+	private final static int MAX_STRIPES = 64;
+
+
+	private int stripes;
+	private boolean jmx;
+	private String file;
+	private long interval = DEFAULT_INTERVAL;
+
+
+	private MetricsConfig()
+	{
+		// Created only by read().
+	}
+
+
+	/**
+	 * Reads {@code /agent/metrics}. The element is optional.
+	 *
+	 * @throws ConfigurationError
+	 * 		If the element has invalid attributes.
+	 */
+	static MetricsConfig read(XPath xpath, Document configDocument)
+		throws
+			XPathExpressionException
+	{
+		MetricsConfig config = new MetricsConfig();
+		Element metrics =
+			(Element)xpath.evaluate("/agent/metrics", configDocument, XPathConstants.NODE);
+		if(metrics != null) {
+			long stripes = Agent.parseSize(metrics, "stripes", Metrics.getDefaultStripes());
+			if(stripes > MAX_STRIPES)
+				throw
+					new ConfigurationError(
+						"/agent/metrics[@stripes] must not be greater than " + MAX_STRIPES + "."
+					);
+			config.stripes = (int)stripes;
+			config.jmx = Agent.parseBoolean(metrics, "jmx", false);
+			if(metrics.hasAttribute("file"))
+				config.file = metrics.getAttribute("file");
+			config.interval = Agent.parseDuration(metrics, "interval", DEFAULT_INTERVAL);
+			if(config.interval <= 0)
+				throw
+					new ConfigurationError(
+						"/agent/metrics[@interval] must be greater than zero."
+					);
+		}
+		return config;
+	}
+
+
+	/**
+	 * Returns {@code true} if {@code /agent/metrics} is defined.
+	 */
+	public boolean isEnabled()
+	{
+		return stripes > 0;
+	}
+
+
+	public int getStripes()
+	{
+		return stripes;
+	}
+
+
+	public boolean isJmx()
+	{
+		return jmx;
+	}
+
+
+	/**
+	 * Returns the file the metrics are exported to or {@code null} if the metrics are not
+	 * exported to a file.
+	 */
+	public String getFile()
+	{
+		return file;
+	}
+
+
+	public long getInterval()
+	{
+		return interval;
+	}
+}
@@ -0,0 +1,328 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * {@code PreTransformer} transforms the classes of the class path in the background before they
+ * are loaded. It is used when the {@code /agent/pre-transform} element is defined.
+ * <p>
+ *
+ * The class path entries (.jar files and directories) are scanned in a daemon thread and every
+ * class matching the {@code /agent/filter} element is handed to a pool of daemon threads which
+ * call the transformer. When the JVM later calls {@link #transform(ClassLoader, String, Class,
+ * ProtectionDomain, byte[])} for the class, the result is taken from the cache. If the class is
+ * loaded before its turn, it is transformed in the loading thread. If the class is loaded while
+ * a pool thread is transforming it, the loading thread does not wait for the pool thread but
+ * transforms the class itself and the result of the pool thread is discarded. Waiting could
+ * deadlock if the transformer loads classes. The cached result is used only if:
+ * <ul>
+ * 		<li>the class is loaded by the class loader given to the constructor</li>
+ * 		<li>the class is not being redefined or retransformed</li>
+ * 		<li>the class file bytes are exactly the ones read from the class path</li>
+ * </ul>
+ * Otherwise the transformer is called normally. Every cached result is used once and then
+ * released. The results of the classes not loaded within the retention time after all
+ * the classes have been transformed are released, too. The transformer must not depend on
+ * the {@code ProtectionDomain} because it is {@code null} for the classes transformed in
+ * the background. The transformer must not load classes either (e.g. to find out the common
+ * super class of two classes when computing stack map frames) because the pool threads would
+ * then load the classes ahead of the application.
+ *
+ * @author hapi
+ *
+ */
+final class PreTransformer
+	implements
+		ClassFileTransformer
+{
+	private final ClassFileTransformer transformer;
+	private final ClassFilter classFilter;
+	private final ClassLoader loader;
+	private final ThreadPoolExecutor executor;
+	private final long retention;
+	private final ConcurrentMap<String, Object> tasks = new ConcurrentHashMap<String, Object>();
+	private volatile boolean scanning;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Marks a class loaded during the scan so that the scan skips it.
+	 */
+	private final static Object LOADED = new Object();
+
+
+	/**
+	 * @param transformer
+	 * 		The transformer to be called.
+	 *
+	 * @param classFilter
+	 * 		The compiled {@code /agent/filter} element for selecting the classes.
+	 *
+	 * @param loader
+	 * 		The class loader of the class path classes (i.e. the system class loader).
+	 *
+	 * @param threads
+	 * 		The number of threads transforming the classes.
+	 *
+	 * @param retention
+	 * 		The time in milliseconds the results of the classes not yet loaded are kept after
+	 * 		the scan and all the transformations have completed.
+	 */
+	public PreTransformer(
+		ClassFileTransformer transformer,
+		ClassFilter classFilter,
+		ClassLoader loader,
+		int threads,
+		long retention
+	)
+	{
+		this.transformer = transformer;
+		this.classFilter = classFilter;
+		this.loader = loader;
+		this.retention = retention;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor =
+			new ThreadPoolExecutor(
+				threads,
+				threads,
+				0,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread =
+							new Thread(runnable, "agent-pre-transform-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}
+			);
+	}
+
+
+	/**
+	 * Starts scanning the class path entries separated with {@link File#pathSeparator} in
+	 * a daemon thread. Entries which do not exist or cannot be read are skipped. No more classes
+	 * are accepted after the scan. The same thread releases the results of the classes not
+	 * loaded within the retention time.
+	 */
+	public void start(final String classpath)
+	{
+		Thread scanner =
+			new Thread("agent-pre-transform-scanner") {
+				public void run()
+				{
+					try {
+						scanClasspath(classpath);
+					}
+					finally {
+						executor.shutdown();
+					}
+					try {
+						executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+						Thread.sleep(retention);
+					}
+					catch(InterruptedException e) {
+						// Released right away.
+					}
+					// The classes loaded later are transformed normally.
+					tasks.clear();
+				}
+			};
+		scanner.setDaemon(true);
+		scanner.start();
+	}
+
+
+	/**
+	 * Submits all the matching classes of the class path to be transformed.
+	 *
+	 * @return
+	 * 		The number of classes submitted.
+	 */
+	int scanClasspath(String classpath)
+	{
+		scanning = true;
+		try {
+			return
+				ClasspathScanner.scan(
+					classpath,
+					new ClasspathScanner.Visitor() {
+						public boolean accepts(String className)
+						{
+							return classFilter.matches(className);
+						}
+
+						public boolean visit(String className, byte[] classfileBuffer)
+						{
+							return submit(className, classfileBuffer);
+						}
+					}
+				);
+		}
+		finally {
+			scanning = false;
+			tasks.values().removeAll(Collections.singleton(LOADED));
+		}
+	}
+
+
+	private boolean submit(String className, byte[] classfileBuffer)
+	{
+		Task task = new Task(className, classfileBuffer);
+		if(tasks.putIfAbsent(className, task) != null)
+			return false;
+		executor.execute(task);
+		return true;
+	}
+
+
+	public byte[] transform(
+		ClassLoader loader,
+		String className,
+		Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain,
+		byte[] classfileBuffer
+	)
+		throws
+			IllegalClassFormatException
+	{
+		if(
+			classBeingRedefined == null
+				&& loader == this.loader
+				&& className != null
+				&& classFilter.matches(className)
+		) {
+			// A class loaded before the scanner has found it is not transformed in the background.
+			Object value = scanning ? tasks.put(className, LOADED) : tasks.remove(className);
+			Task task = value instanceof Task ? (Task)value : null;
+			if(task != null && Arrays.equals(task.classfileBuffer, classfileBuffer)) {
+				// Transforms the class here if no thread has started it yet. A class being
+				// transformed by a pool thread is transformed below instead of waiting for it.
+				task.run();
+				if(task.isDone()) {
+					try {
+						byte[] transformed = task.get();
+						hits.incrementAndGet();
+						return transformed;
+					}
+					catch(ExecutionException e) {
+						// The transformer is called again below to let it fail in the loading thread.
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return
+			transformer.transform(
+				loader,
+				className,
+				classBeingRedefined,
+				protectionDomain,
+				classfileBuffer
+			);
+	}
+
+
+	/**
+	 * Waits for the scan and the background transformations to complete.
+	 *
+	 * @return
+	 * 		{@code true} if completed or {@code false} if the timeout elapsed.
+	 */
+	public boolean awaitCompletion(long timeout)
+		throws
+			InterruptedException
+	{
+		return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops the background transformations and releases the cached results.
+	 */
+	public void stop()
+	{
+		executor.shutdownNow();
+		tasks.clear();
+	}
+
+
+	/**
+	 * Returns the number of classes whose transformation was taken from the cache.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+
+	/**
+	 * Returns the number of classes transformed without the cache.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+
+	/**
+	 * Returns the number of cached classes not yet loaded.
+	 */
+	public int getPending()
+	{
+		int pending = 0;
+		for(Object value : tasks.values())
+			if(value instanceof Task)
+				pending++;
+		return pending;
+	}
+
+
+	/**
+	 * Transforms a class once, either in the pool or in the loading thread.
+	 */
+	private final class Task
+		extends
+			FutureTask<byte[]>
+	{
+		private final byte[] classfileBuffer;
+
+
+		Task(final String className, final byte[] classfileBuffer)
+		{
+			super(
+				new Callable<byte[]>() {
+					public byte[] call()
+						throws
+							IllegalClassFormatException
+					{
+						return transformer.transform(loader, className, null, null, classfileBuffer);
+					}
+				}
+			);
+			this.classfileBuffer = classfileBuffer;
+		}
+	}
+}
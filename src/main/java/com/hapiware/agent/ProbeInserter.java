@@ -0,0 +1,457 @@
+package com.hapiware.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * {@code ProbeInserter} inserts an invocation-count probe (i.e. a call to
+ * {@link HotnessProbe#hit(int)}) in the beginning of every method of a class file. This is
+ * the minimal instrumentation used by {@link HotnessMonitor} for the classes which are not hot
+ * (yet).
+ * <p>
+ *
+ * The probe is inserted without a bytecode library by appending the needed constants to
+ * the constant pool and by prepending the following 8 bytes to the code of each method:
+ * <xmp>
+ * 		ldc_w <probe id>
+ * 		invokestatic com/hapiware/agent/HotnessProbe.hit(I)V
+ * 		nop
+ * 		nop
+ * </xmp>
+ * The probe is a multiple of four bytes long, so the padding of {@code tableswitch} and
+ * {@code lookupswitch} instructions does not change. The jump offsets are relative and need
+ * no changes either. The absolute code offsets of the exception table, {@code LineNumberTable},
+ * {@code LocalVariableTable}, {@code LocalVariableTypeTable} and the first frame of
+ * {@code StackMapTable} are moved by the probe length. Type annotations of the code are
+ * dropped because their offsets are not updated. The probe leaves the operand stack empty,
+ * so the stack map frames need no other changes.
+ * <p>
+ * {@code ProbeInserter} is <b>not</b> thread safe.
+ *
+ * @author hapi
+ *
+ */
+class ProbeInserter
+{
+	static final String PROBE_CLASS_NAME = "com/hapiware/agent/HotnessProbe";
+	private static final int PROBE_LENGTH = 8;
+	private static final int MAX_CODE_LENGTH = 65535;
+	private static final int MAX_CONSTANT_POOL_COUNT = 65535;
+	private static final int PROBE_CONSTANT_COUNT = 6;
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int LDC_W = 0x13;
+	private static final int INVOKESTATIC = 0xB8;
+	private static final int NOP = 0x00;
+	private static final int SAME_FRAME_EXTENDED = 251;
+	private static final int SAME_LOCALS_1_STACK_ITEM_EXTENDED = 247;
+
+
+	private final byte[] bytes;
+	private final ClassFileHeader header = new ClassFileHeader();
+	private final int methodsOffset;
+	private final List<String> probedMethods = new ArrayList<String>();
+
+
+	/**
+	 * Scans the class file for the methods to be probed.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the bytes are not a valid class file.
+	 */
+	public ProbeInserter(byte[] classBytes)
+	{
+		bytes = classBytes;
+		header.scan(classBytes);
+		try {
+			methodsOffset = skipFields(header.getHeaderEnd());
+			int offset = methodsOffset + 2;
+			for(int i = readUnsignedShort(methodsOffset); i > 0; i--) {
+				int nameIndex = readUnsignedShort(offset + 2);
+				int descriptorIndex = readUnsignedShort(offset + 4);
+				int attributeCount = readUnsignedShort(offset + 6);
+				offset += 8;
+				for(int j = 0; j < attributeCount; j++) {
+					if(isProbed(offset))
+						probedMethods.add(header.utf8(nameIndex) + header.utf8(descriptorIndex));
+					offset += 6 + readInt(offset + 2);
+				}
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated class file.", e);
+		}
+	}
+
+
+	private int skipFields(int offset)
+	{
+		int count = readUnsignedShort(offset);
+		offset += 2;
+		for(int i = 0; i < count; i++) {
+			int attributeCount = readUnsignedShort(offset + 6);
+			offset += 8;
+			for(int j = 0; j < attributeCount; j++)
+				offset += 6 + readInt(offset + 2);
+		}
+		return offset;
+	}
+
+
+	/**
+	 * Checks if the attribute is a {@code Code} attribute which has room for the probe.
+	 */
+	private boolean isProbed(int attributeOffset)
+	{
+		return
+			header.utf8Equals(readUnsignedShort(attributeOffset), "Code")
+				&& readInt(attributeOffset + 10) + PROBE_LENGTH <= MAX_CODE_LENGTH;
+	}
+
+
+	/**
+	 * Returns the names and descriptors (e.g. "toString()Ljava/lang/String;") of the methods to
+	 * be probed in the order of the probe ids.
+	 */
+	public List<String> getProbedMethods()
+	{
+		return Collections.unmodifiableList(probedMethods);
+	}
+
+
+	/**
+	 * Inserts the probes.
+	 *
+	 * @param firstId
+	 * 		The probe id of the first method returned by {@link #getProbedMethods()}. The rest of
+	 * 		the methods get consecutive ids.
+	 *
+	 * @return
+	 * 		The probed class file.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the constant pool has no room for the probe constants or the class file is
+	 * 		not valid.
+	 */
+	public byte[] insertProbes(int firstId)
+	{
+		int constantPoolCount = header.getConstantPoolCount();
+		int methodCount = probedMethods.size();
+		if(constantPoolCount + PROBE_CONSTANT_COUNT + methodCount > MAX_CONSTANT_POOL_COUNT)
+			throw new IllegalArgumentException("The constant pool has no room for the probes.");
+
+		try {
+			Output out = new Output(bytes.length + 64 + methodCount * (5 + 2 * PROBE_LENGTH));
+			out.write(bytes, 0, 8);
+			out.writeShort(constantPoolCount + PROBE_CONSTANT_COUNT + methodCount);
+			out.write(bytes, 10, header.getConstantPoolEnd() - 10);
+
+			// The probe constants are appended to the end of the constant pool.
+			int classNameIndex = constantPoolCount;
+			out.writeByte(CONSTANT_UTF8);
+			out.writeUtf8(PROBE_CLASS_NAME);
+			out.writeByte(CONSTANT_CLASS);
+			out.writeShort(classNameIndex);
+			out.writeByte(CONSTANT_UTF8);
+			out.writeUtf8("hit");
+			out.writeByte(CONSTANT_UTF8);
+			out.writeUtf8("(I)V");
+			out.writeByte(CONSTANT_NAME_AND_TYPE);
+			out.writeShort(classNameIndex + 2);
+			out.writeShort(classNameIndex + 3);
+			out.writeByte(CONSTANT_METHODREF);
+			out.writeShort(classNameIndex + 1);
+			out.writeShort(classNameIndex + 4);
+			int methodRefIndex = classNameIndex + 5;
+			for(int i = 0; i < methodCount; i++) {
+				out.writeByte(CONSTANT_INTEGER);
+				out.writeInt(firstId + i);
+			}
+			int idIndex = classNameIndex + PROBE_CONSTANT_COUNT;
+
+			out.write(bytes, header.getConstantPoolEnd(), methodsOffset - header.getConstantPoolEnd());
+			out.write(bytes, methodsOffset, 2);
+			int offset = methodsOffset + 2;
+			for(int i = readUnsignedShort(methodsOffset); i > 0; i--) {
+				int attributeCount = readUnsignedShort(offset + 6);
+				out.write(bytes, offset, 8);
+				offset += 8;
+				for(int j = 0; j < attributeCount; j++) {
+					int length = readInt(offset + 2);
+					if(isProbed(offset))
+						writeCode(out, offset, methodRefIndex, idIndex++);
+					else
+						out.write(bytes, offset, 6 + length);
+					offset += 6 + length;
+				}
+			}
+			out.write(bytes, offset, bytes.length - offset);
+			return out.toByteArray();
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated class file.", e);
+		}
+	}
+
+
+	private void writeCode(Output out, int offset, int methodRefIndex, int idIndex)
+	{
+		int start = out.length();
+		out.write(bytes, offset, 2);
+		out.writeInt(0);
+		int maxStack = readUnsignedShort(offset + 6);
+		out.writeShort(Math.max(maxStack, 1));
+		out.write(bytes, offset + 8, 2);
+		int codeLength = readInt(offset + 10);
+		out.writeInt(codeLength + PROBE_LENGTH);
+		out.writeByte(LDC_W);
+		out.writeShort(idIndex);
+		out.writeByte(INVOKESTATIC);
+		out.writeShort(methodRefIndex);
+		out.writeByte(NOP);
+		out.writeByte(NOP);
+		out.write(bytes, offset + 14, codeLength);
+
+		int p = offset + 14 + codeLength;
+		int exceptionCount = readUnsignedShort(p);
+		out.writeShort(exceptionCount);
+		p += 2;
+		for(int i = 0; i < exceptionCount; i++) {
+			out.writeShort(readUnsignedShort(p) + PROBE_LENGTH);
+			out.writeShort(readUnsignedShort(p + 2) + PROBE_LENGTH);
+			out.writeShort(readUnsignedShort(p + 4) + PROBE_LENGTH);
+			out.write(bytes, p + 6, 2);
+			p += 8;
+		}
+
+		int attributeCount = readUnsignedShort(p);
+		int attributeCountPosition = out.length();
+		out.writeShort(attributeCount);
+		p += 2;
+		for(int i = 0; i < attributeCount; i++) {
+			int nameIndex = readUnsignedShort(p);
+			int length = readInt(p + 2);
+			if(header.utf8Equals(nameIndex, "LineNumberTable"))
+				writeLineNumberTable(out, p);
+			else if(
+				header.utf8Equals(nameIndex, "LocalVariableTable")
+					|| header.utf8Equals(nameIndex, "LocalVariableTypeTable")
+			)
+				writeLocalVariableTable(out, p);
+			else if(header.utf8Equals(nameIndex, "StackMapTable"))
+				writeStackMapTable(out, p);
+			else if(
+				header.utf8Equals(nameIndex, "RuntimeVisibleTypeAnnotations")
+					|| header.utf8Equals(nameIndex, "RuntimeInvisibleTypeAnnotations")
+			)
+				out.setShort(attributeCountPosition, out.getShort(attributeCountPosition) - 1);
+			else
+				out.write(bytes, p, 6 + length);
+			p += 6 + length;
+		}
+		out.setInt(start + 2, out.length() - start - 6);
+	}
+
+
+	private void writeLineNumberTable(Output out, int offset)
+	{
+		out.write(bytes, offset, 8);
+		int p = offset + 8;
+		for(int i = readUnsignedShort(offset + 6); i > 0; i--) {
+			out.writeShort(readUnsignedShort(p) + PROBE_LENGTH);
+			out.write(bytes, p + 2, 2);
+			p += 4;
+		}
+	}
+
+
+	private void writeLocalVariableTable(Output out, int offset)
+	{
+		out.write(bytes, offset, 8);
+		int p = offset + 8;
+		for(int i = readUnsignedShort(offset + 6); i > 0; i--) {
+			int startPc = readUnsignedShort(p);
+			int length = readUnsignedShort(p + 2);
+			if(startPc == 0) {
+				// Parameters (and other variables valid from the start) cover the probe as well.
+				out.writeShort(0);
+				out.writeShort(length + PROBE_LENGTH);
+			}
+			else {
+				out.writeShort(startPc + PROBE_LENGTH);
+				out.writeShort(length);
+			}
+			out.write(bytes, p + 4, 6);
+			p += 10;
+		}
+	}
+
+
+	private void writeStackMapTable(Output out, int offset)
+	{
+		int length = readInt(offset + 2);
+		int end = offset + 6 + length;
+		if(readUnsignedShort(offset + 6) == 0) {
+			out.write(bytes, offset, 6 + length);
+			return;
+		}
+
+		// Only the offset delta of the first frame is relative to the start of the code.
+		int start = out.length();
+		out.write(bytes, offset, 2);
+		out.writeInt(0);
+		out.write(bytes, offset + 6, 2);
+		int p = offset + 8;
+		int frameType = bytes[p] & 0xFF;
+		if(frameType < 64)
+			writeFrameType(out, frameType + PROBE_LENGTH, 0, 63, SAME_FRAME_EXTENDED);
+		else if(frameType < 128)
+			writeFrameType(
+				out,
+				frameType - 64 + PROBE_LENGTH,
+				64,
+				127,
+				SAME_LOCALS_1_STACK_ITEM_EXTENDED
+			);
+		else if(frameType >= SAME_LOCALS_1_STACK_ITEM_EXTENDED) {
+			out.writeByte(frameType);
+			out.writeShort(readUnsignedShort(p + 1) + PROBE_LENGTH);
+			p += 2;
+		}
+		else
+			throw new IllegalArgumentException("Unknown stack map frame type " + frameType + ".");
+		p++;
+		out.write(bytes, p, end - p);
+		out.setInt(start + 2, out.length() - start - 6);
+	}
+
+
+	private static void writeFrameType(
+		Output out,
+		int offsetDelta,
+		int firstType,
+		int lastType,
+		int extendedType
+	)
+	{
+		if(firstType + offsetDelta <= lastType)
+			out.writeByte(firstType + offsetDelta);
+		else {
+			out.writeByte(extendedType);
+			out.writeShort(offsetDelta);
+		}
+	}
+
+
+	private int readUnsignedShort(int offset)
+	{
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+	}
+
+
+	private int readInt(int offset)
+	{
+		return
+			((bytes[offset] & 0xFF) << 24)
+				| ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8)
+				| (bytes[offset + 3] & 0xFF);
+	}
+
+
+	/**
+	 * A growing big-endian byte buffer.
+	 */
+	private static class Output
+	{
+		private byte[] buffer;
+		private int length;
+
+		public Output(int capacity)
+		{
+			buffer = new byte[capacity];
+		}
+
+		public int length()
+		{
+			return length;
+		}
+
+		private void ensureCapacity(int capacity)
+		{
+			if(capacity > buffer.length) {
+				byte[] b = new byte[Math.max(capacity, 2 * buffer.length)];
+				System.arraycopy(buffer, 0, b, 0, length);
+				buffer = b;
+			}
+		}
+
+		public void write(byte[] b, int offset, int count)
+		{
+			ensureCapacity(length + count);
+			System.arraycopy(b, offset, buffer, length, count);
+			length += count;
+		}
+
+		public void writeByte(int value)
+		{
+			ensureCapacity(length + 1);
+			buffer[length++] = (byte)value;
+		}
+
+		public void writeShort(int value)
+		{
+			ensureCapacity(length + 2);
+			setShort(length, value);
+			length += 2;
+		}
+
+		public void writeInt(int value)
+		{
+			ensureCapacity(length + 4);
+			setInt(length, value);
+			length += 4;
+		}
+
+		/**
+		 * Writes an ASCII string in the modified UTF-8 format.
+		 */
+		public void writeUtf8(String s)
+		{
+			writeShort(s.length());
+			for(int i = 0; i < s.length(); i++)
+				writeByte(s.charAt(i));
+		}
+
+		public int getShort(int position)
+		{
+			return ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+		}
+
+		public void setShort(int position, int value)
+		{
+			buffer[position] = (byte)(value >>> 8);
+			buffer[position + 1] = (byte)value;
+		}
+
+		public void setInt(int position, int value)
+		{
+			buffer[position] = (byte)(value >>> 24);
+			buffer[position + 1] = (byte)(value >>> 16);
+			buffer[position + 2] = (byte)(value >>> 8);
+			buffer[position + 3] = (byte)value;
+		}
+
+		public byte[] toByteArray()
+		{
+			byte[] b = new byte[length];
+			System.arraycopy(buffer, 0, b, 0, length);
+			return b;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.hapiware.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * {@code ReentrancyGuard} detects nested {@code transform()} callbacks in the same thread.
+ * A nested callback happens when a transformer of the agent delegate causes a class to be
+ * loaded (e.g. by resolving common super classes or by logging) while it is transforming
+ * another class. If the guard is enabled with {@code /agent/transformer[@reentrancy-guard]},
+ * the agent's transformer wrapper does not call the delegate's transformers for nested
+ * callbacks at all, i.e. the classes loaded by the transformers are not transformed.
+ * <p>
+ *
+ * The guard keeps a single mutable depth counter per thread, so the cost of a non-nested
+ * callback is one thread local lookup. Only nested callbacks update a shared counter.
+ * <p>
+ *
+ * {@code ReentrancyGuard} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+public class ReentrancyGuard
+{
+	private static volatile ReentrancyGuard instance;
+
+
+	private final ThreadLocal<Depth> depths =
+		new ThreadLocal<Depth>() {
+			protected Depth initialValue()
+			{
+				return new Depth();
+			}
+		};
+	private final AtomicLong shortCircuitCount = new AtomicLong();
+
+
+	/**
+	 * Returns the guard used by the agent or {@code null} if {@code /agent/transformer[@reentrancy-guard]}
+	 * is not {@code true}.
+	 */
+	public static ReentrancyGuard getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(ReentrancyGuard guard)
+	{
+		instance = guard;
+	}
+
+
+	/**
+	 * Enters a {@code transform()} callback.
+	 *
+	 * @return
+	 * 		The depth counter of the calling thread which must be given to {@link #exit(Depth)}
+	 * 		or {@code null} if the callback is nested and must be short-circuited (in which case
+	 * 		{@link #exit(Depth)} must not be called).
+	 */
+	Depth enter()
+	{
+		Depth depth = depths.get();
+		if(depth.value > 0) {
+			shortCircuitCount.incrementAndGet();
+			return null;
+		}
+		depth.value++;
+		return depth;
+	}
+
+
+	/**
+	 * Exits a {@code transform()} callback entered with {@link #enter()}.
+	 */
+	void exit(Depth depth)
+	{
+		depth.value--;
+	}
+
+
+	/**
+	 * Returns {@code true} if the calling thread is running a {@code transform()} callback of
+	 * the agent delegate.
+	 */
+	public boolean isTransforming()
+	{
+		return depths.get().value > 0;
+	}
+
+
+	/**
+	 * Returns the number of nested callbacks which have been short-circuited.
+	 */
+	public long getShortCircuitCount()
+	{
+		return shortCircuitCount.get();
+	}
+
+
+	static class Depth
+	{
+		private int value;
+	}
+}
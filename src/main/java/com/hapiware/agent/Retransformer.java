@@ -0,0 +1,163 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+
+/**
+ * {@code Retransformer} calls the retransformation methods of {@link Instrumentation} and
+ * retransforms classes in batches with a pause between the batches. The retransformation
+ * methods were introduced in Java 6, so they are called by reflection. Every batch is recorded
+ * as a {@link FlightRecorderEvent#RETRANSFORM_BATCH} event when JDK Flight Recorder is running.
+ * <p>
+ * {@code Retransformer} is thread safe.
+ *
+ * @author hapi
+ *
+ */
+class Retransformer
+{
+	private final Instrumentation instrumentation;
+	private final int batchSize;
+	private final long batchInterval;
+
+
+	/**
+	 * @param batchSize
+	 * 		The number of classes retransformed at once.
+	 *
+	 * @param batchInterval
+	 * 		The pause between the batches in milliseconds.
+	 */
+	public Retransformer(Instrumentation instrumentation, int batchSize, long batchInterval)
+	{
+		this.instrumentation = instrumentation;
+		this.batchSize = batchSize;
+		this.batchInterval = batchInterval;
+	}
+
+
+	/**
+	 * Returns {@code true} if the JVM supports retransforming classes.
+	 */
+	public boolean isSupported()
+	{
+		try {
+			return (Boolean)invoke("isRetransformClassesSupported", new Class[0]);
+		}
+		catch(UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Registers the transformer as capable of retransformation if retransforming is supported
+	 * and normally otherwise.
+	 */
+	public void addTransformer(ClassFileTransformer transformer)
+	{
+		if(isSupported())
+			invoke(
+				"addTransformer",
+				new Class[] {ClassFileTransformer.class, boolean.class},
+				transformer,
+				true
+			);
+		else
+			instrumentation.addTransformer(transformer);
+	}
+
+
+	public boolean isModifiable(Class<?> c)
+	{
+		return (Boolean)invoke("isModifiableClass", new Class[] {Class.class}, c);
+	}
+
+
+	/**
+	 * Retransforms the classes in batches. If a batch fails, its classes are retransformed
+	 * one by one to find out the failing ones.
+	 *
+	 * @return
+	 * 		The number of classes successfully retransformed.
+	 *
+	 * @throws InterruptedException
+	 * 		If interrupted while pausing between the batches.
+	 */
+	public int retransform(List<Class<?>> classes)
+		throws
+			InterruptedException
+	{
+		int retransformed = 0;
+		for(int start = 0; start < classes.size(); start += batchSize) {
+			if(start > 0 && batchInterval > 0)
+				Thread.sleep(batchInterval);
+			List<Class<?>> batch = classes.subList(start, Math.min(start + batchSize, classes.size()));
+			Object event = FlightRecorderEvent.RETRANSFORM_BATCH.begin();
+			int batchRetransformed = 0;
+			if(retransform(batch.toArray(new Class[0])))
+				batchRetransformed = batch.size();
+			else {
+				// Finds out the failing classes one by one.
+				for(Class<?> c : batch)
+					if(retransform(new Class[] {c}))
+						batchRetransformed++;
+			}
+			FlightRecorderEvent.RETRANSFORM_BATCH.commit(event, batch.size(), batchRetransformed);
+			retransformed += batchRetransformed;
+		}
+		return retransformed;
+	}
+
+
+	private boolean retransform(Class<?>[] classes)
+	{
+		try {
+			invoke("retransformClasses", new Class[] {Class[].class}, (Object)classes);
+			return true;
+		}
+		catch(RuntimeException e) {
+			return false;
+		}
+		catch(LinkageError e) {
+			// E.g. a VerifyError caused by a transformer.
+			return false;
+		}
+	}
+
+
+	/**
+	 * Calls an {@code Instrumentation} method introduced after Java 5.
+	 *
+	 * @throws UnsupportedOperationException
+	 * 		If the method does not exist.
+	 *
+	 * @throws RuntimeException
+	 * 		If the method throws a checked exception (e.g. {@code UnmodifiableClassException}).
+	 */
+	private Object invoke(String methodName, Class<?>[] parameterTypes, Object... args)
+	{
+		try {
+			Method method = Instrumentation.class.getMethod(methodName, parameterTypes);
+			return method.invoke(instrumentation, args);
+		}
+		catch(NoSuchMethodException e) {
+			throw new UnsupportedOperationException(methodName + "() is not supported.", e);
+		}
+		catch(IllegalAccessException e) {
+			throw new UnsupportedOperationException(methodName + "() is not supported.", e);
+		}
+		catch(InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.hapiware.agent;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code TransformerConfig} is the part of the agent configuration file (see {@link Agent})
+ * controlling how and when the classes are transformed, i.e. the {@code /agent/transformer},
+ * {@code /agent/class-bytes-store} and {@code /agent/pre-transform} elements.
+ * {@code TransformerConfig} is <b>immutable</b>.
+ *
+ * @author hapi
+ *
+ */
+final class TransformerConfig
+{
+	private final static long DEFAULT_CLASS_BYTES_STORE_MAX_SIZE = 64L * 1024L * 1024L;
+	private final static long DEFAULT_CLASS_BYTES_STORE_SEGMENT_SIZE = 1024L * 1024L;
+	private final static int DEFAULT_RETRANSFORM_BATCH_SIZE = 50;
+	private final static long DEFAULT_RETRANSFORM_BATCH_INTERVAL = 100L;
+	private final static int DEFAULT_HOTNESS_THRESHOLD = 1000;
+	private final static long DEFAULT_HOTNESS_INTERVAL = 1000L;
+	private final static int MAX_PRE_TRANSFORM_THREADS = 256;
+	private final static long DEFAULT_PRE_TRANSFORM_RETENTION = 60000L;
+
+
+	private boolean reentrancyGuard;
+	private boolean activationDeferred;
+	private long activationDelay;
+	private int retransformBatchSize = DEFAULT_RETRANSFORM_BATCH_SIZE;
+	private long retransformBatchInterval = DEFAULT_RETRANSFORM_BATCH_INTERVAL;
+	private boolean hotnessMonitored;
+	private int hotnessThreshold = DEFAULT_HOTNESS_THRESHOLD;
+	private long hotnessInterval = DEFAULT_HOTNESS_INTERVAL;
+	private long classBytesStoreMaxSize;
+	private int classBytesStoreSegmentSize;
+	private String classBytesStoreFile;
+	private int preTransformThreads;
+	private long preTransformRetention = DEFAULT_PRE_TRANSFORM_RETENTION;
+
+
+	private TransformerConfig()
+	{
+		// Created only by read().
+	}
+
+
+	/**
+	 * Reads {@code /agent/transformer}, {@code /agent/class-bytes-store} and
+	 * {@code /agent/pre-transform}. The elements are optional.
+	 *
+	 * @throws ConfigurationError
+	 * 		If an element has invalid attributes.
+	 */
+	static TransformerConfig read(XPath xpath, Document configDocument)
+		throws
+			XPathExpressionException
+	{
+		TransformerConfig config = new TransformerConfig();
+
+		// /agent/transformer
+		Element transformer =
+			(Element)xpath.evaluate("/agent/transformer", configDocument, XPathConstants.NODE);
+		if(transformer != null) {
+			config.reentrancyGuard = Agent.parseBoolean(transformer, "reentrancy-guard", false);
+			String activation = transformer.getAttribute("activation").trim();
+			if(activation.equals("deferred"))
+				config.activationDeferred = true;
+			else if(activation.equals("hotness"))
+				config.hotnessMonitored = true;
+			else if(activation.length() > 0 && !activation.equals("immediate"))
+				throw
+					new ConfigurationError(
+						"/agent/transformer[@activation] must be \"immediate\", \"deferred\" "
+							+ "or \"hotness\" but was \"" + activation + "\"."
+					);
+			config.activationDelay = Agent.parseDuration(transformer, "activation-delay", 0);
+			long batchSize =
+				Agent.parseSize(transformer, "retransform-batch-size", DEFAULT_RETRANSFORM_BATCH_SIZE);
+			if(batchSize > Integer.MAX_VALUE)
+				throw
+					new ConfigurationError(
+						"/agent/transformer[@retransform-batch-size] is too big."
+					);
+			config.retransformBatchSize = (int)batchSize;
+			config.retransformBatchInterval =
+				Agent.parseDuration(
+					transformer,
+					"retransform-batch-interval",
+					DEFAULT_RETRANSFORM_BATCH_INTERVAL
+				);
+			long threshold =
+				Agent.parseSize(transformer, "hotness-threshold", DEFAULT_HOTNESS_THRESHOLD);
+			if(threshold > Integer.MAX_VALUE)
+				throw
+					new ConfigurationError(
+						"/agent/transformer[@hotness-threshold] is too big."
+					);
+			config.hotnessThreshold = (int)threshold;
+			config.hotnessInterval =
+				Agent.parseDuration(transformer, "hotness-interval", DEFAULT_HOTNESS_INTERVAL);
+			if(config.hotnessInterval <= 0)
+				throw
+					new ConfigurationError(
+						"/agent/transformer[@hotness-interval] must be greater than zero."
+					);
+		}
+
+		// /agent/class-bytes-store
+		Element classBytesStore =
+			(Element)xpath.evaluate(
+				"/agent/class-bytes-store",
+				configDocument,
+				XPathConstants.NODE
+			);
+		if(classBytesStore != null) {
+			config.classBytesStoreMaxSize =
+				Agent.parseSize(classBytesStore, "max-size", DEFAULT_CLASS_BYTES_STORE_MAX_SIZE);
+			long segmentSize =
+				Agent.parseSize(
+					classBytesStore,
+					"segment-size",
+					DEFAULT_CLASS_BYTES_STORE_SEGMENT_SIZE
+				);
+			if(segmentSize > Integer.MAX_VALUE || segmentSize > config.classBytesStoreMaxSize)
+				throw
+					new ConfigurationError(
+						"/agent/class-bytes-store[@segment-size] must not be greater than "
+							+ "/agent/class-bytes-store[@max-size] (or 2g)."
+					);
+			config.classBytesStoreSegmentSize = (int)segmentSize;
+			if(classBytesStore.hasAttribute("file"))
+				config.classBytesStoreFile = classBytesStore.getAttribute("file");
+		}
+
+		// /agent/pre-transform
+		Element preTransform =
+			(Element)xpath.evaluate("/agent/pre-transform", configDocument, XPathConstants.NODE);
+		if(preTransform != null) {
+			long threads =
+				Agent.parseSize(preTransform, "threads", Runtime.getRuntime().availableProcessors());
+			if(threads <= 0 || threads > MAX_PRE_TRANSFORM_THREADS)
+				throw
+					new ConfigurationError(
+						"/agent/pre-transform[@threads] must be between 1 and "
+							+ MAX_PRE_TRANSFORM_THREADS + "."
+					);
+			config.preTransformThreads = (int)threads;
+			config.preTransformRetention =
+				Agent.parseDuration(preTransform, "retention", DEFAULT_PRE_TRANSFORM_RETENTION);
+		}
+		return config;
+	}
+
+
+	/**
+	 * Returns {@code true} if nested {@code transform()} callbacks are short-circuited
+	 * (i.e. {@code /agent/transformer[@reentrancy-guard]} is {@code true}).
+	 */
+	public boolean isReentrancyGuarded()
+	{
+		return reentrancyGuard;
+	}
+
+
+	/**
+	 * Returns {@code true} if the delegate's transformers are kept dormant until
+	 * the activation (i.e. {@code /agent/transformer[@activation]} is {@code deferred}).
+	 */
+	public boolean isActivationDeferred()
+	{
+		return activationDeferred;
+	}
+
+
+	/**
+	 * Returns the activation delay in milliseconds or zero (0) if the instrumentation is
+	 * activated only on demand.
+	 */
+	public long getActivationDelay()
+	{
+		return activationDelay;
+	}
+
+
+	public int getRetransformBatchSize()
+	{
+		return retransformBatchSize;
+	}
+
+
+	/**
+	 * Returns the pause between retransformed batches in milliseconds.
+	 */
+	public long getRetransformBatchInterval()
+	{
+		return retransformBatchInterval;
+	}
+
+
+	/**
+	 * Returns {@code true} if only the hot classes are instrumented by the delegate's
+	 * transformers (i.e. {@code /agent/transformer[@activation]} is {@code hotness}).
+	 */
+	public boolean isHotnessMonitored()
+	{
+		return hotnessMonitored;
+	}
+
+
+	public int getHotnessThreshold()
+	{
+		return hotnessThreshold;
+	}
+
+
+	/**
+	 * Returns the interval of collecting the invocation counts in milliseconds.
+	 */
+	public long getHotnessInterval()
+	{
+		return hotnessInterval;
+	}
+
+
+	/**
+	 * Returns the maximum size of the class bytes store or zero (0) if
+	 * {@code /agent/class-bytes-store} is not defined.
+	 */
+	public long getClassBytesStoreMaxSize()
+	{
+		return classBytesStoreMaxSize;
+	}
+
+
+	public int getClassBytesStoreSegmentSize()
+	{
+		return classBytesStoreSegmentSize;
+	}
+
+
+	public String getClassBytesStoreFile()
+	{
+		return classBytesStoreFile;
+	}
+
+
+	/**
+	 * Returns {@code true} if the class path classes are transformed in the background
+	 * ({@code /agent/pre-transform} is defined).
+	 */
+	public boolean isPreTransformed()
+	{
+		return preTransformThreads > 0;
+	}
+
+
+	/**
+	 * Returns the number of threads transforming the class path classes in the background.
+	 */
+	public int getPreTransformThreads()
+	{
+		return preTransformThreads;
+	}
+
+
+	/**
+	 * Returns the time in milliseconds the transformed class path classes are kept after
+	 * the background transformations have completed.
+	 */
+	public long getPreTransformRetention()
+	{
+		return preTransformRetention;
+	}
+}
@@ -0,0 +1,180 @@
+package com.hapiware.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * {@code TransformerDispatcher} calls the transformers returned by the agent delegate's
+ * {@code premain()}. The dispatcher itself is the only transformer registered for them, so that
+ * the agent does the dispatching in one place:
+ * <ul>
+ * 		<li>
+ * 			only the classes matching the {@code /agent/filter} element are passed to
+ * 			the transformers; {@link DelegateTransformer} wrapping the dispatcher has already
+ * 			counted the class in the filter statistics, so the dispatcher checks it with
+ * 			{@link ClassFilter#matches(CharSequence)}, which is not counted
+ * 		</li>
+ * 		<li>
+ * 			the transformers are chained in the returned order, i.e. every transformer gets
+ * 			the class file bytes transformed by the previous ones
+ * 		</li>
+ * 		<li>
+ * 			a transformer throwing an exception does not affect the others; the exception is
+ * 			counted, the first one of every transformer is printed to {@code System.err} and
+ * 			the class file bytes are passed on unchanged
+ * 		</li>
+ * 		<li>
+ * 			the time of every dispatch is recorded to the {@code agent.transform.time} histogram
+ * 			and the exceptions to the {@code agent.transform.failures} counter if there is
+ * 			a {@link Metrics} registry
+ * 		</li>
+ * </ul>
+ *
+ * @author hapi
+ *
+ */
+final class TransformerDispatcher
+	implements
+		ClassFileTransformer
+{
+	private final ClassFileTransformer[] transformers;
+	private final ClassFilter classFilter;
+	private final AtomicLongArray failures;
+	private final Histogram time;
+	private final Counter failureCounter;
+
+
+	/**
+	 * @param transformers
+	 * 		The transformers in the order they are called.
+	 *
+	 * @param classFilter
+	 * 		The compiled {@code /agent/filter} element.
+	 *
+	 * @param metrics
+	 * 		A registry for the dispatch time and the failures or {@code null}.
+	 */
+	public TransformerDispatcher(
+		ClassFileTransformer[] transformers,
+		ClassFilter classFilter,
+		Metrics metrics
+	)
+	{
+		this.transformers = transformers.clone();
+		this.classFilter = classFilter;
+		failures = new AtomicLongArray(transformers.length);
+		time = metrics == null ? null : metrics.histogram("agent.transform.time");
+		failureCounter = metrics == null ? null : metrics.counter("agent.transform.failures");
+	}
+
+
+	/**
+	 * Converts the value returned by the agent delegate's {@code premain()} to transformers.
+	 *
+	 * @param value
+	 * 		{@code null}, a {@code ClassFileTransformer}, an array of them or a {@code Collection}
+	 * 		of them.
+	 *
+	 * @return
+	 * 		The transformers ({@code null} elements left out), empty for {@code null}.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the value is not any of the above.
+	 */
+	static ClassFileTransformer[] toTransformers(Object value)
+	{
+		Object[] elements;
+		if(value == null)
+			elements = new Object[0];
+		else if(value instanceof ClassFileTransformer)
+			elements = new Object[] {value};
+		else if(value instanceof Object[])
+			elements = (Object[])value;
+		else if(value instanceof Collection<?>)
+			elements = ((Collection<?>)value).toArray();
+		else
+			throw
+				new IllegalArgumentException(
+					value.getClass().getName() + " is not a ClassFileTransformer."
+				);
+
+		List<ClassFileTransformer> transformers = new ArrayList<ClassFileTransformer>();
+		for(Object element : elements) {
+			if(element == null)
+				continue;
+			if(!(element instanceof ClassFileTransformer))
+				throw
+					new IllegalArgumentException(
+						element.getClass().getName() + " is not a ClassFileTransformer."
+					);
+			transformers.add((ClassFileTransformer)element);
+		}
+		return transformers.toArray(new ClassFileTransformer[transformers.size()]);
+	}
+
+
+	public byte[] transform(
+		ClassLoader loader,
+		String className,
+		Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain,
+		byte[] classfileBuffer
+	)
+	{
+		if(className == null || !classFilter.matches(className))
+			return null;
+
+		long startTime = time == null ? 0 : System.nanoTime();
+		byte[] current = classfileBuffer;
+		for(int i = 0; i < transformers.length; i++) {
+			try {
+				byte[] transformed =
+					transformers[i].transform(
+						loader,
+						className,
+						classBeingRedefined,
+						protectionDomain,
+						current
+					);
+				if(transformed != null)
+					current = transformed;
+			}
+			catch(Throwable t) {
+				if(t instanceof VirtualMachineError)
+					throw (VirtualMachineError)t;
+				if(failures.getAndIncrement(i) == 0) {
+					System.err.println(
+						transformers[i].getClass().getName() + " failed to transform "
+							+ className + " (the next failures are only counted):"
+					);
+					t.printStackTrace();
+				}
+				if(failureCounter != null)
+					failureCounter.increment();
+			}
+		}
+		if(time != null)
+			time.record(System.nanoTime() - startTime);
+		return current == classfileBuffer ? null : current;
+	}
+
+
+	ClassFileTransformer[] getTransformers()
+	{
+		return transformers.clone();
+	}
+
+
+	/**
+	 * Returns the number of exceptions thrown by the transformer at the given index.
+	 */
+	public long getFailures(int index)
+	{
+		return failures.get(index);
+	}
+}
@@ -0,0 +1,421 @@
+package com.hapiware.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * {@code TypeHierarchy} is a cache of the direct super types (i.e. the super class and
+ * the implemented interfaces) of classes. It is used to answer whether a class is
+ * a (transitive) subtype of another class without loading any of the classes. The cache is
+ * fed with the class file bytes seen by the agent's transformer wrapper and optionally by
+ * scanning the application classpath (see {@link Agent}). Classes not in the cache are
+ * resolved lazily by reading their class files as resources from the class loader.
+ * <p>
+ *
+ * Every class name is stored only once and is given a primitive {@code int} ID. The super
+ * types of a class are stored as a small immutable record of IDs, so that an entry costs
+ * the class name and a few dozen bytes (see {@link #estimateMemoryUsage()}). Class names are not separated by class loaders, i.e.
+ * the first class seen with a given name defines the super types for that name.
+ * <p>
+ *
+ * Updates are serialised but queries do not lock. A query sees at least all the updates
+ * completed before the query was started. The super types of a class are published at once,
+ * so a query never sees the super class of a class without its interfaces.
+ *
+ * @author hapi
+ *
+ */
+public class TypeHierarchy
+{
+	private static final int NONE = -1;
+	private static final int[] NO_INTERFACES = new int[0];
+	private static final Supertypes NO_SUPERTYPES = new Supertypes(NONE, NO_INTERFACES);
+	private static final int MAX_STEPS = 10000;
+	private static volatile TypeHierarchy instance;
+
+
+	private volatile Tables tables = new Tables(1024, 2048);
+	private final ClasspathScanner.Visitor scanVisitor =
+		new ClasspathScanner.Visitor() {
+			public boolean accepts(String className)
+			{
+				return true;
+			}
+
+			public boolean visit(String className, byte[] classfileBuffer)
+			{
+				return add(classfileBuffer);
+			}
+		};
+	private volatile int updateCount;
+	private final ThreadLocal<ClassFileHeader> headers =
+		new ThreadLocal<ClassFileHeader>() {
+			protected ClassFileHeader initialValue()
+			{
+				return new ClassFileHeader();
+			}
+		};
+
+
+	/**
+	 * Returns the hierarchy maintained by the agent or {@code null} if there are no
+	 * {@code /agent/filter/subtype-of} elements in the configuration file.
+	 */
+	public static TypeHierarchy getInstance()
+	{
+		return instance;
+	}
+
+
+	static void setInstance(TypeHierarchy hierarchy)
+	{
+		instance = hierarchy;
+	}
+
+
+	/**
+	 * Adds the direct super types of a class. If the super types of the class are already
+	 * known nothing is done.
+	 *
+	 * @param className
+	 * 		The class name in the internal form (e.g. "java/util/ArrayList").
+	 *
+	 * @param superClassName
+	 * 		The super class name in the internal form or {@code null} if there is none.
+	 *
+	 * @param interfaceNames
+	 * 		The directly implemented interfaces in the internal form.
+	 *
+	 * @return
+	 * 		{@code true} if the class was added.
+	 */
+	public synchronized boolean add(String className, String superClassName, String[] interfaceNames)
+	{
+		int id = idFor(className);
+		if(tables.supertypes[id] != null)
+			return false;
+
+		int superId = superClassName == null ? NONE : idFor(superClassName);
+		int[] interfaceIds = NO_INTERFACES;
+		if(interfaceNames.length > 0) {
+			interfaceIds = new int[interfaceNames.length];
+			for(int i = 0; i < interfaceNames.length; i++)
+				interfaceIds[i] = idFor(interfaceNames[i]);
+		}
+		tables.supertypes[id] = new Supertypes(superId, interfaceIds);
+		updateCount++;
+		return true;
+	}
+
+
+	/**
+	 * Adds the class scanned with {@code header}.
+	 *
+	 * @see #add(String, String, String[])
+	 */
+	public boolean add(ClassFileHeader header)
+	{
+		return add(header.getClassName(), header.getSuperClassName(), header.getInterfaceNames());
+	}
+
+
+	/**
+	 * Adds the class from the class file bytes. Bytes which are not a valid class file are
+	 * ignored.
+	 *
+	 * @see #add(String, String, String[])
+	 */
+	public boolean add(byte[] classBytes)
+	{
+		ClassFileHeader header = headers.get();
+		try {
+			header.scan(classBytes);
+			return add(header);
+		}
+		catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Checks if {@code className} is a subtype of {@code superTypeName} (i.e. it extends or
+	 * implements {@code superTypeName} either directly or transitively). A class is not
+	 * a subtype of itself.
+	 *
+	 * @param loader
+	 * 		A class loader used to read the class files of the classes which are not in the cache
+	 * 		or {@code null} for the system class loader.
+	 *
+	 * @param className
+	 * 		The class name in the internal form.
+	 *
+	 * @param superTypeName
+	 * 		The super type name in the internal form.
+	 */
+	public boolean isSubtypeOf(ClassLoader loader, String className, String superTypeName)
+	{
+		int id = find(readTables(), className);
+		if(id < 0) {
+			resolve(loader, className);
+			id = find(readTables(), className);
+			if(id < 0)
+				return false;
+		}
+
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = id;
+		for(int steps = 0; top > 0 && steps < MAX_STEPS; steps++) {
+			int current = stack[--top];
+			Tables t = readTables();
+			String name = t.names[current];
+			if(name == null)
+				continue;
+			if(current != id && name.equals(superTypeName))
+				return true;
+
+			Supertypes supertypes = t.supertypes[current];
+			if(supertypes == null) {
+				resolve(loader, name);
+				supertypes = readTables().supertypes[current];
+				if(supertypes == null)
+					continue;
+			}
+			int superId = supertypes.superId;
+			int[] interfaceIds = supertypes.interfaceIds;
+			int needed = top + 1 + interfaceIds.length;
+			if(needed > stack.length) {
+				int[] newStack = new int[Math.max(needed, stack.length * 2)];
+				System.arraycopy(stack, 0, newStack, 0, top);
+				stack = newStack;
+			}
+			if(superId >= 0)
+				stack[top++] = superId;
+			for(int interfaceId : interfaceIds)
+				stack[top++] = interfaceId;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Checks if the super types of the class are in the cache.
+	 */
+	public boolean contains(String className)
+	{
+		Tables t = readTables();
+		int id = find(t, className);
+		return id >= 0 && t.supertypes[id] != null;
+	}
+
+
+	/**
+	 * Returns the number of class names (including the names only referred as super types)
+	 * in the cache.
+	 */
+	public synchronized int size()
+	{
+		return tables.size;
+	}
+
+
+	/**
+	 * Returns an estimate of the heap used by the cache in bytes. The estimate assumes
+	 * compressed references and two bytes per character in strings.
+	 */
+	public synchronized long estimateMemoryUsage()
+	{
+		Tables t = tables;
+		long bytes = 4 * 16L;
+		bytes += 16L + 4L * t.names.length;
+		bytes += 16L + 4L * t.supertypes.length;
+		bytes += 16L + 4L * t.index.length;
+		for(int i = 0; i < t.size; i++) {
+			bytes += 24L + 16L + 2L * t.names[i].length();
+			Supertypes supertypes = t.supertypes[i];
+			if(supertypes != null && supertypes != NO_SUPERTYPES) {
+				bytes += 24L;
+				if(supertypes.interfaceIds.length > 0)
+					bytes += 16L + 4L * supertypes.interfaceIds.length;
+			}
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Adds all the classes from a jar file or a directory.
+	 *
+	 * @param classpathEntry
+	 * 		A jar file or a directory containing class files.
+	 *
+	 * @return
+	 * 		The number of classes added.
+	 *
+	 * @throws IOException
+	 * 		If the jar file cannot be read.
+	 */
+	public int scan(File classpathEntry)
+		throws
+			IOException
+	{
+		return ClasspathScanner.scan(classpathEntry, scanVisitor);
+	}
+
+
+	/**
+	 * Adds all the classes from the classpath entries separated with {@link File#pathSeparator}.
+	 * Entries which do not exist or cannot be read are skipped.
+	 *
+	 * @return
+	 * 		The number of classes added.
+	 */
+	public int scanClasspath(String classpath)
+	{
+		return ClasspathScanner.scan(classpath, scanVisitor);
+	}
+
+
+	private void resolve(ClassLoader loader, String className)
+	{
+		InputStream in =
+			loader == null
+				? ClassLoader.getSystemResourceAsStream(className + ".class")
+				: loader.getResourceAsStream(className + ".class");
+		if(in != null) {
+			try {
+				if(add(ClasspathScanner.readFully(in)))
+					return;
+			}
+			catch(IOException e) {
+				// Unreadable class is handled as not found.
+			}
+		}
+
+		// The class is marked as having no super types to avoid resolving it again.
+		synchronized(this) {
+			int id = idFor(className);
+			Tables t = tables;
+			if(t.supertypes[id] == null) {
+				t.supertypes[id] = NO_SUPERTYPES;
+				updateCount++;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the current tables. The volatile read of the update count makes all the completed
+	 * in-place updates of the tables visible to the calling thread.
+	 */
+	private Tables readTables()
+	{
+		int count = updateCount;
+		assert count >= 0;
+		return tables;
+	}
+
+
+	private static int find(Tables t, String name)
+	{
+		int[] index = t.index;
+		int mask = index.length - 1;
+		for(int i = hash(name) & mask; ; i = (i + 1) & mask) {
+			int value = index[i];
+			if(value == 0)
+				return -1;
+			String candidate = t.names[value - 1];
+			if(candidate != null && candidate.equals(name))
+				return value - 1;
+		}
+	}
+
+
+	/**
+	 * Returns the ID for the name and creates a new one if needed. Must be called with
+	 * the lock held.
+	 */
+	private int idFor(String name)
+	{
+		Tables t = tables;
+		int id = find(t, name);
+		if(id >= 0)
+			return id;
+
+		boolean grown = false;
+		if(t.size == t.names.length || 2 * (t.size + 1) > t.index.length) {
+			t = t.grow();
+			grown = true;
+		}
+		id = t.size;
+		t.names[id] = name;
+		t.insert(name, id);
+		t.size++;
+		if(grown)
+			tables = t;
+		return id;
+	}
+
+
+	private static int hash(String name)
+	{
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+
+	/**
+	 * The direct super types of a class. The fields are final, so a query reading a record
+	 * without locking sees it completely.
+	 */
+	private static class Supertypes
+	{
+		private final int superId;
+		private final int[] interfaceIds;
+
+		public Supertypes(int superId, int[] interfaceIds)
+		{
+			this.superId = superId;
+			this.interfaceIds = interfaceIds;
+		}
+	}
+
+
+	private static class Tables
+	{
+		private final String[] names;
+		private final Supertypes[] supertypes;
+		private final int[] index;
+		private int size;
+
+		public Tables(int capacity, int indexCapacity)
+		{
+			names = new String[capacity];
+			supertypes = new Supertypes[capacity];
+			index = new int[indexCapacity];
+		}
+
+		public Tables grow()
+		{
+			Tables t = new Tables(2 * names.length, 4 * names.length);
+			System.arraycopy(names, 0, t.names, 0, size);
+			System.arraycopy(supertypes, 0, t.supertypes, 0, size);
+			for(int i = 0; i < size; i++)
+				t.insert(names[i], i);
+			t.size = size;
+			return t;
+		}
+
+		public void insert(String name, int id)
+		{
+			int mask = index.length - 1;
+			int i = hash(name) & mask;
+			while(index[i] != 0)
+				i = (i + 1) & mask;
+			index[i] = id + 1;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.hapiware.agent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+/**
+ * {@code VariableSources} resolves the variable references to the system properties and to
+ * the environment variables:
+ * <ul>
+ * 		<li>{@code ${sys:NAME}} is the system property {@code NAME}</li>
+ * 		<li>{@code ${env:NAME}} is the environment variable {@code NAME}</li>
+ * 		<li>
+ * 			{@code ${sys:NAME:-DEFAULT}} and {@code ${env:NAME:-DEFAULT}} are the same but
+ * 			{@code DEFAULT} is used if {@code NAME} is not defined (the default value is
+ * 			everything after the first {@code :-})
+ * 		</li>
+ * </ul>
+ * A source is looked up when a reference to it is resolved for the first time. The value is
+ * then cached for the lifetime of the JVM (also an undefined value, i.e. a system property
+ * or an environment variable defined later is not seen), so every agent of the JVM and every
+ * reference gets the same value. The default value is not cached but applied to each reference
+ * separately. A source which cannot be read because of a {@code SecurityException} is
+ * undefined.
+ *
+ * @author hapi
+ *
+ */
+final class VariableSources
+{
+	private final static String SYSTEM_PROPERTY = "sys:";
+	private final static String ENVIRONMENT_VARIABLE = "env:";
+	private final static String DEFAULT_SEPARATOR = ":-";
+	private final static Pattern SOURCE_REFERENCE_PATTERN =
+		Pattern.compile("\\$\\{((sys|env):[^\\$\\{\\}]+?)\\}");
+
+	/**
+	 * Marks an undefined source in the cache.
+	 */
+	private final static String UNDEFINED = new String("undefined");
+
+	private final static ConcurrentMap<String, String> values =
+		new ConcurrentHashMap<String, String>();
+	private final static AtomicInteger lookups = new AtomicInteger();
+
+
+	private VariableSources()
+	{
+		// Static methods only.
+	}
+
+
+	/**
+	 * Returns {@code true} if the reference (i.e. the part between <code>${</code> and
+	 * <code>}</code>) refers to a system property or an environment variable.
+	 */
+	static boolean isSourceReference(String reference)
+	{
+		return reference.startsWith(SYSTEM_PROPERTY) || reference.startsWith(ENVIRONMENT_VARIABLE);
+	}
+
+
+	/**
+	 * Resolves a reference (i.e. the part between <code>${</code> and <code>}</code>).
+	 *
+	 * @return
+	 * 		The value of the system property or the environment variable, the default value if it
+	 * 		is not defined or {@code null} if it is not defined and there is no default value
+	 * 		or the reference is not a source reference at all.
+	 */
+	static String resolve(String reference)
+	{
+		if(!isSourceReference(reference))
+			return null;
+		String source = reference;
+		String defaultValue = null;
+		int separator = reference.indexOf(DEFAULT_SEPARATOR);
+		if(separator >= 0) {
+			source = reference.substring(0, separator);
+			defaultValue = reference.substring(separator + DEFAULT_SEPARATOR.length());
+		}
+
+		String value = values.get(source);
+		if(value == null) {
+			value = lookup(source);
+			String previous = values.putIfAbsent(source, value == null ? UNDEFINED : value);
+			if(previous != null)
+				value = previous;
+		}
+		return value == null || value == UNDEFINED ? defaultValue : value;
+	}
+
+
+	private static String lookup(String source)
+	{
+		lookups.incrementAndGet();
+		// Both of the prefixes have the same length.
+		String name = source.substring(SYSTEM_PROPERTY.length());
+		try {
+			if(source.startsWith(SYSTEM_PROPERTY))
+				return System.getProperty(name);
+			else
+				return System.getenv(name);
+		}
+		catch(SecurityException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Replaces only the system property and environment variable references of the value (i.e.
+	 * the other variables are left as they are). This is used for the values needed before
+	 * the {@code /agent/variable} elements are read (e.g. the {@code file} attribute of
+	 * {@code <include>}).
+	 *
+	 * @throws ConfigurationError
+	 * 		If a referred source is not defined and the reference does not have a default value.
+	 */
+	static String replace(String value)
+	{
+		if(value.indexOf("${") < 0)
+			return value;
+		Matcher m = SOURCE_REFERENCE_PATTERN.matcher(value);
+		StringBuffer replaced = new StringBuffer();
+		while(m.find()) {
+			String substitute = resolve(m.group(1));
+			if(substitute == null)
+				throw
+					new ConfigurationError(
+						"\"" + value + "\" has an unrecognised variable " + m.group() + "."
+					);
+			m.appendReplacement(replaced, Matcher.quoteReplacement(substitute));
+		}
+		m.appendTail(replaced);
+		return replaced.toString();
+	}
+
+
+	/**
+	 * Returns the number of the system properties and environment variables looked up.
+	 */
+	static int getLookups()
+	{
+		return lookups.get();
+	}
+
+
+	/**
+	 * Clears the cached values (for testing).
+	 */
+	static void clear()
+	{
+		values.clear();
+	}
+}
@@ -0,0 +1,181 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+
+/**
+ * Builds the agent .jar file from the compiled classes and runs {@code java -version} with
+ * the agent in a separate JVM. This is needed for the things which happen only when the agent
+ * is started with {@code -javaagent} (e.g. the JVM options).
+ *
+ * @author hapi
+ *
+ */
+class AgentProcess
+{
+	private AgentProcess()
+	{
+		// Static methods only.
+	}
+
+
+	/**
+	 * Writes {@code agent.jar} to the directory.
+	 *
+	 * @return
+	 * 		The .jar file or {@code null} if the agent classes are not in a directory (i.e.
+	 * 		the tests are not run from the build directories).
+	 */
+	static File writeAgentJar(File directory) throws Exception
+	{
+		File classes = new File(Agent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		if(!classes.isDirectory())
+			return null;
+		InputStream manifestIn = new FileInputStream(new File(classes, "META-INF/MANIFEST.MF"));
+		Manifest manifest;
+		try {
+			manifest = new Manifest(manifestIn);
+		}
+		finally {
+			manifestIn.close();
+		}
+		File jar = new File(directory, "agent.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+		try {
+			addDirectory(out, classes, "");
+		}
+		finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	/**
+	 * Writes a .jar file having only the given class (e.g. an agent delegate).
+	 */
+	static File writeJar(File jar, Class<?> type) throws IOException
+	{
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			String name = type.getName().replace('.', '/') + ".class";
+			addEntry(out, name, type.getClassLoader().getResourceAsStream(name));
+		}
+		finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	private static void addDirectory(JarOutputStream out, File directory, String prefix)
+		throws
+			IOException
+	{
+		for(File file : directory.listFiles()) {
+			String name = prefix + file.getName();
+			if(file.isDirectory())
+				addDirectory(out, file, name + "/");
+			else if(!name.equals("META-INF/MANIFEST.MF"))
+				addEntry(out, name, new FileInputStream(file));
+		}
+	}
+
+	private static void addEntry(JarOutputStream out, String name, InputStream in)
+		throws
+			IOException
+	{
+		try {
+			out.putNextEntry(new JarEntry(name));
+			byte[] buffer = new byte[8192];
+			int count;
+			while((count = in.read(buffer)) > 0)
+				out.write(buffer, 0, count);
+			out.closeEntry();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes an agent configuration file for the delegate which includes only
+	 * {@code ^com/example/.+}.
+	 *
+	 * @param elements
+	 * 		The additional elements of {@code /agent}.
+	 */
+	static File writeConfig(File file, Class<?> delegate, File delegateJar, String... elements)
+		throws
+			IOException
+	{
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+			out.write("<agent>\n");
+			out.write("\t<delegate>" + delegate.getName() + "</delegate>\n");
+			out.write("\t<classpath><entry>" + delegateJar.getPath() + "</entry></classpath>\n");
+			out.write("\t<filter><include>^com/example/.+</include></filter>\n");
+			for(String element : elements)
+				out.write("\t" + element + "\n");
+			out.write("</agent>\n");
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Runs {@code java -version} with the agent or without it if there is no configuration file.
+	 * The JVM must exit normally.
+	 *
+	 * @return
+	 * 		The elapsed time in nanoseconds.
+	 */
+	static long run(File agentJar, File config, String... options)
+		throws
+			IOException,
+			InterruptedException
+	{
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.addAll(Arrays.asList(options));
+		command.add("-cp");
+		command.add(agentJar.getPath());
+		if(config != null) {
+			command.add("-javaagent:" + agentJar.getPath() + "=" + config.getPath());
+			command.add("-version");
+		}
+		long startTime = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		process.getOutputStream().close();
+		StringBuilder output = new StringBuilder();
+		InputStream in = process.getInputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while((count = in.read(buffer)) > 0)
+				output.append(new String(buffer, 0, count, "UTF-8"));
+		}
+		finally {
+			in.close();
+		}
+		int exitValue = process.waitFor();
+		long time = System.nanoTime() - startTime;
+		assertEquals(output.toString(), 0, exitValue);
+		return time;
+	}
+}
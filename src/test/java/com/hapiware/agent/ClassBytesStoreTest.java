@@ -0,0 +1,308 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.ProtectionDomain;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ClassBytesStoreTest
+	extends
+		TestBase
+{
+	private static final int KB = 1024;
+
+
+	private byte[] classBytes;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		classBytes = readClassBytes(getClass());
+	}
+
+	@Test
+	public void putAndGet()
+	{
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		assertTrue(store.put(null, "com/hapiware/Test", classBytes));
+		assertTrue(store.contains(null, "com/hapiware/Test"));
+		assertArrayEquals(classBytes, store.get(null, "com/hapiware/Test"));
+		assertNull(store.get(null, "com/hapiware/Unknown"));
+	}
+
+	@Test
+	public void firstBytesAreKept()
+	{
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		assertTrue(store.put(null, "com/hapiware/Test", classBytes));
+		assertFalse(store.put(null, "com/hapiware/Test", new byte[] {1, 2, 3}));
+		assertArrayEquals(classBytes, store.get(null, "com/hapiware/Test"));
+	}
+
+	@Test
+	public void classLoadersAreSeparated()
+	{
+		ClassLoader loader = new URLClassLoader(new URL[0]);
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		byte[] otherBytes = new byte[] {1, 2, 3};
+		store.put(null, "com/hapiware/Test", classBytes);
+		store.put(loader, "com/hapiware/Test", otherBytes);
+		assertEquals(2, store.size());
+		assertArrayEquals(classBytes, store.get(null, "com/hapiware/Test"));
+		assertArrayEquals(otherBytes, store.get(loader, "com/hapiware/Test"));
+		assertNull(store.get(new URLClassLoader(new URL[0]), "com/hapiware/Test"));
+	}
+
+	@Test
+	public void lookupsDoNotRegisterClassLoaders()
+	{
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		ClassLoader loader = new URLClassLoader(new URL[0]);
+		assertNull(store.get(loader, "com/hapiware/Test"));
+		assertFalse(store.contains(loader, "com/hapiware/Test"));
+		assertEquals(0, store.getLoaderCount());
+		store.put(loader, "com/hapiware/Test", classBytes);
+		assertEquals(1, store.getLoaderCount());
+	}
+
+	@Test
+	public void concurrentPuts() throws InterruptedException
+	{
+		final ClassBytesStore store = new ClassBytesStore(8 * 1024 * KB, 16 * KB);
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++) {
+			final int offset = t * 100;
+			threads[t] =
+				new Thread() {
+					public void run()
+					{
+						for(int i = offset; i < offset + 100; i++)
+							store.put(null, "com/hapiware/Test" + i, classBytes);
+					}
+				};
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertEquals(400, store.size());
+		for(int i = 0; i < 400; i++)
+			assertArrayEquals(classBytes, store.get(null, "com/hapiware/Test" + i));
+	}
+
+	@Test
+	public void incompressibleBytes()
+	{
+		byte[] randomBytes = new byte[8 * KB];
+		new Random(616).nextBytes(randomBytes);
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		assertTrue(store.put(null, "com/hapiware/Random", randomBytes));
+		assertArrayEquals(randomBytes, store.get(null, "com/hapiware/Random"));
+	}
+
+	@Test
+	public void tooLargeClassIsNotStored()
+	{
+		byte[] randomBytes = new byte[32 * KB];
+		new Random(616).nextBytes(randomBytes);
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		assertFalse(store.put(null, "com/hapiware/Random", randomBytes));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void oldestSegmentIsEvicted()
+	{
+		ClassBytesStore store = new ClassBytesStore(32 * KB, 8 * KB);
+		Random random = new Random(616);
+		for(int i = 0; i < 10; i++) {
+			byte[] bytes = new byte[6 * KB];
+			random.nextBytes(bytes);
+			store.put(null, "com/hapiware/Test" + i, bytes);
+		}
+		// Every 6k class fills its own segment and only four segments fit in.
+		assertEquals(4, store.size());
+		assertEquals(6, store.getEvictionCount());
+		assertNull(store.get(null, "com/hapiware/Test0"));
+		assertNull(store.get(null, "com/hapiware/Test5"));
+		for(int i = 6; i < 10; i++)
+			assertTrue(store.contains(null, "com/hapiware/Test" + i));
+	}
+
+	@Test
+	public void memoryMappedFile() throws IOException
+	{
+		File file = File.createTempFile("agent-unit-test", ".bin");
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB, file);
+		for(int i = 0; i < 10; i++)
+			store.put(null, "com/hapiware/Test" + i, classBytes);
+		for(int i = 0; i < 10; i++)
+			assertArrayEquals(classBytes, store.get(null, "com/hapiware/Test" + i));
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		configDoc.getDocumentElement().appendChild(configDoc.createElement("class-bytes-store"));
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(64 * KB * KB, configElements.getTransformer().getClassBytesStoreMaxSize());
+		assertEquals(KB * KB, configElements.getTransformer().getClassBytesStoreSegmentSize());
+		assertNull(configElements.getTransformer().getClassBytesStoreFile());
+	}
+
+	@Test
+	public void storeIsNotConfigured()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(0, configElements.getTransformer().getClassBytesStoreMaxSize());
+	}
+
+	@Test
+	public void sizesAreParsed()
+	{
+		Element store = configDoc.createElement("class-bytes-store");
+		store.setAttribute("max-size", "2g");
+		store.setAttribute("segment-size", "512k");
+		store.setAttribute("file", "/tmp/classes.bin");
+		configDoc.getDocumentElement().appendChild(store);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(2L * KB * KB * KB, configElements.getTransformer().getClassBytesStoreMaxSize());
+		assertEquals(512 * KB, configElements.getTransformer().getClassBytesStoreSegmentSize());
+		assertEquals("/tmp/classes.bin", configElements.getTransformer().getClassBytesStoreFile());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidSize()
+	{
+		Element store = configDoc.createElement("class-bytes-store");
+		store.setAttribute("max-size", "lots");
+		configDoc.getDocumentElement().appendChild(store);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void segmentLargerThanStore()
+	{
+		Element store = configDoc.createElement("class-bytes-store");
+		store.setAttribute("max-size", "1m");
+		store.setAttribute("segment-size", "2m");
+		configDoc.getDocumentElement().appendChild(store);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+
+	@Test
+	public void delegateTransformerFillsStore() throws Exception
+	{
+		ClassBytesStore store = new ClassBytesStore(64 * KB, 16 * KB);
+		final int[] calls = new int[1];
+		ClassFileTransformer transformer =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					calls[0]++;
+					return null;
+				}
+			};
+		DelegateTransformer wrapper =
+			new DelegateTransformer(
+				transformer,
+				new ClassFilter(
+					new Pattern[] {Pattern.compile("^com/hapiware/.+")},
+					new Pattern[] {Pattern.compile("^com/hapiware/.+Excluded")}
+				),
+				store
+			);
+		assertSame(transformer, wrapper.getTransformer());
+		assertNull(wrapper.transform(null, "com/hapiware/Test", null, null, classBytes));
+		assertNull(wrapper.transform(null, "com/hapiware/TestExcluded", null, null, classBytes));
+		assertNull(wrapper.transform(null, "com/mysoft/Test", null, null, classBytes));
+		assertEquals(3, calls[0]);
+		assertEquals(1, store.size());
+		assertArrayEquals(classBytes, store.get(null, "com/hapiware/Test"));
+	}
+
+	@Test
+	public void proxyWrapsTransformers()
+	{
+		final Object[] added = new Object[1];
+		Instrumentation instrumentation =
+			(Instrumentation)Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class[] {Instrumentation.class},
+				new InvocationHandler() {
+					public Object invoke(
+						Object proxy,
+						Method method,
+						Object[] args
+					)
+					{
+						if(method.getName().equals("addTransformer"))
+							added[0] = args[0];
+						if(method.getName().equals("removeTransformer"))
+							return added[0] == args[0];
+						return null;
+					}
+				}
+			);
+		ClassFileTransformer transformer =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					return null;
+				}
+			};
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(
+				instrumentation,
+				new ClassFilter(new Pattern[] {Pattern.compile(".+")}, new Pattern[0]),
+				new ClassBytesStore(64 * KB, 16 * KB),
+				null,
+				null,
+				null
+			);
+		proxy.addTransformer(transformer);
+		assertTrue(added[0] instanceof DelegateTransformer);
+		assertSame(transformer, ((DelegateTransformer)added[0]).getTransformer());
+		assertTrue(proxy.removeTransformer(transformer));
+	}
+}
@@ -0,0 +1,124 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Compares the startup times of the JVM running the agent with and without a CDS archive
+ * created from the class list of {@link ClassDataSharing}. The benchmark builds the agent .jar
+ * file and starts several JVMs. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class ClassDataSharingBenchmark
+{
+	/**
+	 * The agent delegate of the training and the measured runs.
+	 */
+	public static class Delegate
+	{
+		public static void premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			Object config,
+			Instrumentation instrumentation
+		)
+		{
+			java.util.logging.Logger.getLogger(Delegate.class.getName()).fine("premain");
+		}
+	}
+
+
+	private File directory;
+
+
+	@Before
+	public void setup() throws IOException
+	{
+		directory = File.createTempFile("agent-benchmark", ".cds");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		for(File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Runs a training run, creates a CDS archive from the class list and compares the startup
+	 * times of the runs with and without the archive. Requires Java 10 or later.
+	 */
+	@Test
+	public void startupWithArchive() throws Exception
+	{
+		String version = System.getProperty("java.specification.version");
+		if(version.startsWith("1.") || Integer.parseInt(version) < 10)
+			return;
+		File agentJar = AgentProcess.writeAgentJar(directory);
+		if(agentJar == null)
+			return;
+		File delegateJar = AgentProcess.writeJar(new File(directory, "delegate.jar"), Delegate.class);
+		File classList = new File(directory, "agent.classlist");
+		File trainingConfig =
+			AgentProcess.writeConfig(
+				new File(directory, "training.xml"),
+				Delegate.class,
+				delegateJar,
+				"<class-list file=\"" + classList.getPath() + "\" />"
+			);
+		File config =
+			AgentProcess.writeConfig(new File(directory, "config.xml"), Delegate.class, delegateJar);
+		File archive = new File(directory, "agent.jsa");
+
+		AgentProcess.run(agentJar, trainingConfig, "-Xshare:auto");
+		List<String> classes = ClassDataSharingTest.readLines(classList);
+		assertTrue(classes.contains("com/hapiware/agent/Agent"));
+		assertTrue(classes.contains(Delegate.class.getName().replace('.', '/')));
+		assertTrue(classes.contains("javax/xml/parsers/DocumentBuilderFactory"));
+		assertFalse(classes.contains("org/junit/Test"));
+		AgentProcess.run(
+			agentJar,
+			null,
+			"-Xshare:dump",
+			"-XX:SharedClassListFile=" + classList,
+			"-XX:SharedArchiveFile=" + archive
+		);
+		assertTrue(archive.isFile());
+
+		// Warm-up (e.g. the file system caches).
+		AgentProcess.run(agentJar, config, "-Xshare:auto");
+		AgentProcess.run(agentJar, config, "-XX:SharedArchiveFile=" + archive);
+		int rounds = 5;
+		long[] withoutArchive = new long[rounds];
+		long[] withArchive = new long[rounds];
+		for(int i = 0; i < rounds; i++) {
+			withoutArchive[i] = AgentProcess.run(agentJar, config, "-Xshare:auto");
+			withArchive[i] = AgentProcess.run(agentJar, config, "-XX:SharedArchiveFile=" + archive);
+		}
+		Arrays.sort(withoutArchive);
+		Arrays.sort(withArchive);
+		System.out.println(
+			"ClassDataSharingBenchmark.startupWithArchive(): " + classes.size() + " classes listed, "
+				+ "median startup " + withoutArchive[rounds / 2] / 1000000L + " ms without and "
+				+ withArchive[rounds / 2] / 1000000L + " ms with the archive."
+		);
+	}
+}
@@ -0,0 +1,146 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ClassDataSharingTest
+	extends
+		TestBase
+{
+	private File directory;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		try {
+			directory = File.createTempFile("agent-unit-test", ".cds");
+		}
+		catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		for(File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void classNames()
+	{
+		Class<?> proxy =
+			Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class[] {Runnable.class},
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						return null;
+					}
+				}
+			).getClass();
+		List<String> names =
+			ClassDataSharing.getClassNames(
+				new Class[] {
+					Agent.class,
+					String.class,
+					Test.class,
+					int[].class,
+					int.class,
+					proxy,
+					Agent.class,
+					ClassDataSharing.class
+				},
+				Arrays.asList(ClassDataSharing.getAgentLocation(), null)
+			);
+		assertEquals(
+			Arrays.asList(
+				"com/hapiware/agent/Agent",
+				"com/hapiware/agent/ClassDataSharing",
+				"java/lang/String"
+			),
+			names
+		);
+		assertEquals(
+			Arrays.asList("java/lang/String"),
+			ClassDataSharing.getClassNames(
+				new Class[] {Agent.class, String.class},
+				Collections.<URL>emptyList()
+			)
+		);
+	}
+
+	@Test
+	public void writeClassList() throws IOException
+	{
+		File file = new File(directory, "agent.classlist");
+		ClassDataSharing.writeClassList(file, Arrays.asList("a/B", "c/D"));
+		assertEquals(Arrays.asList("a/B", "c/D"), readLines(file));
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element classList = configDoc.createElement("class-list");
+		classList.setAttribute("file", "/tmp/agent.classlist");
+		agent.appendChild(classList);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals("/tmp/agent.classlist", configElements.getClassListFile());
+	}
+
+	@Test
+	public void noClassList()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertNull(configElements.getClassListFile());
+	}
+
+	static List<String> readLines(File file) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in =
+			new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while((line = in.readLine()) != null)
+				lines.add(line);
+		}
+		finally {
+			in.close();
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,175 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ClassFileHeaderTest
+	extends
+		TestBase
+{
+	@Retention(RetentionPolicy.CLASS)
+	@interface Marker
+	{
+		String[] value() default {};
+		ElementType type() default ElementType.TYPE;
+		Retention nested() default @Retention(RetentionPolicy.SOURCE);
+	}
+
+
+	@Marker(value={"a", "b"}, type=ElementType.FIELD)
+	@Deprecated
+	static class Annotated
+		extends
+			ArrayList<String>
+		implements
+			Runnable,
+			Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		private final double d = 6.16;
+		private final long l = 616L;
+		private final String s = "Hyv\u00e4\u00e4 p\u00e4iv\u00e4\u00e4";
+
+		public void run()
+		{
+			System.out.println(d + l + s);
+		}
+	}
+
+
+	static class Plain
+	{
+	}
+
+
+	private ClassFileHeader header;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		header = new ClassFileHeader();
+	}
+
+	@Test
+	public void annotatedClass()
+	{
+		header.scan(readClassBytes(Annotated.class));
+		assertEquals("com/hapiware/agent/ClassFileHeaderTest$Annotated", header.getClassName());
+		assertEquals("java/util/ArrayList", header.getSuperClassName());
+		assertArrayEquals(
+			new String[] {"java/lang/Runnable", "java/io/Serializable"},
+			header.getInterfaceNames()
+		);
+		assertArrayEquals(
+			new String[] {"Ljava/lang/Deprecated;", "Lcom/hapiware/agent/ClassFileHeaderTest$Marker;"},
+			header.getAnnotationDescriptors()
+		);
+		assertTrue(header.hasSuperClass("java/util/ArrayList"));
+		assertFalse(header.hasSuperClass("java/util/List"));
+		assertTrue(header.hasInterface("java/lang/Runnable"));
+		assertFalse(header.hasInterface("java/lang/Runnabl"));
+		assertTrue(header.hasAnnotation("Ljava/lang/Deprecated;"));
+		assertTrue(header.hasAnnotation("Lcom/hapiware/agent/ClassFileHeaderTest$Marker;"));
+		assertFalse(header.hasAnnotation("Ljava/lang/Override;"));
+	}
+
+	@Test
+	public void headerIsReused()
+	{
+		header.scan(readClassBytes(Annotated.class));
+		assertTrue(header.hasAnnotation("Ljava/lang/Deprecated;"));
+		header.scan(readClassBytes(Plain.class));
+		assertEquals("java/lang/Object", header.getSuperClassName());
+		assertEquals(0, header.getInterfaceNames().length);
+		assertEquals(0, header.getAnnotationDescriptors().length);
+		assertFalse(header.hasAnnotation("Ljava/lang/Deprecated;"));
+	}
+
+	@Test
+	public void objectHasNoSuperClass()
+	{
+		header.scan(readClassBytes(Object.class));
+		assertEquals("java/lang/Object", header.getClassName());
+		assertNull(header.getSuperClassName());
+		assertFalse(header.hasSuperClass("java/lang/Object"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notAClassFile()
+	{
+		header.scan(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void truncatedClassFile()
+	{
+		byte[] bytes = readClassBytes(Annotated.class);
+		byte[] truncated = new byte[bytes.length / 2];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		header.scan(truncated);
+		header.getAnnotationDescriptors();
+	}
+
+	@Test
+	public void classFilter()
+	{
+		ClassFilter filter =
+			new ClassFilter(
+				new Pattern[] {Pattern.compile("^com/hapiware/.+")},
+				new Pattern[0],
+				new String[] {"java/util/AbstractList"},
+				new String[] {"java/lang/Runnable"},
+				new String[] {"Ljava/lang/Deprecated;"}
+			);
+		assertTrue(filter.hasClassFileRules());
+		assertTrue(filter.isIncluded("com/hapiware/Test"));
+		assertFalse(filter.isIncluded("com/mysoft/Test"));
+		assertTrue(filter.acceptClassFile(readClassBytes(Annotated.class)));
+		assertFalse(filter.acceptClassFile(readClassBytes(Plain.class)));
+		assertTrue(filter.acceptClassFile(new byte[] {1, 2, 3}));
+		assertTrue(
+			new ClassFilter(new Pattern[0], new Pattern[0]).acceptClassFile(
+				readClassBytes(Plain.class)
+			)
+		);
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element element = configDoc.createElement("implements");
+		element.appendChild(configDoc.createTextNode("java.lang.Runnable"));
+		instrumentedClass.appendChild(element);
+		element = configDoc.createElement("annotated");
+		element.appendChild(configDoc.createTextNode("java/lang/Deprecated"));
+		instrumentedClass.appendChild(element);
+
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		ClassFilter filter = configElements.getClassFilter();
+		assertTrue(filter.hasClassFileRules());
+		assertTrue(filter.acceptClassFile(readClassBytes(Annotated.class)));
+		assertFalse(filter.acceptClassFile(readClassBytes(Plain.class)));
+	}
+}
@@ -0,0 +1,147 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.ProtectionDomain;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ClassLoaderFilterTest
+	extends
+		TestBase
+{
+	static class IsolatedClassLoader
+		extends
+			URLClassLoader
+	{
+		public IsolatedClassLoader()
+		{
+			super(new URL[0]);
+		}
+	}
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void keywords()
+	{
+		ClassLoader agentLoader = new URLClassLoader(new URL[0]);
+		ClassLoaderFilter filter =
+			new ClassLoaderFilter(new String[] {"bootstrap", "system", "agent"}, agentLoader);
+		assertTrue(filter.isExcluded(null));
+		assertTrue(filter.isExcluded(ClassLoader.getSystemClassLoader()));
+		assertTrue(filter.isExcluded(agentLoader));
+		assertFalse(filter.isExcluded(new URLClassLoader(new URL[0])));
+		assertFalse(filter.isExcluded(ClassLoader.getSystemClassLoader().getParent()));
+
+		filter = new ClassLoaderFilter(new String[] {"platform"}, null);
+		assertFalse(filter.isExcluded(null));
+		assertTrue(filter.isExcluded(ClassLoader.getSystemClassLoader().getParent()));
+		assertFalse(filter.isExcluded(ClassLoader.getSystemClassLoader()));
+	}
+
+	@Test
+	public void loaderClassNames()
+	{
+		ClassLoaderFilter filter =
+			new ClassLoaderFilter(new String[] {".+\\$IsolatedClassLoader"}, null);
+		ClassLoader loader = new IsolatedClassLoader();
+		assertTrue(filter.isExcluded(loader));
+		assertTrue(filter.isExcluded(loader));
+		assertTrue(filter.isExcluded(new IsolatedClassLoader()));
+		assertFalse(filter.isExcluded(new URLClassLoader(new URL[0])));
+		assertFalse(filter.isExcluded(null));
+	}
+
+	@Test
+	public void manyLoaders()
+	{
+		ClassLoaderFilter filter =
+			new ClassLoaderFilter(new String[] {".+\\$IsolatedClassLoader"}, null);
+		for(int i = 0; i < 1000; i++) {
+			assertTrue(filter.isExcluded(new IsolatedClassLoader()));
+			assertFalse(filter.isExcluded(new URLClassLoader(new URL[0])));
+		}
+	}
+
+	@Test
+	public void excludedLoaderIsNotTransformed() throws Exception
+	{
+		Element element = configDoc.createElement("exclude-loader");
+		element.appendChild(configDoc.createTextNode("agent"));
+		instrumentedClass.appendChild(element);
+		element = configDoc.createElement("exclude-loader");
+		element.appendChild(configDoc.createTextNode("bootstrap"));
+		instrumentedClass.appendChild(element);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		ClassLoader agentLoader = new URLClassLoader(new URL[0]);
+		ClassFilter classFilter = configElements.getFilter().getClassFilter(agentLoader);
+		assertTrue(classFilter.hasLoaderRules());
+
+		final int[] calls = new int[1];
+		DelegateTransformer transformer =
+			new DelegateTransformer(
+				new ClassFileTransformer() {
+					public byte[] transform(
+						ClassLoader loader,
+						String className,
+						Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain,
+						byte[] classfileBuffer
+					)
+					{
+						calls[0]++;
+						return classfileBuffer;
+					}
+				},
+				classFilter,
+				null
+			);
+		byte[] bytes = new byte[] {1, 2, 3};
+		assertNull(transformer.transform(null, "java/lang/Test", null, null, bytes));
+		assertNull(transformer.transform(agentLoader, "com/hapiware/Test", null, null, bytes));
+		assertEquals(0, calls[0]);
+		assertEquals(
+			bytes,
+			transformer.transform(getClass().getClassLoader(), "com/hapiware/Test", null, null, bytes)
+		);
+		assertEquals(1, calls[0]);
+	}
+
+	@Test
+	public void noLoaderRules()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getClassFilter().hasLoaderRules());
+		assertFalse(configElements.getClassFilter().isLoaderExcluded(null));
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidPattern()
+	{
+		Element element = configDoc.createElement("exclude-loader");
+		element.appendChild(configDoc.createTextNode("[unclosed"));
+		instrumentedClass.appendChild(element);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
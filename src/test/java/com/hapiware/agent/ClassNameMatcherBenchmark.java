@@ -0,0 +1,56 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+/**
+ * Compares the throughput of the glob matchers with the equivalent regular expressions. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class ClassNameMatcherBenchmark
+{
+	@Test
+	public void throughput()
+	{
+		ClassNameMatcher[] globs = {
+			ClassNameMatcher.forGlob("com/acme/**"),
+			ClassNameMatcher.forGlob("**/*Controller"),
+			ClassNameMatcher.forGlob("**Test")
+		};
+		ClassNameMatcher[] regexes = {
+			ClassNameMatcher.forPattern(Pattern.compile("^com/acme/.*")),
+			ClassNameMatcher.forPattern(Pattern.compile("^(?:.*/)?[^/]*Controller")),
+			ClassNameMatcher.forPattern(Pattern.compile(".*Test"))
+		};
+		// Warm up both and check that they agree.
+		assertEquals(countMatches(regexes, 2000), countMatches(globs, 2000));
+		long start = System.nanoTime();
+		int matches = countMatches(globs, 20000);
+		long globTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		assertEquals(matches, countMatches(regexes, 20000));
+		long regexTime = System.nanoTime() - start;
+		System.out.println(
+			"ClassNameMatcherBenchmark.throughput(): globs " + globTime / 1000000 + " ms, regular "
+				+ "expressions " + regexTime / 1000000 + " ms."
+		);
+	}
+
+	private static int countMatches(ClassNameMatcher[] matchers, int rounds)
+	{
+		int matches = 0;
+		for(int i = 0; i < rounds; i++)
+			for(String className : ClassNameMatcherTest.CLASS_NAMES)
+				for(ClassNameMatcher matcher : matchers)
+					if(matcher.matches(className))
+						matches++;
+		return matches;
+	}
+}
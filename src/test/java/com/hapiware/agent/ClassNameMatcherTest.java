@@ -0,0 +1,167 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ClassNameMatcherTest
+	extends
+		TestBase
+{
+	static final String[] CLASS_NAMES = {
+		"Main",
+		"MyController",
+		"com/acme/Main",
+		"com/acme/web/UserController",
+		"com/acme/web/UserController$1",
+		"com/acme/web/Controllers",
+		"com/acme/service/UserServiceTest",
+		"com/acme/service/impl/UserServiceImpl",
+		"com/acmeshop/Shop",
+		"com/acme",
+		"org/other/web/OrderController",
+		"org/other/Controller/Helper",
+		"java/lang/String"
+	};
+
+	private static final String[] GLOBS = {
+		"com/acme/**",
+		"**Test",
+		"**/*Controller",
+		"com/acme/**/*Controller",
+		"com/**Impl",
+		"com/acme/*",
+		"com/acme/*/User*",
+		"**/web/**",
+		"com/acme/web/UserController",
+		"com/acme/web/UserController$?",
+		"*",
+		"**",
+		"com/acme/*/User?ervice*",
+		"com/acme/{web,service}/*",
+		"com/acme/[sw]*/**",
+		"com/acme/[!s]*/**",
+		"org/*/Controller/**"
+	};
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void globsAreEquivalentToRegularExpressions()
+	{
+		for(String glob : GLOBS) {
+			ClassNameMatcher matcher = ClassNameMatcher.forGlob(glob);
+			for(String className : CLASS_NAMES)
+				assertEquals(
+					glob + " vs. " + className,
+					matcher.getPattern().matcher(className).matches(),
+					matcher.matches(className)
+				);
+		}
+	}
+
+	@Test
+	public void specialisedMatchers()
+	{
+		assertFalse(ClassNameMatcher.forGlob("com/acme/**").isRegex());
+		assertFalse(ClassNameMatcher.forGlob("**/*Controller").isRegex());
+		assertFalse(ClassNameMatcher.forGlob("com/acme/**/*Controller").isRegex());
+		assertTrue(ClassNameMatcher.forGlob("com/acme/{web,service}/*").isRegex());
+		assertTrue(ClassNameMatcher.forPattern(Pattern.compile("^com/.+")).isRegex());
+	}
+
+	@Test
+	public void globs()
+	{
+		ClassNameMatcher matcher = ClassNameMatcher.forGlob("**/*Controller");
+		assertTrue(matcher.matches("MyController"));
+		assertTrue(matcher.matches("com/acme/web/UserController"));
+		assertFalse(matcher.matches("org/other/Controller/Helper"));
+		assertFalse(matcher.matches("com/acme/web/Controllers"));
+
+		matcher = ClassNameMatcher.forGlob("com/acme/**");
+		assertTrue(matcher.matches("com/acme/service/impl/UserServiceImpl"));
+		assertFalse(matcher.matches("com/acmeshop/Shop"));
+		assertFalse(matcher.matches("com/acme"));
+
+		matcher = ClassNameMatcher.forGlob("com/acme/*");
+		assertTrue(matcher.matches("com/acme/Main"));
+		assertFalse(matcher.matches("com/acme/web/UserController"));
+
+		matcher = ClassNameMatcher.forGlob("com/acme/**/*Controller");
+		assertTrue(matcher.matches("com/acme/web/UserController"));
+		assertFalse(matcher.matches("org/other/web/OrderController"));
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element element = configDoc.createElement("include");
+		element.setAttribute("type", "glob");
+		element.appendChild(configDoc.createTextNode("com/acme/**"));
+		instrumentedClass.appendChild(element);
+		element = configDoc.createElement("include");
+		element.setAttribute("type", "regex");
+		element.appendChild(configDoc.createTextNode("^org/other/.+"));
+		instrumentedClass.appendChild(element);
+		element = configDoc.createElement("exclude");
+		element.setAttribute("type", "glob");
+		element.appendChild(configDoc.createTextNode("**Test"));
+		instrumentedClass.appendChild(element);
+
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		ClassFilter filter = configElements.getClassFilter();
+		assertTrue(filter.isIncluded("com/acme/Main"));
+		assertFalse(filter.isIncluded("com/acme/service/UserServiceTest"));
+		assertTrue(filter.isIncluded("org/other/Controller/Helper"));
+		assertFalse(filter.isIncluded("java/lang/String"));
+
+		// The agent delegate gets equivalent regular expressions.
+		Pattern[] includePatterns = configElements.getIncludePatterns();
+		assertEquals(2, includePatterns.length);
+		assertTrue(includePatterns[0].matcher("com/acme/Main").matches());
+		assertFalse(includePatterns[0].matcher("com/acmeshop/Shop").matches());
+		assertEquals("^org/other/.+", includePatterns[1].pattern());
+		assertTrue(
+			configElements.getExcludePatterns()[0]
+				.matcher("com/acme/service/UserServiceTest").matches()
+		);
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void unknownType()
+	{
+		Element element = configDoc.createElement("include");
+		element.setAttribute("type", "wildcard");
+		element.appendChild(configDoc.createTextNode("com/acme/**"));
+		instrumentedClass.appendChild(element);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidGlob()
+	{
+		Element element = configDoc.createElement("exclude");
+		element.setAttribute("type", "glob");
+		element.appendChild(configDoc.createTextNode("com/acme/{web,service"));
+		instrumentedClass.appendChild(element);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,148 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ClassNameViewTest
+	extends
+		TestBase
+{
+	private static final String[] CLASS_NAMES = {
+		"com/acme/Main",
+		"com/acme/web/UserController",
+		"com/acme/service/UserServiceTest",
+		"org/other/web/OrderController",
+		"java/lang/String"
+	};
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void conversions()
+	{
+		ClassNameView view = new ClassNameView();
+		assertEquals("java.util.List", view.set("java/util/List", '/', '.').toString());
+		assertEquals("java/util/List", view.set(view, '.', '/').toString());
+		assertTrue(view.contentEquals("java/util/List"));
+		assertEquals("util", view.subSequence(5, 9).toString());
+
+		StringBuilder longName = new StringBuilder();
+		for(int i = 0; i < 100; i++)
+			longName.append("package/");
+		longName.append("Name");
+		assertEquals(longName.toString(), view.set(longName).toString());
+		assertEquals(14, view.set("java/util/List").length());
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void charAtBeyondLength()
+	{
+		new ClassNameView().set("a/B").charAt(3);
+	}
+
+	@Test
+	public void classFileBytes()
+	{
+		ClassFileHeader header = new ClassFileHeader();
+		header.scan(readClassBytes(ClassNameViewTest.class));
+		ClassNameView view = header.getClassName(ClassNameView.forCurrentThread());
+		assertTrue(view.contentEquals("com/hapiware/agent/ClassNameViewTest"));
+
+		byte[] bytes = new byte[] {'a', '/', (byte)0xC3, (byte)0xA4, (byte)0xE2, (byte)0x82, (byte)0xAC};
+		assertEquals("a/\u00e4\u20ac", view.setModifiedUtf8(bytes, 0, bytes.length).toString());
+	}
+
+	@Test
+	public void filter()
+	{
+		ClassFilter filter =
+			new ClassFilter(
+				new Pattern[] {Pattern.compile("^com/acme/.+")},
+				new Pattern[] {Pattern.compile(".+Test")}
+			);
+		ClassNameView view = ClassNameView.forCurrentThread();
+		for(String className : CLASS_NAMES)
+			assertEquals(filter.isIncluded(className), filter.isIncluded(view.set(className)));
+		assertFalse(filter.isIncluded(view.set("com/acme/Main", '/', '.')));
+	}
+
+	@Test
+	public void matchingDoesNotAllocate() throws Exception
+	{
+		Method allocatedBytes = allocatedBytesMethod();
+		if(allocatedBytes == null)
+			return;
+
+		final ClassFilter filter =
+			new ClassFilter(
+				new ClassNameMatcher[] {
+					ClassNameMatcher.forPattern(Pattern.compile("^com/acme/.+")),
+					ClassNameMatcher.forGlob("**/*Controller"),
+					ClassNameMatcher.forGlob("com/acme/*/User*")
+				},
+				new ClassNameMatcher[] {ClassNameMatcher.forGlob("**Test")},
+				new String[0],
+				new String[0],
+				new String[0],
+				new String[0],
+				null,
+				new MethodFilter(new String[0], new String[0]),
+				null
+			);
+		ClassFileHeader header = new ClassFileHeader();
+		byte[] classBytes = readClassBytes(ClassNameViewTest.class);
+		int included = 0;
+		for(int round = 0; round < 2; round++) {
+			long threadId = Thread.currentThread().getId();
+			long before = (Long)allocatedBytes.invoke(ManagementFactory.getThreadMXBean(), threadId);
+			for(int i = 0; i < 100000; i++) {
+				ClassNameView view = ClassNameView.forCurrentThread();
+				for(String className : CLASS_NAMES)
+					if(filter.isIncluded(view.set(className)))
+						included++;
+				header.scan(classBytes);
+				if(filter.isIncluded(header.getClassName(view)))
+					included++;
+			}
+			long allocated =
+				(Long)allocatedBytes.invoke(ManagementFactory.getThreadMXBean(), threadId) - before;
+			// The first round warms up the thread locals. The measurement itself allocates
+			// a few objects.
+			if(round == 1)
+				assertTrue(allocated + " bytes for 600000 decisions", allocated < 1024);
+		}
+		assertEquals(2 * 100000 * 3, included);
+	}
+
+	private static Method allocatedBytesMethod()
+	{
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			if(!c.isInstance(ManagementFactory.getThreadMXBean()))
+				return null;
+			return c.getMethod("getThreadAllocatedBytes", long.class);
+		}
+		catch(ClassNotFoundException e) {
+			return null;
+		}
+		catch(NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
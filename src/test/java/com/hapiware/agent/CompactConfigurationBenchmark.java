@@ -0,0 +1,101 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+/**
+ * Measures the heap retained by a large configuration. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class CompactConfigurationBenchmark
+	extends
+		TestBase
+{
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	private void addItems(int count)
+	{
+		configuration = configDoc.createElement("configuration");
+		agent.appendChild(configuration);
+		for(int i = 0; i < count; i++) {
+			Element item = configDoc.createElement("item");
+			item.setAttribute("key", "key-" + i);
+			item.appendChild(configDoc.createTextNode("value-" + i));
+			configuration.appendChild(item);
+		}
+	}
+
+	/**
+	 * Reports the heap retained by a configuration of 100 000 items: the DOM document together
+	 * with a {@code HashMap} (i.e. before) and only the compact map (i.e. after).
+	 */
+	@Test
+	public void retainedSize()
+	{
+		int items = 100000;
+		addItems(items);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		Map<?, ?> map = (Map<?, ?>)Agent.unmarshall(this.getClass(), configElements);
+		assertTrue(map instanceof ConfigurationMap);
+		assertEquals(items, map.size());
+		Map<Object, Object> hashMap = new HashMap<Object, Object>(map);
+
+		// Everything reachable.
+		long withDocument = usedMemory();
+		configuration = null;
+		agent = null;
+		classpath = null;
+		instrumentedClass = null;
+		configDoc = null;
+		configElements.releaseConfigurationElement();
+		long withHashMap = usedMemory();
+		hashMap = null;
+		long withConfigurationMap = usedMemory();
+		map = null;
+		long empty = usedMemory();
+
+		System.out.println(
+			"CompactConfigurationBenchmark.retainedSize(): " + items + " items, DOM document "
+				+ kilobytes(withDocument - withHashMap) + " kB, HashMap "
+				+ kilobytes(withHashMap - withConfigurationMap) + " kB (excluding strings), "
+				+ "ConfigurationMap " + kilobytes(withConfigurationMap - empty)
+				+ " kB (including strings)."
+		);
+	}
+
+	private static long usedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	private static long kilobytes(long bytes)
+	{
+		return bytes / 1024;
+	}
+}
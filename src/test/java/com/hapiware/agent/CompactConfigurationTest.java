@@ -0,0 +1,159 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class CompactConfigurationTest
+	extends
+		TestBase
+{
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void list()
+	{
+		List<String> list = new ConfigurationList(Arrays.asList("One", "Two", "Three"));
+		assertEquals(Arrays.asList("One", "Two", "Three"), list);
+		assertEquals("Two", list.get(1));
+		assertEquals(3, list.size());
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void listIsImmutable()
+	{
+		new ConfigurationList(Arrays.asList("One")).add("Two");
+	}
+
+	@Test
+	public void map()
+	{
+		List<String> keys = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		Map<String, String> expected = new HashMap<String, String>();
+		for(int i = 0; i < 1000; i++) {
+			keys.add("key-" + i);
+			values.add("value-" + i);
+			expected.put("key-" + i, "value-" + i);
+		}
+		Map<String, String> map = new ConfigurationMap(keys, values);
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		assertEquals("value-999", map.get("key-999"));
+		assertTrue(map.containsKey("key-0"));
+		assertFalse(map.containsKey("key-1000"));
+		assertNull(map.get("key-1000"));
+		assertNull(map.get(null));
+		assertNull(map.get(Integer.valueOf(1)));
+	}
+
+	@Test
+	public void lastDuplicateKeyWins()
+	{
+		Map<String, String> map =
+			new ConfigurationMap(Arrays.asList("a", "b", "a"), Arrays.asList("1", "2", "3"));
+		assertEquals(2, map.size());
+		assertEquals("3", map.get("a"));
+		assertEquals("a=3", map.entrySet().iterator().next().toString());
+	}
+
+	@Test
+	public void emptyMap()
+	{
+		Map<String, String> map =
+			new ConfigurationMap(new ArrayList<String>(), new ArrayList<String>());
+		assertTrue(map.isEmpty());
+		assertNull(map.get("a"));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void mapIsImmutable()
+	{
+		new ConfigurationMap(Arrays.asList("a"), Arrays.asList("1")).put("b", "2");
+	}
+
+	@Test
+	public void emptyItemInMap()
+	{
+		addItems(1, true);
+		Element item = configDoc.createElement("item");
+		item.setAttribute("key", "empty");
+		configuration.appendChild(item);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		Map<?, ?> map = (Map<?, ?>)Agent.unmarshall(this.getClass(), configElements);
+		assertEquals("", map.get("empty"));
+	}
+
+	@Test
+	public void configurationElementIsReleased()
+	{
+		addItems(1, false);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertSame(configuration, configElements.getConfigurationElement());
+		configElements.releaseConfigurationElement();
+		assertNull(configElements.getConfigurationElement());
+		assertNull(Agent.unmarshall(this.getClass(), configElements));
+	}
+
+	/**
+	 * The retained heap itself is measured by {@link CompactConfigurationBenchmark}. Here only
+	 * the structure is checked: a large configuration ends up in a {@code ConfigurationMap}
+	 * which does not need the DOM document.
+	 */
+	@Test
+	public void largeConfigurationDoesNotRetainDocument()
+	{
+		int items = 10000;
+		addItems(items, true);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		Map<?, ?> map = (Map<?, ?>)Agent.unmarshall(this.getClass(), configElements);
+		configElements.releaseConfigurationElement();
+		assertNull(configElements.getConfigurationElement());
+		configuration.getParentNode().removeChild(configuration);
+		configuration.setTextContent(null);
+
+		assertTrue(map instanceof ConfigurationMap);
+		assertEquals(items, map.size());
+		assertEquals("value-0", map.get("key-0"));
+		assertEquals("value-" + (items - 1), map.get("key-" + (items - 1)));
+		assertSame(String.class, map.values().iterator().next().getClass());
+	}
+
+	private void addItems(int count, boolean withKeys)
+	{
+		configuration = configDoc.createElement("configuration");
+		agent.appendChild(configuration);
+		for(int i = 0; i < count; i++) {
+			Element item = configDoc.createElement("item");
+			if(withKeys)
+				item.setAttribute("key", "key-" + i);
+			item.appendChild(configDoc.createTextNode("value-" + i));
+			configuration.appendChild(item);
+		}
+	}
+}
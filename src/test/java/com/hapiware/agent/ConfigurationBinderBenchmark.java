@@ -0,0 +1,186 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.hapiware.agent.ConfigurationBinderTest.FancyConfiguration;
+import com.hapiware.agent.ConfigurationBinderTest.Rule;
+
+
+/**
+ * Compares {@link ConfigurationBinder} with hand-written {@code unmarshall()} methods. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class ConfigurationBinderBenchmark
+	extends
+		TestBase
+{
+	private Element custom;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		configuration = configDoc.createElement("configuration");
+		agent.appendChild(configuration);
+		custom = configDoc.createElement("custom");
+		configuration.appendChild(custom);
+	}
+
+	private Element addElement(Element parent, String name, String text)
+	{
+		Element element = configDoc.createElement(name);
+		element.appendChild(configDoc.createTextNode(text));
+		parent.appendChild(element);
+		return element;
+	}
+
+	private void addRule(String name, int threshold)
+	{
+		Element rule = configDoc.createElement("rule");
+		rule.setAttribute("name", name);
+		rule.setAttribute("enabled", "true");
+		addElement(rule, "threshold", Integer.toString(threshold));
+		addElement(rule, "pattern", "^com/hapiware/.+");
+		custom.appendChild(rule);
+	}
+
+	/**
+	 * Compares the binder with hand-written {@code unmarshall()} methods (XPath as in
+	 * {@link CustomisedConfigurationTest} and a plain DOM walk) for a configuration of
+	 * 1000 rules. The DOM walk and the binder are reported after a warm-up.
+	 */
+	@Test
+	public void parseCost() throws Exception
+	{
+		int rules = 1000;
+		for(int i = 0; i < rules; i++)
+			addRule("rule-" + i, i);
+		ConfigurationBinder binder = ConfigurationBinder.create(FancyConfiguration.class);
+
+		long[] xpath = new long[2];
+		long[] dom = new long[2];
+		long[] bound = new long[2];
+		// XPath is measured only once because it is orders of magnitude slower.
+		long allocated = allocatedBytes();
+		long startTime = System.nanoTime();
+		List<Rule> xpathRules = unmarshallWithXPath(custom);
+		xpath[0] = System.nanoTime() - startTime;
+		xpath[1] = allocatedBytes() - allocated;
+		assertEquals(rules, xpathRules.size());
+		for(int round = 0; round < 60; round++) {
+			allocated = allocatedBytes();
+			startTime = System.nanoTime();
+			List<Rule> domRules = unmarshallWithDom(custom);
+			dom[0] = System.nanoTime() - startTime;
+			dom[1] = allocatedBytes() - allocated;
+
+			allocated = allocatedBytes();
+			startTime = System.nanoTime();
+			List<Rule> boundRules = ((FancyConfiguration)binder.bind(custom)).rules;
+			bound[0] = System.nanoTime() - startTime;
+			bound[1] = allocatedBytes() - allocated;
+
+			assertEquals(rules, domRules.size());
+			assertEquals(rules, boundRules.size());
+			assertEquals(rules - 1, boundRules.get(rules - 1).threshold);
+		}
+		System.out.println(
+			"ConfigurationBinderBenchmark.parseCost(): " + rules + " rules, XPath unmarshall() "
+				+ report(xpath) + ", DOM unmarshall() " + report(dom) + ", ConfigurationBinder "
+				+ report(bound) + "."
+		);
+	}
+
+	private static String report(long[] result)
+	{
+		return
+			result[0] / 1000 + " us" + (result[1] >= 0 ? " / " + result[1] / 1024 + " kB" : "");
+	}
+
+	private static List<Rule> unmarshallWithXPath(Element configElement)
+		throws
+			XPathExpressionException
+	{
+		XPath xpath = XPathFactory.newInstance().newXPath();
+		NodeList ruleEntries = (NodeList)xpath.evaluate("./rule", configElement, XPathConstants.NODESET);
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 0; i < ruleEntries.getLength(); i++) {
+			Element ruleEntry = (Element)ruleEntries.item(i);
+			Rule rule = new Rule();
+			rule.name = ruleEntry.getAttribute("name");
+			rule.enabled = Boolean.parseBoolean(ruleEntry.getAttribute("enabled"));
+			rule.threshold =
+				Integer.parseInt(
+					((String)xpath.evaluate("./threshold", ruleEntry, XPathConstants.STRING)).trim()
+				);
+			rule.pattern =
+				Pattern.compile(
+					((String)xpath.evaluate("./pattern", ruleEntry, XPathConstants.STRING)).trim()
+				);
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	private static List<Rule> unmarshallWithDom(Element configElement)
+	{
+		NodeList ruleEntries = configElement.getElementsByTagName("rule");
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 0; i < ruleEntries.getLength(); i++) {
+			Element ruleEntry = (Element)ruleEntries.item(i);
+			Rule rule = new Rule();
+			rule.name = ruleEntry.getAttribute("name");
+			rule.enabled = Boolean.parseBoolean(ruleEntry.getAttribute("enabled"));
+			for(Node node = ruleEntry.getFirstChild(); node != null; node = node.getNextSibling()) {
+				if(node.getNodeName().equals("threshold"))
+					rule.threshold = Integer.parseInt(node.getTextContent().trim());
+				else if(node.getNodeName().equals("pattern"))
+					rule.pattern = Pattern.compile(node.getTextContent().trim());
+			}
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread or -1 if the JVM does not tell it.
+	 */
+	private static long allocatedBytes()
+	{
+		try {
+			Method method =
+				Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+			return
+				(Long)method.invoke(
+					ManagementFactory.getThreadMXBean(),
+					Thread.currentThread().getId()
+				);
+		}
+		catch(Exception e) {
+			return -1;
+		}
+	}
+}
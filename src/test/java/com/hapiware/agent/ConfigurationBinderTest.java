@@ -0,0 +1,245 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+public class ConfigurationBinderTest
+	extends
+		TestBase
+{
+	public enum Mode { FAST, SAFE }
+
+	public static class Rule
+	{
+		@ConfigurationProperty(required = true)
+		String name;
+
+		@ConfigurationProperty
+		int threshold = 10;
+
+		@ConfigurationProperty
+		boolean enabled;
+
+		@ConfigurationProperty
+		Pattern pattern;
+	}
+
+	public static class FancyConfiguration
+	{
+		@ConfigurationProperty("message")
+		List<String> messages;
+
+		@ConfigurationProperty
+		String date;
+
+		@ConfigurationProperty
+		long timeout = 5000;
+
+		@ConfigurationProperty
+		Mode mode = Mode.SAFE;
+
+		@ConfigurationProperty
+		Rule defaultRule;
+
+		@ConfigurationProperty("rule")
+		List<Rule> rules;
+
+		String notProperty = "untouched";
+	}
+
+	@CustomConfiguration(FancyConfiguration.class)
+	public static class FancyDelegate
+	{
+	}
+
+	@CustomConfiguration(FancyConfiguration.class)
+	public static class UnmarshallingDelegate
+	{
+		public static Object unmarshall(Element configElement)
+		{
+			return configElement.getTagName();
+		}
+	}
+
+	public static class UnsupportedConfiguration
+	{
+		@ConfigurationProperty
+		StringBuilder text;
+	}
+
+	@CustomConfiguration(UnsupportedConfiguration.class)
+	public static class UnsupportedDelegate
+	{
+	}
+
+
+	private Element custom;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		configuration = configDoc.createElement("configuration");
+		agent.appendChild(configuration);
+		custom = configDoc.createElement("custom");
+		configuration.appendChild(custom);
+	}
+
+	private Element addElement(Element parent, String name, String text)
+	{
+		Element element = configDoc.createElement(name);
+		if(text != null)
+			element.appendChild(configDoc.createTextNode(text));
+		parent.appendChild(element);
+		return element;
+	}
+
+	private Element addRule(Element parent, String elementName, String name, int threshold)
+	{
+		Element rule = addElement(parent, elementName, null);
+		rule.setAttribute("name", name);
+		rule.setAttribute("enabled", "true");
+		addElement(rule, "threshold", Integer.toString(threshold));
+		addElement(rule, "pattern", "^com/hapiware/.+");
+		return rule;
+	}
+
+	private Object unmarshall(Class<?> delegate)
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		return Agent.unmarshall(delegate, configElements);
+	}
+
+	@Test
+	public void normalSituation()
+	{
+		addElement(custom, "message", "Hello Agent!");
+		addElement(custom, "message", " Same to you, too! ");
+		addElement(custom, "date", "2010-09-19");
+		custom.setAttribute("mode", "FAST");
+		addRule(custom, "defaultRule", "default", 1);
+		addRule(custom, "rule", "first", 2);
+		addElement(custom, "rule", null).setAttribute("name", "second");
+
+		FancyConfiguration configuration = (FancyConfiguration)unmarshall(FancyDelegate.class);
+		assertEquals(2, configuration.messages.size());
+		assertEquals("Hello Agent!", configuration.messages.get(0));
+		assertEquals("Same to you, too!", configuration.messages.get(1));
+		assertEquals("2010-09-19", configuration.date);
+		assertEquals(5000L, configuration.timeout);
+		assertEquals(Mode.FAST, configuration.mode);
+		assertEquals("default", configuration.defaultRule.name);
+		assertEquals(1, configuration.defaultRule.threshold);
+		assertTrue(configuration.defaultRule.enabled);
+		assertTrue(configuration.defaultRule.pattern.matcher("com/hapiware/Test").matches());
+		assertEquals(2, configuration.rules.size());
+		assertEquals("first", configuration.rules.get(0).name);
+		assertEquals(2, configuration.rules.get(0).threshold);
+		assertEquals("second", configuration.rules.get(1).name);
+		assertEquals(10, configuration.rules.get(1).threshold);
+		assertFalse(configuration.rules.get(1).enabled);
+		assertNull(configuration.rules.get(1).pattern);
+		assertEquals("untouched", configuration.notProperty);
+	}
+
+	@Test
+	public void emptyCustom()
+	{
+		FancyConfiguration configuration = (FancyConfiguration)unmarshall(FancyDelegate.class);
+		assertTrue(configuration.messages.isEmpty());
+		assertTrue(configuration.rules.isEmpty());
+		assertNull(configuration.date);
+		assertNull(configuration.defaultRule);
+		assertEquals(Mode.SAFE, configuration.mode);
+	}
+
+	@Test
+	public void unmarshallIsPreferred()
+	{
+		addElement(custom, "unknown", "value");
+		assertEquals("custom", unmarshall(UnmarshallingDelegate.class));
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void unknownElement()
+	{
+		addElement(custom, "mesage", "Hello Agent!");
+		unmarshall(FancyDelegate.class);
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void unknownAttribute()
+	{
+		custom.setAttribute("unknown", "value");
+		unmarshall(FancyDelegate.class);
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void missingRequired()
+	{
+		addElement(custom, "rule", null);
+		unmarshall(FancyDelegate.class);
+	}
+
+	@Test
+	public void invalidValue()
+	{
+		addRule(custom, "rule", "first", 2).setAttribute("enabled", "yes");
+		try {
+			unmarshall(FancyDelegate.class);
+			assertTrue(false);
+		}
+		catch(ConfigurationError e) {
+			assertEquals(
+				"/agent/configuration/custom/rule: \"yes\" is not a valid value for \"enabled\" "
+					+ "(boolean).",
+				e.getMessage()
+			);
+		}
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void invalidEnum()
+	{
+		custom.setAttribute("mode", "fast");
+		unmarshall(FancyDelegate.class);
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void definedTwice()
+	{
+		custom.setAttribute("date", "2010-09-19");
+		addElement(custom, "date", "2010-09-20");
+		unmarshall(FancyDelegate.class);
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void objectAsAttribute()
+	{
+		custom.setAttribute("defaultRule", "first");
+		unmarshall(FancyDelegate.class);
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void unsupportedType()
+	{
+		DelegateBinding.bind(UnsupportedDelegate.class);
+	}
+}
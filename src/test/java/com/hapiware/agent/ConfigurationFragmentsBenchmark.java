@@ -0,0 +1,115 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+
+/**
+ * Measures the cost of expanding {@code <include>} elements with {@link ConfigurationFragments}. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class ConfigurationFragmentsBenchmark
+{
+	private File directory;
+
+
+	@Before
+	public void setup()
+	{
+		ConfigurationFragments.clearMemoryCache();
+		directory = new File(System.getProperty("java.io.tmpdir"), "fragments-" + System.nanoTime());
+		directory.mkdir();
+	}
+
+	@After
+	public void teardown()
+	{
+		delete(directory);
+		ConfigurationFragments.clearMemoryCache();
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if(files != null)
+			for(File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	private File write(String name, String content) throws IOException
+	{
+		File file = new File(directory, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private Document document(String content) throws Exception
+	{
+		File file = write("agent.xml", content);
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+	}
+
+	/**
+	 * Reports the time to expand an include of a fragment having 5000 classpath entries when
+	 * the fragment is parsed, read from the cache directory and found from the memory cache.
+	 */
+	@Test
+	public void loadCost() throws Exception
+	{
+		int entries = 5000;
+		StringBuilder fragment = new StringBuilder("<fragment>\n");
+		for(int i = 0; i < entries; i++)
+			fragment.append("\t<entry>/users/me/.m2/repository/lib-" + i + ".jar</entry>\n");
+		write("entries.xml", fragment.append("</fragment>\n").toString());
+		File cacheDirectory = new File(directory, "cache");
+		String agent = "<agent><classpath><include file=\"entries.xml\"/></classpath></agent>";
+
+		long parseTime = 0;
+		long diskTime = 0;
+		long memoryTime = 0;
+		for(int round = 0; round < 10; round++) {
+			delete(cacheDirectory);
+			ConfigurationFragments.clearMemoryCache();
+			parseTime = expandTime(agent, cacheDirectory, entries);
+			ConfigurationFragments.clearMemoryCache();
+			diskTime = expandTime(agent, cacheDirectory, entries);
+			memoryTime = expandTime(agent, cacheDirectory, entries);
+		}
+		System.out.println(
+			"ConfigurationFragmentsBenchmark.loadCost(): " + entries + " entries, parsed "
+				+ parseTime / 1000 + " us, cache directory " + diskTime / 1000
+				+ " us, memory cache " + memoryTime / 1000 + " us."
+		);
+	}
+
+	private long expandTime(String agent, File cacheDirectory, int entries) throws Exception
+	{
+		Document document = document(agent);
+		long startTime = System.nanoTime();
+		new ConfigurationFragments(cacheDirectory).expand(document, new File(directory, "agent.xml"));
+		long time = System.nanoTime() - startTime;
+		assertEquals(entries, document.getElementsByTagName("entry").getLength());
+		return time;
+	}
+}
@@ -0,0 +1,281 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+public class ConfigurationFragmentsTest
+	extends
+		TestBase
+{
+	private static final String FILENAME = BASEDIR + "agent-config-include.xml";
+	private static final String FILENAME_CYCLE = BASEDIR + "agent-config-include-cycle.xml";
+	private static final String FILENAME_CONFLICT = BASEDIR + "agent-config-include-conflict.xml";
+
+
+	private File directory;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		ConfigurationFragments.clearMemoryCache();
+		directory = new File(System.getProperty("java.io.tmpdir"), "fragments-" + System.nanoTime());
+		directory.mkdir();
+	}
+
+	@After
+	public void teardown()
+	{
+		delete(directory);
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if(files != null)
+			for(File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	private File write(String name, String content) throws IOException
+	{
+		File file = new File(directory, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private Document document(String content) throws Exception
+	{
+		File file = write("agent.xml", content);
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+	}
+
+	@Test
+	public void readFromFile()
+	{
+		ConfigElements configElements = Agent.readConfigurationFile(FILENAME);
+		URL[] classpaths = configElements.getClasspaths();
+		assertEquals(3, classpaths.length);
+		assertTrue(classpaths[1].toString().endsWith("/src/test/resources/"));
+		assertTrue(classpaths[2].toString().endsWith("/src/test/java/"));
+		assertEquals(2, configElements.getIncludePatterns().length);
+		assertEquals("^com/mysoft/.+", configElements.getIncludePatterns()[1].pattern());
+		assertEquals(
+			"Hello World!",
+			Agent.unmarshall(this.getClass(), configElements)
+		);
+	}
+
+	@Test
+	public void cycle()
+	{
+		try {
+			Agent.readConfigurationFile(FILENAME_CYCLE);
+			assertTrue(false);
+		}
+		catch(ConfigurationError e) {
+			assertTrue(e.getMessage().startsWith("Cyclic include: "));
+			assertTrue(e.getMessage().endsWith("cycle-a.xml\"."));
+			assertTrue(e.getMessage().indexOf("cycle-b.xml") > 0);
+		}
+	}
+
+	@Test
+	public void conflictingVariables()
+	{
+		try {
+			Agent.readConfigurationFile(FILENAME_CONFLICT);
+			assertTrue(false);
+		}
+		catch(ConfigurationError e) {
+			assertTrue(e.getMessage().startsWith("Variable \"lib\" has conflicting definitions"));
+			assertTrue(e.getMessage().indexOf("variables.xml") > 0);
+			assertTrue(e.getMessage().indexOf("agent-config-include-conflict.xml") > 0);
+		}
+	}
+
+	@Test
+	public void sourceOfIncludedElements() throws Exception
+	{
+		File fragment = write("entries.xml", "<fragment><entry>a.jar</entry></fragment>");
+		Document document =
+			document("<agent><classpath><entry>.</entry><include file=\"entries.xml\"/></classpath></agent>");
+		new ConfigurationFragments(null).expand(document, new File(directory, "agent.xml"));
+		NodeList entries = document.getElementsByTagName("entry");
+		assertEquals(2, entries.getLength());
+		assertNull(ConfigurationFragments.getSource(entries.item(0)));
+		assertEquals(
+			fragment.getCanonicalPath(),
+			ConfigurationFragments.getSource(entries.item(1))
+		);
+		assertEquals(0, document.getElementsByTagName("include").getLength());
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void missingFragment() throws Exception
+	{
+		Document document = document("<agent><include file=\"missing.xml\"/></agent>");
+		new ConfigurationFragments(null).expand(document, new File(directory, "agent.xml"));
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void wrongRootElement() throws Exception
+	{
+		write("entries.xml", "<agent><entry>a.jar</entry></agent>");
+		Document document = document("<agent><include file=\"entries.xml\"/></agent>");
+		new ConfigurationFragments(null).expand(document, new File(directory, "agent.xml"));
+	}
+
+	@Test
+	public void cache() throws Exception
+	{
+		File cacheDirectory = new File(directory, "cache");
+		write("entries.xml", "<fragment><entry type=\"jar\">a.jar</entry><!-- c --></fragment>");
+		String agent = "<agent><include file=\"entries.xml\"/><include file=\"entries.xml\"/></agent>";
+
+		ConfigurationFragments fragments = new ConfigurationFragments(cacheDirectory);
+		fragments.expand(document(agent), new File(directory, "agent.xml"));
+		assertEquals(1, fragments.getParses());
+		assertEquals(1, fragments.getMemoryHits());
+		assertEquals(1, cacheDirectory.listFiles().length);
+
+		// A restart.
+		ConfigurationFragments.clearMemoryCache();
+		fragments = new ConfigurationFragments(cacheDirectory);
+		Document document = document(agent);
+		fragments.expand(document, new File(directory, "agent.xml"));
+		assertEquals(0, fragments.getParses());
+		assertEquals(1, fragments.getDiskHits());
+		NodeList entries = document.getElementsByTagName("entry");
+		assertEquals(2, entries.getLength());
+		assertEquals("jar", ((Element)entries.item(1)).getAttribute("type"));
+		assertEquals("a.jar", entries.item(1).getTextContent());
+
+		// A changed fragment.
+		write("entries.xml", "<fragment><entry>b.jar</entry></fragment>");
+		fragments = new ConfigurationFragments(cacheDirectory);
+		document = document(agent);
+		fragments.expand(document, new File(directory, "agent.xml"));
+		assertEquals(1, fragments.getParses());
+		assertEquals("b.jar", document.getElementsByTagName("entry").item(0).getTextContent());
+		assertEquals(2, cacheDirectory.listFiles().length);
+	}
+
+	@Test
+	public void corruptedCacheFile() throws Exception
+	{
+		File cacheDirectory = new File(directory, "cache");
+		write("entries.xml", "<fragment><entry>a.jar</entry></fragment>");
+		String agent = "<agent><include file=\"entries.xml\"/></agent>";
+		new ConfigurationFragments(cacheDirectory).expand(
+			document(agent),
+			new File(directory, "agent.xml")
+		);
+		OutputStream out = new FileOutputStream(cacheDirectory.listFiles()[0]);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+
+		ConfigurationFragments.clearMemoryCache();
+		ConfigurationFragments fragments = new ConfigurationFragments(cacheDirectory);
+		Document document = document(agent);
+		fragments.expand(document, new File(directory, "agent.xml"));
+		assertEquals(1, fragments.getParses());
+		assertEquals("a.jar", document.getElementsByTagName("entry").item(0).getTextContent());
+	}
+
+	@Test
+	public void truncatedCacheFile() throws Exception
+	{
+		File cacheDirectory = new File(directory, "cache");
+		write("entries.xml", "<fragment><entry type=\"jar\">a.jar</entry></fragment>");
+		String agent = "<agent><include file=\"entries.xml\"/></agent>";
+		new ConfigurationFragments(cacheDirectory).expand(
+			document(agent),
+			new File(directory, "agent.xml")
+		);
+		File cacheFile = cacheDirectory.listFiles()[0];
+		byte[] content = new byte[(int)cacheFile.length() - 4];
+		InputStream in = new FileInputStream(cacheFile);
+		assertEquals(content.length, in.read(content));
+		in.close();
+		// The header is valid but the body is cut in the middle of a string.
+		OutputStream out = new FileOutputStream(cacheFile);
+		out.write(content);
+		out.close();
+
+		ConfigurationFragments.clearMemoryCache();
+		ConfigurationFragments fragments = new ConfigurationFragments(cacheDirectory);
+		Document document = document(agent);
+		fragments.expand(document, new File(directory, "agent.xml"));
+		assertEquals(0, fragments.getDiskHits());
+		assertEquals(1, fragments.getParses());
+		assertEquals("a.jar", document.getElementsByTagName("entry").item(0).getTextContent());
+
+		// The memory cache has the parsed fragment, not the truncated one.
+		fragments = new ConfigurationFragments(cacheDirectory);
+		document = document(agent);
+		fragments.expand(document, new File(directory, "agent.xml"));
+		assertEquals(1, fragments.getMemoryHits());
+		assertEquals("a.jar", document.getElementsByTagName("entry").item(0).getTextContent());
+	}
+
+	@Test
+	public void invalidLengthInCacheFile() throws Exception
+	{
+		File cacheDirectory = new File(directory, "cache");
+		write("entries.xml", "<fragment><entry>a.jar</entry></fragment>");
+		String agent = "<agent><include file=\"entries.xml\"/></agent>";
+		new ConfigurationFragments(cacheDirectory).expand(
+			document(agent),
+			new File(directory, "agent.xml")
+		);
+		for(int length : new int[] {Integer.MAX_VALUE, -1}) {
+			DataOutputStream out =
+				new DataOutputStream(new FileOutputStream(cacheDirectory.listFiles()[0]));
+			out.writeInt(0x48414652);
+			out.writeByte(1);
+			out.writeByte(1);
+			out.writeInt(length);
+			out.close();
+
+			ConfigurationFragments.clearMemoryCache();
+			ConfigurationFragments fragments = new ConfigurationFragments(cacheDirectory);
+			Document document = document(agent);
+			fragments.expand(document, new File(directory, "agent.xml"));
+			assertEquals(1, fragments.getParses());
+			assertEquals("a.jar", document.getElementsByTagName("entry").item(0).getTextContent());
+		}
+	}
+}
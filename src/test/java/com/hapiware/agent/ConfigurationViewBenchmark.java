@@ -0,0 +1,55 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/**
+ * Measures the lookup cost of {@link ConfigurationView}. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class ConfigurationViewBenchmark
+{
+	/**
+	 * Compares {@code getInt()} with {@code Integer.parseInt(map.get(key))}.
+	 */
+	@Test
+	public void lookupCost()
+	{
+		Map<String, String> map = new HashMap<String, String>();
+		String[] keys = new String[64];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = "key-" + i;
+			map.put(keys[i], Integer.toString(i * 1000));
+		}
+		ConfigurationView mapView = ConfigurationView.of(map);
+		int lookups = 2000000;
+		long parseTime = 0;
+		long viewTime = 0;
+		long sum = 0;
+		for(int round = 0; round < 3; round++) {
+			long startTime = System.nanoTime();
+			for(int i = 0; i < lookups; i++)
+				sum += Integer.parseInt(map.get(keys[i & 63]));
+			parseTime = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for(int i = 0; i < lookups; i++)
+				sum -= mapView.getInt(keys[i & 63]);
+			viewTime = System.nanoTime() - startTime;
+		}
+		assertEquals(0L, sum);
+		System.out.println(
+			"ConfigurationViewBenchmark.lookupCost(): Integer.parseInt(map.get()) "
+				+ parseTime * 1000L / lookups + " ps/lookup, ConfigurationView.getInt() "
+				+ viewTime * 1000L / lookups + " ps/lookup."
+		);
+	}
+}
@@ -0,0 +1,143 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ConfigurationViewTest
+	extends
+		TestBase
+{
+	private ConfigurationView view;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		configuration = configDoc.createElement("configuration");
+		agent.appendChild(configuration);
+		addItem("depth", "12");
+		addItem("negative", " -3 ");
+		addItem("big", "10000000000");
+		addItem("timeout", "10s");
+		addItem("enabled", "true");
+		addItem("disabled", "false");
+		addItem("methods", "^get.+");
+		addItem("name", "agent");
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		view = ConfigurationView.of(Agent.unmarshall(this.getClass(), configElements));
+	}
+
+	private void addItem(String key, String value)
+	{
+		Element item = configDoc.createElement("item");
+		item.setAttribute("key", key);
+		item.appendChild(configDoc.createTextNode(value));
+		configuration.appendChild(item);
+	}
+
+	@Test
+	public void typedValues()
+	{
+		assertEquals(8, view.size());
+		assertEquals(12, view.getInt("depth"));
+		assertEquals(-3, view.getInt("negative"));
+		assertEquals(10000000000L, view.getLong("big"));
+		assertEquals(12L, view.getDuration("depth"));
+		assertEquals(10000L, view.getDuration("timeout"));
+		assertTrue(view.getBoolean("enabled"));
+		assertFalse(view.getBoolean("disabled"));
+		assertTrue(view.getPattern("methods").matcher("getName").matches());
+		assertSame(view.getPattern("methods"), view.getPattern("methods"));
+		assertEquals("agent", view.getString("name"));
+		assertTrue(view.contains("name"));
+		assertFalse(view.contains("missing"));
+	}
+
+	@Test
+	public void defaultValues()
+	{
+		assertEquals(5, view.getInt("missing", 5));
+		assertEquals(5L, view.getLong("missing", 5L));
+		assertEquals(5L, view.getDuration("missing", 5L));
+		assertTrue(view.getBoolean("missing", true));
+		assertEquals("default", view.getString("missing", "default"));
+		assertEquals(12, view.getInt("depth", 5));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void missingKey()
+	{
+		view.getInt("missing");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notNumber()
+	{
+		view.getInt("timeout");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notInt()
+	{
+		view.getInt("big");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notBoolean()
+	{
+		view.getBoolean("name");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notDuration()
+	{
+		view.getDuration("negative");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void wrongFormatWithDefault()
+	{
+		view.getInt("name", 5);
+	}
+
+	@Test(expected=PatternSyntaxException.class)
+	public void notPattern()
+	{
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("methods", "[");
+		ConfigurationView.of(map).getPattern("methods");
+	}
+
+	@Test
+	public void list()
+	{
+		ConfigurationView listView = ConfigurationView.of(Arrays.asList("1", "2s", "true"));
+		assertEquals(1, listView.getInt("0"));
+		assertEquals(2000L, listView.getDuration("1"));
+		assertTrue(listView.getBoolean("2"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void stringConfiguration()
+	{
+		ConfigurationView.of("configuration");
+	}
+}
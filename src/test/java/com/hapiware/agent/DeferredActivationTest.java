@@ -0,0 +1,275 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class DeferredActivationTest
+	extends
+		TestBase
+{
+	static class Loaded1
+	{
+	}
+
+
+	static class Loaded2
+	{
+	}
+
+
+	static class Loaded3
+	{
+	}
+
+
+	static class Unmodifiable
+	{
+	}
+
+
+	/**
+	 * Records the calls to {@code Instrumentation}.
+	 */
+	static class RecordingInstrumentation
+		implements
+			InvocationHandler
+	{
+		private final List<Object[]> addedTransformers = new ArrayList<Object[]>();
+		private final List<List<Class<?>>> retransformedBatches = new ArrayList<List<Class<?>>>();
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args)
+			throws
+				Throwable
+		{
+			String name = method.getName();
+			if(name.equals("addTransformer"))
+				addedTransformers.add(args);
+			else if(name.equals("isRetransformClassesSupported"))
+				return true;
+			else if(name.equals("isModifiableClass"))
+				return true;
+			else if(name.equals("getAllLoadedClasses"))
+				return
+					new Class[] {
+						String.class,
+						int.class,
+						Object[].class,
+						Loaded1.class,
+						Loaded2.class,
+						Loaded3.class,
+						Unmodifiable.class
+					};
+			else if(name.equals("retransformClasses")) {
+				List<Class<?>> batch = Arrays.asList((Class<?>[])args[0]);
+				if(batch.contains(Unmodifiable.class))
+					throw new UnmodifiableClassException();
+				retransformedBatches.add(batch);
+			}
+			return null;
+		}
+	}
+
+
+	private RecordingInstrumentation recorder;
+	private Instrumentation instrumentation;
+	private ClassFilter classFilter;
+	private ClassFileTransformer transformer =
+		new ClassFileTransformer() {
+			public byte[] transform(
+				ClassLoader loader,
+				String className,
+				Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain,
+				byte[] classfileBuffer
+			)
+			{
+				return null;
+			}
+		};
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		recorder = new RecordingInstrumentation();
+		instrumentation =
+			(Instrumentation)Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class[] {Instrumentation.class},
+				recorder
+			);
+		classFilter =
+			new ClassFilter(
+				new Pattern[] {Pattern.compile("^com/hapiware/agent/DeferredActivationTest\\$.+")},
+				new Pattern[0]
+			);
+	}
+
+	@Test
+	public void transformersAreDormantUntilActivated() throws InterruptedException
+	{
+		DeferredActivation activation = new DeferredActivation(instrumentation, classFilter, 0, 2, 0);
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(instrumentation, classFilter, null, null, activation, null);
+		proxy.addTransformer(transformer);
+		assertEquals(0, recorder.addedTransformers.size());
+		assertFalse(activation.isActive());
+
+		activation.start();
+		assertFalse(activation.awaitActivation(100, TimeUnit.MILLISECONDS));
+		assertEquals(0, recorder.addedTransformers.size());
+
+		activation.activate();
+		assertTrue(activation.awaitActivation(10, TimeUnit.SECONDS));
+		assertTrue(activation.isActive());
+		assertEquals(1, recorder.addedTransformers.size());
+		Object[] args = recorder.addedTransformers.get(0);
+		assertTrue(args[0] instanceof DelegateTransformer);
+		assertSame(transformer, ((DelegateTransformer)args[0]).getTransformer());
+		assertEquals(Boolean.TRUE, args[1]);
+
+		// Batches of two, the batch with the unmodifiable class is retried class by class.
+		assertEquals(3, activation.getRetransformedCount());
+		assertEquals(1, activation.getFailedCount());
+		assertEquals(Arrays.<Class<?>>asList(Loaded1.class, Loaded2.class), recorder.retransformedBatches.get(0));
+		assertEquals(Arrays.<Class<?>>asList(Loaded3.class), recorder.retransformedBatches.get(1));
+
+		// Transformers added after the activation are registered directly.
+		proxy.addTransformer(transformer);
+		assertEquals(2, recorder.addedTransformers.size());
+	}
+
+	@Test
+	public void activationAfterDelay() throws InterruptedException
+	{
+		DeferredActivation activation = new DeferredActivation(instrumentation, classFilter, 50, 10, 0);
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(instrumentation, classFilter, null, null, activation, null);
+		proxy.addTransformer(transformer);
+		activation.start();
+		assertTrue(activation.awaitActivation(10, TimeUnit.SECONDS));
+		assertEquals(1, recorder.addedTransformers.size());
+		assertEquals(3, activation.getRetransformedCount());
+	}
+
+	@Test
+	public void selectedClassesAreNotCountedInFilterStatistics() throws InterruptedException
+	{
+		ClassNameMatcher[] includeMatchers =
+			new ClassNameMatcher[] {
+				ClassNameMatcher.forPattern(
+					Pattern.compile("^com/hapiware/agent/DeferredActivationTest\\$.+")
+				)
+			};
+		FilterStatistics statistics =
+			new FilterStatistics(includeMatchers, new ClassNameMatcher[0], false);
+		String[] empty = new String[0];
+		ClassFilter countingFilter =
+			new ClassFilter(
+				includeMatchers,
+				new ClassNameMatcher[0],
+				empty,
+				empty,
+				empty,
+				empty,
+				null,
+				new MethodFilter(empty, empty),
+				statistics
+			);
+		DeferredActivation activation = new DeferredActivation(instrumentation, countingFilter, 0, 10, 0);
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(instrumentation, countingFilter, null, null, activation, null);
+		proxy.addTransformer(transformer);
+		activation.start();
+		activation.activate();
+		assertTrue(activation.awaitActivation(10, TimeUnit.SECONDS));
+		assertEquals(3, activation.getRetransformedCount());
+		// The classes are counted when the delegate's transformers are called for them.
+		assertEquals(0, statistics.getDecisionCount());
+	}
+
+	@Test
+	public void removingDormantTransformer() throws InterruptedException
+	{
+		DeferredActivation activation = new DeferredActivation(instrumentation, classFilter, 0, 10, 0);
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(instrumentation, classFilter, null, null, activation, null);
+		proxy.addTransformer(transformer);
+		assertTrue(proxy.removeTransformer(transformer));
+		activation.start();
+		activation.activate();
+		assertTrue(activation.awaitActivation(10, TimeUnit.SECONDS));
+		assertEquals(0, recorder.addedTransformers.size());
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("activation", "deferred");
+		transformer.setAttribute("activation-delay", "2m");
+		transformer.setAttribute("retransform-batch-size", "20");
+		transformer.setAttribute("retransform-batch-interval", "1s");
+		agent.appendChild(transformer);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getTransformer().isActivationDeferred());
+		assertEquals(120000L, configElements.getTransformer().getActivationDelay());
+		assertEquals(20, configElements.getTransformer().getRetransformBatchSize());
+		assertEquals(1000L, configElements.getTransformer().getRetransformBatchInterval());
+	}
+
+	@Test
+	public void immediateActivation()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getTransformer().isActivationDeferred());
+		assertNull(DeferredActivation.getInstance());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidActivation()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("activation", "later");
+		agent.appendChild(transformer);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidDelay()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("activation", "deferred");
+		transformer.setAttribute("activation-delay", "soon");
+		agent.appendChild(transformer);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,73 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.instrument.Instrumentation;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.hapiware.agent.DelegateBindingTest.FullDelegate;
+
+
+/**
+ * Measures what {@link DelegateBinding} saves, i.e. the method lookup. The bound entry points
+ * are still called with {@code Method.invoke()}, so the benchmark reports a direct call, too,
+ * to show that the per-call cost of the invocation itself is unchanged. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class DelegateBindingBenchmark
+{
+	/**
+	 * Compares looking {@code premain()} up and invoking it on every call (what the agent did
+	 * before {@code DelegateBinding}) with invoking the cached method and with calling it
+	 * directly.
+	 */
+	@Test
+	public void lookupCost() throws Exception
+	{
+		FullDelegate.calls = 0;
+		DelegateBinding binding = DelegateBinding.bind(FullDelegate.class);
+		Pattern[] patterns = new Pattern[0];
+		MethodFilter methodFilter = new MethodFilter(new String[0], new String[0]);
+		int calls = 200000;
+		long lookupTime = 0;
+		long boundTime = 0;
+		long directTime = 0;
+		for(int round = 0; round < 3; round++) {
+			long startTime = System.nanoTime();
+			for(int i = 0; i < calls; i++)
+				FullDelegate.class.getMethod(
+					"premain",
+					new Class[] {
+						Pattern[].class,
+						Pattern[].class,
+						MethodFilter.class,
+						Object.class,
+						Instrumentation.class
+					}
+				).invoke(null, patterns, patterns, methodFilter, null, null);
+			lookupTime = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for(int i = 0; i < calls; i++)
+				binding.premain(patterns, patterns, methodFilter, null, null);
+			boundTime = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for(int i = 0; i < calls; i++)
+				FullDelegate.premain(patterns, patterns, methodFilter, null, null);
+			directTime = System.nanoTime() - startTime;
+		}
+		assertEquals(3 * 3 * calls, FullDelegate.calls);
+		System.out.println(
+			"DelegateBindingBenchmark.lookupCost(): getMethod().invoke() "
+				+ lookupTime / calls + " ns/call, cached Method.invoke() "
+				+ boundTime / calls + " ns/call, direct call "
+				+ directTime / calls + " ns/call."
+		);
+	}
+}
@@ -0,0 +1,165 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+
+public class DelegateBindingTest
+	extends
+		TestBase
+{
+	/**
+	 * A delegate having {@code premain()} with {@code MethodFilter} and {@code unmarshall()}.
+	 */
+	public static class FullDelegate
+	{
+		static volatile int calls;
+		static volatile MethodFilter methodFilter;
+		static volatile Object configuration;
+
+		public static void premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			MethodFilter methodFilter,
+			Object configuration,
+			Instrumentation instrumentation
+		)
+		{
+			calls++;
+			FullDelegate.methodFilter = methodFilter;
+			FullDelegate.configuration = configuration;
+		}
+
+		public static void premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			Object configuration,
+			Instrumentation instrumentation
+		)
+		{
+			throw new IllegalStateException("The MethodFilter variant must be preferred.");
+		}
+
+		public static Object unmarshall(Element configElement)
+		{
+			return configElement.getTagName();
+		}
+	}
+
+
+	/**
+	 * A non-public delegate having only the original {@code premain()}.
+	 */
+	static class PlainDelegate
+	{
+		static volatile Object configuration;
+
+		public static void premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			Object configuration,
+			Instrumentation instrumentation
+		)
+		{
+			PlainDelegate.configuration = configuration;
+		}
+
+		public static Object unmarshall(Element configElement)
+		{
+			throw new IllegalStateException("unmarshall failed");
+		}
+	}
+
+
+	/**
+	 * A delegate having {@code premain()} as an instance method.
+	 */
+	public static class InstanceDelegate
+	{
+		public void premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			Object configuration,
+			Instrumentation instrumentation
+		)
+		{
+		}
+	}
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		FullDelegate.calls = 0;
+		FullDelegate.methodFilter = null;
+		FullDelegate.configuration = null;
+		PlainDelegate.configuration = null;
+	}
+
+	@Test
+	public void premainWithMethodFilter() throws Exception
+	{
+		DelegateBinding binding = DelegateBinding.bind(FullDelegate.class);
+		assertSame(FullDelegate.class, binding.getDelegateAgentClass());
+		assertTrue(binding.hasPremain());
+		assertTrue(binding.isMethodFilterAccepted());
+		assertTrue(binding.hasUnmarshaller());
+
+		MethodFilter methodFilter = new MethodFilter(new String[0], new String[0]);
+		binding.premain(new Pattern[0], new Pattern[0], methodFilter, "config", null);
+		assertEquals(1, FullDelegate.calls);
+		assertSame(methodFilter, FullDelegate.methodFilter);
+		assertEquals("config", FullDelegate.configuration);
+		assertEquals("custom", binding.unmarshall(configDoc.createElement("custom")));
+	}
+
+	@Test
+	public void premainWithoutMethodFilter() throws Exception
+	{
+		DelegateBinding binding = DelegateBinding.bind(PlainDelegate.class);
+		assertTrue(binding.hasPremain());
+		assertFalse(binding.isMethodFilterAccepted());
+		binding.premain(
+			new Pattern[0],
+			new Pattern[0],
+			new MethodFilter(new String[0], new String[0]),
+			"config",
+			null
+		);
+		assertEquals("config", PlainDelegate.configuration);
+	}
+
+	@Test
+	public void unmarshallFailure() throws Exception
+	{
+		try {
+			DelegateBinding.bind(PlainDelegate.class).unmarshall(configDoc.createElement("custom"));
+		}
+		catch(InvocationTargetException e) {
+			assertEquals("unmarshall failed", e.getCause().getMessage());
+			return;
+		}
+		assertTrue("InvocationTargetException was not thrown.", false);
+	}
+
+	@Test
+	public void missingEntryPoints()
+	{
+		DelegateBinding binding = DelegateBinding.bind(InstanceDelegate.class);
+		assertFalse(binding.hasPremain());
+		assertFalse(binding.hasUnmarshaller());
+	}
+}
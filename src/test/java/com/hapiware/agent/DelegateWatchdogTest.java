@@ -0,0 +1,216 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class DelegateWatchdogTest
+	extends
+		TestBase
+{
+	/**
+	 * Delegate {@code premain()} methods for the tests.
+	 */
+	public static class Delegate
+	{
+		static volatile CountDownLatch release;
+		static volatile boolean interrupted;
+
+		public static void returning()
+		{
+		}
+
+		public static void hanging()
+		{
+			try {
+				release.await();
+			}
+			catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		public static void failing()
+		{
+			throw new IllegalStateException("premain failed");
+		}
+	}
+
+
+	/**
+	 * Records the transformers added to and removed from {@code Instrumentation}.
+	 */
+	static class RecordingInstrumentation
+		implements
+			InvocationHandler
+	{
+		private final List<Object> transformers = new ArrayList<Object>();
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if(name.equals("addTransformer"))
+				transformers.add(args[0]);
+			else if(name.equals("removeTransformer"))
+				return transformers.remove(args[0]);
+			return null;
+		}
+	}
+
+
+	private static final ClassFileTransformer TRANSFORMER =
+		new ClassFileTransformer() {
+			public byte[] transform(
+				ClassLoader loader,
+				String className,
+				Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain,
+				byte[] classfileBuffer
+			)
+			{
+				return null;
+			}
+		};
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		Delegate.release = new CountDownLatch(1);
+		Delegate.interrupted = false;
+	}
+
+	@Test
+	public void premainReturnsInTime() throws Exception
+	{
+		DelegateWatchdog watchdog = new DelegateWatchdog(5000);
+		assertTrue(watchdog.invoke(call("returning")));
+		assertNull(watchdog.getStackDump());
+	}
+
+	@Test
+	public void premainExceedsBudget() throws Exception
+	{
+		DelegateWatchdog watchdog = new DelegateWatchdog(100);
+		long startTime = System.currentTimeMillis();
+		assertFalse(watchdog.invoke(call("hanging")));
+		assertTrue(System.currentTimeMillis() - startTime < 5000);
+		String dump = watchdog.getStackDump();
+		assertTrue(dump, dump.startsWith("\"agent-delegate-premain\""));
+		assertTrue(dump, dump.contains(Delegate.class.getName() + ".hanging("));
+
+		// The delegate's thread is interrupted.
+		for(int i = 0; i < 100 && !Delegate.interrupted; i++)
+			Thread.sleep(10);
+		assertTrue(Delegate.interrupted);
+	}
+
+	@Test
+	public void premainFailure() throws Exception
+	{
+		DelegateWatchdog watchdog = new DelegateWatchdog(5000);
+		try {
+			watchdog.invoke(call("failing"));
+		}
+		catch(InvocationTargetException e) {
+			assertEquals("premain failed", e.getCause().getMessage());
+			return;
+		}
+		assertTrue("InvocationTargetException was not thrown.", false);
+	}
+
+	private static Callable<Object> call(String methodName) throws NoSuchMethodException
+	{
+		final Method method = Delegate.class.getMethod(methodName);
+		return
+			new Callable<Object>() {
+				public Object call() throws Exception
+				{
+					return method.invoke(null);
+				}
+			};
+	}
+
+	@Test
+	public void disabledDelegateHasNoTransformers()
+	{
+		RecordingInstrumentation recorder = new RecordingInstrumentation();
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(
+				(Instrumentation)Proxy.newProxyInstance(
+					getClass().getClassLoader(),
+					new Class[] {Instrumentation.class},
+					recorder
+				),
+				new ClassFilter(new Pattern[] {Pattern.compile(".+")}, new Pattern[0]),
+				null,
+				null,
+				null,
+				null
+			);
+		proxy.addTransformer(TRANSFORMER);
+		assertEquals(1, recorder.transformers.size());
+		assertSame(TRANSFORMER, ((DelegateTransformer)recorder.transformers.get(0)).getTransformer());
+
+		InstrumentationProxy.disable(proxy);
+		assertEquals(0, recorder.transformers.size());
+		proxy.addTransformer(TRANSFORMER);
+		assertEquals(0, recorder.transformers.size());
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element delegate = (Element)agent.getElementsByTagName("delegate").item(0);
+		delegate.setAttribute("premain-timeout", "5s");
+		delegate.setAttribute("on-timeout", "disable");
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(5000L, configElements.getDelegate().getPremainTimeout());
+		assertFalse(configElements.getDelegate().isPremainTimeoutFatal());
+		assertEquals("com.hapiware.agent.AgentTest", configElements.getDelegateAgentName());
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(0L, configElements.getDelegate().getPremainTimeout());
+		assertTrue(configElements.getDelegate().isPremainTimeoutFatal());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidOnTimeout()
+	{
+		Element delegate = (Element)agent.getElementsByTagName("delegate").item(0);
+		delegate.setAttribute("premain-timeout", "5s");
+		delegate.setAttribute("on-timeout", "ignore");
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,102 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hapiware.agent.EventLogTest.Writer;
+
+
+/**
+ * Compares the throughput and the latency of {@link EventLog} with a synchronised
+ * {@code BufferedOutputStream}. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class EventLogBenchmark
+{
+	private static final long KB = 1024L;
+
+
+	private File directory;
+
+
+	@Before
+	public void setup() throws IOException
+	{
+		directory = File.createTempFile("agent-benchmark", ".events");
+		directory.delete();
+	}
+
+	@After
+	public void cleanup()
+	{
+		File[] files = directory.listFiles();
+		if(files != null)
+			for(File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void throughput() throws Exception
+	{
+		final int threads = 4;
+		final int records = 250000;
+
+		final EventLog log = new EventLog(directory, 4 * KB * KB, 0);
+		long[] eventLogResult =
+			EventLogTest.runWriters(
+				threads,
+				records,
+				new Writer() {
+					public void write(int thread, long value)
+					{
+						log.append(thread, value, value);
+					}
+				}
+			);
+		log.close();
+		assertEquals(threads * records, log.getRecordCount());
+
+		File file = new File(directory, "baseline.bin");
+		final DataOutputStream out =
+			new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		long[] baselineResult =
+			EventLogTest.runWriters(
+				threads,
+				records,
+				new Writer() {
+					public void write(int thread, long value) throws IOException
+					{
+						synchronized(out) {
+							out.writeInt(1);
+							out.writeInt(thread);
+							out.writeLong(System.currentTimeMillis());
+							out.writeLong(value);
+							out.writeLong(value);
+						}
+					}
+				}
+			);
+		out.close();
+		assertEquals((long)threads * records * EventLog.RECORD_SIZE, file.length());
+
+		System.out.println(
+			"EventLogBenchmark.throughput(): " + threads + " threads, event log "
+				+ eventLogResult[0] + " records/s (p99 " + eventLogResult[1] + " ns, max "
+				+ eventLogResult[2] + " ns), BufferedOutputStream " + baselineResult[0]
+				+ " records/s (p99 " + baselineResult[1] + " ns, max " + baselineResult[2] + " ns)."
+		);
+	}
+}
@@ -0,0 +1,337 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class EventLogTest
+	extends
+		TestBase
+{
+	private static final long KB = 1024L;
+
+
+	/**
+	 * Appends records concurrently.
+	 */
+	interface Writer
+	{
+		public void write(int thread, long value) throws IOException;
+	}
+
+
+	private File directory;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		try {
+			directory = File.createTempFile("agent-unit-test", ".events");
+		}
+		catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		directory.delete();
+	}
+
+	@After
+	public void cleanup()
+	{
+		File[] files = directory.listFiles();
+		if(files != null)
+			for(File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void recordsAreReadInOrder() throws IOException
+	{
+		EventLog log = new EventLog(directory, 64 * KB, 0);
+		for(int i = 0; i < 100; i++)
+			assertTrue(log.append(i % 3, 1000L + i, i, -i));
+		log.close();
+		assertFalse(log.append(1, 2, 3));
+		assertEquals(100, log.getRecordCount());
+
+		EventLogReader reader = new EventLogReader(directory);
+		for(int i = 0; i < 100; i++) {
+			assertTrue(reader.next());
+			assertEquals(0, reader.getFileIndex());
+			assertEquals(i % 3, reader.getType());
+			assertEquals(1000L + i, reader.getTimestamp());
+			assertEquals(i, reader.getValue1());
+			assertEquals(-i, reader.getValue2());
+		}
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void filesAreRolled() throws IOException
+	{
+		// Room for 10 records per file.
+		long fileSize = EventLog.FILE_HEADER_SIZE + 10 * EventLog.RECORD_SIZE + 5;
+		EventLog log = new EventLog(directory, fileSize, 3);
+		assertEquals(10, log.getRecordsPerFile());
+		for(int i = 0; i < 45; i++)
+			log.append(1, i, i);
+		log.close();
+		assertEquals(
+			Arrays.asList(
+				new File(directory, "events-00002.log"),
+				new File(directory, "events-00003.log"),
+				new File(directory, "events-00004.log")
+			),
+			Arrays.asList(EventLog.listFiles(directory))
+		);
+
+		EventLogReader reader = new EventLogReader(directory);
+		for(int i = 20; i < 45; i++) {
+			assertTrue(reader.next());
+			assertEquals(i / 10, reader.getFileIndex());
+			assertEquals(i, reader.getValue1());
+		}
+		assertFalse(reader.next());
+
+		// A new log continues after the old files and deletes only beyond the maximum.
+		log = new EventLog(directory, fileSize, 3);
+		assertEquals(5, log.getFirstFileIndex());
+		log.append(1, 45, 45);
+		log.close();
+		assertEquals(
+			Arrays.asList(
+				new File(directory, "events-00003.log"),
+				new File(directory, "events-00004.log"),
+				new File(directory, "events-00005.log")
+			),
+			Arrays.asList(EventLog.listFiles(directory))
+		);
+		reader = new EventLogReader(directory);
+		for(int i = 30; i < 45; i++) {
+			assertTrue(reader.next());
+			assertEquals(i / 10, reader.getFileIndex());
+			assertEquals(i, reader.getValue1());
+		}
+		assertTrue(reader.next());
+		assertEquals(5, reader.getFileIndex());
+		assertEquals(45, reader.getValue1());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void oldFilesAreKept() throws IOException
+	{
+		EventLog log = new EventLog(directory, 64 * KB, 0);
+		log.append(1, 1, 1);
+		log.close();
+		log = new EventLog(directory, 64 * KB, 0);
+		log.append(2, 2, 2);
+		log.close();
+		assertEquals(1, log.getRecordCount());
+		assertEquals(2, EventLog.listFiles(directory).length);
+
+		EventLogReader reader = new EventLogReader(directory);
+		assertTrue(reader.next());
+		assertEquals(0, reader.getFileIndex());
+		assertEquals(1, reader.getType());
+		assertTrue(reader.next());
+		assertEquals(1, reader.getFileIndex());
+		assertEquals(2, reader.getType());
+		assertFalse(reader.next());
+
+		// A smaller maximum deletes the extra old files.
+		new EventLog(directory, 64 * KB, 1).close();
+		assertEquals(
+			Arrays.asList(new File(directory, "events-00002.log")),
+			Arrays.asList(EventLog.listFiles(directory))
+		);
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception
+	{
+		long fileSize = EventLog.FILE_HEADER_SIZE + 1000 * EventLog.RECORD_SIZE;
+		final EventLog log = new EventLog(directory, fileSize, 0);
+		runWriters(
+			8,
+			10000,
+			new Writer() {
+				public void write(int thread, long value)
+				{
+					log.append(thread, value, 1);
+				}
+			}
+		);
+		log.close();
+
+		EventLogReader reader = new EventLogReader(directory);
+		long[] sums = new long[8];
+		int count = 0;
+		while(reader.next()) {
+			sums[reader.getType()] += reader.getValue1();
+			count++;
+		}
+		assertEquals(80000, count);
+		for(long sum : sums)
+			assertEquals(10000L * 9999L / 2L, sum);
+	}
+
+	@Test
+	public void ringBufferConsumer() throws Exception
+	{
+		EventLog log = new EventLog(directory, 64 * KB, 0);
+		EventRingBuffer ringBuffer = new EventRingBuffer(16, EventRingBuffer.Overflow.BLOCK, 4);
+		ringBuffer.start(log);
+		for(int i = 0; i < 100; i++)
+			ringBuffer.publish(7, i, 2 * i);
+		ringBuffer.stop();
+		log.close();
+
+		EventLogReader reader = new EventLogReader(directory);
+		for(int i = 0; i < 100; i++) {
+			assertTrue(reader.next());
+			assertEquals(7, reader.getType());
+			assertEquals(i, reader.getValue1());
+			assertEquals(2 * i, reader.getValue2());
+		}
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void print() throws IOException
+	{
+		EventLog log = new EventLog(directory, 64 * KB, 0);
+		log.append(3, 123L, 4, 5);
+		log.close();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EventLogReader.print(directory, new PrintStream(out, true));
+		assertEquals("0\t123\t3\t4\t5" + System.getProperty("line.separator"), out.toString());
+	}
+
+	@Test(expected=IOException.class)
+	public void notLogFile() throws IOException
+	{
+		directory.mkdirs();
+		FileOutputStream out = new FileOutputStream(new File(directory, "events-00000.log"));
+		out.write(new byte[64]);
+		out.close();
+		new EventLogReader(directory).next();
+	}
+
+	/**
+	 * Runs the writers and samples the latency of every 16th write.
+	 *
+	 * @return
+	 * 		The throughput in records per second, the 99th percentile latency and the maximum
+	 * 		latency in nanoseconds.
+	 */
+	static long[] runWriters(int threads, final int records, final Writer writer)
+		throws
+			Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[][] latencies = new long[threads][records / 16];
+		final Exception[] failure = new Exception[1];
+		Thread[] writers = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			final int thread = i;
+			writers[i] =
+				new Thread() {
+					public void run()
+					{
+						try {
+							start.await();
+							for(int j = 0; j < records; j++) {
+								if(j % 16 == 0 && j / 16 < latencies[thread].length) {
+									long t = System.nanoTime();
+									writer.write(thread, j);
+									latencies[thread][j / 16] = System.nanoTime() - t;
+								}
+								else
+									writer.write(thread, j);
+							}
+						}
+						catch(Exception e) {
+							failure[0] = e;
+						}
+					}
+				};
+			writers[i].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for(Thread thread : writers)
+			thread.join();
+		long time = System.nanoTime() - startTime;
+		if(failure[0] != null)
+			throw failure[0];
+
+		long[] all = new long[threads * latencies[0].length];
+		for(int i = 0; i < threads; i++)
+			System.arraycopy(latencies[i], 0, all, i * latencies[i].length, latencies[i].length);
+		Arrays.sort(all);
+		return
+			new long[] {
+				(long)threads * records * 1000000L / Math.max(1, time / 1000),
+				all[(int)(all.length * 0.99)],
+				all[all.length - 1]
+			};
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element eventLog = configDoc.createElement("event-log");
+		eventLog.setAttribute("directory", "/tmp/agent-events");
+		eventLog.setAttribute("file-size", "16m");
+		eventLog.setAttribute("max-files", "10");
+		agent.appendChild(eventLog);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals("/tmp/agent-events", configElements.getEvents().getLogDirectory());
+		assertEquals(16 * KB * KB, configElements.getEvents().getLogFileSize());
+		assertEquals(10, configElements.getEvents().getLogMaxFiles());
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		Element eventLog = configDoc.createElement("event-log");
+		eventLog.setAttribute("directory", "/tmp/agent-events");
+		agent.appendChild(eventLog);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(64 * KB * KB, configElements.getEvents().getLogFileSize());
+		assertEquals(0, configElements.getEvents().getLogMaxFiles());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void tooSmallFileSize()
+	{
+		Element eventLog = configDoc.createElement("event-log");
+		eventLog.setAttribute("directory", "/tmp/agent-events");
+		eventLog.setAttribute("file-size", "10");
+		agent.appendChild(eventLog);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
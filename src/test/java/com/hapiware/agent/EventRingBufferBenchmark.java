@@ -0,0 +1,72 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.hapiware.agent.EventRingBufferTest.LatencyHandler;
+
+
+/**
+ * Measures the throughput and the latency of {@link EventRingBuffer} with different numbers of
+ * producers and both of the overflow policies. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class EventRingBufferBenchmark
+{
+	@Test
+	public void throughputAndLatency() throws InterruptedException
+	{
+		for(int producers : new int[] {1, 4, 16, 64}) {
+			for(EventRingBuffer.Overflow overflow : EventRingBuffer.Overflow.values()) {
+				final EventRingBuffer ringBuffer = new EventRingBuffer(64 * 1024, overflow, 256);
+				LatencyHandler handler = new LatencyHandler();
+				ringBuffer.start(handler);
+				final int eventsPerProducer = 400000 / producers;
+				final CountDownLatch start = new CountDownLatch(1);
+				Thread[] threads = new Thread[producers];
+				for(int i = 0; i < producers; i++) {
+					threads[i] =
+						new Thread() {
+							public void run()
+							{
+								try {
+									start.await();
+								}
+								catch(InterruptedException e) {
+									return;
+								}
+								for(int j = 0; j < eventsPerProducer; j++)
+									ringBuffer.publish(1, System.nanoTime(), 1);
+							}
+						};
+					threads[i].start();
+				}
+				long startTime = System.nanoTime();
+				start.countDown();
+				for(Thread thread : threads)
+					thread.join();
+				ringBuffer.stop();
+				long time = System.nanoTime() - startTime;
+
+				long total = (long)producers * eventsPerProducer;
+				assertEquals(total, handler.count + ringBuffer.getDroppedCount());
+				assertEquals(handler.count, handler.checksum);
+				if(overflow == EventRingBuffer.Overflow.BLOCK)
+					assertEquals(0, ringBuffer.getDroppedCount());
+				System.out.println(
+					"EventRingBufferBenchmark.throughputAndLatency(): " + producers + " producers, "
+						+ overflow + ": " + total * 1000000L / Math.max(1, time / 1000) + " events/s, "
+						+ ringBuffer.getDroppedCount() + " dropped, average latency "
+						+ handler.totalLatency / Math.max(1, handler.count) / 1000 + " us, max latency "
+						+ handler.maxLatency / 1000 + " us."
+				);
+			}
+		}
+	}
+}
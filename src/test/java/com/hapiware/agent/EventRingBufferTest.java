@@ -0,0 +1,329 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class EventRingBufferTest
+	extends
+		TestBase
+{
+	/**
+	 * Records the events and the batches.
+	 */
+	static class RecordingHandler
+		implements
+			EventHandler
+	{
+		private final List<long[]> events = new ArrayList<long[]>();
+		private final List<Object> payloads = new ArrayList<Object>();
+		private final List<Integer> batches = new ArrayList<Integer>();
+
+		public void onEvent(int type, long value1, long value2, Object payload)
+		{
+			events.add(new long[] {type, value1, value2});
+			payloads.add(payload);
+		}
+
+		public void onBatchEnd(int count)
+		{
+			batches.add(count);
+		}
+	}
+
+
+	/**
+	 * Counts the events and measures the latency from publishing to handling. The first value
+	 * of an event is the {@code System.nanoTime()} of publishing.
+	 */
+	static class LatencyHandler
+		implements
+			EventHandler
+	{
+		volatile long count;
+		long totalLatency;
+		long maxLatency;
+		long checksum;
+
+		public void onEvent(int type, long value1, long value2, Object payload)
+		{
+			long latency = System.nanoTime() - value1;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+			checksum += value2;
+			count = count + 1;
+		}
+
+		public void onBatchEnd(int count)
+		{
+		}
+	}
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void eventsAreHandledInOrder()
+	{
+		EventRingBuffer ringBuffer = new EventRingBuffer(16, EventRingBuffer.Overflow.DROP, 16);
+		Object payload = new Object();
+		for(int i = 0; i < 10; i++)
+			assertTrue(ringBuffer.publish(i, 100 + i, 1000 + i, i == 5 ? payload : null));
+		assertEquals(10, ringBuffer.size());
+
+		RecordingHandler handler = new RecordingHandler();
+		assertEquals(4, ringBuffer.drain(handler, 4));
+		assertEquals(6, ringBuffer.drain(handler, 100));
+		assertEquals(0, ringBuffer.drain(handler, 100));
+		assertEquals(10, handler.events.size());
+		for(int i = 0; i < 10; i++) {
+			assertEquals(i, handler.events.get(i)[0]);
+			assertEquals(100 + i, handler.events.get(i)[1]);
+			assertEquals(1000 + i, handler.events.get(i)[2]);
+		}
+		assertSame(payload, handler.payloads.get(5));
+		assertNull(handler.payloads.get(6));
+		assertEquals(2, handler.batches.size());
+		assertEquals(4, (int)handler.batches.get(0));
+		assertEquals(6, (int)handler.batches.get(1));
+		assertEquals(0, ringBuffer.size());
+		assertEquals(10, ringBuffer.getPublishedCount());
+	}
+
+	@Test
+	public void capacityIsRoundedUp()
+	{
+		assertEquals(8, new EventRingBuffer(5, EventRingBuffer.Overflow.DROP, 1).getCapacity());
+		assertEquals(8, new EventRingBuffer(8, EventRingBuffer.Overflow.DROP, 1).getCapacity());
+		assertEquals(1, new EventRingBuffer(1, EventRingBuffer.Overflow.DROP, 1).getCapacity());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidCapacity()
+	{
+		new EventRingBuffer(0, EventRingBuffer.Overflow.DROP, 1);
+	}
+
+	@Test
+	public void eventsAreDroppedWhenFull()
+	{
+		EventRingBuffer ringBuffer = new EventRingBuffer(4, EventRingBuffer.Overflow.DROP, 4);
+		for(int i = 0; i < 4; i++)
+			assertTrue(ringBuffer.publish(1, i, 0));
+		assertFalse(ringBuffer.publish(1, 4, 0));
+		assertFalse(ringBuffer.publish(1, 5, 0));
+		assertEquals(2, ringBuffer.getDroppedCount());
+
+		// The slots are reused after draining.
+		RecordingHandler handler = new RecordingHandler();
+		assertEquals(4, ringBuffer.drain(handler, 10));
+		for(int i = 6; i < 10; i++)
+			assertTrue(ringBuffer.publish(1, i, 0));
+		assertEquals(4, ringBuffer.drain(handler, 10));
+		assertEquals(8, handler.events.size());
+		assertEquals(3, handler.events.get(3)[1]);
+		assertEquals(6, handler.events.get(4)[1]);
+		assertEquals(2, ringBuffer.getDroppedCount());
+	}
+
+	@Test
+	public void failingHandlerSkipsEvent()
+	{
+		EventRingBuffer ringBuffer = new EventRingBuffer(4, EventRingBuffer.Overflow.DROP, 4);
+		ringBuffer.publish(1, 0, 0);
+		ringBuffer.publish(2, 0, 0);
+		final RecordingHandler recorder = new RecordingHandler();
+		EventHandler handler =
+			new EventHandler() {
+				public void onEvent(int type, long value1, long value2, Object payload)
+				{
+					if(type == 1)
+						throw new IllegalStateException();
+					recorder.onEvent(type, value1, value2, payload);
+				}
+
+				public void onBatchEnd(int count)
+				{
+					recorder.onBatchEnd(count);
+				}
+			};
+		try {
+			ringBuffer.drain(handler, 10);
+		}
+		catch(IllegalStateException e) {
+			// Expected.
+		}
+		assertEquals(1, (int)recorder.batches.get(0));
+		assertEquals(1, ringBuffer.drain(handler, 10));
+		assertEquals(2, recorder.events.get(0)[0]);
+	}
+
+	@Test
+	public void blockingAppliesBackPressure() throws InterruptedException
+	{
+		EventRingBuffer ringBuffer = new EventRingBuffer(4, EventRingBuffer.Overflow.BLOCK, 2);
+		LatencyHandler handler = new LatencyHandler();
+		ringBuffer.start(handler);
+		for(int i = 0; i < 10000; i++)
+			assertTrue(ringBuffer.publish(1, System.nanoTime(), i));
+		ringBuffer.stop();
+		assertEquals(10000, handler.count);
+		assertEquals(10000L * 9999L / 2L, handler.checksum);
+		assertEquals(0, ringBuffer.getDroppedCount());
+	}
+
+	@Test
+	public void blockingWithoutConsumerDrops() throws InterruptedException
+	{
+		EventRingBuffer ringBuffer = new EventRingBuffer(4, EventRingBuffer.Overflow.BLOCK, 2);
+		for(int i = 0; i < 4; i++)
+			assertTrue(ringBuffer.publish(1, i, 0));
+		assertFalse(ringBuffer.publish(1, 4, 0));
+		assertEquals(1, ringBuffer.getDroppedCount());
+
+		// Stopped.
+		LatencyHandler handler = new LatencyHandler();
+		ringBuffer.start(handler);
+		ringBuffer.stop();
+		assertEquals(4, handler.count);
+		for(int i = 0; i < 4; i++)
+			assertTrue(ringBuffer.publish(1, System.nanoTime(), 0));
+		assertFalse(ringBuffer.publish(1, System.nanoTime(), 0));
+		assertEquals(2, ringBuffer.getDroppedCount());
+	}
+
+	@Test
+	public void failingConsumer() throws InterruptedException
+	{
+		final List<Throwable> uncaught = new ArrayList<Throwable>();
+		Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(
+			new Thread.UncaughtExceptionHandler() {
+				public void uncaughtException(Thread t, Throwable e)
+				{
+					synchronized(uncaught) {
+						uncaught.add(e);
+					}
+				}
+			}
+		);
+		try {
+			EventRingBuffer ringBuffer = new EventRingBuffer(4, EventRingBuffer.Overflow.BLOCK, 1);
+			final RecordingHandler recorder = new RecordingHandler();
+			ringBuffer.start(
+				new EventHandler() {
+					public void onEvent(int type, long value1, long value2, Object payload)
+					{
+						if(type == 1)
+							throw new AssertionError();
+						if(type == 2)
+							throw new OutOfMemoryError();
+						synchronized(recorder) {
+							recorder.onEvent(type, value1, value2, payload);
+						}
+					}
+
+					public void onBatchEnd(int count)
+					{
+						// Not recorded.
+					}
+				}
+			);
+
+			// An error other than VirtualMachineError only skips the event.
+			assertTrue(ringBuffer.publish(1, 0, 0));
+			for(int i = 0; i < 10; i++)
+				assertTrue(ringBuffer.publish(3, i, 0));
+
+			// The consumer thread dies and the producers do not wait for it.
+			assertTrue(ringBuffer.publish(2, 0, 0));
+			int published = 0;
+			for(int i = 0; i < 10; i++)
+				if(ringBuffer.publish(3, i, 0))
+					published++;
+			assertTrue(published <= 4);
+			assertEquals(10 - published, ringBuffer.getDroppedCount());
+			ringBuffer.stop();
+			synchronized(recorder) {
+				assertEquals(10, recorder.events.size());
+			}
+			synchronized(uncaught) {
+				assertEquals(1, uncaught.size());
+				assertTrue(uncaught.get(0) instanceof OutOfMemoryError);
+			}
+		}
+		finally {
+			Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void consumerCanBeStartedOnce()
+	{
+		EventRingBuffer ringBuffer = new EventRingBuffer(4, EventRingBuffer.Overflow.DROP, 2);
+		ringBuffer.start(new LatencyHandler());
+		ringBuffer.start(new LatencyHandler());
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element events = configDoc.createElement("events");
+		events.setAttribute("capacity", "1k");
+		events.setAttribute("overflow", "block");
+		events.setAttribute("batch-size", "64");
+		agent.appendChild(events);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(1024, configElements.getEvents().getCapacity());
+		assertEquals(EventRingBuffer.Overflow.BLOCK, configElements.getEvents().getOverflow());
+		assertEquals(64, configElements.getEvents().getBatchSize());
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		Element events = configDoc.createElement("events");
+		agent.appendChild(events);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(64 * 1024, configElements.getEvents().getCapacity());
+		assertEquals(EventRingBuffer.Overflow.DROP, configElements.getEvents().getOverflow());
+		assertEquals(256, configElements.getEvents().getBatchSize());
+	}
+
+	@Test
+	public void noEvents()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(0, configElements.getEvents().getCapacity());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidOverflow()
+	{
+		Element events = configDoc.createElement("events");
+		events.setAttribute("overflow", "wait");
+		agent.appendChild(events);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,157 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.FilterStatistics.PatternStatistics;
+
+
+public class FilterStatisticsTest
+	extends
+		TestBase
+{
+	private static final String[] CLASS_NAMES = {
+		"com/mysoft/Main",
+		"com/mysoft/service/Service",
+		"com/mysoft/service/ServiceTest",
+		"com/hapiware/Agent",
+		"java/lang/String"
+	};
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	private static ClassNameMatcher[] matchers(String... regexes)
+	{
+		ClassNameMatcher[] matchers = new ClassNameMatcher[regexes.length];
+		for(int i = 0; i < regexes.length; i++)
+			matchers[i] = ClassNameMatcher.forPattern(Pattern.compile(regexes[i]));
+		return matchers;
+	}
+
+	@Test
+	public void counters()
+	{
+		FilterStatistics statistics =
+			new FilterStatistics(
+				matchers("^com/old/.+", "^com/mysoft/.+", "^com/hapiware/.+"),
+				matchers(".+Test"),
+				false
+			);
+		for(int i = 0; i < 10; i++)
+			for(String className : CLASS_NAMES)
+				statistics.isIncluded(className);
+		assertEquals(50, statistics.getDecisionCount());
+
+		List<PatternStatistics> includes = statistics.getPatternStatistics(true);
+		assertEquals(40, includes.get(0).getEvaluations());
+		assertEquals(0, includes.get(0).getMatches());
+		assertEquals(20, includes.get(1).getMatches());
+		assertEquals(20, includes.get(2).getEvaluations());
+		assertEquals(10, includes.get(2).getMatches());
+		assertEquals(50, statistics.getPatternStatistics(false).get(0).getEvaluations());
+		assertEquals(10, statistics.getPatternStatistics(false).get(0).getMatches());
+
+		List<PatternStatistics> neverMatching = statistics.getNeverMatchingPatterns();
+		assertEquals(1, neverMatching.size());
+		assertEquals("^com/old/.+", neverMatching.get(0).getPattern());
+		assertEquals(4, statistics.getMostExpensivePatterns().size());
+		assertTrue(statistics.getReport().indexOf("^com/old/.+") > 0);
+	}
+
+	@Test
+	public void countersFromManyThreads() throws InterruptedException
+	{
+		final FilterStatistics statistics =
+			new FilterStatistics(matchers("^com/mysoft/.+"), matchers(), false);
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] =
+				new Thread() {
+					public void run()
+					{
+						for(int j = 0; j < 1000; j++)
+							for(String className : CLASS_NAMES)
+								statistics.isIncluded(className);
+					}
+				};
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertEquals(40000, statistics.getDecisionCount());
+		assertEquals(24000, statistics.getPatternStatistics(true).get(0).getMatches());
+	}
+
+	@Test
+	public void reordering()
+	{
+		FilterStatistics statistics =
+			new FilterStatistics(
+				matchers("^com/old/.+", "^com/other/.+", "^com/mysoft/.+"),
+				matchers(),
+				true
+			);
+		for(int i = 0; i < FilterStatistics.REORDER_INTERVAL; i++) {
+			assertTrue(statistics.isIncluded("com/mysoft/Main"));
+			assertFalse(statistics.isIncluded("java/lang/String"));
+		}
+		int[] order = statistics.getEvaluationOrder(true);
+		assertEquals(2, order[0]);
+		assertEquals(3, order.length);
+
+		// Reordering does not change the results.
+		for(String className : CLASS_NAMES)
+			assertEquals(className.startsWith("com/mysoft/"), statistics.isIncluded(className));
+	}
+
+	@Test
+	public void configuration()
+	{
+		instrumentedClass.setAttribute("statistics", "true");
+		Element element = configDoc.createElement("include");
+		element.appendChild(configDoc.createTextNode("^com/mysoft/.+"));
+		instrumentedClass.appendChild(element);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getFilter().isStatisticsReported());
+		ClassFilter filter = configElements.getClassFilter();
+		assertNotNull(filter.getStatistics());
+		assertTrue(filter.isIncluded("com/mysoft/Main"));
+		assertFalse(filter.isIncluded("java/lang/String"));
+		assertEquals(2, filter.getStatistics().getDecisionCount());
+	}
+
+	@Test
+	public void noStatistics()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getFilter().isStatisticsReported());
+		assertNull(configElements.getClassFilter().getStatistics());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidReorderPatterns()
+	{
+		instrumentedClass.setAttribute("reorder-patterns", "sometimes");
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
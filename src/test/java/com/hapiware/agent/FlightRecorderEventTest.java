@@ -0,0 +1,217 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+public class FlightRecorderEventTest
+{
+	/**
+	 * The agent delegate of {@link FlightRecorderEventTest#startupEventsAreRecorded()}.
+	 */
+	public static class Delegate
+	{
+		public static void premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			Object config,
+			Instrumentation instrumentation
+		)
+		{
+		}
+	}
+
+
+	private static final FlightRecorderEvent[] ALL_EVENTS =
+		new FlightRecorderEvent[] {
+			FlightRecorderEvent.CONFIGURATION_PHASE,
+			FlightRecorderEvent.DELEGATE,
+			FlightRecorderEvent.TRANSFORM,
+			FlightRecorderEvent.RETRANSFORM_BATCH
+		};
+
+
+	@Test
+	public void eventsAreRecorded() throws Exception
+	{
+		// JFR cannot be used from the test sources, which are compiled for Java 5.
+		if(!FlightRecorderEvent.isAvailable())
+			return;
+
+		Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		Object recording = recordingClass.newInstance();
+		Map<String, String> settings = new HashMap<String, String>();
+		for(FlightRecorderEvent event : ALL_EVENTS) {
+			settings.put(event.getName() + "#enabled", "true");
+			settings.put(event.getName() + "#threshold", "0 ms");
+		}
+		recordingClass.getMethod("setSettings", Map.class).invoke(recording, settings);
+		recordingClass.getMethod("start").invoke(recording);
+
+		FlightRecorderEvent.CONFIGURATION_PHASE.commit(
+			FlightRecorderEvent.CONFIGURATION_PHASE.begin(),
+			"parse",
+			"agent.xml"
+		);
+		FlightRecorderEvent.RETRANSFORM_BATCH.commit(
+			FlightRecorderEvent.RETRANSFORM_BATCH.begin(),
+			10,
+			9
+		);
+		ClassFileTransformer transformer =
+			new DelegateTransformer(
+				new ClassFileTransformer() {
+					public byte[] transform(
+						ClassLoader loader,
+						String className,
+						Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain,
+						byte[] classfileBuffer
+					)
+					{
+						return new byte[] {1, 2, 3};
+					}
+				},
+				new ClassFilter(new Pattern[] {Pattern.compile(".+")}, new Pattern[0]),
+				null
+			);
+		transformer.transform(null, "com/example/Test", null, null, new byte[10]);
+
+		recordingClass.getMethod("stop").invoke(recording);
+		File file = File.createTempFile("agent-unit-test", ".jfr");
+		try {
+			Object path = File.class.getMethod("toPath").invoke(file);
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+			recordingClass.getMethod("close").invoke(recording);
+
+			Map<String, Object> recorded = new HashMap<String, Object>();
+			Object configuration = null;
+			for(Object event : readEvents(file)) {
+				recorded.put(name(event), event);
+				// The other tests may have deferred configuration events before the recording.
+				if("agent.xml".equals(value(event, "file")))
+					configuration = event;
+			}
+			assertEquals("parse", value(configuration, "phase"));
+			assertTrue((Long)value(configuration, "elapsedTime") >= 0);
+			Object batch = recorded.get("com.hapiware.agent.RetransformBatch");
+			assertEquals(10, value(batch, "classCount"));
+			assertEquals(9, value(batch, "retransformedCount"));
+			Object transform = recorded.get("com.hapiware.agent.Transform");
+			assertEquals("com/example/Test", value(transform, "className"));
+			assertEquals("bootstrap", value(transform, "classLoader"));
+			assertEquals(10, value(transform, "originalSize"));
+			assertEquals(3, value(transform, "transformedSize"));
+			assertEquals(true, value(transform, "changed"));
+		}
+		finally {
+			file.delete();
+		}
+
+		// No recording is running anymore.
+		for(FlightRecorderEvent event : ALL_EVENTS)
+			assertNull(event.begin());
+	}
+
+	/**
+	 * Runs a JVM with the agent and {@code -XX:StartFlightRecording}, which starts the recording
+	 * only after {@code premain()} has read the configuration file.
+	 */
+	@Test
+	public void startupEventsAreRecorded() throws Exception
+	{
+		if(!FlightRecorderEvent.isAvailable())
+			return;
+
+		File directory = File.createTempFile("agent-unit-test", ".jfr");
+		directory.delete();
+		directory.mkdirs();
+		try {
+			File agentJar = AgentProcess.writeAgentJar(directory);
+			if(agentJar == null)
+				return;
+			File delegateJar = AgentProcess.writeJar(new File(directory, "delegate.jar"), Delegate.class);
+			File config =
+				AgentProcess.writeConfig(new File(directory, "agent.xml"), Delegate.class, delegateJar);
+			File recording = new File(directory, "startup.jfr");
+			AgentProcess.run(
+				agentJar,
+				config,
+				"-XX:StartFlightRecording=dumponexit=true,filename=" + recording.getPath()
+			);
+
+			List<String> configurationPhases = new ArrayList<String>();
+			List<String> delegatePhases = new ArrayList<String>();
+			for(Object event : readEvents(recording)) {
+				if(name(event).equals("com.hapiware.agent.ConfigurationPhase")) {
+					configurationPhases.add((String)value(event, "phase"));
+					assertEquals(config.getCanonicalPath(), value(event, "file"));
+					assertTrue((Long)value(event, "elapsedTime") > 0);
+				}
+				if(name(event).equals("com.hapiware.agent.Delegate")) {
+					delegatePhases.add((String)value(event, "phase"));
+					assertEquals(Delegate.class.getName(), value(event, "delegate"));
+				}
+			}
+			assertEquals(
+				Arrays.asList("parse", "include", "validation", "variables", "elements"),
+				configurationPhases
+			);
+			assertEquals(Arrays.asList("load", "premain"), delegatePhases);
+		}
+		finally {
+			for(File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	private static List<?> readEvents(File file) throws Exception
+	{
+		Object path = File.class.getMethod("toPath").invoke(file);
+		Class<?> pathClass = Class.forName("java.nio.file.Path");
+		return
+			(List<?>)Class.forName("jdk.jfr.consumer.RecordingFile")
+				.getMethod("readAllEvents", pathClass)
+				.invoke(null, path);
+	}
+
+	private static String name(Object event) throws Exception
+	{
+		Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+		return (String)eventType.getClass().getMethod("getName").invoke(eventType);
+	}
+
+	private static Object value(Object event, String field) throws Exception
+	{
+		assertTrue(event != null);
+		Method hasField =
+			Class.forName("jdk.jfr.consumer.RecordedObject").getMethod("hasField", String.class);
+		if(!(Boolean)hasField.invoke(event, field))
+			return null;
+		Method getValue = Class.forName("jdk.jfr.consumer.RecordedObject").getMethod("getValue", String.class);
+		return getValue.invoke(event, field);
+	}
+
+	@Test
+	public void nullEventIsIgnored()
+	{
+		FlightRecorderEvent.TRANSFORM.commit(null, "a", "b", 1, 2, true);
+	}
+}
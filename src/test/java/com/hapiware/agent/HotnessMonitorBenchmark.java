@@ -0,0 +1,55 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import com.hapiware.agent.HotnessMonitorTest.Workload;
+import com.hapiware.agent.HotnessMonitorTest.WorkloadLoader;
+
+
+/**
+ * Compares the throughput of a workload with and without the hotness probes. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class HotnessMonitorBenchmark
+{
+	@Test
+	public void throughput() throws Exception
+	{
+		ProbeInserter inserter =
+			new ProbeInserter(HotnessMonitorTest.readClassBytes(HotnessMonitorTest.WORKLOAD));
+		byte[] probed = inserter.insertProbes(HotnessProbe.allocate(inserter.getProbedMethods().size()));
+		Object workload =
+			new WorkloadLoader(null, probed).loadClass(HotnessMonitorTest.WORKLOAD.replace('/', '.')).newInstance();
+		Method probedLoop = workload.getClass().getMethod("loop", int.class);
+		Method originalLoop = Workload.class.getMethod("loop", int.class);
+		Workload original = new Workload();
+
+		// Warm up both and check that they agree.
+		assertEquals(run(originalLoop, original, 200000), run(probedLoop, workload, 200000));
+		long start = System.nanoTime();
+		long sum = run(originalLoop, original, 200000);
+		long originalTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		assertEquals(sum, run(probedLoop, workload, 200000));
+		long probedTime = System.nanoTime() - start;
+		System.out.println(
+			"HotnessMonitorBenchmark.throughput(): original " + originalTime / 1000000 + " ms, "
+				+ "probed " + probedTime / 1000000 + " ms."
+		);
+	}
+
+	private static long run(Method loop, Object target, int rounds) throws Exception
+	{
+		long sum = 0;
+		for(int i = 0; i < rounds; i++)
+			sum += (Integer)loop.invoke(target, 16);
+		return sum;
+	}
+}
@@ -0,0 +1,544 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class HotnessMonitorTest
+	extends
+		TestBase
+{
+	static final String WORKLOAD = "com/hapiware/agent/HotnessMonitorTest$Workload";
+
+
+	/**
+	 * A synthetic workload with loops, switches and exception handlers.
+	 */
+	public static class Workload
+	{
+		private final int[] values = {3, 1, 4, 1, 5, 9, 2, 6};
+
+		public int loop(int n)
+		{
+			int sum = 0;
+			for(int i = 0; i < n; i++) {
+				switch(values[i % values.length]) {
+					case 1: sum += 1; break;
+					case 2: sum += 20; break;
+					case 3: sum += 300; break;
+					case 4: sum -= 4; break;
+					default: sum ^= i;
+				}
+			}
+			return sum;
+		}
+
+		public long lookup(long x)
+		{
+			switch((int)x) {
+				case -1000: return 1L;
+				case 7: return 2L;
+				case 100000: return 3L;
+				default: return x * 31L;
+			}
+		}
+
+		public int parse(String s)
+		{
+			try {
+				return Integer.parseInt(s);
+			}
+			catch(NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		public static int countDown(int n)
+		{
+			while(n > 0)
+				n--;
+			return n;
+		}
+	}
+
+
+	/**
+	 * Loads {@code Workload} from the given bytes instead of delegating to the parent.
+	 */
+	static class WorkloadLoader
+		extends
+			ClassLoader
+	{
+		private final ClassFileTransformer transformer;
+		private final byte[] bytes;
+
+		public WorkloadLoader(ClassFileTransformer transformer, byte[] bytes)
+		{
+			super(HotnessMonitorTest.class.getClassLoader());
+			this.transformer = transformer;
+			this.bytes = bytes;
+		}
+
+		protected synchronized Class<?> loadClass(String name, boolean resolve)
+			throws
+				ClassNotFoundException
+		{
+			if(!name.equals(WORKLOAD.replace('/', '.')))
+				return super.loadClass(name, resolve);
+			Class<?> c = findLoadedClass(name);
+			if(c == null) {
+				byte[] b = bytes;
+				if(transformer != null) {
+					try {
+						byte[] transformed = transformer.transform(this, WORKLOAD, null, null, bytes);
+						if(transformed != null)
+							b = transformed;
+					}
+					catch(IllegalClassFormatException e) {
+						throw new ClassNotFoundException(name, e);
+					}
+				}
+				c = defineClass(name, b, 0, b.length);
+			}
+			return c;
+		}
+	}
+
+
+	/**
+	 * Records the calls to {@code Instrumentation}.
+	 */
+	static class RecordingInstrumentation
+		implements
+			InvocationHandler
+	{
+		private final List<Object[]> addedTransformers = new ArrayList<Object[]>();
+		private final List<Class<?>> retransformed = new ArrayList<Class<?>>();
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args)
+			throws
+				Throwable
+		{
+			String name = method.getName();
+			if(name.equals("addTransformer"))
+				addedTransformers.add(args);
+			else if(name.equals("isRetransformClassesSupported"))
+				return true;
+			else if(name.equals("retransformClasses"))
+				retransformed.addAll(Arrays.asList((Class<?>[])args[0]));
+			return null;
+		}
+	}
+
+
+	private byte[] workloadBytes;
+	private RecordingInstrumentation recorder;
+	private Instrumentation instrumentation;
+	private ClassFilter classFilter;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		try {
+			workloadBytes = readClassBytes(WORKLOAD);
+		}
+		catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		recorder = new RecordingInstrumentation();
+		instrumentation =
+			(Instrumentation)Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class[] {Instrumentation.class},
+				recorder
+			);
+		classFilter =
+			new ClassFilter(
+				new Pattern[] {Pattern.compile("^com/hapiware/agent/HotnessMonitorTest\\$Workload$")},
+				new Pattern[0]
+			);
+	}
+
+	static byte[] readClassBytes(String className) throws IOException
+	{
+		InputStream in = HotnessMonitorTest.class.getResourceAsStream("/" + className + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static Object call(Object target, String methodName, Object... args) throws Exception
+	{
+		for(Method method : target.getClass().getMethods())
+			if(method.getName().equals(methodName))
+				return method.invoke(target, args);
+		throw new NoSuchMethodException(methodName);
+	}
+
+	@Test
+	public void probedClassBehavesLikeOriginal() throws Exception
+	{
+		ProbeInserter inserter = new ProbeInserter(workloadBytes);
+		List<String> methods = inserter.getProbedMethods();
+		assertTrue(methods.contains("<init>()V"));
+		assertTrue(methods.contains("loop(I)I"));
+		assertTrue(methods.contains("countDown(I)I"));
+		int firstId = HotnessProbe.allocate(methods.size());
+		byte[] probed = inserter.insertProbes(firstId);
+
+		// Defining the class runs the bytecode verifier over the probed methods.
+		Object workload =
+			new WorkloadLoader(null, probed).loadClass(WORKLOAD.replace('/', '.')).newInstance();
+		assertFalse(workload.getClass() == Workload.class);
+		Workload original = new Workload();
+		for(int i = 0; i < 10; i++) {
+			assertEquals(original.loop(i * 7), call(workload, "loop", i * 7));
+			assertEquals(original.lookup(i - 1000), call(workload, "lookup", (long)i - 1000));
+			assertEquals(original.lookup(7), call(workload, "lookup", 7L));
+			assertEquals(-1, call(workload, "parse", "x" + i));
+			assertEquals(i, call(workload, "parse", String.valueOf(i)));
+			assertEquals(0, call(workload, "countDown", i));
+		}
+		assertEquals(1, HotnessProbe.getAndReset(firstId + methods.indexOf("<init>()V")));
+		assertEquals(10, HotnessProbe.getAndReset(firstId + methods.indexOf("loop(I)I")));
+		assertEquals(20, HotnessProbe.getAndReset(firstId + methods.indexOf("lookup(J)J")));
+		assertEquals(20, HotnessProbe.getAndReset(firstId + methods.indexOf("parse(Ljava/lang/String;)I")));
+		assertEquals(0, HotnessProbe.getAndReset(firstId + methods.indexOf("loop(I)I")));
+	}
+
+	@Test
+	public void hotClassesAreRetransformed() throws Exception
+	{
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 100, 1000, 50, 0);
+		Object workload =
+			new WorkloadLoader(monitor.getProbeTransformer(), workloadBytes)
+				.loadClass(WORKLOAD.replace('/', '.')).newInstance();
+		assertEquals(1, monitor.getProbedCount());
+
+		for(int i = 0; i < 60; i++)
+			call(workload, "loop", 10);
+		assertEquals(Collections.emptyList(), monitor.collect());
+		// The counters are reset after every collection.
+		for(int i = 0; i < 60; i++)
+			call(workload, "loop", 10);
+		assertEquals(Collections.emptyList(), monitor.collect());
+		assertFalse(monitor.isHot(WORKLOAD));
+
+		for(int i = 0; i < 100; i++)
+			call(workload, "loop", 10);
+		assertEquals(Arrays.asList(WORKLOAD), monitor.collect());
+		assertTrue(monitor.isHot(WORKLOAD));
+		assertEquals("loop(I)I", monitor.getHotMethod(WORKLOAD));
+		assertEquals(Collections.singleton(WORKLOAD), monitor.getHotClassNames());
+		assertEquals(Arrays.asList(workload.getClass()), recorder.retransformed);
+		assertEquals(1, monitor.getRetransformedCount());
+		assertEquals(0, monitor.getFailedCount());
+
+		// The probes are removed when retransformed.
+		assertNull(
+			monitor.getProbeTransformer().transform(
+				workload.getClass().getClassLoader(),
+				WORKLOAD,
+				workload.getClass(),
+				null,
+				workloadBytes
+			)
+		);
+		assertEquals(Collections.emptyList(), monitor.collect());
+	}
+
+	@Test
+	public void onlyHotClassesArePassedToDelegate() throws Exception
+	{
+		final List<String> transformed = new ArrayList<String>();
+		ClassFileTransformer delegate =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					transformed.add(className);
+					return null;
+				}
+			};
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 1, 1000, 50, 0);
+		DelegateTransformer transformer =
+			new DelegateTransformer(delegate, classFilter, null, null, monitor);
+		ClassLoader loader = new WorkloadLoader(monitor.getProbeTransformer(), workloadBytes);
+		Object workload = loader.loadClass(WORKLOAD.replace('/', '.')).newInstance();
+
+		transformer.transform(loader, WORKLOAD, null, null, workloadBytes);
+		transformer.transform(loader, "com/mysoft/Other", null, null, workloadBytes);
+		assertEquals(Arrays.asList("com/mysoft/Other"), transformed);
+
+		call(workload, "loop", 1);
+		assertEquals(Arrays.asList(WORKLOAD), monitor.collect());
+		transformer.transform(loader, WORKLOAD, workload.getClass(), null, workloadBytes);
+		assertEquals(Arrays.asList("com/mysoft/Other", WORKLOAD), transformed);
+	}
+
+	@Test
+	public void unprobedClassesArePassedToDelegate() throws Exception
+	{
+		final List<String> transformed = new ArrayList<String>();
+		ClassFileTransformer delegate =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					transformed.add(loader == null ? "bootstrap" : "isolated");
+					return null;
+				}
+			};
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 1, 1000, 50, 0);
+		DelegateTransformer transformer =
+			new DelegateTransformer(delegate, classFilter, null, null, monitor);
+		ClassFileTransformer probeTransformer = monitor.getProbeTransformer();
+		ClassLoader isolated = new ClassLoader(null) {};
+
+		assertNull(probeTransformer.transform(null, WORKLOAD, null, null, workloadBytes));
+		transformer.transform(null, WORKLOAD, null, null, workloadBytes);
+		assertNull(probeTransformer.transform(isolated, WORKLOAD, null, null, workloadBytes));
+		transformer.transform(isolated, WORKLOAD, null, null, workloadBytes);
+		assertEquals(Arrays.asList("bootstrap", "isolated"), transformed);
+		assertEquals(0, monitor.getProbedCount());
+	}
+
+	@Test
+	public void classesBecomeHotPerClassLoader() throws Exception
+	{
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 2, 1000, 50, 0);
+		ClassLoader first = new WorkloadLoader(monitor.getProbeTransformer(), workloadBytes);
+		ClassLoader second = new WorkloadLoader(monitor.getProbeTransformer(), workloadBytes);
+		Object firstWorkload = first.loadClass(WORKLOAD.replace('/', '.')).newInstance();
+		Object secondWorkload = second.loadClass(WORKLOAD.replace('/', '.')).newInstance();
+		assertEquals(2, monitor.getProbedCount());
+
+		call(firstWorkload, "loop", 1);
+		call(firstWorkload, "loop", 1);
+		assertEquals(Arrays.asList(WORKLOAD), monitor.collect());
+		assertTrue(monitor.isHot(WORKLOAD));
+		assertFalse(monitor.isProbed(first, WORKLOAD));
+		assertTrue(monitor.isProbed(second, WORKLOAD));
+		assertEquals(Arrays.asList(firstWorkload.getClass()), recorder.retransformed);
+
+		call(secondWorkload, "loop", 1);
+		call(secondWorkload, "loop", 1);
+		assertEquals(Arrays.asList(WORKLOAD), monitor.collect());
+		assertFalse(monitor.isProbed(second, WORKLOAD));
+		assertEquals(
+			Arrays.asList(firstWorkload.getClass(), secondWorkload.getClass()),
+			recorder.retransformed
+		);
+		assertEquals(2, monitor.getRetransformedCount());
+	}
+
+	@Test
+	public void coldClassesAreProbedAgainWhenRetransformed() throws Exception
+	{
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 1, 1000, 50, 0);
+		ClassLoader loader = new WorkloadLoader(monitor.getProbeTransformer(), workloadBytes);
+		Class<?> workload = loader.loadClass(WORKLOAD.replace('/', '.'));
+		byte[] reprobed =
+			monitor.getProbeTransformer().transform(loader, WORKLOAD, workload, null, workloadBytes);
+		assertNotNull(reprobed);
+		assertEquals(1, monitor.getProbedCount());
+		assertTrue(monitor.isProbed(loader, WORKLOAD));
+
+		// A class file which cannot carry the same probes is passed to the delegate instead.
+		assertNull(
+			monitor.getProbeTransformer().transform(loader, WORKLOAD, workload, null, new byte[] {1})
+		);
+		assertFalse(monitor.isProbed(loader, WORKLOAD));
+	}
+
+	@Test
+	public void probedClassesAreCountedOnceInFilterStatistics() throws Exception
+	{
+		ClassNameMatcher[] includeMatchers =
+			new ClassNameMatcher[] {
+				ClassNameMatcher.forPattern(
+					Pattern.compile("^com/hapiware/agent/HotnessMonitorTest\\$Workload$")
+				)
+			};
+		FilterStatistics statistics =
+			new FilterStatistics(includeMatchers, new ClassNameMatcher[0], false);
+		String[] empty = new String[0];
+		ClassFilter countingFilter =
+			new ClassFilter(
+				includeMatchers,
+				new ClassNameMatcher[0],
+				empty,
+				empty,
+				empty,
+				empty,
+				null,
+				new MethodFilter(empty, empty),
+				statistics
+			);
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, countingFilter, 1, 1000, 50, 0);
+		ClassFileTransformer delegate =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					return null;
+				}
+			};
+		DelegateTransformer transformer =
+			new DelegateTransformer(delegate, countingFilter, null, null, monitor);
+		ClassLoader loader = new WorkloadLoader(monitor.getProbeTransformer(), workloadBytes);
+		loader.loadClass(WORKLOAD.replace('/', '.'));
+		assertEquals(1, monitor.getProbedCount());
+		assertNull(transformer.transform(loader, WORKLOAD, null, null, workloadBytes));
+		assertEquals(1, statistics.getDecisionCount());
+	}
+
+	@Test
+	public void nonMatchingClassesAreNotProbed() throws IllegalClassFormatException
+	{
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 1, 1000, 50, 0);
+		ClassLoader loader = new WorkloadLoader(null, workloadBytes);
+		ClassFileTransformer probeTransformer = monitor.getProbeTransformer();
+		assertNull(probeTransformer.transform(loader, "com/mysoft/Other", null, null, workloadBytes));
+		assertNull(probeTransformer.transform(null, WORKLOAD, null, null, workloadBytes));
+		assertNull(probeTransformer.transform(loader, WORKLOAD, null, null, new byte[] {1, 2, 3}));
+		assertNotNull(probeTransformer.transform(loader, WORKLOAD, null, null, workloadBytes));
+		assertEquals(1, monitor.getProbedCount());
+	}
+
+	@Test
+	public void probeVisibilityIsCheckedWithoutLoading() throws IllegalClassFormatException
+	{
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 1, 1000, 50, 0);
+		final List<String> loaded = new ArrayList<String>();
+		ClassLoader isolated =
+			new ClassLoader(null) {
+				protected synchronized Class<?> loadClass(String name, boolean resolve)
+					throws
+						ClassNotFoundException
+				{
+					loaded.add(name);
+					return super.loadClass(name, resolve);
+				}
+			};
+		ClassFileTransformer probeTransformer = monitor.getProbeTransformer();
+		assertNull(probeTransformer.transform(isolated, WORKLOAD, null, null, workloadBytes));
+		assertEquals(Collections.emptyList(), loaded);
+		assertEquals(0, monitor.getProbedCount());
+	}
+
+	@Test
+	public void transformersAreRegisteredRetransformable()
+	{
+		HotnessMonitor monitor = new HotnessMonitor(instrumentation, classFilter, 1, 1000, 50, 0);
+		ClassFileTransformer transformer =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					return null;
+				}
+			};
+		Instrumentation proxy =
+			InstrumentationProxy.newInstance(instrumentation, classFilter, null, null, null, monitor);
+		proxy.addTransformer(transformer);
+		assertEquals(1, recorder.addedTransformers.size());
+		Object[] args = recorder.addedTransformers.get(0);
+		assertSame(transformer, ((DelegateTransformer)args[0]).getTransformer());
+		assertEquals(Boolean.TRUE, args[1]);
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("activation", "hotness");
+		transformer.setAttribute("hotness-threshold", "10k");
+		transformer.setAttribute("hotness-interval", "5s");
+		agent.appendChild(transformer);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getTransformer().isHotnessMonitored());
+		assertFalse(configElements.getTransformer().isActivationDeferred());
+		assertEquals(10240, configElements.getTransformer().getHotnessThreshold());
+		assertEquals(5000L, configElements.getTransformer().getHotnessInterval());
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getTransformer().isHotnessMonitored());
+		assertEquals(1000, configElements.getTransformer().getHotnessThreshold());
+		assertEquals(1000L, configElements.getTransformer().getHotnessInterval());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidInterval()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("activation", "hotness");
+		transformer.setAttribute("hotness-interval", "0");
+		agent.appendChild(transformer);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,208 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class MethodFilterTest
+	extends
+		TestBase
+{
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void methodNames()
+	{
+		MethodFilter filter =
+			new MethodFilter(
+				new String[] {
+					"^com/hapiware/.+#get*",
+					"^com/hapiware/.+#*Listener",
+					"^com/hapiware/.+#run",
+					"^com/hapiware/.+#is*Enabled"
+				},
+				new String[0]
+			);
+		MethodFilter.ClassMethods methods = filter.forClass("com/hapiware/Test");
+		assertNotNull(methods);
+		assertTrue(methods.matches("getName", "()Ljava/lang/String;"));
+		assertTrue(methods.matches("addListener", "(Ljava/lang/Object;)V"));
+		assertTrue(methods.matches("run", "()V"));
+		assertTrue(methods.matches("isDebugEnabled", "()Z"));
+		assertFalse(methods.matches("isEnabledNot", "()Z"));
+		assertFalse(methods.matches("setName", "(Ljava/lang/String;)V"));
+		assertFalse(methods.matches("runner", "()V"));
+	}
+
+	@Test
+	public void descriptors()
+	{
+		MethodFilter filter =
+			new MethodFilter(
+				new String[] {
+					".+#find(Ljava/lang/String;)*",
+					".+#*(*)V",
+					".+#<init>()V"
+				},
+				new String[0]
+			);
+		MethodFilter.ClassMethods methods = filter.forClass("a/B");
+		assertTrue(methods.matches("find", "(Ljava/lang/String;)Ljava/util/List;"));
+		assertFalse(methods.matches("find", "(I)Ljava/util/List;"));
+		assertTrue(methods.matches("close", "()V"));
+		assertTrue(methods.matches("<init>", "()V"));
+		assertFalse(methods.matches("<init>", "(I)Ljava/lang/Object;"));
+	}
+
+	@Test
+	public void excludesOverrideIncludes()
+	{
+		MethodFilter filter =
+			new MethodFilter(
+				new String[] {"^com/hapiware/.+#*"},
+				new String[] {".+#toString()Ljava/lang/String;", "^com/hapiware/Secret#*"}
+			);
+		MethodFilter.ClassMethods methods = filter.forClass("com/hapiware/Test");
+		assertTrue(methods.matches("toString", "(I)Ljava/lang/String;"));
+		assertFalse(methods.matches("toString", "()Ljava/lang/String;"));
+		assertTrue(methods.matches("hashCode", "()I"));
+		assertFalse(filter.forClass("com/hapiware/Secret").matches("hashCode", "()I"));
+		assertNull(filter.forClass("java/lang/String"));
+	}
+
+	@Test
+	public void onlyExcludes()
+	{
+		MethodFilter filter = new MethodFilter(new String[0], new String[] {".+#<clinit>"});
+		assertFalse(filter.hasIncludeRules());
+		assertFalse(filter.isEmpty());
+		assertFalse(filter.forClass("a/B").matches("<clinit>", "()V"));
+		assertTrue(filter.forClass("a/B").matches("<init>", "()V"));
+	}
+
+	@Test
+	public void noRules()
+	{
+		MethodFilter filter = new MethodFilter(new String[0], new String[0]);
+		assertTrue(filter.isEmpty());
+		assertTrue(filter.forClass("a/B").matches("anything", "()V"));
+		assertTrue(filter.forClass("a/B") == filter.forClass("c/D"));
+	}
+
+	@Test
+	public void manyMethods()
+	{
+		MethodFilter filter =
+			new MethodFilter(new String[] {"^com/mysoft/.+Service#handle*"}, new String[0]);
+		MethodFilter.ClassMethods methods = filter.forClass("com/mysoft/OrderService");
+		int matched = 0;
+		for(int i = 0; i < 5000; i++) {
+			if(methods.matches("handle" + i, "(Ljava/lang/Object;)V"))
+				matched++;
+			if(methods.matches("process" + i, "(Ljava/lang/Object;)V"))
+				matched++;
+		}
+		assertEquals(5000, matched);
+	}
+
+	@Test
+	public void configuration() throws Exception
+	{
+		Element element = configDoc.createElement("include-method");
+		element.appendChild(configDoc.createTextNode("^com/hapiware/.+#get*"));
+		instrumentedClass.appendChild(element);
+		element = configDoc.createElement("exclude-method");
+		element.appendChild(configDoc.createTextNode("^com/hapiware/.+#getClass"));
+		instrumentedClass.appendChild(element);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		ClassFilter classFilter = configElements.getClassFilter();
+		assertTrue(classFilter.hasAgentSideRules());
+		assertFalse(classFilter.getMethodFilter().forClass("com/hapiware/Test").matches("getClass", "()V"));
+
+		final int[] calls = new int[1];
+		DelegateTransformer transformer =
+			new DelegateTransformer(
+				new ClassFileTransformer() {
+					public byte[] transform(
+						ClassLoader loader,
+						String className,
+						Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain,
+						byte[] classfileBuffer
+					)
+					{
+						calls[0]++;
+						return classfileBuffer;
+					}
+				},
+				classFilter,
+				null
+			);
+		byte[] bytes = new byte[] {1, 2, 3};
+		assertEquals(bytes, transformer.transform(null, "com/hapiware/Test", null, null, bytes));
+		assertEquals(1, calls[0]);
+
+		// Included by the class pattern but no method pattern applies.
+		ClassFilter narrowFilter =
+			new ClassFilter(
+				new ClassNameMatcher[] {ClassNameMatcher.forPattern(Pattern.compile(".+"))},
+				new ClassNameMatcher[0],
+				new String[0],
+				new String[0],
+				new String[0],
+				new String[0],
+				null,
+				classFilter.getMethodFilter(),
+				null
+			);
+		assertFalse(narrowFilter.hasIncludedMethods("java/lang/String"));
+		assertTrue(narrowFilter.hasIncludedMethods("com/hapiware/Test"));
+	}
+
+	@Test
+	public void noMethodRules()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getClassFilter().hasAgentSideRules());
+		assertTrue(configElements.getClassFilter().getMethodFilter().isEmpty());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void missingHash()
+	{
+		Element element = configDoc.createElement("include-method");
+		element.appendChild(configDoc.createTextNode("com/hapiware/Test.get*"));
+		instrumentedClass.appendChild(element);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidClassPattern()
+	{
+		Element element = configDoc.createElement("exclude-method");
+		element.appendChild(configDoc.createTextNode("[unclosed#get*"));
+		instrumentedClass.appendChild(element);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
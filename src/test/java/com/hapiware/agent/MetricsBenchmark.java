@@ -0,0 +1,76 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+
+/**
+ * Compares the throughput of the striped metrics with a shared {@code AtomicLong}. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class MetricsBenchmark
+{
+	@Test
+	public void throughput() throws InterruptedException
+	{
+		final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		final int increments = 2000000;
+
+		final AtomicLong shared = new AtomicLong();
+		long sharedTime =
+			MetricsTest.runThreads(
+				threads,
+				new Runnable() {
+					public void run()
+					{
+						for(int i = 0; i < increments; i++)
+							shared.incrementAndGet();
+					}
+				}
+			);
+		final Counter counter = new Metrics(Metrics.getDefaultStripes()).counter("calls");
+		long counterTime =
+			MetricsTest.runThreads(
+				threads,
+				new Runnable() {
+					public void run()
+					{
+						for(int i = 0; i < increments; i++)
+							counter.increment();
+					}
+				}
+			);
+		final Histogram histogram = new Metrics(Metrics.getDefaultStripes()).histogram("time");
+		long histogramTime =
+			MetricsTest.runThreads(
+				threads,
+				new Runnable() {
+					public void run()
+					{
+						for(int i = 0; i < increments; i++)
+							histogram.record(i & 1023);
+					}
+				}
+			);
+		assertEquals((long)threads * increments, shared.get());
+		assertEquals((long)threads * increments, counter.get());
+		assertEquals((long)threads * increments, histogram.getSnapshot().getCount());
+		System.out.println(
+			"MetricsBenchmark.throughput(): " + threads + " threads, AtomicLong "
+				+ rate(threads, increments, sharedTime) + " updates/s, Counter "
+				+ rate(threads, increments, counterTime) + " updates/s, Histogram "
+				+ rate(threads, increments, histogramTime) + " updates/s."
+		);
+	}
+
+	private static long rate(int threads, int updates, long time)
+	{
+		return (long)threads * updates * 1000000L / Math.max(1, time / 1000);
+	}
+}
@@ -0,0 +1,301 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class MetricsTest
+	extends
+		TestBase
+{
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void metricsAreRegisteredOnce()
+	{
+		Metrics metrics = new Metrics(4);
+		assertSame(metrics.counter("calls"), metrics.counter("calls"));
+		assertSame(metrics.gauge("size"), metrics.gauge("size"));
+		assertSame(metrics.histogram("time"), metrics.histogram("time"));
+		assertEquals("calls", metrics.counter("calls").getName());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void nameIsUsedByAnotherType()
+	{
+		Metrics metrics = new Metrics(4);
+		metrics.counter("calls");
+		metrics.histogram("calls");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void tooManyStripes()
+	{
+		new Metrics(65);
+	}
+
+	@Test
+	public void stripesAreRoundedUp()
+	{
+		assertEquals(8, new Metrics(5).getStripes());
+		assertEquals(1, new Metrics(1).getStripes());
+	}
+
+	@Test
+	public void counterIsSummedOverStripes() throws InterruptedException
+	{
+		final Counter counter = new Metrics(4).counter("calls");
+		runThreads(
+			8,
+			new Runnable() {
+				public void run()
+				{
+					for(int i = 0; i < 100000; i++)
+						counter.increment();
+					counter.add(10);
+					counter.decrement();
+				}
+			}
+		);
+		assertEquals(8 * (100000 + 10 - 1), counter.get());
+	}
+
+	@Test
+	public void gauge()
+	{
+		Gauge gauge = new Metrics(1).gauge("size");
+		assertEquals(0, gauge.get());
+		gauge.set(42);
+		gauge.set(-3);
+		assertEquals(-3, gauge.get());
+	}
+
+	@Test
+	public void bucketBounds()
+	{
+		for(int i = 0; i < 16; i++) {
+			assertEquals(i, Histogram.bucket(i));
+			assertEquals(i, Histogram.lowerBound(i));
+		}
+		assertEquals(16, Histogram.bucket(16));
+		assertEquals(31, Histogram.bucket(31));
+		assertEquals(32, Histogram.bucket(32));
+		assertEquals(32, Histogram.bucket(33));
+		assertEquals(33, Histogram.bucket(34));
+		assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.BUCKETS - 1));
+		for(int i = 0; i < Histogram.BUCKETS - 1; i++) {
+			long lower = Histogram.lowerBound(i);
+			long upper = Histogram.upperBound(i);
+			assertEquals(i, Histogram.bucket(lower));
+			assertEquals(i, Histogram.bucket(upper));
+			assertEquals(i + 1, Histogram.bucket(upper + 1));
+			assertTrue(upper - lower <= Math.max(0, lower / 16));
+		}
+	}
+
+	@Test
+	public void histogramPercentiles() throws InterruptedException
+	{
+		final Histogram histogram = new Metrics(4).histogram("time");
+		assertEquals(0, histogram.getSnapshot().getValueAtPercentile(50.0));
+		runThreads(
+			4,
+			new Runnable() {
+				public void run()
+				{
+					for(int i = 1; i <= 1000; i++)
+						histogram.record(i);
+				}
+			}
+		);
+		histogram.record(-5);
+		Histogram.Snapshot snapshot = histogram.getSnapshot();
+		assertEquals(4001, snapshot.getCount());
+		assertEquals(4L * 1000L * 1001L / 2L, snapshot.getSum());
+		assertEquals(500, snapshot.getMean());
+		assertEquals(0, snapshot.getValueAtPercentile(0.0));
+		assertWithinBucket(500, snapshot.getValueAtPercentile(50.0));
+		assertWithinBucket(990, snapshot.getValueAtPercentile(99.0));
+		assertWithinBucket(1000, snapshot.getMax());
+	}
+
+	private static void assertWithinBucket(long expected, long value)
+	{
+		assertEquals(Histogram.bucket(expected), Histogram.bucket(value));
+	}
+
+	@Test
+	public void values()
+	{
+		Metrics metrics = new Metrics(2);
+		metrics.counter("a.calls").add(3);
+		metrics.gauge("a.size").set(7);
+		metrics.histogram("a.time").record(10);
+		SortedMap<String, Long> values = metrics.getValues();
+		assertEquals(3L, (long)values.get("a.calls"));
+		assertEquals(7L, (long)values.get("a.size"));
+		assertEquals(1L, (long)values.get("a.time.count"));
+		assertEquals(10L, (long)values.get("a.time.mean"));
+		assertEquals(10L, (long)values.get("a.time.p99"));
+		assertEquals(10L, (long)values.get("a.time.max"));
+		assertEquals(9, values.size());
+		assertEquals("a.calls", values.firstKey());
+	}
+
+	@Test
+	public void export() throws IOException
+	{
+		Metrics metrics = new Metrics(2);
+		metrics.counter("calls").add(5);
+		metrics.gauge("odd name=1").set(2);
+		File file = File.createTempFile("agent-unit-test", ".properties");
+		try {
+			metrics.export(file);
+			metrics.counter("calls").increment();
+			assertTrue(metrics.exportQuietly(file));
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			}
+			finally {
+				in.close();
+			}
+			assertEquals("6", properties.getProperty("calls"));
+			assertEquals("2", properties.getProperty("odd name=1"));
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+			assertFalse(metrics.exportQuietly(new File(file, "not-a-directory")));
+			assertEquals(1, metrics.getExportFailureCount());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void jmx() throws Exception
+	{
+		Metrics metrics = new Metrics(2);
+		metrics.counter("calls").add(5);
+		metrics.registerMBean();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		try {
+			assertEquals(5L, server.getAttribute(name, "calls"));
+			metrics.histogram("time").record(3);
+			assertEquals(1L, server.getAttribute(name, "time.count"));
+			assertEquals(8, server.getMBeanInfo(name).getAttributes().length);
+		}
+		finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	/**
+	 * Runs the task in the given number of threads started at once.
+	 *
+	 * @return
+	 * 		The elapsed time in nanoseconds.
+	 */
+	static long runThreads(int count, final Runnable task) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[count];
+		for(int i = 0; i < count; i++) {
+			threads[i] =
+				new Thread() {
+					public void run()
+					{
+						try {
+							start.await();
+						}
+						catch(InterruptedException e) {
+							return;
+						}
+						task.run();
+					}
+				};
+			threads[i].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for(Thread thread : threads)
+			thread.join();
+		return System.nanoTime() - startTime;
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element metrics = configDoc.createElement("metrics");
+		metrics.setAttribute("stripes", "16");
+		metrics.setAttribute("jmx", "true");
+		metrics.setAttribute("file", "/tmp/agent-metrics.properties");
+		metrics.setAttribute("interval", "30s");
+		agent.appendChild(metrics);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getMetrics().isEnabled());
+		assertEquals(16, configElements.getMetrics().getStripes());
+		assertTrue(configElements.getMetrics().isJmx());
+		assertEquals("/tmp/agent-metrics.properties", configElements.getMetrics().getFile());
+		assertEquals(30000L, configElements.getMetrics().getInterval());
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		Element metrics = configDoc.createElement("metrics");
+		agent.appendChild(metrics);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getMetrics().isEnabled());
+		assertEquals(Metrics.getDefaultStripes(), configElements.getMetrics().getStripes());
+		assertFalse(configElements.getMetrics().isJmx());
+		assertEquals(null, configElements.getMetrics().getFile());
+		assertEquals(10000L, configElements.getMetrics().getInterval());
+	}
+
+	@Test
+	public void noMetrics()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getMetrics().isEnabled());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidStripes()
+	{
+		Element metrics = configDoc.createElement("metrics");
+		metrics.setAttribute("stripes", "128");
+		agent.appendChild(metrics);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
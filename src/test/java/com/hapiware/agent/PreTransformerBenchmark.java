@@ -0,0 +1,104 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hapiware.agent.PreTransformerTest.HashingTransformer;
+
+
+/**
+ * Measures the time to ready with and without {@link PreTransformer}. Run with
+ * {@code mvn test -Pbenchmark}; the unit tests do not include the benchmarks.
+ *
+ * @author hapi
+ *
+ */
+public class PreTransformerBenchmark
+{
+	private static final ClassFilter CLASS_FILTER =
+		new ClassFilter(new Pattern[] {Pattern.compile("^com/example/.+")}, new Pattern[0]);
+
+	private ClassLoader loader;
+	private File directory;
+
+
+	@Before
+	public void setup() throws IOException
+	{
+		loader = ClassLoader.getSystemClassLoader();
+		directory = File.createTempFile("agent-benchmark", ".classes");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		for(File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Compares the time to load all the classes of a .jar file when every class is transformed
+	 * in the loading thread and when the classes are transformed in the background while
+	 * loading. The benefit depends on the number of processors.
+	 */
+	@Test
+	public void timeToReady() throws Exception
+	{
+		int classCount = 2000;
+		int rounds = 20;
+		File jar = new File(directory, "application.jar");
+		byte[][] classFiles = new byte[classCount][];
+		Random random = new Random(1);
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for(int i = 0; i < classCount; i++) {
+				classFiles[i] = new byte[2048];
+				random.nextBytes(classFiles[i]);
+				out.putNextEntry(new JarEntry("com/example/C" + i + ".class"));
+				out.write(classFiles[i]);
+				out.closeEntry();
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		HashingTransformer transformer = new HashingTransformer(rounds);
+		long startTime = System.nanoTime();
+		for(int i = 0; i < classCount; i++)
+			transformer.transform(loader, "com/example/C" + i, null, null, classFiles[i]);
+		long synchronousTime = System.nanoTime() - startTime;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		PreTransformer preTransformer =
+			new PreTransformer(new HashingTransformer(rounds), CLASS_FILTER, loader, threads, 60000);
+		startTime = System.nanoTime();
+		preTransformer.start(jar.getPath());
+		for(int i = 0; i < classCount; i++)
+			assertTrue(
+				preTransformer.transform(loader, "com/example/C" + i, null, null, classFiles[i]) != null
+			);
+		long preTransformedTime = System.nanoTime() - startTime;
+		assertTrue(preTransformer.awaitCompletion(10000));
+		System.out.println(
+			"PreTransformerBenchmark.timeToReady(): " + classCount + " classes, " + threads
+				+ " processors, synchronous " + synchronousTime / 1000000L
+				+ " ms, pre-transformed " + preTransformedTime / 1000000L + " ms ("
+				+ preTransformer.getHits() + " from the cache)."
+		);
+	}
+}
@@ -0,0 +1,370 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class PreTransformerTest
+	extends
+		TestBase
+{
+	/**
+	 * Prefixes the class file with the number of rounds and hashes it the given number of rounds
+	 * to simulate the work of a bytecode library.
+	 */
+	static class HashingTransformer
+		implements
+			ClassFileTransformer
+	{
+		final AtomicInteger calls = new AtomicInteger();
+		private final int rounds;
+
+		HashingTransformer(int rounds)
+		{
+			this.rounds = rounds;
+		}
+
+		public byte[] transform(
+			ClassLoader loader,
+			String className,
+			Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain,
+			byte[] classfileBuffer
+		)
+		{
+			calls.incrementAndGet();
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				for(int i = 0; i < rounds; i++)
+					digest.update(classfileBuffer);
+				digest.digest();
+			}
+			catch(NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			byte[] transformed = new byte[classfileBuffer.length + 1];
+			transformed[0] = (byte)rounds;
+			System.arraycopy(classfileBuffer, 0, transformed, 1, classfileBuffer.length);
+			return transformed;
+		}
+	}
+
+
+	static class FailingTransformer
+		implements
+			ClassFileTransformer
+	{
+		public byte[] transform(
+			ClassLoader loader,
+			String className,
+			Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain,
+			byte[] classfileBuffer
+		)
+		{
+			throw new IllegalStateException("Transformer failure for the test.");
+		}
+	}
+
+
+	private static final ClassFilter CLASS_FILTER =
+		new ClassFilter(new Pattern[] {Pattern.compile("^com/example/.+")}, new Pattern[0]);
+	private static final byte[] CLASS_FILE = new byte[] {(byte)0xca, (byte)0xfe, 0, 1};
+
+	private ClassLoader loader;
+	private File directory;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		loader = ClassLoader.getSystemClassLoader();
+		try {
+			directory = File.createTempFile("agent-unit-test", ".classes");
+		}
+		catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void cleanup()
+	{
+		delete(directory);
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if(files != null)
+			for(File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private void writeClass(String className, byte[] classfileBuffer) throws IOException
+	{
+		File file = new File(directory, className + ".class");
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(classfileBuffer);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void cachedResultIsUsed() throws Exception
+	{
+		writeClass("com/example/A", CLASS_FILE);
+		writeClass("com/example/sub/B", CLASS_FILE);
+		writeClass("org/example/C", CLASS_FILE);
+		HashingTransformer transformer = new HashingTransformer(1);
+		PreTransformer preTransformer = new PreTransformer(transformer, CLASS_FILTER, loader, 2, 60000);
+		preTransformer.start(directory.getPath());
+		assertTrue(preTransformer.awaitCompletion(10000));
+		assertEquals(2, transformer.calls.get());
+		assertEquals(2, preTransformer.getPending());
+
+		byte[] expected = new byte[] {1, (byte)0xca, (byte)0xfe, 0, 1};
+		assertArrayEquals(expected, preTransformer.transform(loader, "com/example/A", null, null, CLASS_FILE));
+		assertArrayEquals(expected, preTransformer.transform(loader, "com/example/sub/B", null, null, CLASS_FILE));
+		assertEquals(2, transformer.calls.get());
+		assertEquals(2, preTransformer.getHits());
+		assertEquals(0, preTransformer.getPending());
+
+		// The cached result is used only once.
+		preTransformer.transform(loader, "com/example/A", null, null, CLASS_FILE);
+		assertEquals(3, transformer.calls.get());
+		assertEquals(1, preTransformer.getMisses());
+	}
+
+	@Test
+	public void cachedResultIsNotUsedForDifferentClass() throws Exception
+	{
+		writeClass("com/example/A", CLASS_FILE);
+		writeClass("com/example/B", CLASS_FILE);
+		HashingTransformer transformer = new HashingTransformer(1);
+		PreTransformer preTransformer = new PreTransformer(transformer, CLASS_FILTER, loader, 1, 60000);
+		assertEquals(2, preTransformer.scanClasspath(directory.getPath()));
+
+		// Another class loader.
+		preTransformer.transform(new ClassLoader(loader) {}, "com/example/A", null, null, CLASS_FILE);
+		// Other class file bytes.
+		preTransformer.transform(loader, "com/example/B", null, null, new byte[] {0});
+		assertEquals(0, preTransformer.getHits());
+		assertEquals(2, preTransformer.getMisses());
+		preTransformer.stop();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void failureIsThrownInLoadingThread() throws Exception
+	{
+		writeClass("com/example/A", CLASS_FILE);
+		PreTransformer preTransformer =
+			new PreTransformer(new FailingTransformer(), CLASS_FILTER, loader, 1, 60000);
+		preTransformer.start(directory.getPath());
+		assertTrue(preTransformer.awaitCompletion(10000));
+		preTransformer.transform(loader, "com/example/A", null, null, CLASS_FILE);
+	}
+
+	@Test
+	public void classLoadedBeforeTurnIsTransformedOnce() throws Exception
+	{
+		writeClass("com/example/A", CLASS_FILE);
+		writeClass("com/example/B", CLASS_FILE);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+		calls.put("com/example/A", new AtomicInteger());
+		calls.put("com/example/B", new AtomicInteger());
+		final AtomicReference<String> blocked = new AtomicReference<String>();
+		ClassFileTransformer transformer =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					calls.get(className).incrementAndGet();
+					if(blocked.compareAndSet(null, className)) {
+						try {
+							release.await();
+						}
+						catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					return new byte[] {2};
+				}
+			};
+
+		// The only thread of the pool is kept busy with the first class.
+		PreTransformer preTransformer = new PreTransformer(transformer, CLASS_FILTER, loader, 1, 60000);
+		preTransformer.start(directory.getPath());
+		for(int i = 0; i < 1000 && (blocked.get() == null || preTransformer.getPending() < 2); i++)
+			Thread.sleep(10);
+		String queued = blocked.get().equals("com/example/A") ? "com/example/B" : "com/example/A";
+		assertArrayEquals(
+			new byte[] {2},
+			preTransformer.transform(loader, queued, null, null, CLASS_FILE)
+		);
+		assertEquals(1, preTransformer.getHits());
+		release.countDown();
+		assertTrue(preTransformer.awaitCompletion(10000));
+		assertEquals(1, calls.get(queued).get());
+		assertEquals(1, calls.get(blocked.get()).get());
+	}
+
+	@Test(timeout=10000)
+	public void classBeingTransformedInPoolIsNotWaitedFor() throws Exception
+	{
+		writeClass("com/example/A", CLASS_FILE);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		ClassFileTransformer transformer =
+			new ClassFileTransformer() {
+				public byte[] transform(
+					ClassLoader loader,
+					String className,
+					Class<?> classBeingRedefined,
+					ProtectionDomain protectionDomain,
+					byte[] classfileBuffer
+				)
+				{
+					if(calls.incrementAndGet() == 1) {
+						// Stands for a pool thread waiting for a class the loading thread holds.
+						try {
+							release.await();
+						}
+						catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					return new byte[] {3};
+				}
+			};
+
+		PreTransformer preTransformer = new PreTransformer(transformer, CLASS_FILTER, loader, 1, 60000);
+		preTransformer.start(directory.getPath());
+		for(int i = 0; i < 1000 && calls.get() == 0; i++)
+			Thread.sleep(10);
+		assertArrayEquals(
+			new byte[] {3},
+			preTransformer.transform(loader, "com/example/A", null, null, CLASS_FILE)
+		);
+		assertEquals(0, preTransformer.getHits());
+		assertEquals(1, preTransformer.getMisses());
+		assertEquals(2, calls.get());
+		release.countDown();
+		assertTrue(preTransformer.awaitCompletion(10000));
+	}
+
+	@Test
+	public void notLoadedClassesAreReleased() throws Exception
+	{
+		writeClass("com/example/A", CLASS_FILE);
+		writeClass("com/example/B", CLASS_FILE);
+		HashingTransformer transformer = new HashingTransformer(1);
+		PreTransformer preTransformer = new PreTransformer(transformer, CLASS_FILTER, loader, 1, 50);
+		preTransformer.start(directory.getPath());
+		assertTrue(preTransformer.awaitCompletion(10000));
+		for(int i = 0; i < 500 && preTransformer.getPending() > 0; i++)
+			Thread.sleep(10);
+		assertEquals(0, preTransformer.getPending());
+
+		// A released class is transformed normally.
+		assertArrayEquals(
+			new byte[] {1, (byte)0xca, (byte)0xfe, 0, 1},
+			preTransformer.transform(loader, "com/example/A", null, null, CLASS_FILE)
+		);
+		assertEquals(0, preTransformer.getHits());
+		assertEquals(1, preTransformer.getMisses());
+		assertEquals(3, transformer.calls.get());
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element preTransform = configDoc.createElement("pre-transform");
+		preTransform.setAttribute("threads", "3");
+		agent.appendChild(preTransform);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getTransformer().isPreTransformed());
+		assertEquals(3, configElements.getTransformer().getPreTransformThreads());
+		assertEquals(60000L, configElements.getTransformer().getPreTransformRetention());
+	}
+
+	@Test
+	public void retentionConfiguration()
+	{
+		Element preTransform = configDoc.createElement("pre-transform");
+		preTransform.setAttribute("retention", "2m");
+		agent.appendChild(preTransform);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(120000L, configElements.getTransformer().getPreTransformRetention());
+	}
+
+	@Test
+	public void defaultConfiguration()
+	{
+		agent.appendChild(configDoc.createElement("pre-transform"));
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals(
+			Runtime.getRuntime().availableProcessors(),
+			configElements.getTransformer().getPreTransformThreads()
+		);
+	}
+
+	@Test
+	public void noPreTransform()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getTransformer().isPreTransformed());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidThreads()
+	{
+		Element preTransform = configDoc.createElement("pre-transform");
+		preTransform.setAttribute("threads", "0");
+		agent.appendChild(preTransform);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,190 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class ReentrancyGuardTest
+	extends
+		TestBase
+{
+	/**
+	 * Simulates a transformer which causes another class to be loaded (and transformed)
+	 * while transforming.
+	 */
+	static class NestingTransformer
+		implements
+			ClassFileTransformer
+	{
+		private ClassFileTransformer outer;
+		private int calls;
+		private boolean transformingSeen;
+
+		public byte[] transform(
+			ClassLoader loader,
+			String className,
+			Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain,
+			byte[] classfileBuffer
+		)
+			throws
+				IllegalClassFormatException
+		{
+			calls++;
+			ReentrancyGuard guard = ReentrancyGuard.getInstance();
+			if(guard != null && guard.isTransforming())
+				transformingSeen = true;
+			if(className.equals("com/mysoft/Outer"))
+				outer.transform(loader, "com/mysoft/Nested", null, null, classfileBuffer);
+			return classfileBuffer;
+		}
+	}
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+	}
+
+	@Test
+	public void nestedCallbacksAreShortCircuited() throws IllegalClassFormatException
+	{
+		ReentrancyGuard guard = new ReentrancyGuard();
+		NestingTransformer delegate = new NestingTransformer();
+		DelegateTransformer transformer =
+			new DelegateTransformer(
+				delegate,
+				new ClassFilter(new Pattern[] {Pattern.compile(".+")}, new Pattern[0]),
+				null,
+				guard,
+				null
+			);
+		delegate.outer = transformer;
+		byte[] bytes = new byte[] {1, 2, 3};
+		assertEquals(bytes, transformer.transform(null, "com/mysoft/Outer", null, null, bytes));
+		assertEquals(1, delegate.calls);
+		assertEquals(1, guard.getShortCircuitCount());
+		assertFalse(guard.isTransforming());
+
+		assertEquals(bytes, transformer.transform(null, "com/mysoft/Other", null, null, bytes));
+		assertEquals(2, delegate.calls);
+		assertEquals(1, guard.getShortCircuitCount());
+	}
+
+	@Test
+	public void withoutGuard() throws IllegalClassFormatException
+	{
+		NestingTransformer delegate = new NestingTransformer();
+		DelegateTransformer transformer =
+			new DelegateTransformer(
+				delegate,
+				new ClassFilter(new Pattern[] {Pattern.compile(".+")}, new Pattern[0]),
+				null
+			);
+		delegate.outer = transformer;
+		byte[] bytes = new byte[] {1, 2, 3};
+		transformer.transform(null, "com/mysoft/Outer", null, null, bytes);
+		assertEquals(2, delegate.calls);
+	}
+
+	@Test
+	public void guardIsReleasedOnException()
+	{
+		ReentrancyGuard guard = new ReentrancyGuard();
+		DelegateTransformer transformer =
+			new DelegateTransformer(
+				new ClassFileTransformer() {
+					public byte[] transform(
+						ClassLoader loader,
+						String className,
+						Class<?> classBeingRedefined,
+						ProtectionDomain protectionDomain,
+						byte[] classfileBuffer
+					)
+						throws
+							IllegalClassFormatException
+					{
+						throw new IllegalClassFormatException();
+					}
+				},
+				new ClassFilter(new Pattern[] {Pattern.compile(".+")}, new Pattern[0]),
+				null,
+				guard,
+				null
+			);
+		try {
+			transformer.transform(null, "com/mysoft/Outer", null, null, new byte[0]);
+		}
+		catch(IllegalClassFormatException e) {
+			// Expected.
+		}
+		assertFalse(guard.isTransforming());
+	}
+
+	@Test
+	public void separateThreads() throws InterruptedException
+	{
+		final ReentrancyGuard guard = new ReentrancyGuard();
+		ReentrancyGuard.Depth depth = guard.enter();
+		final boolean[] entered = new boolean[1];
+		Thread thread =
+			new Thread() {
+				public void run()
+				{
+					ReentrancyGuard.Depth d = guard.enter();
+					entered[0] = d != null;
+					guard.exit(d);
+				}
+			};
+		thread.start();
+		thread.join();
+		assertTrue(entered[0]);
+		assertNull(guard.enter());
+		guard.exit(depth);
+		assertEquals(1, guard.getShortCircuitCount());
+	}
+
+	@Test
+	public void configuration()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("reentrancy-guard", "true");
+		agent.appendChild(transformer);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getTransformer().isReentrancyGuarded());
+	}
+
+	@Test
+	public void noGuard()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getTransformer().isReentrancyGuarded());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidReentrancyGuard()
+	{
+		Element transformer = configDoc.createElement("transformer");
+		transformer.setAttribute("reentrancy-guard", "maybe");
+		agent.appendChild(transformer);
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
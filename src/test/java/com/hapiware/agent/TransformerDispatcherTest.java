@@ -0,0 +1,261 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TransformerDispatcherTest
+{
+	/**
+	 * Appends a byte to the class file.
+	 */
+	static class AppendingTransformer
+		implements
+			ClassFileTransformer
+	{
+		private final byte value;
+
+		AppendingTransformer(int value)
+		{
+			this.value = (byte)value;
+		}
+
+		public byte[] transform(
+			ClassLoader loader,
+			String className,
+			Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain,
+			byte[] classfileBuffer
+		)
+		{
+			byte[] transformed = new byte[classfileBuffer.length + 1];
+			System.arraycopy(classfileBuffer, 0, transformed, 0, classfileBuffer.length);
+			transformed[classfileBuffer.length] = value;
+			return transformed;
+		}
+	}
+
+
+	static class FailingTransformer
+		implements
+			ClassFileTransformer
+	{
+		public byte[] transform(
+			ClassLoader loader,
+			String className,
+			Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain,
+			byte[] classfileBuffer
+		)
+		{
+			throw new IllegalStateException("Transformer failure for the test.");
+		}
+	}
+
+
+	public static class ReturningDelegate
+	{
+		static final ClassFileTransformer TRANSFORMER = new AppendingTransformer(1);
+
+		public static ClassFileTransformer premain(
+			Pattern[] includePatterns,
+			Pattern[] excludePatterns,
+			Object configuration,
+			Instrumentation instrumentation
+		)
+		{
+			return TRANSFORMER;
+		}
+	}
+
+
+	private static final ClassFilter CLASS_FILTER =
+		new ClassFilter(new Pattern[] {Pattern.compile("^com/example/.+")}, new Pattern[0]);
+
+	private PrintStream err;
+	private ByteArrayOutputStream output;
+
+
+	/**
+	 * Captures the failures printed by the dispatcher.
+	 */
+	@Before
+	public void setup()
+	{
+		err = System.err;
+		output = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(output, true));
+	}
+
+	@After
+	public void cleanup()
+	{
+		System.setErr(err);
+	}
+
+	@Test
+	public void toTransformers()
+	{
+		ClassFileTransformer first = new AppendingTransformer(1);
+		ClassFileTransformer second = new AppendingTransformer(2);
+		assertEquals(0, TransformerDispatcher.toTransformers(null).length);
+		assertArrayEquals(
+			new ClassFileTransformer[] {first},
+			TransformerDispatcher.toTransformers(first)
+		);
+		assertArrayEquals(
+			new ClassFileTransformer[] {first, second},
+			TransformerDispatcher.toTransformers(new ClassFileTransformer[] {first, null, second})
+		);
+		assertArrayEquals(
+			new ClassFileTransformer[] {second, first},
+			TransformerDispatcher.toTransformers(Arrays.asList(second, first))
+		);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notTransformer()
+	{
+		TransformerDispatcher.toTransformers("transformer");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void notTransformerElement()
+	{
+		TransformerDispatcher.toTransformers(Arrays.asList(new AppendingTransformer(1), "transformer"));
+	}
+
+	@Test
+	public void transformersAreChained()
+	{
+		TransformerDispatcher dispatcher =
+			new TransformerDispatcher(
+				new ClassFileTransformer[] {new AppendingTransformer(1), new AppendingTransformer(2)},
+				CLASS_FILTER,
+				null
+			);
+		assertArrayEquals(
+			new byte[] {0, 1, 2},
+			dispatcher.transform(null, "com/example/Test", null, null, new byte[] {0})
+		);
+	}
+
+	@Test
+	public void excludedClassIsNotDispatched()
+	{
+		TransformerDispatcher dispatcher =
+			new TransformerDispatcher(
+				new ClassFileTransformer[] {new AppendingTransformer(1)},
+				CLASS_FILTER,
+				null
+			);
+		assertNull(dispatcher.transform(null, "org/example/Test", null, null, new byte[] {0}));
+		assertNull(dispatcher.transform(null, null, null, null, new byte[] {0}));
+	}
+
+	@Test
+	public void filterStatisticsAreCountedOnce() throws Exception
+	{
+		ClassNameMatcher[] includeMatchers =
+			new ClassNameMatcher[] {ClassNameMatcher.forPattern(Pattern.compile("^com/example/.+"))};
+		FilterStatistics statistics =
+			new FilterStatistics(includeMatchers, new ClassNameMatcher[0], false);
+		String[] empty = new String[0];
+		ClassFilter classFilter =
+			new ClassFilter(
+				includeMatchers,
+				new ClassNameMatcher[0],
+				empty,
+				empty,
+				empty,
+				empty,
+				null,
+				new MethodFilter(empty, empty),
+				statistics
+			);
+		ClassFileTransformer transformer =
+			new DelegateTransformer(
+				new TransformerDispatcher(
+					new ClassFileTransformer[] {new AppendingTransformer(1)},
+					classFilter,
+					null
+				),
+				classFilter,
+				null
+			);
+		assertArrayEquals(
+			new byte[] {0, 1},
+			transformer.transform(null, "com/example/Test", null, null, new byte[] {0})
+		);
+		assertNull(transformer.transform(null, "org/example/Test", null, null, new byte[] {0}));
+		assertEquals(2, statistics.getDecisionCount());
+	}
+
+	@Test
+	public void failuresAreIsolated()
+	{
+		Metrics metrics = new Metrics(1);
+		TransformerDispatcher dispatcher =
+			new TransformerDispatcher(
+				new ClassFileTransformer[] {
+					new AppendingTransformer(1),
+					new FailingTransformer(),
+					new AppendingTransformer(2)
+				},
+				CLASS_FILTER,
+				metrics
+			);
+		for(int i = 0; i < 3; i++)
+			assertArrayEquals(
+				new byte[] {0, 1, 2},
+				dispatcher.transform(null, "com/example/Test", null, null, new byte[] {0})
+			);
+		// Only the first failure is printed.
+		String printed = output.toString();
+		assertEquals(
+			printed.indexOf(" failed to transform "),
+			printed.lastIndexOf(" failed to transform ")
+		);
+		assertTrue(printed.indexOf(" failed to transform com/example/Test") > 0);
+		assertEquals(0, dispatcher.getFailures(0));
+		assertEquals(3, dispatcher.getFailures(1));
+		assertEquals(0, dispatcher.getFailures(2));
+		assertEquals(3, metrics.counter("agent.transform.failures").get());
+		assertEquals(3, metrics.histogram("agent.transform.time").getSnapshot().getCount());
+	}
+
+	@Test
+	public void unchangedClassReturnsNull()
+	{
+		TransformerDispatcher dispatcher =
+			new TransformerDispatcher(
+				new ClassFileTransformer[] {new FailingTransformer()},
+				CLASS_FILTER,
+				null
+			);
+		assertNull(dispatcher.transform(null, "com/example/Test", null, null, new byte[] {0}));
+	}
+
+	@Test
+	public void premainReturnsTransformer() throws Exception
+	{
+		DelegateBinding binding = DelegateBinding.bind(ReturningDelegate.class);
+		Object result = binding.premain(new Pattern[0], new Pattern[0], null, null, null);
+		assertSame(ReturningDelegate.TRANSFORMER, TransformerDispatcher.toTransformers(result)[0]);
+	}
+}
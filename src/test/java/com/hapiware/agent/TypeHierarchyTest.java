@@ -0,0 +1,213 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+
+
+public class TypeHierarchyTest
+	extends
+		TestBase
+{
+	private static final String PREFIX = "com/hapiware/agent/TypeHierarchyTest$";
+
+
+	interface Marker
+	{
+	}
+
+
+	interface SubMarker
+		extends
+			Marker
+	{
+	}
+
+
+	static class Base
+	{
+	}
+
+
+	static class Middle
+		extends
+			Base
+		implements
+			SubMarker
+	{
+	}
+
+
+	static class Leaf
+		extends
+			Middle
+		implements
+			Serializable
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+
+	private TypeHierarchy hierarchy;
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		hierarchy = new TypeHierarchy();
+	}
+
+	@Test
+	public void transitiveSubtypes()
+	{
+		hierarchy.add("a/A", null, new String[0]);
+		hierarchy.add("a/B", "a/A", new String[] {"a/I"});
+		hierarchy.add("a/I", null, new String[] {"a/J"});
+		hierarchy.add("a/C", "a/B", new String[0]);
+		assertTrue(hierarchy.isSubtypeOf(null, "a/C", "a/A"));
+		assertTrue(hierarchy.isSubtypeOf(null, "a/C", "a/B"));
+		assertTrue(hierarchy.isSubtypeOf(null, "a/C", "a/J"));
+		assertTrue(hierarchy.isSubtypeOf(null, "a/B", "a/I"));
+		assertFalse(hierarchy.isSubtypeOf(null, "a/A", "a/C"));
+		assertFalse(hierarchy.isSubtypeOf(null, "a/C", "a/C"));
+		assertFalse(hierarchy.isSubtypeOf(null, "a/C", "a/Unknown"));
+		assertEquals(5, hierarchy.size());
+	}
+
+	@Test
+	public void firstDefinitionWins()
+	{
+		assertTrue(hierarchy.add("a/B", "a/A", new String[0]));
+		assertFalse(hierarchy.add("a/B", "a/X", new String[0]));
+		assertTrue(hierarchy.isSubtypeOf(null, "a/B", "a/A"));
+		assertFalse(hierarchy.isSubtypeOf(null, "a/B", "a/X"));
+	}
+
+	@Test
+	public void unknownClassesAreResolvedFromClassLoader()
+	{
+		ClassLoader loader = getClass().getClassLoader();
+		assertFalse(hierarchy.contains(PREFIX + "Leaf"));
+		assertTrue(hierarchy.isSubtypeOf(loader, PREFIX + "Leaf", PREFIX + "Base"));
+		assertTrue(hierarchy.isSubtypeOf(loader, PREFIX + "Leaf", PREFIX + "Marker"));
+		assertTrue(hierarchy.isSubtypeOf(loader, PREFIX + "Leaf", "java/io/Serializable"));
+		assertTrue(hierarchy.contains(PREFIX + "Leaf"));
+		assertTrue(hierarchy.contains(PREFIX + "SubMarker"));
+		assertFalse(hierarchy.isSubtypeOf(loader, PREFIX + "Base", PREFIX + "Marker"));
+		assertFalse(hierarchy.isSubtypeOf(loader, "does/not/Exist", PREFIX + "Marker"));
+	}
+
+	@Test
+	public void growsBeyondInitialCapacity()
+	{
+		for(int i = 1; i < 5000; i++)
+			hierarchy.add("a/C" + i, "a/C" + (i - 1), new String[0]);
+		assertEquals(5000, hierarchy.size());
+		assertTrue(hierarchy.isSubtypeOf(null, "a/C4999", "a/C0"));
+	}
+
+	@Test
+	public void scanDirectory() throws URISyntaxException, Exception
+	{
+		File testClasses = new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+		assertTrue(hierarchy.scan(testClasses) > 0);
+		assertTrue(hierarchy.contains(PREFIX + "Leaf"));
+		assertTrue(hierarchy.isSubtypeOf(null, PREFIX + "Leaf", PREFIX + "Marker"));
+	}
+
+	@Test
+	public void memoryPerClass()
+	{
+		final int classes = 50000;
+		for(int i = 0; i < classes; i++)
+			hierarchy.add(
+				"com/mysoft/application/module" + (i % 100) + "/service/BusinessService" + i,
+				"com/mysoft/application/module" + (i % 100) + "/service/AbstractService",
+				new String[] {"com/mysoft/application/Service"}
+			);
+		long perClass = hierarchy.estimateMemoryUsage() / classes;
+		assertTrue("" + perClass, perClass < 256);
+	}
+
+	@Test
+	public void classFilter()
+	{
+		ClassFilter filter =
+			new ClassFilter(
+				new Pattern[] {Pattern.compile(".+")},
+				new Pattern[0],
+				new String[0],
+				new String[0],
+				new String[0],
+				new String[] {PREFIX + "Marker"}
+			);
+		ClassLoader loader = getClass().getClassLoader();
+		assertTrue(filter.hasClassFileRules());
+		assertTrue(filter.acceptClassFile(loader, readClassBytes(Leaf.class)));
+		assertTrue(filter.acceptClassFile(loader, readClassBytes(SubMarker.class)));
+		assertFalse(filter.acceptClassFile(loader, readClassBytes(Base.class)));
+		assertFalse(filter.acceptClassFile(loader, readClassBytes(Marker.class)));
+	}
+
+	@Test
+	public void classesAcceptedByOtherRulesAreRecorded()
+	{
+		ClassFilter filter =
+			new ClassFilter(
+				new Pattern[] {Pattern.compile(".+")},
+				new Pattern[0],
+				new String[] {PREFIX + "Base"},
+				new String[0],
+				new String[0],
+				new String[] {"java/lang/Runnable"}
+			);
+		assertTrue(filter.acceptClassFile(readClassBytes(Middle.class)));
+		assertTrue(filter.getTypeHierarchy().contains(PREFIX + "Middle"));
+	}
+
+	@Test
+	public void configuration()
+	{
+		instrumentedClass.setAttribute("scan-classpath", "true");
+		Element element = configDoc.createElement("subtype-of");
+		element.appendChild(configDoc.createTextNode("com.hapiware.agent.TypeHierarchyTest$Base"));
+		instrumentedClass.appendChild(element);
+
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertTrue(configElements.getFilter().isClasspathScanned());
+		ClassFilter filter = configElements.getClassFilter();
+		assertTrue(filter.acceptClassFile(getClass().getClassLoader(), readClassBytes(Leaf.class)));
+	}
+
+	@Test
+	public void noSubtypeRules()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertFalse(configElements.getFilter().isClasspathScanned());
+		assertNull(configElements.getClassFilter().getTypeHierarchy());
+	}
+
+	@Test(expected=Agent.ConfigurationError.class)
+	public void invalidScanClasspath()
+	{
+		instrumentedClass.setAttribute("scan-classpath", "yes");
+		Agent.readDOMDocument(configDoc, this.getClass().toString());
+	}
+}
@@ -0,0 +1,159 @@
+package com.hapiware.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.hapiware.agent.Agent.ConfigElements;
+import com.hapiware.agent.Agent.ConfigurationError;
+
+
+public class VariableSourcesTest
+	extends
+		TestBase
+{
+	private static final String PROPERTY = "com.hapiware.agent.VariableSourcesTest";
+
+
+	@Before
+	public void setup() throws ParserConfigurationException
+	{
+		super.setup();
+		VariableSources.clear();
+		System.setProperty(PROPERTY, "hapiware");
+		configuration = configDoc.createElement("configuration");
+		agent.appendChild(configuration);
+	}
+
+	@After
+	public void teardown()
+	{
+		System.clearProperty(PROPERTY);
+		VariableSources.clear();
+	}
+
+	private void addItem(String value)
+	{
+		Element item = configDoc.createElement("item");
+		item.appendChild(configDoc.createTextNode(value));
+		configuration.appendChild(item);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<String> unmarshall()
+	{
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		return (List<String>)Agent.unmarshall(this.getClass(), configElements);
+	}
+
+	@Test
+	public void systemProperty()
+	{
+		Element variable = configDoc.createElement("variable");
+		variable.setAttribute("name", "package");
+		variable.appendChild(configDoc.createTextNode("${sys:" + PROPERTY + "}"));
+		agent.insertBefore(variable, agent.getFirstChild());
+		addItem("^com/${sys:" + PROPERTY + "}/.+");
+		addItem("^com/${package}/.+");
+		List<String> list = unmarshall();
+		assertEquals("^com/hapiware/.+", list.get(0));
+		assertEquals("^com/hapiware/.+", list.get(1));
+	}
+
+	@Test
+	public void environmentVariable()
+	{
+		Map.Entry<String, String> environmentVariable = null;
+		for(Map.Entry<String, String> entry : System.getenv().entrySet())
+			if(entry.getValue().matches("[\\w/.:-]+"))
+				environmentVariable = entry;
+		assertNotNull(environmentVariable);
+		addItem("${env:" + environmentVariable.getKey() + "}");
+		assertEquals(environmentVariable.getValue().trim(), unmarshall().get(0));
+	}
+
+	@Test
+	public void defaultValue()
+	{
+		addItem("${sys:" + PROPERTY + ".undefined:-/opt/agent}/lib");
+		addItem("${env:HAPIWARE_AGENT_UNDEFINED:-}x");
+		addItem("${sys:" + PROPERTY + ":-default}");
+		List<String> list = unmarshall();
+		assertEquals("/opt/agent/lib", list.get(0));
+		assertEquals("x", list.get(1));
+		assertEquals("hapiware", list.get(2));
+	}
+
+	@Test
+	public void attribute()
+	{
+		Element item = configDoc.createElement("item");
+		item.setAttribute("key", "${sys:" + PROPERTY + "}");
+		item.appendChild(configDoc.createTextNode("value"));
+		configuration.appendChild(item);
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		Map<?, ?> map = (Map<?, ?>)Agent.unmarshall(this.getClass(), configElements);
+		assertEquals("value", map.get("hapiware"));
+	}
+
+	@Test(expected=ConfigurationError.class)
+	public void undefined()
+	{
+		addItem("${sys:" + PROPERTY + ".undefined}");
+		unmarshall();
+	}
+
+	@Test
+	public void lazyAndCached()
+	{
+		int lookups = VariableSources.getLookups();
+		addItem("no references");
+		unmarshall();
+		assertEquals(lookups, VariableSources.getLookups());
+
+		assertEquals("hapiware", VariableSources.resolve("sys:" + PROPERTY));
+		assertEquals("hapiware", VariableSources.resolve("sys:" + PROPERTY + ":-default"));
+		System.setProperty(PROPERTY, "changed");
+		assertEquals("hapiware", VariableSources.resolve("sys:" + PROPERTY));
+		assertNull(VariableSources.resolve(PROPERTY + ".undefined"));
+		assertNull(VariableSources.resolve("sys:" + PROPERTY + ".undefined"));
+		assertNull(VariableSources.resolve("sys:" + PROPERTY + ".undefined"));
+		assertEquals(lookups + 2, VariableSources.getLookups());
+	}
+
+	@Test
+	public void replace()
+	{
+		assertEquals(
+			"hapiware/${package}/default.xml",
+			VariableSources.replace(
+				"${sys:" + PROPERTY + "}/${package}/${env:HAPIWARE_AGENT_UNDEFINED:-default}.xml"
+			)
+		);
+	}
+
+	@Test
+	public void includeFile()
+	{
+		System.setProperty(PROPERTY, BASEDIR + "fragments");
+		Element include = configDoc.createElement("include");
+		include.setAttribute("file", "${sys:" + PROPERTY + "}/filter.xml");
+		instrumentedClass.insertBefore(include, instrumentedClass.getFirstChild());
+		addItem("item");
+		ConfigElements configElements =
+			Agent.readDOMDocument(configDoc, this.getClass().toString());
+		assertEquals("^com/mysoft/.+", configElements.getIncludePatterns()[0].pattern());
+	}
+}